@@ -1,9 +1,12 @@
 package constraints;
 import constraints.config.Configuration;
 import constraints.constraints.ConstraintsBuildEngine;
+import constraints.constraints.ConstraintsFilter;
 import constraints.constraints.ConstraintsSolving;
+import constraints.formula.ConstraintSet;
 import constraints.pattern.*;
 import constraints.trace.*;
+import constraints.unsatcore.UnSatConstraint;
 import scheduler.listeners.ExplorationStatsListener;
 
 import java.io.ByteArrayOutputStream;
@@ -11,7 +14,16 @@ import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -32,6 +44,10 @@ public class ExploreSeedInterleavings {
     public static HashSet<Object> races = new HashSet<Object>();
 	private static boolean isfulltrace =false;
 	private static ConstraintsBuildEngine iEngine;
+
+	//solver workers, only used when solver_threads > 1
+	private static ExecutorService solverPool;
+	private static final BlockingQueue<ConstraintsBuildEngine> idleWorkerEngines = new LinkedBlockingQueue<>();
 	
 	//prefix-setOfEquivalentPrefixes_map
 	static HashMap<Vector<String>, Set<Vector<String>>> mapPrefixEquivalent = new HashMap<>();
@@ -226,17 +242,112 @@ public class ExploreSeedInterleavings {
 	 */
 	private static void generatePatternSchedules(ConstraintsBuildEngine engine, Trace trace, Vector<String> schedule_prefix) {
 
-		List<Pattern> patterns = PatternUtil.getAllPatterns(trace);
+		List<Pattern> patterns = PatternAnalysis.of(trace).getPatterns();
 		List<Pattern> epatterns = ExploredPatterns.getAlreadExploredPatternsLoose(patterns);
 		patterns.removeAll(epatterns);
 		patterns = rerangePattern(patterns);
 		if (patterns.size() > 0) {
-			for (Pattern currentPattern : patterns) {
-				checkPattern(engine, trace, currentPattern); //这里会调用generateScheduleWithTaskBack
+			int workers = getSolverWorkers();
+			if (workers > 1) {
+				checkPatternsInParallel(engine, trace, patterns, workers);
+			} else {
+				for (Pattern currentPattern : patterns) {
+					Vector<String> schedule = checkPattern(engine, trace, currentPattern); //这里会调用generateScheduleWithTaskBack
+					addPatternSchedule(trace, currentPattern, schedule);
+				}
 			}
 		}
 	}
 
+	/**
+	 * the data_extraction filter records its dataset query by query,
+	 * so it always runs with a single worker
+	 */
+	private static int getSolverWorkers() {
+
+		if (Configuration.useConstraintsFilter
+				&& ConstraintsFilter.MODE_DATA_EXTRACTION.equals(Configuration.constraintsFilterMode)) {
+			return 1;
+		}
+		return Configuration.solverThreads;
+	}
+
+	/**
+	 * solve the patterns on the worker pool, each worker has its own engine
+	 * sharing the trace level state of engine.
+	 * The schedules and the unsat cores are merged in the order of the patterns
+	 * once all the patterns are solved, so that neither the explore queue nor
+	 * the queries the unsat cores skip depend on the timing of the workers.
+	 */
+	private static void checkPatternsInParallel(ConstraintsBuildEngine engine, final Trace trace,
+												List<Pattern> patterns, int workers) {
+
+		if (solverPool == null) {
+			solverPool = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "mcr-solver-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			for (int i = 0; i < workers; i++) {
+				idleWorkerEngines.add(new ConstraintsBuildEngine(engine));
+			}
+		}
+		for (ConstraintsBuildEngine workerEngine : idleWorkerEngines) {
+			workerEngine.shareTraceState(engine);
+		}
+
+		List<Future<PatternResult>> results = new ArrayList<>();
+		for (final Pattern currentPattern : patterns) {
+			results.add(solverPool.submit(new Callable<PatternResult>() {
+				@Override
+				public PatternResult call() throws Exception {
+					ConstraintsBuildEngine workerEngine = idleWorkerEngines.take();
+					try {
+						Vector<String> schedule = checkPattern(workerEngine, trace, currentPattern);
+						return new PatternResult(schedule, workerEngine.takeDeferredUnSatCores());
+					} finally {
+						idleWorkerEngines.put(workerEngine);
+					}
+				}
+			}));
+		}
+
+		//the cores are only published once the whole batch is solved, so no worker sees a core of another
+		List<PatternResult> solved = new ArrayList<>();
+		for (int i = 0; i < patterns.size(); i++) {
+			try {
+				solved.add(results.get(i).get());
+			} catch (InterruptedException | ExecutionException e) {
+				e.printStackTrace();
+				solved.add(null);
+			}
+		}
+		for (int i = 0; i < patterns.size(); i++) {
+			PatternResult result = solved.get(i);
+			if (result == null)
+				continue;
+			for (ArrayList<String> core : result.unsatCores) {
+				UnSatConstraint.addUnSatCore(core);
+			}
+			addPatternSchedule(trace, patterns.get(i), result.schedule);
+		}
+	}
+
+	private static class PatternResult {
+
+		final Vector<String> schedule;
+		final ArrayList<ArrayList<String>> unsatCores;
+
+		PatternResult(Vector<String> schedule, ArrayList<ArrayList<String>> unsatCores) {
+			this.schedule = schedule;
+			this.unsatCores = unsatCores;
+		}
+	}
+
 	public static List<Pattern> rerangePattern(List<Pattern> patterns){
 
 		List<Pattern> rangePattern = new ArrayList<>();
@@ -258,9 +369,13 @@ public class ExploreSeedInterleavings {
 		return rangePattern;
 	}
 
-	private static void checkPattern(ConstraintsBuildEngine engine,
-									 Trace trace,
-									 Pattern currentPattern){
+	/**
+	 * build the constraints of currentPattern and solve them
+	 * @return the schedule in the form of x<GID>, null if the pattern is infeasible
+	 */
+	private static Vector<String> checkPattern(ConstraintsBuildEngine engine,
+											   Trace trace,
+											   Pattern currentPattern){
 
 		if(currentPattern != null){
 			if (currentPattern.getNodes().size() >= 2){
@@ -277,11 +392,11 @@ public class ExploreSeedInterleavings {
 					secondNode = currentPattern.getNodes().get(3);
 				}
 				//for all the events that happen before the target read and chosen write
-				HashSet<AbstractNode> depNodes = new HashSet<AbstractNode>();
+				ThreadPrefixSet depNodes = engine.newDependentNodes();
 				//only for all the events that happen before the target read
-				HashSet<AbstractNode> readDepNodes = new HashSet<AbstractNode>();
-				HashSet<AbstractNode> nodes1 = engine.getDependentNodes(trace,firstNode);
-				HashSet<AbstractNode> nodes2 = engine.getDependentNodes(trace,secondNode);
+				ThreadPrefixSet readDepNodes = engine.newDependentNodes();
+				ThreadPrefixSet nodes1 = engine.getDependentNodes(trace,firstNode);
+				ThreadPrefixSet nodes2 = engine.getDependentNodes(trace,secondNode);
 				depNodes.addAll(nodes1);
 				depNodes.addAll(nodes2);
 
@@ -292,26 +407,35 @@ public class ExploreSeedInterleavings {
 
 				}
 				//construct feasibility constraints
-				StringBuilder sb =
+				ConstraintSet sb =
 						engine.constructFeasibilityConstraints(trace,depNodes,readDepNodes, firstNode, secondNode);
 				//construct read write constraints
-				StringBuilder sb4 =
+				ConstraintSet sb4 =
 						engine.constructPatternConstraints(engine,trace,depNodes,currentPattern);
-				sb.append(sb4);
+				sb.addAll(sb4);
 				ConstraintsSolving task =
 						engine.generateScheduleWithTaskBack(sb, depNodes,firstNode.getGID(), secondNode.getGID(),0);
-				Vector<String> schedule = task.schedule;
-				//each time compute a causal schedule, record the information of #read, #constraints, time
-				output = output + Long.toString(Configuration.numReads) + " " +
-						Long.toString(Configuration.rwConstraints) + " " +
-						Long.toString(Configuration.solveTime) + "\n";
-				if(schedule!=null) {
-					PSchedule pstmp = new PSchedule(currentPattern,generateSchedule(schedule,trace));
-					if (!ExploredPSchedules.checkIfThisPScheduleExplored(pstmp) && !ExploredPSchedules.checkIfThisScheduleExplored(pstmp)){
-						ExplorationStatsListener.numCheckPattern += 1;
-						schedules.add(pstmp);
-					}
-				}
+				return task.schedule;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * add the schedule solved for currentPattern to the explore queue,
+	 * unless it has been explored already
+	 */
+	private static void addPatternSchedule(Trace trace, Pattern currentPattern, Vector<String> schedule) {
+
+		//each time compute a causal schedule, record the information of #read, #constraints, time
+		output = output + Long.toString(Configuration.numReads) + " " +
+				Long.toString(Configuration.rwConstraints) + " " +
+				Long.toString(Configuration.solveTime.get()) + "\n";
+		if(schedule!=null) {
+			PSchedule pstmp = new PSchedule(currentPattern,generateSchedule(schedule,trace));
+			if (!ExploredPSchedules.checkIfThisPScheduleExplored(pstmp) && !ExploredPSchedules.checkIfThisScheduleExplored(pstmp)){
+				ExplorationStatsListener.numCheckPattern += 1;
+				schedules.add(pstmp);
 			}
 		}
 	}
@@ -321,9 +445,9 @@ public class ExploreSeedInterleavings {
 			ReadNode rnode, String initVal,
 			HashMap<String, Set<Vector<String>>> mValuesPrefixes) {
 		//construct constraints and generate schedule
-		HashSet<AbstractNode> depNodes = engine.getDependentNodes(trace,rnode);
+		ThreadPrefixSet depNodes = engine.getDependentNodes(trace,rnode);
 		
-		HashSet<AbstractNode> readDepNodes = new HashSet<AbstractNode>();
+		ThreadPrefixSet readDepNodes = engine.newDependentNodes();
 		//OMCR
 		HashMap<String, Set<Vector<String>>> mValuePrefix = new HashMap<>();
 		Set<Vector<String>> prefix = new HashSet<Vector<String>>();
@@ -335,19 +459,19 @@ public class ExploreSeedInterleavings {
 		depNodes.add(rnode);
 		readDepNodes.add(rnode);
 
-        StringBuilder sb;
+        ConstraintSet sb;
         sb = engine.constructFeasibilityConstraints(trace,depNodes,readDepNodes, rnode, null);
-        StringBuilder sb2;
+        ConstraintSet sb2;
         sb2 = engine.constructReadInitWriteConstraints(trace,rnode,depNodes, writenodes);
 
-        sb.append(sb2);
+        sb.addAll(sb2);
 		//@alan
 		//adding rnode.getGid() as a parameter
 		Vector<String> schedule = engine.generateSchedule(sb,rnode.getGID(),rnode.getGID(),isfulltrace?schedule_prefix.size():0);
 		
 		output = output + Configuration.numReads + " " +
 				Configuration.rwConstraints + " " +
-				Configuration.solveTime + "\n";
+				Configuration.solveTime.get() + "\n";
 			
 		if(schedule!=null){
 			if (Configuration.OMCR) {
@@ -401,10 +525,10 @@ public class ExploreSeedInterleavings {
                 if (rnode.getGID() > wnode.getGID() || !engine.canReach(rnode, wnode)) {
 
                     //for all the events that happen before the target read and chosen write
-                    HashSet<AbstractNode> depNodes = new HashSet<>();
+                    ThreadPrefixSet depNodes = engine.newDependentNodes();
 
                     //only for all the events that happen before the target read
-                    HashSet<AbstractNode> readDepNodes = new HashSet<>();
+                    ThreadPrefixSet readDepNodes = engine.newDependentNodes();
 
                     if (isfulltrace && schedule_prefix.size() > 0)
                         depNodes.addAll(trace.getFullTrace().subList(0, schedule_prefix.size()));
@@ -421,8 +545,8 @@ public class ExploreSeedInterleavings {
 					 * it just needs to ignore the feasibility constraints of these reads
 					 * @author Alan
 					 */
-                    HashSet<AbstractNode> nodes1 = engine.getDependentNodes(trace, rnode);
-                    HashSet<AbstractNode> nodes2 = engine.getDependentNodes(trace, wnode);
+                    ThreadPrefixSet nodes1 = engine.getDependentNodes(trace, rnode);
+                    ThreadPrefixSet nodes2 = engine.getDependentNodes(trace, wnode);
 
                     depNodes.addAll(nodes1);
                     depNodes.addAll(nodes2);
@@ -430,15 +554,15 @@ public class ExploreSeedInterleavings {
                     readDepNodes.addAll(nodes1);
 
                     //construct feasibility constraints
-                    StringBuilder sb =
+                    ConstraintSet sb =
                             engine.constructFeasibilityConstraints(trace, depNodes, readDepNodes, rnode, wnode);
 
                     //construct read write constraints, namely, all other writes either happen before the Write
                     //or after the Read.
-                    StringBuilder sb3 =
+                    ConstraintSet sb3 =
                             engine.constructReadWriteConstraints(trace,depNodes, rnode, wnode, otherWriteNodes);
 
-                    sb.append(sb3);
+                    sb.addAll(sb3);
 
                     Vector<String> schedule =
                             engine.generateSchedule(sb, rnode.getGID(), wnode.getGID(), isfulltrace ? schedule_prefix.size() : 0);
@@ -446,7 +570,7 @@ public class ExploreSeedInterleavings {
                     //each time compute a causal schedule, record the information of #read, #constraints, time
                     output = output + Long.toString(Configuration.numReads) + " " +
                             Long.toString(Configuration.rwConstraints) + " " +
-                            Long.toString(Configuration.solveTime) + "\n";
+                            Long.toString(Configuration.solveTime.get()) + "\n";
 
                     if (schedule != null) {
 						if (Configuration.OMCR) {
@@ -810,7 +934,7 @@ public class ExploreSeedInterleavings {
 		
 		Configuration.numReads = 0;
 		Configuration.rwConstraints = 0;
-		Configuration.solveTime = 0;
+		Configuration.solveTime.set(0);
 			
 		//OPT: if #sv==0 or #shared rw ==0 continue	
 		if(trace.hasSharedVariable())
@@ -0,0 +1,80 @@
+package constraints;
+
+import constraints.pattern.PSchedule;
+import constraints.pattern.Pattern;
+import constraints.pattern.PatternAnalysis;
+import constraints.trace.TraceFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Re-run pattern extraction, or the whole constraint exploration, on the
+ * traces saved with trace_capture_dir, without executing the program again.
+ * The constraint settings come from the properties as usual, so they can be
+ * changed with -D options between two replays of the same corpus.
+ *
+ * usage: ReplayCapturedTraces patterns|explore <dir or .mcrt file> ...
+ */
+public class ReplayCapturedTraces {
+
+	public static void main(String[] args) throws IOException {
+
+		if (args.length < 2 || !("patterns".equals(args[0]) || "explore".equals(args[0]))) {
+			System.err.println("usage: ReplayCapturedTraces patterns|explore <dir or " + TraceFile.SUFFIX + " file> ...");
+			System.exit(1);
+		}
+		boolean explore = "explore".equals(args[0]);
+
+		long loadTime = 0, analysisTime = 0;
+		int numTraces = 0, numPatterns = 0, numSchedules = 0;
+		Queue<PSchedule> schedules = new ConcurrentLinkedQueue<PSchedule>();
+
+		for (int i = 1; i < args.length; i++) {
+			for (File file : traceFiles(new File(args[i]))) {
+				long start = System.currentTimeMillis();
+				TraceFile captured = TraceFile.read(file);
+				loadTime += System.currentTimeMillis() - start;
+
+				start = System.currentTimeMillis();
+				if (explore) {
+					schedules.clear();
+					new ExploreSeedInterleavings(schedules).execute(captured.getTrace(), captured.getSchedulePrefix());
+					numSchedules += schedules.size();
+				} else {
+					List<Pattern> patterns = PatternAnalysis.of(captured.getTrace()).getPatterns();
+					numPatterns += patterns.size();
+				}
+				analysisTime += System.currentTimeMillis() - start;
+				numTraces++;
+			}
+		}
+
+		System.out.println("#traces: " + numTraces);
+		System.out.println("load time(ms): " + loadTime);
+		if (explore) {
+			System.out.println("#schedules: " + numSchedules);
+			System.out.println("exploration time(ms): " + analysisTime);
+		} else {
+			System.out.println("#patterns: " + numPatterns);
+			System.out.println("pattern time(ms): " + analysisTime);
+		}
+		System.exit(0);
+	}
+
+	private static List<File> traceFiles(File file) {
+		if (!file.isDirectory()) {
+			return Arrays.asList(file);
+		}
+		File[] files = file.listFiles((dir, name) -> name.endsWith(TraceFile.SUFFIX));
+		if (files == null) {
+			return Arrays.asList();
+		}
+		Arrays.sort(files);
+		return Arrays.asList(files);
+	}
+}
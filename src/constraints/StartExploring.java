@@ -52,7 +52,7 @@ public class StartExploring implements Runnable {
 			//raw mcr
 //			ExploreSeedInterleavings explore = new ExploreSeedInterleavings(exploreQueue);
 
-			//load the trace
+			//load the trace, a no-op if it was loaded already, keeping its pattern analysis
 			traceObj.finishedLoading(true);
 			//build SMT constraints over the trace and search alternative prefixes
 			explore.execute(traceObj, schedule_prefix);
@@ -5,6 +5,7 @@ import constraints.graph.ReachabilityEngine;
 import constraints.sdg.ReadSDG;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Configuration {
 
@@ -32,8 +33,55 @@ public class Configuration {
 
     //constraints filter -- using constraint filtering to optimize constraint solving
     public static boolean useConstraintsFilter = false;  //use or not use constraints filter
-    public static String constraintsFilterMode = "simple";  //constraints filter mode: "simple" or "data_extraction"
+    public static String constraintsFilterMode = "simple";  //constraints filter mode: "simple", "data_extraction" or "predict"
     //public static boolean constraintsFilterClearFiles = true; //whether to clear data files on program start
+    //data_extraction dataset -- "text": a line per record, "binary": length and bytes per record, see DatasetSink
+    public static String datasetFormat = "text";
+    public static boolean datasetGzip = false;
+    //records queued for the dataset writer before the exploration waits for it
+    public static int datasetQueueSize = 4096;
+    //predict filter mode -- the UnsatPredictor model, the score from which a query is skipped as unsat,
+    //and shadow: solve every query, only report how the predictions compare with the outcomes
+    public static String unsatModel = "";
+    public static double unsatPredictThreshold = 0.95;
+    public static boolean unsatPredictShadow = true;
+
+    //solver mode -- "file": one z3 process per query, "interactive": one persistent z3 session
+    public static String solverMode = "file";
+    //number of workers solving the patterns of a trace in parallel, 1: solve them one by one
+    public static int solverThreads = 1;
+    //solve the queries with IdlSolver first, z3 only gets those over nativeSolverBudget graph steps
+    public static boolean nativeSolver = true;
+    public static long nativeSolverBudget = 1000000;
+    //sync and PO constraints kept per dependent nodes of a trace for the patterns sharing them, 0: not kept
+    public static int preludeCacheSize = 64;
+    //results of the queries kept by canonical form (see SolverCache), 0: not kept; directory to keep them across runs, empty: not kept
+    public static int solverCacheSize = 4096;
+    public static String solverCacheDir = "";
+    //the events of a length 2 pattern are at most patternWindow GIDs apart, 0: no bound
+    public static long patternWindow = 0;
+
+    //trace recording -- "stack": label from the stack trace, node per event, "buffered": static labels, per thread buffers
+    public static String recordMode = "stack";
+
+    //directory keeping the explored schedule and covered pattern fingerprints across runs, empty: not kept
+    public static String registryDir = "";
+
+    //directory keeping the unsat cores of each test across runs (see UnSatCoreStore), empty: not kept
+    public static String unsatCoreDir = "";
+    //unsat cores kept per test, the least recently used dropped first
+    public static int unsatCoreMax = 10000;
+
+    //directory the trace of every execution is saved to (see TraceFile), empty: not saved
+    public static String traceCaptureDir = "";
+
+    //scheduler: ms without a signal after which running threads are taken as blocked in an untracked operation
+    public static long untrackedBlockTimeout = 500;
+    //scheduler: consecutive samples with no running thread RUNNABLE to take them as blocked before the timeout
+    public static int untrackedBlockSamples = 2;
+
+    //set by ExplorationCoordinator on the worker JVMs it starts: port to take schedule prefixes from, 0: not a worker
+    public static int workerPort = 0;
 
     //for naming output file
     public static String class_name = null;
@@ -56,6 +104,42 @@ public class Configuration {
         useConstraintsFilter = Boolean.parseBoolean(instance.getProperty("use_constraints_filter"));
         constraintsFilterMode = instance.getProperty("constraints_filter_mode", "simple");
         //constraintsFilterClearFiles = Boolean.parseBoolean(instance.getProperty("constraints_filter_clear_files", "true"));
+        datasetFormat = instance.getProperty("dataset_format", "text");
+        datasetGzip = Boolean.parseBoolean(instance.getProperty("dataset_gzip", "false"));
+        datasetQueueSize = Integer.parseInt(instance.getProperty("dataset_queue_size", "4096"));
+        unsatModel = instance.getProperty("unsat_model", "").trim();
+        unsatPredictThreshold = Double.parseDouble(instance.getProperty("unsat_predict_threshold", "0.95"));
+        unsatPredictShadow = Boolean.parseBoolean(instance.getProperty("unsat_predict_shadow", "true"));
+
+        //configure solver mode
+        solverMode = instance.getProperty("solver_mode", "file");
+        solverThreads = Integer.parseInt(instance.getProperty("solver_threads", "1"));
+        nativeSolver = Boolean.parseBoolean(instance.getProperty("native_solver", "true"));
+        nativeSolverBudget = Long.parseLong(instance.getProperty("native_solver_budget", "1000000"));
+        preludeCacheSize = Integer.parseInt(instance.getProperty("prelude_cache_size", "64"));
+        solverCacheSize = Integer.parseInt(instance.getProperty("solver_cache_size", "4096"));
+        solverCacheDir = instance.getProperty("solver_cache_dir", "").trim();
+        patternWindow = Long.parseLong(instance.getProperty("pattern_window", "0"));
+
+        //configure trace recording
+        recordMode = instance.getProperty("record_mode", "stack");
+
+        //configure the explored schedule/covered pattern registries
+        registryDir = instance.getProperty("registry_dir", "").trim();
+
+        //configure the unsat core store
+        unsatCoreDir = instance.getProperty("unsat_core_dir", "").trim();
+        unsatCoreMax = Integer.parseInt(instance.getProperty("unsat_core_max", "10000"));
+
+        //configure trace capture
+        traceCaptureDir = instance.getProperty("trace_capture_dir", "").trim();
+
+        //configure the detection of threads blocked in untracked operations
+        untrackedBlockTimeout = Long.parseLong(instance.getProperty("untracked_block_timeout", "500"));
+        untrackedBlockSamples = Integer.parseInt(instance.getProperty("untracked_block_samples", "2"));
+
+        //coordinator/worker exploration
+        workerPort = Integer.parseInt(instance.getProperty("worker_port", "0"));
 
         //vm option by -D
         class_name = System.getProperty("class_name");
@@ -73,7 +157,8 @@ public class Configuration {
 
     public static long numReads;
     public static long rwConstraints;
-    public static long solveTime;
+    //ms, added to by the solver workers
+    public static final AtomicLong solveTime = new AtomicLong();
 
     //end
 
@@ -0,0 +1,136 @@
+package constraints.constraints;
+
+import constraints.config.Configuration;
+import constraints.formula.Formula;
+import constraints.trace.AbstractNode;
+import constraints.trace.ReadNode;
+import constraints.trace.Trace;
+import constraints.trace.TraceInfo;
+import constraints.trace.WriteNode;
+import constraints.unsatcore.UnSatConstraint;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.Vector;
+
+/*
+ * Time the naming of the constraints of a pattern (uniform formulas) and the
+ * unsat core check of the query, per pattern, on synthetic traces.
+ * Every pattern records FORMULAS formulas over events of the trace in the
+ * shapes the engine builds, every CORE_EVERY-th pattern adds an unsat core.
+ *
+ * usage: ConstraintBuildBenchmark [#events ...]   (default 1k 10k 100k)
+ */
+public class ConstraintBuildBenchmark {
+
+	private static final int THREADS = 8;
+	private static final int ADDRESSES = 64;
+	private static final int LOCATIONS = 200;
+	private static final int PATTERNS = 2000;
+	private static final int FORMULAS = 40;
+	private static final int CORE_EVERY = 4;
+	private static final int CORE_SIZE = 3;
+
+	public static void main(String[] args) {
+
+		int[] sizes = {1000, 10000, 100000};
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++)
+				sizes[i] = Integer.parseInt(args[i]);
+		}
+
+		System.out.println(String.format("%10s %8s %16s %16s %10s",
+				"#events", "#cores", "build/pattern", "check/pattern", "#unsat"));
+		for (int n : sizes)
+			run(n);
+	}
+
+	private static void run(int n) {
+
+		Random ran = new Random(n);
+		Trace trace = syntheticTrace(n, ran);
+		Vector<AbstractNode> nodes = trace.getFullTrace();
+
+		ArrayList<ArrayList<Formula>> patterns = new ArrayList<>();
+		for (int p = 0; p < PATTERNS; p++) {
+			ArrayList<Formula> formulas = new ArrayList<>();
+			for (int f = 0; f < FORMULAS; f++)
+				formulas.add(formula(nodes, ran));
+			patterns.add(formulas);
+		}
+
+		UnSatConstraint.clearUnSatsCache();
+		ConstraintsBuildEngine engine = new ConstraintsBuildEngine(new Configuration());
+		long build = 0, check = 0;
+		int unsats = 0;
+
+		for (int p = 0; p < PATTERNS; p++) {
+			ArrayList<Formula> formulas = patterns.get(p);
+
+			long ts = System.nanoTime();
+			engine.resetParameter();
+			for (int f = 0; f < formulas.size(); f++)
+				engine.updateCurrentConsUniform(f + 1, formulas.get(f), trace);
+			build += System.nanoTime() - ts;
+
+			ts = System.nanoTime();
+			if (engine.checkIfUnsat(engine.currentFormulaSet))
+				unsats++;
+			check += System.nanoTime() - ts;
+
+			//as if the query was unsat with a core of a few of its formulas
+			if (p % CORE_EVERY == 0) {
+				ArrayList<String> core = new ArrayList<>();
+				ArrayList<String> uniform = new ArrayList<>(engine.currentFormulas.values());
+				for (int c = 0; c < CORE_SIZE; c++)
+					core.add(uniform.get(ran.nextInt(uniform.size())));
+				UnSatConstraint.addUnSatCore(core);
+			}
+		}
+
+		System.out.println(String.format("%10d %8d %14dus %14dus %10d",
+				n, UnSatConstraint.getUnSats().size(),
+				build / PATTERNS / 1000, check / PATTERNS / 1000, unsats));
+	}
+
+	private static Trace syntheticTrace(int n, Random ran) {
+
+		HashMap<Long, String> threadNames = new HashMap<>();
+		for (long t = 1; t <= THREADS; t++)
+			threadNames.put(t, "T" + t);
+		Trace trace = new Trace(new TraceInfo(new HashMap<Integer, String>(), new HashMap<Integer, String>(),
+				new HashMap<Integer, String>(), threadNames));
+
+		for (long gid = 1; gid <= n; gid++) {
+			long tid = 1 + ran.nextInt(THREADS);
+			int ID = 1 + ran.nextInt(LOCATIONS);
+			String addr = "a" + ran.nextInt(ADDRESSES);
+			if (ran.nextBoolean())
+				trace.addRawNode(new ReadNode(gid, tid, ID, addr, "0", AbstractNode.TYPE.READ, null));
+			else
+				trace.addRawNode(new WriteNode(gid, tid, ID, addr, "1", AbstractNode.TYPE.WRITE, null));
+		}
+		trace.finishedLoading(true);
+		return trace;
+	}
+
+	//the shapes of the engine: order, read-write and read-init-write constraints
+	private static Formula formula(Vector<AbstractNode> nodes, Random ran) {
+
+		long r = gid(nodes, ran), w = gid(nodes, ran), w2 = gid(nodes, ran);
+		switch (ran.nextInt(3)) {
+		case 0:
+			return Formula.less(r, w);
+		case 1:
+			return Formula.and(Formula.greater(r, w), Formula.or(Formula.greater(w2, r), Formula.greater(w, w2)));
+		default:
+			return Formula.and(Formula.greater(w, r), Formula.greater(w2, r));
+		}
+	}
+
+	private static long gid(Vector<AbstractNode> nodes, Random ran) {
+		return nodes.get(ran.nextInt(nodes.size())).getGID();
+	}
+}
@@ -1,19 +1,26 @@
 package constraints.constraints;
 
 import constraints.config.Configuration;
+import constraints.formula.ConstraintSet;
+import constraints.formula.Formula;
+import constraints.formula.SmtLibWriter;
+import constraints.graph.ChainReachabilityIndex;
 import constraints.graph.LockSetEngine;
 import constraints.graph.ReachabilityEngine;
 import constraints.pattern.Pattern;
 import constraints.pattern.PatternType;
 import constraints.trace.*;
 import constraints.unsatcore.UnSatConstraint;
+import constraints.unsatcore.UniformFormula;
 import scheduler.listeners.ExplorationStatsListener;
 import javafx.util.Pair;
+import org.apache.commons.io.FileUtils;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.Map.Entry;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Matcher;
 import java.util.stream.Collectors;
 
 /**
@@ -28,15 +35,20 @@ public class ConstraintsBuildEngine
 //    public static int size = 0;
 
     private ReachabilityEngine reachEngine;//TODO: do segmentation on this
+    //built by preprocess under SC, null otherwise, then reachEngine is used
+    private ChainReachabilityIndex reachIndex;
     private HashMap<AbstractNode,AbstractNode> partialOrderMap = new HashMap<>();
     private HashMap<String,Vector<LockPair>> lockPairsMap = new HashMap<>();
     private HashMap<Long,Vector<LockPair>> threadLockPairs = new HashMap<>();
-    private HashMap<AbstractNode,HashSet<AbstractNode>> specialDependentNodesMap = new HashMap<>();
+    //built by preprocess, shared by the solver workers, see getDependentNodes
+    private ThreadPrefixSet.Threads threads;
+    //by thread slot and position in the thread, the prefix of each thread the
+    //events before it depend on through partialOrderMap, consecutive events share the array
+    private int[][][] dependencyVectors;
 
     //constraints below
-    private StringBuilder CONS_DECLARE;
-    private StringBuilder CONS_ASSERT_PO;
-    private StringBuilder CONS_ASSERT_VALID;
+    private ConstraintSet CONS_ASSERT_PO;
+    private ConstraintSet CONS_ASSERT_VALID;
 //    private final StringBuilder CONS_GETMODEL = new StringBuilder("(check-sat)\n(get-model)\n(exit)");
 
     //设置参数支持 interpolation
@@ -46,19 +58,71 @@ public class ConstraintsBuildEngine
     protected final StringBuilder CONS_GETMODEL = new StringBuilder("(check-sat)\n(get-model)\n");
     protected String GET_UNSATCORE = "(get-unsat-core)\n";
     protected String CONS_EXIT = "(exit)\n";
+    //the fixed head and tail of a query in the file mode, as written to the solver
+    private final byte[] QUERY_HEADER = (CONS_SETUNSATCORE + CONS_SETLOGIC).getBytes(StandardCharsets.UTF_8);
+    private final byte[] QUERY_FOOTER = (CONS_GETMODEL.toString() + GET_UNSATCORE + CONS_EXIT).getBytes(StandardCharsets.UTF_8);
 
-    protected AtomicInteger id = new AtomicInteger();//constraint id
     protected Configuration config;
 
     //for unsat-core
     protected int INTER_INDEX = 1;
     protected HashMap<String,String> currentFormulas = new HashMap<>();
+    //the uniform formulas of currentFormulas, for the unsat core lookup
+    protected HashSet<String> currentFormulaSet = new HashSet<>();
+
+    //persistent solver, only used when solver_mode = interactive
+    private Z3Session session;
+
+    //the sync and PO constraints of the last dependent node sets of the trace, null: not kept
+    private Map<ThreadPrefixSet, Prelude> preludeCache;
+    //the sync and PO constraints of the current pattern
+    private Prelude prelude;
+
+    //unsat cores found by a solver worker, the caller publishes them in pattern order
+    //so that the cores seen by a query do not depend on the timing of the workers.
+    //null: publish them at once
+    private ArrayList<ArrayList<String>> deferredUnSatCores;
 
     public ConstraintsBuildEngine(Configuration config)
     {
         this.config = config;
     }
 
+    /**
+     * engine of a solver worker, it shares the trace level state built by
+     * preprocess of the given engine, but has its own constraints, formula
+     * names and z3 session, so that patterns can be solved in parallel
+     */
+    public ConstraintsBuildEngine(ConstraintsBuildEngine shared)
+    {
+        this.config = shared.config;
+        this.deferredUnSatCores = new ArrayList<>();
+        shareTraceState(shared);
+    }
+
+    public ArrayList<ArrayList<String>> takeDeferredUnSatCores()
+    {
+        ArrayList<ArrayList<String>> cores = deferredUnSatCores;
+        deferredUnSatCores = new ArrayList<>();
+        return cores;
+    }
+
+    /**
+     * must be called after shared.preprocess(trace) and before this worker
+     * solves any pattern of that trace
+     */
+    public void shareTraceState(ConstraintsBuildEngine shared)
+    {
+        reachEngine = shared.reachEngine;
+        reachIndex = shared.reachIndex;
+        partialOrderMap = shared.partialOrderMap;
+        lockPairsMap = shared.lockPairsMap;
+        threadLockPairs = shared.threadLockPairs;
+        threads = shared.threads;
+        dependencyVectors = shared.dependencyVectors;
+        preludeCache = shared.preludeCache;
+    }
+
     private String makeVariable(long GID)
     {
         return "x"+GID;
@@ -75,22 +139,16 @@ public class ConstraintsBuildEngine
          */
         INTER_INDEX = 1;
         currentFormulas = new HashMap<>();
+        currentFormulaSet = new HashSet<>();
     }
 
     /**
-     * take the constraints as the input
-     * declare every variable in the constraints as an integer variable
+     * assert formula under the name of the next INTER_INDEX, so that it can be part of an unsat core
      */
-    private void declareVariables(StringBuilder cons){
-
-        CONS_DECLARE = new StringBuilder();
-        HashSet<String> vars = new HashSet<>();
-        for(String s : cons.toString().split(" ")){
-            if (s.startsWith("x") && !vars.contains(s)) {
-                vars.add(s);
-                CONS_DECLARE.append("(declare-const ").append(s).append(" Int)\n");
-            }
-        }
+    private void addNamed(ConstraintSet cons, Formula formula, Trace trace){
+
+        cons.add("INTER_" + INTER_INDEX, formula);
+        updateCurrentConsUniform(INTER_INDEX++, formula, trace);
     }
 
     /**
@@ -100,9 +158,9 @@ public class ConstraintsBuildEngine
      * @param trace the trace
      * @param depNodes dependent events that the target read event depends on
      */
-    private void constructPOConstraintsRMM(Trace trace, HashSet<AbstractNode> depNodes){
+    private void constructPOConstraintsRMM(Trace trace, ThreadPrefixSet depNodes){
 
-        CONS_ASSERT_PO = new StringBuilder();
+        CONS_ASSERT_PO = new ConstraintSet();
 
         //get needed data structure
         HashMap<String,HashMap<Long,Vector<IMemNode>>> indexedMap1 = trace.getIndexedThreadReadWriteNodes();
@@ -154,23 +212,17 @@ public class ConstraintsBuildEngine
         for (HashMap<Long, Vector<IMemNode>> map : indexedMap.values()) {
             for (Vector<IMemNode> nodes : map.values()) {
                 long lastGID = nodes.get(0).getGID();
-                String lastVar = makeVariable(lastGID);
                 for (int i = 1; i < nodes.size(); i++) {
                     //AbstractNode thisNode = (AbstractNode) nodes.get(i);
                     //if (depNodes.contains(thisNode))
                     {
                         long thisGID = nodes.get(i).getGID();
-                        String var = makeVariable(thisGID);
-//                        CONS_ASSERT_PO.append("(assert (< ").append(lastVar).append(" ").append(var).append("))\n");
 
-                        String constmp = "(< " + lastVar + " " + var + " )";
-                        CONS_ASSERT_PO.append("(assert (! ").append(constmp).append(" :named INTER_").append(INTER_INDEX).append(")").append(")\n");
-                        updateCurrentConsUniform(INTER_INDEX++, constmp,trace);
+                        addNamed(CONS_ASSERT_PO, Formula.less(lastGID, thisGID), trace);
 
                         reachEngine.addEdge(lastGID, thisGID);
 
                         lastGID = thisGID;
-                        lastVar = var;
                     }
                 }
             }
@@ -195,24 +247,18 @@ public class ConstraintsBuildEngine
                 continue;
 
             long lastGID = nodes.get(i).getGID();
-            String lastVar = makeVariable(lastGID);
             for (int j = i + 1; j < nodes.size(); j++) {
                 if (nodes.get(j) instanceof ReadNode) {
                     //if (depNodes.contains(nodes.get(j)))
                     {
                         long thisGID = nodes.get(j).getGID();
-                        String var = makeVariable(thisGID);
-//                        CONS_ASSERT_PO.append("(assert (< ").append(lastVar).append(" ").append(var).append("))\n");
 
-                        String constmp = "(< " + lastVar + " " + var + " )";
-                        CONS_ASSERT_PO.append("(assert (! ").append(constmp).append(" :named INTER_").append(INTER_INDEX).append(")").append(")\n");
-                        updateCurrentConsUniform(INTER_INDEX++, constmp,trace);
+                        addNamed(CONS_ASSERT_PO, Formula.less(lastGID, thisGID), trace);
 
                         //the order is added to reachability engine for quick testing
                         reachEngine.addEdge(lastGID, thisGID);
 
                         lastGID = thisGID;
-                        lastVar = var;
                     }
                 }
             }
@@ -234,23 +280,17 @@ public class ConstraintsBuildEngine
                     continue;
 
                 long lastGID = nodes.get(i).getGID();
-                String lastVar = makeVariable(lastGID);
                 for (int j = i + 1; j < nodes.size(); j++) {
                     if (nodes.get(j) instanceof WriteNode) {
 //						if (depNodes.contains(nodes.get(j)))
                         {
                             long thisGID = nodes.get(j).getGID();
-                            String var = makeVariable(thisGID);
-//                            CONS_ASSERT_PO.append("(assert (< ").append(lastVar).append(" ").append(var).append("))\n");
 
-                            String constmp = "(< " + lastVar + " " + var + " )";
-                            CONS_ASSERT_PO.append("(assert (! ").append(constmp).append(" :named INTER_").append(INTER_INDEX).append(")").append(")\n");
-                            updateCurrentConsUniform(INTER_INDEX++, constmp,trace);
+                            addNamed(CONS_ASSERT_PO, Formula.less(lastGID, thisGID), trace);
                             //the order is added to reachability engine for quick testing
                             reachEngine.addEdge(lastGID, thisGID);
 
                             lastGID = thisGID;
-                            lastVar = var;
                         }
                     }
 
@@ -280,23 +320,17 @@ public class ConstraintsBuildEngine
 //			}
 
             long lastGID = nonMemNodes.get(0).getGID();
-            String lastVar = makeVariable(lastGID);
             for (int i = 1; i < nonMemNodes.size(); i++) {
                 if (!depNodes.contains(nonMemNodes.get(i)))
                     break;
                 {
                     long thisGID = nonMemNodes.get(i).getGID();
-                    String thisVar = makeVariable(thisGID);
-//					CONS_ASSERT_PO.append("(assert (< ").append(lastVar).append(" ").append(thisVar).append("))\n");
 
-                    String constmp = "(< " + lastVar + " " + thisVar + " )";
-                    CONS_ASSERT_PO.append("(assert (! ").append(constmp).append(" :named INTER_").append(INTER_INDEX).append(")").append(")\n");
-                    updateCurrentConsUniform(INTER_INDEX++, constmp,trace);
+                    addNamed(CONS_ASSERT_PO, Formula.less(lastGID, thisGID), trace);
                     //the order is added to reachability engine for quick testing
                     reachEngine.addEdge(lastGID, thisGID);
 
                     lastGID = thisGID;
-                    lastVar = thisVar;
                 }
 
             }
@@ -318,17 +352,12 @@ public class ConstraintsBuildEngine
                 //	continue;
 
                 long curGID = nonMemNodes.get(i).getGID();
-                String curVar = makeVariable(curGID);
                 for (int j = startIndex; j < endIndex; j++) {
                     if (depNodes.contains(nodes.get(j))) {
                         long nodeGID = nodes.get(j).getGID();
-                        String nodeVar = makeVariable(nodeGID);
 
-//						CONS_ASSERT_PO.append("(assert (< ").append(nodeVar).append(" ").append(curVar).append("))\n");
 
-                        String constmp = "(< " + nodeVar + " " + curVar + " )";
-                        CONS_ASSERT_PO.append("(assert (! ").append(constmp).append(" :named INTER_").append(INTER_INDEX).append(")").append(")\n");
-                        updateCurrentConsUniform(INTER_INDEX++, constmp,trace);
+                        addNamed(CONS_ASSERT_PO, Formula.less(nodeGID, curGID), trace);
                         //the order is added to reachability engine for quick testing
                         reachEngine.addEdge(nodeGID, curGID);
                     }
@@ -346,13 +375,9 @@ public class ConstraintsBuildEngine
                 for (int j = startIndex; j < endIndex; j++) {
                     if (depNodes.contains(nodes.get(j))) {
                         long nodeGID = nodes.get(j).getGID();
-                        String nodeVar = makeVariable(nodeGID);
 
-//						CONS_ASSERT_PO.append("(assert (< ").append(curVar).append(" ").append(nodeVar).append("))\n");
 
-                        String constmp = "(< " + curVar + " " + nodeVar + " )";
-                        CONS_ASSERT_PO.append("(assert (! ").append(constmp).append(" :named INTER_").append(INTER_INDEX).append(")").append(")\n");
-                        updateCurrentConsUniform(INTER_INDEX++, constmp,trace);
+                        addNamed(CONS_ASSERT_PO, Formula.less(curGID, nodeGID), trace);
                         //the order is added to reachability engine for quick testing
                         reachEngine.addEdge(curGID, nodeGID);
                     }
@@ -372,19 +397,14 @@ public class ConstraintsBuildEngine
                 if (nodes.get(i) instanceof ReadNode) {
                     //readNodes.add(nodes.get(i));
                     long lastGID = nodes.get(i).getGID();
-                    String lastVar = makeVariable(lastGID);
 
                     int j;
                     for (j = i + 1; j < nodes.size(); j++) {
                         if (nodes.get(j) instanceof WriteNode) {
                             if (depNodes.contains(nodes.get(j))) {
                                 long thisGID = nodes.get(j).getGID();
-                                String thisVar = makeVariable(thisGID);
-//                                CONS_ASSERT_PO.append("(assert (< ").append(lastVar).append(" ").append(thisVar).append("))\n");
 
-                                String constmp = "(< " + lastVar + " " + thisVar + " )";
-                                CONS_ASSERT_PO.append("(assert (! ").append(constmp).append(" :named INTER_").append(INTER_INDEX).append(")").append(")\n");
-                                updateCurrentConsUniform(INTER_INDEX++, constmp,trace);
+                                addNamed(CONS_ASSERT_PO, Formula.less(lastGID, thisGID), trace);
                                 //the order is added to reachability engine for quick testing
                                 reachEngine.addEdge(lastGID, thisGID);
                             }
@@ -404,9 +424,9 @@ public class ConstraintsBuildEngine
      * @param trace
      * @param depNodes
      */
-    private void constructSyncConstraintsRMM(Trace trace, HashSet<AbstractNode> depNodes){
+    private void constructSyncConstraintsRMM(Trace trace, ThreadPrefixSet depNodes){
         //construct a new lockset for this segment
-        CONS_ASSERT_VALID = new StringBuilder("");
+        CONS_ASSERT_VALID = new ConstraintSet();
 
         LockSetEngine lockEngine = new LockSetEngine();
 
@@ -426,7 +446,6 @@ public class ConstraintsBuildEngine
                 }
 
                 long thisGID = node1.getGID();
-                String var = makeVariable(thisGID);
                 if (node1 instanceof StartNode) {
                     if (depNodes.contains(node1)) {
                         long tid = Long.valueOf(node1.getAddr());
@@ -439,13 +458,9 @@ public class ConstraintsBuildEngine
                             for (AbstractNode aNodesSet : nodesSet) {
                                 if (depNodes.contains((AbstractNode) aNodesSet)) {
                                     long nodeGID = aNodesSet.getGID();
-                                    String nodeVar = makeVariable(nodeGID);
 
-//                                    CONS_ASSERT_VALID.append("(assert (< ").append(var).append(" ").append(nodeVar).append("))\n");
 
-                                    String constmp = "(< " + var + " " + nodeVar + " )";
-                                    CONS_ASSERT_VALID.append("(assert (! ").append(constmp).append(" :named INTER_").append(INTER_INDEX).append("))\n");
-                                    updateCurrentConsUniform(INTER_INDEX++, constmp,trace);
+                                    addNamed(CONS_ASSERT_VALID, Formula.less(thisGID, nodeGID), trace);
 
                                     reachEngine.addEdge(thisGID, nodeGID);
                                 }
@@ -456,14 +471,10 @@ public class ConstraintsBuildEngine
                             AbstractNode fnode = firstNodes.get(tid);
                             if (fnode != null) {
                                 long fGID = fnode.getGID();
-                                String fvar = makeVariable(fGID);
 
                                 //start-begin ordering
-//                                CONS_ASSERT_VALID.append("(assert (< ").append(var).append(" ").append(fvar).append("))\n");
 
-                                String constmp = "(< " + var + " " + fvar + " )";
-                                CONS_ASSERT_VALID.append("(assert (! ").append(constmp).append(" :named INTER_").append(INTER_INDEX).append("))\n");
-                                updateCurrentConsUniform(INTER_INDEX++, constmp,trace);
+                                addNamed(CONS_ASSERT_VALID, Formula.less(thisGID, fGID), trace);
 
                                 reachEngine.addEdge(thisGID, fGID);
 
@@ -485,13 +496,9 @@ public class ConstraintsBuildEngine
                                 for (AbstractNode aNodesSet : nodesSet) {
                                     if (depNodes.contains(aNodesSet)) {
                                         long nodeGID = aNodesSet.getGID();
-                                        String nodeVar = makeVariable(nodeGID);
 
-//                                        CONS_ASSERT_VALID.append("(assert (< ").append(nodeVar).append(" ").append(var).append("))\n");
 
-                                        String constmp = "(< " + nodeVar + " " + var + " )";
-                                        CONS_ASSERT_VALID.append("(assert (! ").append(constmp).append(" :named INTER_").append(INTER_INDEX).append("))\n");
-                                        updateCurrentConsUniform(INTER_INDEX++, constmp,trace);
+                                        addNamed(CONS_ASSERT_VALID, Formula.less(nodeGID, thisGID), trace);
 
                                         reachEngine.addEdge(nodeGID, thisGID);
                                     }
@@ -504,14 +511,10 @@ public class ConstraintsBuildEngine
                             AbstractNode lnode = lastNodes.get(tid);
                             if (lnode != null) {
                                 long lGID = lnode.getGID();
-                                String lvar = makeVariable(lGID);
 
                                 //end-join ordering
-//                                CONS_ASSERT_VALID.append("(assert (< ").append(lvar).append(" ").append(var).append("))\n");
 
-                                String constmp = "(< " + lvar + " " + var + " )";
-                                CONS_ASSERT_VALID.append("(assert (! ").append(constmp).append(" :named INTER_").append(INTER_INDEX).append("))\n");
-                                updateCurrentConsUniform(INTER_INDEX++, constmp,trace);
+                                addNamed(CONS_ASSERT_VALID, Formula.less(lGID, thisGID), trace);
 
                                 reachEngine.addEdge(lGID, thisGID);
 
@@ -524,105 +527,7 @@ public class ConstraintsBuildEngine
 
         //lock constraints
         for (Vector<LockPair> LPs : lockPairsMap.values()) {
-            //only select the lock pairs that are in depNodes
-            Vector<LockPair> lockPairs = new Vector<LockPair>();
-            {
-                for (LockPair lp : LPs) {
-                    if (lp.unlock != null && depNodes.contains(lp.unlock))
-                        lockPairs.add(lp);
-                    else if (lp.lock == null)
-                        //possible lock is null/init, unlock is not null
-                        //-- like the deadlock example
-                        lockPairs.add(lp);
-                    else if (depNodes.contains(lp.lock)) {
-                        lockPairs.add(lp);
-                        //it's possible lp.unlock is not included
-                        if (lp.unlock != null && !depNodes.contains(lp.unlock)) {
-                            //add dependent nodes of lp.unlock
-                            AbstractNode ul_node = (AbstractNode) lp.unlock;
-                            depNodes.add(ul_node);
-                            HashSet<AbstractNode> ul_nodes = getDependentNodes(trace, ul_node);
-                            depNodes.addAll(ul_nodes);//add all dependent nodes
-                        }
-                    }
-                }
-            }
-
-            if (lockPairs.size() < 2) continue;//nothing to do
-
-            //obtain each thread's last lockpair
-            HashMap<Long, LockPair> lastLockPairMap = new HashMap<Long, LockPair>();
-
-            for (int i = 0; i < lockPairs.size(); i++) {
-                LockPair lp1 = lockPairs.get(i);
-                String var_lp1_a;
-                String var_lp1_b = "";
-
-                if (lp1.lock == null)//
-                    continue;
-                else
-                    var_lp1_a = makeVariable(lp1.lock.getGID());
-
-                if (lp1.unlock != null)
-                    var_lp1_b = makeVariable(lp1.unlock.getGID());
-
-
-                long lp1_tid = lp1.lock.getTid();
-                LockPair lp1_pre = lastLockPairMap.get(lp1_tid);
-
-                ArrayList<LockPair> flexLockPairs = new ArrayList<LockPair>();
-
-                //find all lps that are from a different thread, and have no happens-after relation with lp1
-                //could further optimize by consider lock regions per thread
-                for (LockPair lp : lockPairs) {
-                    if (lp.lock != null) {
-                        if (lp.lock.getTid() != lp1_tid &&
-                                !canReach((AbstractNode) lp1.lock, (AbstractNode) lp.lock)) {
-                            flexLockPairs.add(lp);
-                        }
-                    } else if (lp.unlock != null) {
-                        if (lp.unlock.getTid() != lp1_tid &&
-                                !canReach((AbstractNode) lp1.lock, (AbstractNode) lp.unlock)) {
-                            flexLockPairs.add(lp);
-                        }
-                    }
-                }
-                if (flexLockPairs.size() > 0) {
-                    //for each lock pair lp2 in flexLockPairs
-                    //it is either before lp1 or after lp1
-                    for (LockPair lp2 : flexLockPairs) {
-                        if (lp2.unlock == null || lp2.lock == null && lp1_pre != null)//impossible to match lp2
-                            continue;
-
-                        String var_lp2_b = "";
-                        String var_lp2_a = "";
-
-                        var_lp2_b = makeVariable(lp2.unlock.getGID());
-
-                        if (lp2.lock != null)
-                            var_lp2_a = makeVariable(lp2.lock.getGID());
-
-
-                        String cons_b;
-
-                        //lp1_b==null, lp2_a=null
-                        if (lp1.unlock == null || lp2.lock == null) {
-                            cons_b = "(> " + var_lp1_a + " " + var_lp2_b + ")";
-                            //the trace may not be well-formed due to segmentation
-                            if (lp1.lock.getGID() < lp2.unlock.getGID()) cons_b = "";
-                        } else {
-                            cons_b = "(or (> " + var_lp1_a + " " + var_lp2_b + ") (> " + var_lp2_a + " " + var_lp1_b + "))";
-                        }
-                        if (!cons_b.isEmpty()) {
-//                            CONS_ASSERT_VALID.append("(assert " + cons_b + ")\n");
-
-                            CONS_ASSERT_VALID.append("(assert ( ! " + cons_b + " :named INTER_").append(INTER_INDEX).append("))\n");
-                            updateCurrentConsUniform(INTER_INDEX++,cons_b,trace);
-                        }
-                    }
-                }
-                lastLockPairMap.put(lp1.lock.getTid(), lp1);
-            }
+            constructLockConstraints(CONS_ASSERT_VALID, LPs, trace, depNodes);
         }
     }
 
@@ -638,6 +543,9 @@ public class ConstraintsBuildEngine
         long gid1 = node1.getGID();
         long gid2 = node2.getGID();
 
+        if (reachIndex != null) {
+            return reachIndex.canReach(gid1, gid2);
+        }
         return reachEngine.canReach(gid1, gid2);
 
     }
@@ -705,10 +613,10 @@ public class ConstraintsBuildEngine
      * @param readNodes
      * @return
      */
-    private String constructDataValidityConstraints(Trace trace,
-                                                    HashSet<AbstractNode> depNodes, Vector<ReadNode> readNodes) {
+    private Formula constructDataValidityConstraints(Trace trace,
+                                                     ThreadPrefixSet depNodes, Vector<ReadNode> readNodes) {
 
-        String CONS_CAUSAL_RW = "true";
+        Formula CONS_CAUSAL_RW = Formula.TRUE;
         Vector<ReadNode> processedReadNodes = new Vector<ReadNode>();
 
         List<ReadNode> collect =  readNodes.stream().sorted(Comparator.comparing(AbstractNode::getGID)).collect(Collectors.toList());
@@ -765,17 +673,15 @@ public class ConstraintsBuildEngine
                 if(initValue!=null&&rValue.equals(initValue)
                         ||initValue==null && (rValue.equals("0")||rValue.equals("0_")) ){
 
-                    String var_r = makeVariable(rnode.getGID());
-                    String cons_init = "true";
+                    Formula cons_init = Formula.TRUE;
                     for (WriteNode wnode3 : writenodes_other) {
                         if (wnode3.getTid() != rnode.getTid() && !canReach(rnode, wnode3) && depNodes.contains(wnode3)) {
-                            String var_w3 = makeVariable(wnode3.getGID());
-                            String cons_e = "(> " + var_w3 + " " + var_r + " )";
+                            Formula cons_e = Formula.greater(wnode3.getGID(), rnode.getGID());
                             Configuration.rwConstraints += 1;
-                            cons_init = "(and " + cons_e + " " + cons_init + " )\n";
+                            cons_init = Formula.and(cons_e, cons_init);
                         }
                     }
-                    CONS_CAUSAL_RW = "(and "+cons_init+" "+CONS_CAUSAL_RW+" )\n";
+                    CONS_CAUSAL_RW = Formula.and(cons_init, CONS_CAUSAL_RW);
 
                 }
                 else
@@ -790,9 +696,8 @@ public class ConstraintsBuildEngine
                     writenodes_value_match.add(preNode);
 
                 //the read should read from the corresponding write
-                String var_r = makeVariable(rnode.getGID());
-                String cons_b = "";
-                String cons_b_end = "";
+                //(or b_1 (or b_2 ... b_n))
+                ArrayList<Formula> cons_b = new ArrayList<>();
                 /*
                  * Pay attention here
                  * It also needs to guarantee the feasibility of the write nodes
@@ -800,21 +705,20 @@ public class ConstraintsBuildEngine
                 for(int j=0;j<writenodes_value_match.size();j++)
                 {
                     WriteNode wnode1 = writenodes_value_match.get(j);
-                    String var_w1 = makeVariable(wnode1.getGID());
 
-                    String cons_b_ = "(> "+var_r+" "+var_w1+" )\n";
+                    Formula cons_b_ = Formula.greater(rnode.getGID(), wnode1.getGID());
 
                     Configuration.rwConstraints += 1;
 
                     //add wnode1 and its dependent nodes
                     {
-                        HashSet<AbstractNode> w1_nodes = getDependentNodes(trace,wnode1);
-                        w1_nodes.removeAll(depNodes);//remove common dep nodes
+                        ThreadPrefixSet w1_nodes = getDependentNodes(trace,wnode1);
+                        //the reads of the dependent nodes not in depNodes yet
+                        Vector<ReadNode> w1_readnodes = getReadNodes(w1_nodes.minus(depNodes));
 
                         depNodes.add(wnode1);//add wnode2 itself
                         depNodes.addAll(w1_nodes);//add all dependent nodes
 
-                        Vector<ReadNode> w1_readnodes = getReadNodes(w1_nodes);
                         //add dependent reads node to process
                         w1_readnodes.remove(processedReadNodes);
 
@@ -837,27 +741,20 @@ public class ConstraintsBuildEngine
 
                     //for all other writes
                     //they should either happen before the write or the read
-                    String cons_c = "";
-                    String cons_c_end = "";
-                    String last_cons_d = null;
+                    //(and d_1 (and d_2 ... d_n))
+                    ArrayList<Formula> cons_c = new ArrayList<>();
                     for (WriteNode wnode2 : writenodes_other) {
                         if (!canReach(wnode2, wnode1) && !canReach(rnode, wnode2) && depNodes.contains(wnode2)) {
-                            String var_w2 = makeVariable(wnode2.getGID());
-                            if (last_cons_d != null) {
-                                cons_c += "(and " + last_cons_d;
-                                cons_c_end += " )";
-
-                            }
-                            String cons_w2node = "";
+                            Formula cons_w2node = null;
                             //add wnode2 and its dependent nodes
                             {
-                                HashSet<AbstractNode> w2_nodes = getDependentNodes(trace, wnode2);
-                                w2_nodes.removeAll(depNodes);//remove common dep nodes
+                                ThreadPrefixSet w2_nodes = getDependentNodes(trace, wnode2);
+                                //the reads of the dependent nodes not in depNodes yet
+                                Vector<ReadNode> w2_readnodes = getReadNodes(w2_nodes.minus(depNodes));
 
                                 depNodes.add(wnode2);
                                 depNodes.addAll(w2_nodes);
 
-                                Vector<ReadNode> w2_readnodes = getReadNodes(w2_nodes);
                                 w2_readnodes.remove(processedReadNodes);
 
                                 if (w2_readnodes.size() > 0) {
@@ -873,49 +770,23 @@ public class ConstraintsBuildEngine
 
                             //TODO: only add feasibility constraint for wnode2 for "var_w2 < var_w1" case
 
-                            if (cons_w2node.length() > 0) {
-                                last_cons_d =
-                                        "(or (> " + var_w2 + " " + var_r + " ) " +
-                                                "(and (> " + var_w1 + " " + var_w2 + " )\n"
-                                                + cons_w2node + " ))\n";
-                            } else {
-                                last_cons_d =
-                                        "(or (> " + var_w2 + " " + var_r + " )" +
-                                                " (> " + var_w1 + " " + var_w2 + " ))\n";
+                            Formula w2_before_w1 = Formula.greater(wnode1.getGID(), wnode2.getGID());
+                            if (cons_w2node != null) {
+                                w2_before_w1 = Formula.and(w2_before_w1, cons_w2node);
                             }
-
+                            cons_c.add(Formula.or(Formula.greater(wnode2.getGID(), rnode.getGID()), w2_before_w1));
                         }
                     }  //end for other_writes
-                    if(last_cons_d!=null)
-                    {
-                        cons_c+=last_cons_d;
-                    }
-                    cons_c=cons_c+cons_c_end;
 
-                    if(cons_c.length()>0)
-                        cons_b_ ="(and "+cons_b_+" "+cons_c + " )\n";
+                    if(!cons_c.isEmpty())
+                        cons_b_ = Formula.and(cons_b_, Formula.conjunction(cons_c));
 
-
-                    if(j+1<writenodes_value_match.size())
-                    {
-                        cons_b+= "(or "+cons_b_;
-                        cons_b_end +=" )";
-
-                        //cons_a+= "(and (> "+var_w1+" "+var_r+")\n";
-                        //cons_a_end +=")";
-                    }
-                    else
-                    {
-                        cons_b+= cons_b_;
-                        //cons_a+= "(> "+var_w1+" "+var_r+")\n";
-                    }
+                    cons_b.add(cons_b_);
                 }
 
-                cons_b +=cons_b_end;
-
-                if(cons_b.length()>0){
+                if(!cons_b.isEmpty()){
                     Configuration.rwConstraints += 1;
-                    CONS_CAUSAL_RW = "(and "+cons_b+" "+CONS_CAUSAL_RW+" )\n";
+                    CONS_CAUSAL_RW = Formula.and(Formula.disjunction(cons_b), CONS_CAUSAL_RW);
                 }
 
             }// end if can't match the inital value
@@ -931,136 +802,175 @@ public class ConstraintsBuildEngine
      * @param trace
      * @param depNodes
      */
-    public void constructSyncConstraints(Trace trace, HashSet<AbstractNode> depNodes)
+    public void constructSyncConstraints(Trace trace, ThreadPrefixSet depNodes)
     {
 
-        CONS_ASSERT_VALID = new StringBuilder("");
+        CONS_ASSERT_VALID = new ConstraintSet();
 
         //fork-join wait-notify
         for (Entry<AbstractNode, AbstractNode> entry : partialOrderMap.entrySet()) {
             AbstractNode node1 = entry.getKey();
             if (depNodes.contains(node1)) {
                 AbstractNode node2 = entry.getValue();
-                String var1 = makeVariable(node1.getGID());
 
                 if (node2 == null)//this means the event is not captured in trace
                     continue;
-                String var2 = makeVariable(node2.getGID());
 
-//                CONS_ASSERT_VALID.append("(assert (< ").append(var2).append(" ").append(var1).append(" ))\n");
-
-                String constmp = "(< " + var2 + " " + var1 + " )";
-                CONS_ASSERT_VALID.append("(assert (! ").append(constmp).append(" :named INTER_").append(INTER_INDEX).append(")").append(")\n");
-                updateCurrentConsUniform(INTER_INDEX++, constmp,trace);
+                addNamed(CONS_ASSERT_VALID, Formula.less(node2.getGID(), node1.getGID()), trace);
             }
         }
         //lock constraints
         for (Vector<LockPair> LPs : lockPairsMap.values()) {
-            {
-                //only select the lock pairs that are in depNodes
-                Vector<LockPair> lockPairs = new Vector<LockPair>();
-                {
-                    for (LockPair lp : LPs) {
-                        if (lp.unlock != null && depNodes.contains(lp.unlock))
-                            lockPairs.add(lp);
-                        else if (lp.lock == null)
-                            //possible lock is null/init, unlock is not null
-                            //-- like the deadlock example
-                            lockPairs.add(lp);
-                        else if (lp.lock != null && depNodes.contains(lp.lock)) {
-                            lockPairs.add(lp);
-                            //it's possible lp.unlock is not included
-                            if (lp.unlock != null && !depNodes.contains(lp.unlock)) {
-                                //add dependent nodes of lp.unlock
-                                AbstractNode ul_node = (AbstractNode) lp.unlock;
-                                depNodes.add(ul_node);
-                                HashSet<AbstractNode> ul_nodes = getDependentNodes(trace, ul_node);
-                                depNodes.addAll(ul_nodes);//add all dependent nodes
-                            }
-                        }
-                    }
-                }
-
-                if (lockPairs.size() < 2) continue;//nothing to do
-
-                //obtain each thread's last lockpair
-                HashMap<Long, LockPair> lastLockPairMap = new HashMap<Long, LockPair>();
-
-                for (int i = 0; i < lockPairs.size(); i++) {
-                    LockPair lp1 = lockPairs.get(i);
-                    String var_lp1_a = "";
-                    String var_lp1_b = "";
-
-                    if (lp1.lock == null)//
-                        continue;
-                    else
-                        var_lp1_a = makeVariable(lp1.lock.getGID());
-
-                    if (lp1.unlock != null)
-                        var_lp1_b = makeVariable(lp1.unlock.getGID());
-
-
-                    long lp1_tid = lp1.lock.getTid();
-                    LockPair lp1_pre = lastLockPairMap.get(lp1_tid);
-
-                    ArrayList<LockPair> flexLockPairs = new ArrayList<LockPair>();
-
-                    //find all lps that are from a different thread, and have no happens-after relation with lp1
-                    //could further optimize by consider lock regions per thread
-                    for (LockPair lp : lockPairs) {
-                        if (lp.lock != null) {
-                            if (lp.lock.getTid() != lp1_tid &&
-                                    !canReach((AbstractNode) lp1.lock, (AbstractNode) lp.lock)) {
-                                flexLockPairs.add(lp);
-                            }
-                        } else if (lp.unlock != null) {
-                            if (lp.unlock.getTid() != lp1_tid &&
-                                    !canReach((AbstractNode) lp1.lock, (AbstractNode) lp.unlock)) {
-                                flexLockPairs.add(lp);
-                            }
-                        }
-                    }
-                    if (flexLockPairs.size() > 0) {
-
-                        //for each lock pair lp2 in flexLockPairs
-                        //it is either before lp1 or after lp1
-                        for (LockPair lp2 : flexLockPairs) {
-                            if (lp2.unlock == null || lp2.lock == null && lp1_pre != null)//impossible to match lp2
-                                continue;
-
-                            String var_lp2_b = "";
-                            String var_lp2_a = "";
+            constructLockConstraints(CONS_ASSERT_VALID, LPs, trace, depNodes);
+        }
 
-                            var_lp2_b = makeVariable(lp2.unlock.getGID());
+    }
 
-                            if (lp2.lock != null)
-                                var_lp2_a = makeVariable(lp2.lock.getGID());
+    /**
+     * lock-mutual-exclusion constraints of one lock, for the lock pairs in depNodes
+     *
+     * The regions of a thread are in program order, so for a region a the
+     * regions of another thread released before a is taken are a prefix of
+     * them, those taken after a is released a suffix, and both ends only move
+     * forward with a. One sweep over the regions of two threads finds the
+     * window of regions each one must be kept apart from with O(#regions)
+     * reachability queries, and each pair of regions gets one constraint.
+     * @param cons the constraints to add to
+     * @param LPs the lock pairs of the lock
+     * @param trace
+     * @param depNodes
+     */
+    void constructLockConstraints(ConstraintSet cons, Vector<LockPair> LPs, Trace trace, ThreadPrefixSet depNodes)
+    {
+        //only select the lock pairs that are in depNodes
+        Vector<LockPair> lockPairs = new Vector<LockPair>();
+        for (LockPair lp : LPs) {
+            if (lp.unlock != null && depNodes.contains(lp.unlock))
+                lockPairs.add(lp);
+            else if (lp.lock == null)
+                //possible lock is null/init, unlock is not null
+                //-- like the deadlock example
+                lockPairs.add(lp);
+            else if (depNodes.contains(lp.lock)) {
+                lockPairs.add(lp);
+                //it's possible lp.unlock is not included
+                if (lp.unlock != null && !depNodes.contains(lp.unlock)) {
+                    //add dependent nodes of lp.unlock
+                    AbstractNode ul_node = (AbstractNode) lp.unlock;
+                    depNodes.add(ul_node);
+                    ThreadPrefixSet ul_nodes = getDependentNodes(trace, ul_node);
+                    depNodes.addAll(ul_nodes);//add all dependent nodes
+                }
+            }
+        }
 
+        if (lockPairs.size() < 2) return;//nothing to do
 
-                            String cons_b;
+        //the regions of each thread in trace order, and the unlocks of a lock taken before the trace
+        LinkedHashMap<Long, ArrayList<LockPair>> threadRegions = new LinkedHashMap<Long, ArrayList<LockPair>>();
+        ArrayList<LockPair> initPairs = new ArrayList<LockPair>();
+        for (LockPair lp : lockPairs) {
+            if (lp.lock == null) {
+                if (lp.unlock != null)
+                    initPairs.add(lp);
+                continue;
+            }
+            ArrayList<LockPair> regions = threadRegions.get(lp.lock.getTid());
+            if (regions == null) {
+                regions = new ArrayList<LockPair>();
+                threadRegions.put(lp.lock.getTid(), regions);
+            }
+            regions.add(lp);
+        }
 
-                            //lp1_b==null, lp2_a=null
-                            if (lp1.unlock == null || lp2.lock == null) {
-                                cons_b = "(> " + var_lp1_a + " " + var_lp2_b + " )";
-                                //the trace may not be well-formed due to segmentation
-                                if (lp1.lock.getGID() < lp2.unlock.getGID()) cons_b = "";
-                            } else {
-                                cons_b = "(or (> " + var_lp1_a + " " + var_lp2_b + " ) (> " + var_lp2_a + " " + var_lp1_b + " ))";
-                            }
-                            if (!cons_b.isEmpty()) {
-//                                CONS_ASSERT_VALID.append("(assert " + cons_b + " )\n");
+        ArrayList<ArrayList<LockPair>> regionsList = new ArrayList<ArrayList<LockPair>>(threadRegions.values());
+        for (int t1 = 0; t1 < regionsList.size(); t1++) {
+            for (int t2 = t1 + 1; t2 < regionsList.size(); t2++) {
+                sweepLockRegions(cons, regionsList.get(t1), regionsList.get(t2), trace);
+            }
+        }
 
-                                CONS_ASSERT_VALID.append("(assert ( ! " + cons_b + " :named INTER_").append(INTER_INDEX).append("))\n");
-                                updateCurrentConsUniform(INTER_INDEX++,cons_b,trace);
-                            }
+        //a lock held from before the trace is released before the first region of the other threads
+        for (LockPair init : initPairs) {
+            AbstractNode unlock = (AbstractNode) init.unlock;
+            for (ArrayList<LockPair> regions : regionsList) {
+                AbstractNode lock = (AbstractNode) regions.get(0).lock;
+                //the trace may not be well-formed due to segmentation
+                if (lock.getTid() == unlock.getTid() || lock.getGID() < unlock.getGID() || canReach(unlock, lock))
+                    continue;
+                addNamed(cons, Formula.greater(lock.getGID(), unlock.getGID()), trace);
+            }
+        }
+    }
 
-                        }
-                    }
-                    lastLockPairMap.put(lp1.lock.getTid(), lp1);
-                }
+    /**
+     * add the constraints between the regions of two threads that are not ordered by happens-before
+     */
+    private void sweepLockRegions(ConstraintSet cons, ArrayList<LockPair> regions1, ArrayList<LockPair> regions2, Trace trace)
+    {
+        //regions2 in [lo, hi) can overlap the current region of regions1
+        int lo = 0, hi = 0;
+        for (LockPair lp1 : regions1) {
+            AbstractNode lock1 = (AbstractNode) lp1.lock;
+            AbstractNode unlock1 = (AbstractNode) lp1.unlock;
+
+            //released before lp1 is taken, so before the next ones too
+            while (lo < regions2.size() && regions2.get(lo).unlock != null
+                    && canReach((AbstractNode) regions2.get(lo).unlock, lock1))
+                lo++;
+            //taken after lp1 is released
+            if (hi < lo)
+                hi = lo;
+            while (hi < regions2.size()
+                    && (unlock1 == null || !canReach(unlock1, (AbstractNode) regions2.get(hi).lock)))
+                hi++;
+
+            for (int i = lo; i < hi; i++) {
+                Formula cons_b = lockConstraint(lp1, regions2.get(i));
+                if (cons_b != null)
+                    addNamed(cons, cons_b, trace);
             }
         }
+    }
 
+    /**
+     * @return the constraint keeping two regions of different threads apart,
+     * null if there is none to add
+     */
+    private static Formula lockConstraint(LockPair lp1, LockPair lp2)
+    {
+        if (lp1.unlock == null && lp2.unlock == null)
+            return null;
+        //a region never released comes after the other one
+        if (lp1.unlock == null)
+            return lockConstraintHeld(lp1, lp2);
+        if (lp2.unlock == null)
+            return lockConstraintHeld(lp2, lp1);
+
+        //the region released first in the trace goes first in the or
+        if (lp2.unlock.getGID() < lp1.unlock.getGID()) {
+            LockPair lp = lp1;
+            lp1 = lp2;
+            lp2 = lp;
+        }
+        return Formula.or(Formula.greater(lp1.lock.getGID(), lp2.unlock.getGID()),
+                Formula.greater(lp2.lock.getGID(), lp1.unlock.getGID()));
+    }
+
+    private static Formula lockConstraintHeld(LockPair held, LockPair lp)
+    {
+        //the trace may not be well-formed due to segmentation
+        if (held.lock.getGID() < lp.unlock.getGID())
+            return null;
+        return Formula.greater(held.lock.getGID(), lp.unlock.getGID());
+    }
+
+    /**
+     * the lock pairs of each lock of the trace, computed in preprocess
+     */
+    HashMap<String,Vector<LockPair>> getLockPairsMap()
+    {
+        return lockPairsMap;
     }
 
     /**
@@ -1068,30 +978,23 @@ public class ConstraintsBuildEngine
      * @param trace
      * @param depNodes
      */
-    public void constructPOConstraints(Trace trace, HashSet<AbstractNode> depNodes)
+    public void constructPOConstraints(Trace trace, ThreadPrefixSet depNodes)
     {
 
-        CONS_ASSERT_PO = new StringBuilder("");
+        CONS_ASSERT_PO = new ConstraintSet();
         HashMap<Long,Vector<AbstractNode>> map = trace.getThreadNodesMap();
 
-        for (Vector<AbstractNode> nodes : map.values()) {
+        for (Entry<Long, Vector<AbstractNode>> entry : map.entrySet()) {
+            Vector<AbstractNode> nodes = entry.getValue();
+            //depNodes holds a prefix of each thread
+            int length = depNodes.prefixLength(entry.getKey());
             long lastGID = nodes.get(0).getGID();
-            for (int i = 1; i < nodes.size(); i++) {
-                AbstractNode thisNode = nodes.get(i);
-                //TODO: optimize performance here by maintain index
-                if (depNodes.contains(thisNode)) {
-                    String lastVar = makeVariable(lastGID);
-                    long thisGID = thisNode.getGID();
-                    String var = makeVariable(thisGID);
-//                    CONS_ASSERT_PO.append("(assert (< ").append(lastVar).append(" ").append(var).append(" ))\n");
-
-                    String constmp = "(< " + lastVar + " " + var + " )";
-                    CONS_ASSERT_PO.append("(assert (! ").append(constmp).append(" :named INTER_").append(INTER_INDEX).append("))\n");
-                    updateCurrentConsUniform(INTER_INDEX++,constmp,trace);
+            for (int i = 1; i < length; i++) {
+                long thisGID = nodes.get(i).getGID();
 
-                    lastGID = thisGID;
-                } else
-                    break;//next thread nodes
+                addNamed(CONS_ASSERT_PO, Formula.less(lastGID, thisGID), trace);
+
+                lastGID = thisGID;
             }
         }
 
@@ -1109,10 +1012,10 @@ public class ConstraintsBuildEngine
      *
      * @author Alan
      */
-    public StringBuilder constructFeasibilityConstraints(
+    public ConstraintSet constructFeasibilityConstraints(
             Trace trace,
-            HashSet<AbstractNode> depNodes,
-            HashSet<AbstractNode> readDepNodes,
+            ThreadPrefixSet depNodes,
+            ThreadPrefixSet readDepNodes,
             AbstractNode cur_rnode,
             AbstractNode wnode) {
 
@@ -1121,9 +1024,8 @@ public class ConstraintsBuildEngine
 //		HashSet<AbstractNode> otherVariableNodes = new HashSet<AbstractNode>();
 
         readNodes.remove(cur_rnode);
-        readDepNodes.remove(cur_rnode);
 
-        String CONS_CAUSAL_RW = null;
+        Formula CONS_CAUSAL_RW = null;
 
         //if using the static analysis to reduce the reads that cur_rnode depends on
         if (Configuration.Optimize){
@@ -1131,6 +1033,7 @@ public class ConstraintsBuildEngine
             Vector<ReadNode> tmp;
             if (Configuration.plus) {
                 tmp = getReadNodes(readDepNodes);
+                tmp.remove(cur_rnode);
             }
             else{
                 tmp = realReadDeps(readNodes, cur_rnode);
@@ -1150,6 +1053,36 @@ public class ConstraintsBuildEngine
         depNodes.add(cur_rnode);
         depNodes.add(wnode);
 
+        constructPrelude(trace, depNodes);
+
+        ConstraintSet CONS_CAUSAL = new ConstraintSet();
+        addNamed(CONS_CAUSAL, CONS_CAUSAL_RW, trace);
+        return CONS_CAUSAL;
+    }
+
+    /**
+     * the sync and PO constraints of depNodes, taken from the prelude cache
+     * when a pattern with the same dependent nodes built them before
+     */
+    private void constructPrelude(Trace trace, ThreadPrefixSet depNodes)
+    {
+        //the names of the cached constraints only hold if they are the first ones of the query
+        boolean cacheable = preludeCache != null && INTER_INDEX == 1 && currentFormulas.isEmpty();
+        ThreadPrefixSet key = cacheable ? depNodes.copy() : null;
+        Prelude cached = cacheable ? preludeCache.get(key) : null;
+
+        if (cached != null) {
+            ExplorationStatsListener.numPreludeReused.incrementAndGet();
+            depNodes.addAll(cached.depNodes);
+            CONS_ASSERT_VALID = cached.sync;
+            CONS_ASSERT_PO = cached.po;
+            currentFormulas.putAll(cached.formulas);
+            currentFormulaSet.addAll(cached.formulas.values());
+            INTER_INDEX = cached.nextIndex;
+            prelude = cached;
+            return;
+        }
+
         if (Configuration.mode.equals("TSO")|| Configuration.mode.equals("PSO"))
         {
             //under TSO, I explicitly revoke addConstraints to the trace
@@ -1161,45 +1094,49 @@ public class ConstraintsBuildEngine
             constructPOConstraints(trace,depNodes);
         }
 
-        //		return new StringBuilder("(assert "+CONS_CAUSAL_RW+")\n\n");
-
-        updateCurrentConsUniform(INTER_INDEX,CONS_CAUSAL_RW,trace);
-        return new StringBuilder("(assert (! " + CONS_CAUSAL_RW + " :named INTER_").append(INTER_INDEX++).append("))\n\n");
+        ExplorationStatsListener.numPreludeBuilt.incrementAndGet();
+        prelude = new Prelude(CONS_ASSERT_VALID, CONS_ASSERT_PO, depNodes.copy(),
+                cacheable ? new HashMap<>(currentFormulas) : null, INTER_INDEX);
+        if (cacheable) {
+            preludeCache.put(key, prelude);
+        }
     }
-    public StringBuilder constructReadInitWriteConstraints(Trace trace,ReadNode rnode, HashSet<AbstractNode> depNodes,Vector<WriteNode> writenodes)
+
+    /**
+     * @return a map keeping the last prelude_cache_size preludes used, null if none is kept
+     */
+    private static Map<ThreadPrefixSet, Prelude> newPreludeCache()
     {
-        StringBuilder CONS_CAUSAL_RW = new StringBuilder("");  //return value
+        final int size = Configuration.preludeCacheSize;
+        if (size <= 0) {
+            return null;
+        }
+        //shared by the solver workers
+        return Collections.synchronizedMap(new LinkedHashMap<ThreadPrefixSet, Prelude>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
 
-        String var_r = makeVariable(rnode.getGID());
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ThreadPrefixSet, Prelude> eldest) {
+                return size() > size;
+            }
+        });
+    }
 
-        String cons_c = "";
-        String cons_c_end = "";
-        String last_cons_d = null;
+    public ConstraintSet constructReadInitWriteConstraints(Trace trace,ReadNode rnode, ThreadPrefixSet depNodes,Vector<WriteNode> writenodes)
+    {
+        ConstraintSet CONS_CAUSAL_RW = new ConstraintSet();  //return value
+
+        //(and d_1 (and d_2 ... d_n))
+        ArrayList<Formula> cons_c = new ArrayList<>();
         for (WriteNode wnode2 : writenodes) {
             //if this write does not exist in the depNodes, no need to consider
             if (depNodes.contains(wnode2) && !canReach(rnode, wnode2)) {
-                String var_w2 = makeVariable(wnode2.getGID());
-
-                if (last_cons_d != null) {
-                    cons_c += "(and " + last_cons_d;
-                    cons_c_end += " )";
-
-                }
-                last_cons_d = "(> " + var_w2 + " " + var_r + " )\n";
+                cons_c.add(Formula.greater(wnode2.getGID(), rnode.getGID()));
             }
         }
 
-        if(last_cons_d!=null)
-        {
-            cons_c+=last_cons_d;
-        }
-        cons_c=cons_c+cons_c_end;
-
-        if(cons_c.length()>0) {
-//			CONS_CAUSAL_RW.append("(assert \n"+cons_c+ " )\n\n");
-
-            CONS_CAUSAL_RW.append("(assert ( ! \n" + cons_c + " :named INTER_").append(INTER_INDEX).append("))\n\n");
-            updateCurrentConsUniform(INTER_INDEX++, cons_c,trace);
+        if(!cons_c.isEmpty()) {
+            addNamed(CONS_CAUSAL_RW, Formula.conjunction(cons_c), trace);
         }
 
         return CONS_CAUSAL_RW;
@@ -1214,63 +1151,42 @@ public class ConstraintsBuildEngine
      * @param writenodes: other writes that write different values from wnode
      * @return
      */
-    public StringBuilder constructReadWriteConstraints(Trace trace,
-                                                       HashSet<AbstractNode> depNodes, AbstractNode rnode, AbstractNode wnode, Vector<AbstractNode> writenodes)
+    public ConstraintSet constructReadWriteConstraints(Trace trace,
+                                                       ThreadPrefixSet depNodes, AbstractNode rnode, AbstractNode wnode, Vector<AbstractNode> writenodes)
     {
-        StringBuilder CONS_CAUSAL_RW = new StringBuilder("");
-        String var_w1 = makeVariable(wnode.getGID());
-        String var_r = makeVariable(rnode.getGID());
-
-        String cons_b_ = "(> "+var_r+" "+var_w1+" )\n";
-        String cons_c = "";
-        String cons_c_end = "";
-        String last_cons_d = null;
+        ConstraintSet CONS_CAUSAL_RW = new ConstraintSet();
+
+        Formula cons_b_ = Formula.greater(rnode.getGID(), wnode.getGID());
+        //(and d_1 (and d_2 ... d_n))
+        ArrayList<Formula> cons_c = new ArrayList<>();
         for (AbstractNode wnode2 : writenodes) {
             if (wnode != wnode2
                     && depNodes.contains(wnode2)//no need to consider the non-dependent write node
                     && !canReach(wnode2, wnode)
                     && !canReach(rnode, wnode2)) {
-                String var_w2 = makeVariable(wnode2.getGID());
-
-                if (last_cons_d != null) {
-                    cons_c += "(and " + last_cons_d;
-                    cons_c_end += " )";
-
-                }
 
                 //add constraints for the feasibility of var_w2 when it is before var_w1
-                String cons_sb = "(> " + var_w1 + " " + var_w2 + " )";
-                last_cons_d =
-                        "(or (> " + var_w2 + " " + var_r + " ) " +
-                                cons_sb + " )\n";
+                Formula cons_sb = Formula.greater(wnode.getGID(), wnode2.getGID());
+                cons_c.add(Formula.or(Formula.greater(wnode2.getGID(), rnode.getGID()), cons_sb));
             }
         }
 
-        if(last_cons_d!=null)
-        {
-            cons_c+=last_cons_d;
-        }
-        cons_c=cons_c+cons_c_end;
-
-        if(cons_c.length()>0)
-            cons_b_ ="(and "+cons_b_+" "+cons_c + " )\n";
-
-//		CONS_CAUSAL_RW.append("(assert \n"+cons_b_+" )\n\n");
+        if(!cons_c.isEmpty())
+            cons_b_ = Formula.and(cons_b_, Formula.conjunction(cons_c));
 
-        CONS_CAUSAL_RW.append("(assert (! \n" + cons_b_ + " :named INTER_").append(INTER_INDEX).append("))\n\n");
-        updateCurrentConsUniform(INTER_INDEX++, cons_b_,trace);
+        addNamed(CONS_CAUSAL_RW, cons_b_, trace);
         return CONS_CAUSAL_RW;
     }
 
-    public StringBuilder constructPatternConstraints(ConstraintsBuildEngine engine, Trace trace, HashSet<AbstractNode> depNodes, Pattern pattern) {
+    public ConstraintSet constructPatternConstraints(ConstraintsBuildEngine engine, Trace trace, ThreadPrefixSet depNodes, Pattern pattern) {
 
-        StringBuilder sb = new StringBuilder();
-        String constmp = "true";
+        ConstraintSet sb = new ConstraintSet();
+        Formula constmp;
 
         if(pattern.getNodes().size() == 2) {
 
-            String firstNode  = makeVariable(pattern.getNodes().get(0).getGID());
-            String secondNode = makeVariable(pattern.getNodes().get(1).getGID());
+            long firstNode  = pattern.getNodes().get(0).getGID();
+            long secondNode = pattern.getNodes().get(1).getGID();
 
             if (pattern.getPatternType() == PatternType.WR){
 
@@ -1278,40 +1194,36 @@ public class ConstraintsBuildEngine
 
                 if (previousGid != -1){
 
-                    String ReadPrevious = makeVariable(previousGid);
-                    constmp = "( and (< " + firstNode + " " + secondNode + " ) " + "( < " + ReadPrevious + " " +  firstNode + " ))";
+                    constmp = Formula.and(Formula.less(firstNode, secondNode), Formula.less(previousGid, firstNode));
                 }else{
-                    constmp = "(< " + firstNode + " " + secondNode + " )";
+                    constmp = Formula.less(firstNode, secondNode);
                 }
             }else {
-                constmp = "(< " + firstNode + " " + secondNode + " )";
+                constmp = Formula.less(firstNode, secondNode);
             }
 
-//            constmp = "(< " + firstNode + " " + secondNode + " )";
-
         } else if(pattern.getNodes().size() == 3) {
 
-            String firstNode  = makeVariable(pattern.getNodes().get(0).getGID());
-            String secondNode = makeVariable(pattern.getNodes().get(1).getGID());
-            String thirdNode  = makeVariable(pattern.getNodes().get(2).getGID());
+            long firstNode  = pattern.getNodes().get(0).getGID();
+            long secondNode = pattern.getNodes().get(1).getGID();
+            long thirdNode  = pattern.getNodes().get(2).getGID();
 
-            constmp = "( and (< " + firstNode + " " + secondNode + " ) " + "( < " + secondNode + " " +  thirdNode + " ))";
+            constmp = Formula.and(Formula.less(firstNode, secondNode), Formula.less(secondNode, thirdNode));
 
         } else if(pattern.getNodes().size() == 4) {
 
-            String firstNode  = makeVariable(pattern.getNodes().get(0).getGID());
-            String secondNode = makeVariable(pattern.getNodes().get(1).getGID());
-            String thirdNode  = makeVariable(pattern.getNodes().get(2).getGID());
-            String forthNode  = makeVariable(pattern.getNodes().get(3).getGID());
+            long firstNode  = pattern.getNodes().get(0).getGID();
+            long secondNode = pattern.getNodes().get(1).getGID();
+            long thirdNode  = pattern.getNodes().get(2).getGID();
+            long forthNode  = pattern.getNodes().get(3).getGID();
 
-            constmp =  "( and (< " + firstNode + " " + secondNode + " ) " + " ( and  ( < " + secondNode + " " + thirdNode + " ) " +
-                    " (< " + thirdNode +  " " + forthNode + " )))";
+            constmp = Formula.and(Formula.less(firstNode, secondNode),
+                    Formula.and(Formula.less(secondNode, thirdNode), Formula.less(thirdNode, forthNode)));
         } else {
             throw new RuntimeException("Unknown pattern size -- constructPatternConstraints！");
         }
 
-        sb.append("(assert (! ").append(constmp).append(" :named INTER_").append(INTER_INDEX).append("))\n");
-        updateCurrentConsUniform(INTER_INDEX++,constmp,trace);
+        addNamed(sb, constmp, trace);
         return sb;
     }
 
@@ -1342,112 +1254,26 @@ public class ConstraintsBuildEngine
     /**
      * updata current constraints with a uniform character
      */
-    public void updateCurrentConsUniform(int index, String formula, Trace trace){
+    public void updateCurrentConsUniform(int index, Formula formula, Trace trace){
 
         String formulaName = "INTER_" + index;
-        formula = formula.replace("\n","").replace(" ","");
-
-        //TODO change formula to a consist form
-        HashMap<String,String> consMap = UniformCons(formula, trace);
-
-        if (consMap != null){
+        String uniform = UniformFormula.normalize(formula, trace);
 
-            for (String gidCons : consMap.keySet()){
-
-                String idCons = consMap.get(gidCons);
-                formula = formula.replace(gidCons,idCons);
-            }
+        if (uniform != null){
 
             if (currentFormulas == null){
 
                 currentFormulas = new HashMap<>();
+                currentFormulaSet = new HashSet<>();
             }
 
-            currentFormulas.put(formulaName,formula);
-        }
-
-    }
-
-    /**
-     * ZYQ
-     * @param formula
-     * @param trace
-     */
-    public HashMap<String, String> UniformCons(String formula, Trace trace){
-
-        HashSet<String> cons = new HashSet<>();
-        HashMap<String,String> gidToidCons = new HashMap<>();
-
-        String text = formula;
-        java.util.regex.Pattern p = java.util.regex.Pattern.compile("((x\\d+){1,})");
-        Matcher m = p.matcher(text);
-        while (m.find()){
-
-            String result = m.group();
-//			System.out.println(result);
-            cons.add(result);
-        }
-
-        ArrayList<String> ids;
-        for (String con : cons) {
-
-            ids = getGlobalIDformCons(con);
-            if (ids == null || ids.size() != 2){
-                System.err.println("Constraint contains at least two events!" + ids);
-                return null;
-            }
-            String GID1 = ids.get(0);
-            String GID2 = ids.get(1);
-
-            AbstractNode node1 = getEventfromTrace(GID1,trace);
-            AbstractNode node2 = getEventfromTrace(GID2,trace);
-
-            if (node1 == null || node2 == null){
-
-                System.err.println("Could not find corresponding event!" + " GID1:" + GID1 + " node1:" + node1 + " GID2:" + GID2 + " node2:" + node2);
-                return null;
+            String previous = currentFormulas.put(formulaName,uniform);
+            if (previous != null && !currentFormulas.containsValue(previous)){
+                currentFormulaSet.remove(previous);
             }
-            int ID1 = node1.getID();
-            int ID2 = node2.getID();
-
-            Long thread1 = node1.getTid();
-            Long thread2 = node2.getTid();
-
-            String ucons = "x" + ID1 + "x" + ID2 + ((thread1 == thread2) ? "T":"F");
-
-            gidToidCons.put(con,ucons);
+            currentFormulaSet.add(uniform);
         }
 
-        return gidToidCons;
-    }
-
-    public ArrayList<String> getGlobalIDformCons(String currentCon){
-
-        ArrayList<String> ids = new ArrayList<>();
-
-        java.util.regex.Pattern p = java.util.regex.Pattern.compile("\\d+");
-        Matcher m = p.matcher(currentCon);
-        while (m.find()){
-
-            String result = m.group();
-            ids.add(result);
-        }
-
-        return ids;
-    }
-
-    public AbstractNode getEventfromTrace(String gid, Trace trace){
-
-        Vector<AbstractNode> fullTrace = trace.getFullTrace();
-
-        for (AbstractNode abstractNode : fullTrace) {
-
-            if (abstractNode.getGID() == Long.valueOf(gid)){
-
-                return abstractNode;
-            }
-        }
-        return null;
     }
 
     /**
@@ -1460,12 +1286,11 @@ public class ConstraintsBuildEngine
      * @return
      */
 
-    public Vector<String> generateSchedule(StringBuilder causalConstraint, long gid, Long wgid, long gid_prefix)
+    public Vector<String> generateSchedule(ConstraintSet causalConstraint, long gid, Long wgid, long gid_prefix)
     {
-        id.incrementAndGet();
-        ConstraintsSolving task = new ConstraintsSolving(config,id.get());
+        ConstraintsSolving task = new ConstraintsSolving(config);
 
-        if (checkIfUnsat(currentFormulas, UnSatConstraint.getUnSats())){
+        if (checkIfUnsat(currentFormulaSet)){
 
             /**
              * reset INTER_INDEX and currentFormulas
@@ -1481,9 +1306,7 @@ public class ConstraintsBuildEngine
 //        String CONS_SETLOGIC = "(set-logic QF_IDL)\n";
 //        task.sendMessage(CONS_SETLOGIC + CONS_DECLARE + CONS_ASSERT_VALID + CONS_ASSERT_PO + causalConstraint + CONS_GETMODEL,makeVariable(gid),makeVariable(wgid), makeVariable(gid_prefix),reachEngine, causalConstraint.toString(), config);
 
-        declareVariables(new StringBuilder(CONS_ASSERT_PO.toString() + causalConstraint.toString() + CONS_ASSERT_VALID.toString()));
-        StringBuilder msg = new StringBuilder(CONS_SETUNSATCORE).append(CONS_SETLOGIC).append(CONS_DECLARE).append(CONS_ASSERT_VALID).append(CONS_ASSERT_PO).append(causalConstraint).append(CONS_GETMODEL).append(GET_UNSATCORE).append(CONS_EXIT);
-        task.sendMessage(msg.toString(),makeVariable(gid),makeVariable(wgid), makeVariable(gid_prefix),reachEngine, causalConstraint.toString(), config);
+        solve(task, causalConstraint, gid, wgid, gid_prefix);
 
         //if unsat, add all unsat formulas
         if (task.schedule == null && task.unsats != null){
@@ -1517,35 +1340,35 @@ public class ConstraintsBuildEngine
      * @param gid_prefix
      * @return
      */
-    public ConstraintsSolving generateScheduleWithTaskBack(StringBuilder causalConstraint,HashSet<AbstractNode> depNodes, long gid, Long wgid, long gid_prefix)
+    public ConstraintsSolving generateScheduleWithTaskBack(ConstraintSet causalConstraint,ThreadPrefixSet depNodes, long gid, Long wgid, long gid_prefix)
     {
-        id.incrementAndGet();
-        ConstraintsSolving task = new ConstraintsSolving(config,id.get());
+        ConstraintsSolving task = new ConstraintsSolving(config);
 
         //TODO check if current formulas contains unsat cores generated before, if not， continue, else return;
         long checkStart = System.currentTimeMillis();
         //TODO something wrong here, it will cause multi crash points,
-        if (checkIfUnsat(currentFormulas,UnSatConstraint.getUnSats())){
+        if (checkIfUnsat(currentFormulaSet)){
 
-            ExplorationStatsListener.numFilterConstraints += 1;
-            ExplorationStatsListener.unsatCoreTime += (System.currentTimeMillis() - checkStart);
+            ExplorationStatsListener.numFilterConstraints.incrementAndGet();
+            ExplorationStatsListener.unsatCoreTime.addAndGet(System.currentTimeMillis() - checkStart);
             /**
              * reset INTER_INDEX and currentFormulas
              */
             resetParameter();
             return task;
         }
-        ExplorationStatsListener.unsatCoreTime += (System.currentTimeMillis() - checkStart);
+        ExplorationStatsListener.unsatCoreTime.addAndGet(System.currentTimeMillis() - checkStart);
 
         // Apply ConstraintsFilter to check for conflicts and simplify constraints if enabled
+        ConstraintsFilter filter = null;
         if (Configuration.useConstraintsFilter) {
             //System.out.println("DEBUG: 使用约束过滤, 模式: " + Configuration.constraintsFilterMode);
             //System.out.println("DEBUG: 原始因果约束长度: " + causalConstraint.length());
 
-            ConstraintsFilter filter = new ConstraintsFilter(Configuration.constraintsFilterMode);
-            javafx.util.Pair<Boolean, StringBuilder> filterResult = filter.doFilter_with_expression(
-                    new StringBuilder(CONS_ASSERT_PO.toString()),
-                    new StringBuilder(CONS_ASSERT_VALID.toString()),
+            filter = new ConstraintsFilter(Configuration.constraintsFilterMode);
+            javafx.util.Pair<Boolean, ConstraintSet> filterResult = filter.doFilter_with_expression(
+                    CONS_ASSERT_PO,
+                    CONS_ASSERT_VALID,
                     causalConstraint
             );
 
@@ -1569,7 +1392,7 @@ public class ConstraintsBuildEngine
                     //ConstraintsFilterWithDataExtraction.filterCount++;
                     System.out.println("过滤掉了第" + ConstraintsFilterWithDataExtraction.filtedConstraintsCounts + "个约束求解......");
                 }
-                ExplorationStatsListener.numFilterConstraints += 1;
+                ExplorationStatsListener.numFilterConstraints.incrementAndGet();
                 resetParameter();
                 return task;
             }
@@ -1583,8 +1406,8 @@ public class ConstraintsBuildEngine
             }
 
             // Use the filtered causal constraint if available and valid
-            StringBuilder filteredCausalConstraint = filterResult.getValue();
-            if (filteredCausalConstraint.length() > 0) {
+            ConstraintSet filteredCausalConstraint = filterResult.getValue();
+            if (!filteredCausalConstraint.isEmpty()) {
                 //System.out.println("DEBUG: 使用过滤后的约束");
                 //System.out.println("DEBUG: 过滤后约束内容: " + filteredCausalConstraint.toString());
                 causalConstraint = filteredCausalConstraint;
@@ -1597,16 +1420,23 @@ public class ConstraintsBuildEngine
          * I will declare the constraints variables here
          * for all the varaibles that appear in the constraints
          */
-        declareVariables(new StringBuilder(CONS_ASSERT_PO.toString() + causalConstraint.toString() + CONS_ASSERT_VALID.toString()));
-        StringBuilder msg = new StringBuilder(CONS_SETUNSATCORE).append(CONS_SETLOGIC).append(CONS_DECLARE).append(CONS_ASSERT_VALID).append(CONS_ASSERT_PO).append(causalConstraint).append(CONS_GETMODEL).append(GET_UNSATCORE).append(CONS_EXIT);
-        task.sendMessage(msg.toString(),makeVariable(gid),makeVariable(wgid), makeVariable(gid_prefix),reachEngine, causalConstraint.toString(), config);
+        long solveStart = System.currentTimeMillis();
+        solve(task, causalConstraint, gid, wgid, gid_prefix);
+        if (filter != null) {
+            //the predict filter mode compares its prediction with the outcome
+            filter.solved(task.schedule != null, System.currentTimeMillis() - solveStart);
+        }
 
         //if unsat, add all unsat formulas
         if (task.schedule == null && task.unsats != null){
 
             long addStart = System.currentTimeMillis();
-            UnSatConstraint.addUnSatFormulas(task.unsats, currentFormulas);
-            ExplorationStatsListener.unsatCoreTime += (System.currentTimeMillis() - addStart);
+            if (deferredUnSatCores != null) {
+                deferredUnSatCores.add(UnSatConstraint.getUnSatFormulas(task.unsats, currentFormulas));
+            } else {
+                UnSatConstraint.addUnSatFormulas(task.unsats, currentFormulas);
+            }
+            ExplorationStatsListener.unsatCoreTime.addAndGet(System.currentTimeMillis() - addStart);
         }
 
         // 添加tag写入逻辑（参照GC-MCR_实现）
@@ -1629,33 +1459,77 @@ public class ConstraintsBuildEngine
     }
 
     /**
-     * check if current formulas contains the unsat formulas
-     * @param cfs
-     * @param allUnSatCons
-     * @return
+     * send the query to IdlSolver if native_solver is set, to z3 if it is not
+     * or the query is over the budget, in the mode selected by solver_mode
+     * file: fork z3 for the query
+     * interactive: keep the sync and PO constraints asserted in the z3 session,
+     * only the causal constraints are pushed and popped for each pattern
+     * A query with the canonical form of one solved before is answered from the SolverCache.
      */
-    public boolean checkIfUnsat(HashMap<String,String> cfs, HashMap<Integer,ArrayList<String>> allUnSatCons){
-
-        boolean flag;
-        for (Integer index : allUnSatCons.keySet()){
-
-            flag = true;
-            for (String formula : allUnSatCons.get(index)) {
+    private void solve(ConstraintsSolving task, ConstraintSet causalConstraint, long gid, Long wgid, long gid_prefix)
+    {
+        String causal = causalConstraint.toString();
+        SolverCache cache = SolverCache.get();
+        if (cache == null) {
+            solveUncached(task, causalConstraint, causal, gid, wgid, gid_prefix);
+            return;
+        }
+        SolverCache.Query query = SolverCache.canonicalize(CONS_ASSERT_VALID, CONS_ASSERT_PO, causalConstraint);
+        if (cache.lookup(query, task, makeVariable(gid), makeVariable(wgid), makeVariable(gid_prefix), reachEngine, causal)) {
+            return;
+        }
+        solveUncached(task, causalConstraint, causal, gid, wgid, gid_prefix);
+        cache.put(query, task);
+    }
 
-                if (!cfs.containsValue(formula)){
-                    flag = false;
-                    break;
-                }
+    private void solveUncached(ConstraintsSolving task, ConstraintSet causalConstraint, String causal, long gid, Long wgid, long gid_prefix)
+    {
+        if (prelude == null || prelude.sync != CONS_ASSERT_VALID || prelude.po != CONS_ASSERT_PO) {
+            prelude = new Prelude(CONS_ASSERT_VALID, CONS_ASSERT_PO, null, null, INTER_INDEX);
+        }
+        if (Configuration.nativeSolver) {
+            ConstraintSet[] query = {CONS_ASSERT_VALID, CONS_ASSERT_PO, causalConstraint};
+            if (task.solveNative(query, makeVariable(gid), makeVariable(wgid), makeVariable(gid_prefix), reachEngine, causal)) {
+                return;
             }
-            if (flag == true){
-                return true;
+        }
+        if (Z3Session.MODE_INTERACTIVE.equals(Configuration.solverMode)) {
+            if (session == null) {
+                session = new Z3Session(config);
             }
+            task.sendMessage(session, prelude, causalConstraint,
+                    makeVariable(gid), makeVariable(wgid), makeVariable(gid_prefix), reachEngine, causal);
+            return;
         }
-        return false;
+        //the header and the prelude are written from their prebuilt bytes, only the causal part is new
+        LinkedHashSet<Long> vars = new LinkedHashSet<>();
+        causalConstraint.collectVariables(vars);
+        vars.removeAll(prelude.vars());
+        StringBuilder causalDeclarations = new StringBuilder();
+        SmtLibWriter.declare(vars, causalDeclarations);
+        byte[][] query = {
+                QUERY_HEADER,
+                prelude.declarations(),
+                causalDeclarations.toString().getBytes(StandardCharsets.UTF_8),
+                prelude.assertions(),
+                causal.getBytes(StandardCharsets.UTF_8),
+                QUERY_FOOTER
+        };
+        task.sendMessage(query, makeVariable(gid), makeVariable(wgid), makeVariable(gid_prefix), reachEngine, causal);
+    }
+
+    /**
+     * check if current formulas contains the unsat formulas
+     * @param formulas the uniform formulas of the query
+     * @return
+     */
+    public boolean checkIfUnsat(Set<String> formulas){
+
+        return UnSatConstraint.isSubsumed(formulas);
     }
 
 
-    private Vector<ReadNode> getReadNodes(HashSet<AbstractNode> depNodes)
+    private Vector<ReadNode> getReadNodes(Iterable<AbstractNode> depNodes)
     {
         Vector<ReadNode> readnodes = new Vector<ReadNode>();
         //traverse depNodes to find all read nodes
@@ -1670,77 +1544,111 @@ public class ConstraintsBuildEngine
 
     /**
      * return the set of nodes in the trace which
-     * rnode has data or control dependence
+     * rnode has data or control dependence:
+     * the earlier nodes of its thread, and for each of them (rnode itself
+     * if it is the first one) ordered after a node2 by partialOrderMap,
+     * node2 and its dependent nodes
      */
-    public HashSet<AbstractNode> getDependentNodes(Trace trace,
-                                                   AbstractNode rnode) {
-
-        HashSet<AbstractNode> depNodes = new HashSet<AbstractNode>();
-
-        Long tid = rnode.getTid();
-
-        Vector<AbstractNode> nodes = trace.getThreadNodesMap().get(tid);
-        int index_o = nodes.indexOf(rnode);
-        if(index_o>0)
-        {
-            for(int i = index_o-1;i>=0;i--)//not including itself
-            {
-                AbstractNode node = nodes.get(i);
-                //
-                if(partialOrderMap.containsKey(node))
-                {
-                    HashSet<AbstractNode> depNodes2 = specialDependentNodesMap.get(node);
-                    if(depNodes2==null)
-                    {
-                        AbstractNode node2 = partialOrderMap.get(node);
-                        if(node2!=null)
-                        {
-                            depNodes2 = getDependentNodes(trace,node2);
-                            depNodes2.add(node2);
-                            specialDependentNodesMap.put(node, depNodes2);
-                        }
-                    }
+    public ThreadPrefixSet getDependentNodes(Trace trace,
+                                             AbstractNode rnode) {
+
+        int slot = threads.slot(rnode.getTid());
+        int index = rnode.getThreadIndex();
+        if (slot < 0 || index < 0) {
+            //not an event of the threads, only its own partial order
+            ThreadPrefixSet depNodes = new ThreadPrefixSet(threads);
+            AbstractNode node2 = partialOrderMap.get(rnode);
+            if (node2 != null) {
+                depNodes.addAll(getDependentNodes(trace, node2));
+                depNodes.add(node2);
+            }
+            return depNodes;
+        }
 
-                    if(depNodes2!=null)depNodes.addAll(depNodes2);
-                }
+        int[] vector = dependencyVectors[slot][index];
+        ThreadPrefixSet depNodes = vector == null ? new ThreadPrefixSet(threads) : new ThreadPrefixSet(threads, vector);
+        //not including itself
+        if (index > 0) {
+            depNodes.add(threads.nodes(slot).get(index - 1));
+        }
+        return depNodes;
+    }
 
-                /*
-                 * Under TSO the read may not dependent on the earlier write
-                 *
-                 */
-                //assume I add all the nodes in front of current node to the dependent node
-//				if(mode=="TSO"){
-//					if(rnode instanceof ReadNode && node instanceof WriteNode){
-//						if(((ReadNode) rnode).getAddr() != ((WriteNode)node).getAddr()){
-//							continue;
-//						}
-//					}
-//				}
-
-                depNodes.add(node);//depends on the memory model
-            }
+    public ThreadPrefixSet newDependentNodes()
+    {
+        return new ThreadPrefixSet(threads);
+    }
 
+    /**
+     * the dependency vector of each event, see getDependentNodes: the vector
+     * of the i-th event of a thread is the union of the dependent nodes through
+     * partialOrderMap of the events before it, of the first event for i = 0
+     */
+    private void computeDependencyVectors(Trace trace)
+    {
+        threads = new ThreadPrefixSet.Threads(trace);
+        dependencyVectors = new int[threads.size()][][];
+        for (int slot = 0; slot < threads.size(); slot++) {
+            dependencyVectors[slot] = new int[threads.nodes(slot).size()][];
         }
-        else
-        {
-            //check thread fork
-            AbstractNode node2 = partialOrderMap.get(rnode);
-            if(node2!=null)
-            {
-                HashSet<AbstractNode> depNodes2 = specialDependentNodesMap.get(rnode);
-                if(depNodes2==null)
-                {
-                    depNodes2 = getDependentNodes(trace,node2);
-                    depNodes2.add(node2);
-                    specialDependentNodesMap.put(rnode, depNodes2);
-                }
+        int[] computed = new int[threads.size()];
+        for (int slot = 0; slot < threads.size(); slot++) {
+            computeDependencyVectors(slot, threads.nodes(slot).size(), computed);
+        }
+    }
 
-                depNodes.addAll(depNodes2);
+    private void computeDependencyVectors(int slot, int upTo, int[] computed)
+    {
+        Vector<AbstractNode> nodes = threads.nodes(slot);
+        int[][] vectors = dependencyVectors[slot];
+        while (computed[slot] < upTo) {
+            int i = computed[slot]++;
+            if (i == 0) {
+                vectors[0] = partialOrderVector(nodes.get(0), computed);
+            } else if (i == 1) {
+                vectors[1] = vectors[0];
+            } else {
+                int[] own = partialOrderVector(nodes.get(i - 1), computed);
+                vectors[i] = union(vectors[i - 1], own);
             }
+        }
+    }
 
+    /**
+     * @return the prefix of each thread that node2 = partialOrderMap(node)
+     * and its dependent nodes make, null if there is no node2
+     */
+    private int[] partialOrderVector(AbstractNode node, int[] computed)
+    {
+        AbstractNode node2 = partialOrderMap.get(node);
+        if (node2 == null) {
+            return null;
+        }
+        int slot2 = threads.slot(node2.getTid());
+        int index2 = node2.getThreadIndex();
+        if (slot2 < 0 || index2 < 0) {
+            return null;
         }
+        computeDependencyVectors(slot2, index2 + 1, computed);
+        int[] vector = dependencyVectors[slot2][index2];
+        vector = vector == null ? new int[threads.size()] : vector.clone();
+        vector[slot2] = Math.max(vector[slot2], index2 + 1);
+        return vector;
+    }
 
-        return depNodes;
+    private static int[] union(int[] vector1, int[] vector2)
+    {
+        if (vector2 == null) {
+            return vector1;
+        }
+        if (vector1 == null) {
+            return vector2;
+        }
+        int[] union = vector1.clone();
+        for (int slot = 0; slot < union.length; slot++) {
+            union[slot] = Math.max(union[slot], vector2[slot]);
+        }
+        return union;
     }
 
     /**
@@ -1749,26 +1657,37 @@ public class ConstraintsBuildEngine
      * and last event happen before the thread join event
      * @param trace
      */
+    private void addOrderEdge(ChainReachabilityIndex.Builder indexBuilder, long gid1, long gid2)
+    {
+        if (indexBuilder != null) {
+            indexBuilder.addEdge(gid1, gid2);
+        } else {
+            reachEngine.addEdge(gid1, gid2);
+        }
+    }
+
     public void preprocess(Trace trace) {
 
         //create reachability engine
         reachEngine = new ReachabilityEngine();
+        reachIndex = null;
+        preludeCache = newPreludeCache();
         HashMap<Long,Vector<AbstractNode>> map = trace.getThreadNodesMap();
 
+        //under SC the threads are chains, the ordering goes to the chain index
+        ChainReachabilityIndex.Builder indexBuilder = null;
 
         if (Objects.equals(Configuration.mode, "TSO") || Objects.equals(Configuration.mode, "PSO")) {
             //do nothing here
         }
         else{
+            indexBuilder = new ChainReachabilityIndex.Builder();
             for (Vector<AbstractNode> nodes : map.values()) {
-                long lastGID = nodes.get(0).getGID();
-                for (int i = 1; i < nodes.size(); i++) {
-                    long thisGID = nodes.get(i).getGID();
-                    //the order is added to reachability engine for quick testing
-                    reachEngine.addEdge(lastGID, thisGID);
-
-                    lastGID = thisGID;
+                long[] gids = new long[nodes.size()];
+                for (int i = 0; i < nodes.size(); i++) {
+                    gids[i] = nodes.get(i).getGID();
                 }
+                indexBuilder.addChain(gids);
             }
         }
 
@@ -1817,7 +1736,7 @@ public class ConstraintsBuildEngine
                     if (fnode != null) {
                         long fGID = fnode.getGID();
                         //start-begin ordering
-                        reachEngine.addEdge(thisGID, fGID);
+                        addOrderEdge(indexBuilder, thisGID, fGID);
                     }
 
                     //add join to partial order map
@@ -1829,7 +1748,7 @@ public class ConstraintsBuildEngine
                     if (lnode != null) {
                         long lGID = lnode.getGID();
                         //end-join ordering
-                        reachEngine.addEdge(lGID, thisGID);
+                        addOrderEdge(indexBuilder, lGID, thisGID);
 
                     }
 
@@ -1946,8 +1865,8 @@ public class ConstraintsBuildEngine
 //											System.err.println("trace collection is wrong");
 //
 //										//notify-wait ordering
-//										reachEngine.addEdge(wnode.getGID(),notifyGID);
-//										reachEngine.addEdge(notifyGID,lockNode.getGID());
+//										addOrderEdge(indexBuilder, wnode.getGID(),notifyGID);
+//										addOrderEdge(indexBuilder, notifyGID,lockNode.getGID());
 //
 //										//add wait-notify to partial order map
 //
@@ -1967,8 +1886,8 @@ public class ConstraintsBuildEngine
                                     System.err.println("trace collection is wrong");
 
                                 //notify-wait ordering
-                                reachEngine.addEdge(wnode.getGID(), notifyGID);
-                                reachEngine.addEdge(notifyGID, lockNode.getGID());
+                                addOrderEdge(indexBuilder, wnode.getGID(), notifyGID);
+                                addOrderEdge(indexBuilder, notifyGID, lockNode.getGID());
 
                                 //add wait-notify to partial order map
                                 partialOrderMap.put(lockNode, matchNotifyNode);
@@ -2005,6 +1924,27 @@ public class ConstraintsBuildEngine
             }
         }
 
+        computeDependencyVectors(trace);
+
+        if (indexBuilder != null) {
+            reachIndex = indexBuilder.build();
+            if (reachIndex == null) {
+                //too large for the index, fall back to the DFS engine
+                indexBuilder.fill(reachEngine);
+            }
+        }
+
+        //leftover .smt files of earlier queries, no query is running at this point
+        if (config.constraint_outdir != null) {
+            File outDir = new File(config.constraint_outdir);
+            if (outDir.isDirectory()) {
+                try {
+                    FileUtils.cleanDirectory(outDir);
+                } catch (IOException e) {
+                    System.err.println(e.getMessage());
+                }
+            }
+        }
 
     }
 }
@@ -2,21 +2,25 @@ package constraints.constraints;
 
 import javafx.util.Pair;
 import constraints.config.Configuration;
+import constraints.formula.ConstraintSet;
 import java.util.*;
 
 /**
- * Main ConstraintsFilter class that supports two modes:
+ * Main ConstraintsFilter class that supports three modes:
  * 1. Simple filtering mode (default) - focuses purely on constraint filtering
  * 2. Data extraction mode - includes filtering + data extraction for research
+ * 3. Predict mode - simple filtering + skipping the queries the unsat model predicts unsat
  */
 public class ConstraintsFilter {
 
     // Mode selection
     public static final String MODE_SIMPLE = "simple";
     public static final String MODE_DATA_EXTRACTION = "data_extraction";
+    public static final String MODE_PREDICT = "predict";
 
     private final ConstraintsFilterSimple simpleFilter;
     private final ConstraintsFilterWithDataExtraction dataExtractionFilter;
+    private final ConstraintsFilterWithPrediction predictionFilter;
     private final String mode;
 
     /**
@@ -25,6 +29,7 @@ public class ConstraintsFilter {
     public ConstraintsFilter() {
         this.simpleFilter = new ConstraintsFilterSimple();
         this.dataExtractionFilter = new ConstraintsFilterWithDataExtraction();
+        this.predictionFilter = new ConstraintsFilterWithPrediction();
 
         // Determine mode based on system property or default to simple
         this.mode = System.getProperty("constraints.filter.mode", MODE_SIMPLE);
@@ -36,6 +41,7 @@ public class ConstraintsFilter {
     public ConstraintsFilter(String mode) {
         this.simpleFilter = new ConstraintsFilterSimple();
         this.dataExtractionFilter = new ConstraintsFilterWithDataExtraction();
+        this.predictionFilter = new ConstraintsFilterWithPrediction();
         this.mode = mode != null ? mode : MODE_SIMPLE;
     }
 
@@ -45,17 +51,28 @@ public class ConstraintsFilter {
      * @param CONS_ASSERT_PO    Program order constraints
      * @param CONS_ASSERT_VALID Lock-related constraints
      * @param causalConstraint  New read-write constraints
-     * @return Pair<Boolean, StringBuilder> where Boolean indicates if constraints are satisfiable,
-     *         and StringBuilder contains the filtered constraint if available
+     * @return Pair<Boolean, ConstraintSet> where Boolean indicates if constraints are satisfiable,
+     *         and ConstraintSet contains the filtered constraint if available
      */
-    public Pair<Boolean, StringBuilder> doFilter_with_expression(StringBuilder CONS_ASSERT_PO, StringBuilder CONS_ASSERT_VALID, StringBuilder causalConstraint) {
+    public Pair<Boolean, ConstraintSet> doFilter_with_expression(ConstraintSet CONS_ASSERT_PO, ConstraintSet CONS_ASSERT_VALID, ConstraintSet causalConstraint) {
         if (MODE_DATA_EXTRACTION.equals(mode)) {
             return dataExtractionFilter.doFilter_with_expression(CONS_ASSERT_PO, CONS_ASSERT_VALID, causalConstraint);
+        } else if (MODE_PREDICT.equals(mode)) {
+            return predictionFilter.doFilter_with_expression(CONS_ASSERT_PO, CONS_ASSERT_VALID, causalConstraint);
         } else {
             return simpleFilter.doFilter_with_expression(CONS_ASSERT_PO, CONS_ASSERT_VALID, causalConstraint);
         }
     }
 
+    /**
+     * Report the outcome of the query let through the filter, solved in millis.
+     */
+    public void solved(boolean sat, long millis) {
+        if (MODE_PREDICT.equals(mode)) {
+            predictionFilter.solved(sat, millis);
+        }
+    }
+
     /**
      * Get current mode.
      */
@@ -1,5 +1,8 @@
 package constraints.constraints;
 
+import constraints.formula.ConstraintSet;
+import constraints.formula.Formula;
+import constraints.formula.SmtLibWriter;
 import javafx.util.Pair;
 import java.util.*;
 
@@ -7,6 +10,11 @@ import java.util.*;
  * Simple constraints filter for optimizing constraint solving by checking
  * for conflicts in program order and causal constraints.
  * This version focuses purely on filtering without data extraction.
+ *
+ * The orderings of the assertions (the atoms not under an 'or') are closed
+ * transitively in an OrderClosure, so an atom is checked by a bit lookup; the
+ * 'or's (lock constraints, read-write choices) are unit propagated against it,
+ * the orderings of an 'or' with one branch left are added to it.
  */
 public class ConstraintsFilterSimple {
 
@@ -16,88 +24,42 @@ public class ConstraintsFilterSimple {
      * @param CONS_ASSERT_PO    Program order constraints
      * @param CONS_ASSERT_VALID Lock-related constraints
      * @param causalConstraint  New read-write constraints
-     * @return Pair<Boolean, StringBuilder> where Boolean indicates if constraints are satisfiable,
-     *         and StringBuilder contains the filtered constraint if available
+     * @return Pair<Boolean, ConstraintSet> where Boolean indicates if constraints are satisfiable,
+     *         and ConstraintSet contains the filtered constraint if available
      */
-    public Pair<Boolean, StringBuilder> doFilter_with_expression(StringBuilder CONS_ASSERT_PO, StringBuilder CONS_ASSERT_VALID, StringBuilder causalConstraint) {
+    public Pair<Boolean, ConstraintSet> doFilter_with_expression(ConstraintSet CONS_ASSERT_PO, ConstraintSet CONS_ASSERT_VALID, ConstraintSet causalConstraint) {
         try {
-            StringBuilder result = new StringBuilder("");
-            List<String[]> variables = new ArrayList<>();
-            variables.addAll(findVariable(CONS_ASSERT_PO.toString()));
-            variables.addAll(findVariable(CONS_ASSERT_VALID.toString()));
+            ConstraintSet result = new ConstraintSet();
 
-            // Build adjacency list from program order and lock constraints
-            List<OrderNode> orderMapList = createOrderMap(variables);
-
-            // Process causal constraints
-            StringBuilder sb = new StringBuilder();
-            String causalStr = causalConstraint.toString();
-
-            // 处理命名约束格式 (! ... :named INTER_X)
-            causalStr = causalStr.replaceAll("\\(\\s*!\\s+([^:]+)\\s*:named\\s+[^)]+\\)", "$1");
-
-            for (char c : causalStr.toCharArray()) {
-                if (c != '\n') {
-                    if (c == '(' || c == ')') {
-                        sb.append(" ");
-                    } else {
-                        sb.append(c);
-                    }
+            // The orderings every solution satisfies, and the 'or's left (lock, read-write choices)
+            List<Formula.Order> orderings = new ArrayList<>();
+            List<Formula> clauses = new ArrayList<>();
+            for (ConstraintSet constraints : new ConstraintSet[]{CONS_ASSERT_PO, CONS_ASSERT_VALID, causalConstraint}) {
+                for (ConstraintSet.Assertion assertion : constraints) {
+                    split(assertion.formula, orderings, clauses);
                 }
             }
 
-            // Split causal constraint into individual assertions
-            String[] asserts = sb.toString().trim().split("assert");
-            List<String> assertsString = new ArrayList<>();
-            for (String anAssert : asserts) {
-                if (!anAssert.equals("\\s+") && !anAssert.isEmpty()) {
-                    assertsString.add(anAssert);
-                }
+            // Closure over the events the 'or's and the causal constraints order
+            Set<Long> queryEvents = new LinkedHashSet<>();
+            for (Formula clause : clauses) {
+                events(clause, queryEvents);
+            }
+            for (ConstraintSet.Assertion anAssert : causalConstraint) {
+                events(anAssert.formula, queryEvents);
+            }
+            OrderClosure closure = new OrderClosure(OrderClosure.orderings(orderings), queryEvents);
+            if (!closure.isConsistent() || !propagate(clauses, closure)) {
+                return new Pair<>(false, result);
             }
 
             // Check each assertion for conflicts
-            for (String anAssert : assertsString) {
-                Queue<Pair<String, String>> rebuildCausalConstraint = rebuildExpression_with_expression(anAssert, orderMapList);
-
-                if (!rebuildCausalConstraint.isEmpty()) {
-                    Stack<Pair<String, String>> stack = new Stack<>();
-                    while (!rebuildCausalConstraint.isEmpty()) {
-                        Pair<String, String> var1 = rebuildCausalConstraint.poll();
-                        while (!stack.isEmpty() && ("true".equals(stack.peek().getKey()) || "false".equals(stack.peek().getKey())) && ("true".equals(var1.getKey()) || "false".equals(var1.getKey()))) {
-                            Pair<String, String> var2 = stack.pop();
-                            Pair<String, String> option = stack.pop();
-
-                            boolean var1Value = "true".equals(var1.getKey());
-                            boolean var2Value = "true".equals(var2.getKey());
-                            boolean finalValue;
-                            String expression = "";
-
-                            if ("and".equals(option.getKey())) {
-                                finalValue = var1Value && var2Value;
-                                if (finalValue) expression = "(and " + var1.getValue() + " " + var2.getValue() + " )";
-                            } else {
-                                finalValue = var1Value || var2Value;
-                                if (finalValue) {
-                                    if (var1Value && var2Value) expression = "(or " + var1.getValue() + " " + var2.getValue() + " )";
-                                    else if (var1Value) expression = var1.getValue();
-                                    else if (var2Value) expression = var2.getValue();
-                                }
-                            }
-                            var1 = new Pair<>(String.valueOf(finalValue), expression);
-                        }
-                        stack.push(var1);
-                    }
-
-                    if ("false".equals(stack.get(0).getKey())) {
-                        return new Pair<>(false, result);
-                    } else {
-                        String constraint = stack.get(0).getValue();
-                        // 只有当约束内容不为空时才添加
-                        if (constraint != null && !constraint.trim().isEmpty()) {
-                            result.append("(assert " + constraint + ")\n");
-                        }
-                    }
+            for (ConstraintSet.Assertion anAssert : causalConstraint) {
+                Formula constraint = rebuildExpression_with_expression(anAssert.formula, closure);
+                if (constraint == null) {
+                    return new Pair<>(false, result);
                 }
+                result.add(null, constraint);
             }
             return new Pair<>(true, result);
         } catch (Exception e) {
@@ -107,160 +69,189 @@ public class ConstraintsFilterSimple {
     }
 
     /**
-     * Extract variable relationships from constraint string.
+     * Extract the orderings every solution satisfies: the atoms of the assertions without 'or'.
      * Returns a list of [var1, var2, operator] arrays.
      */
-    public List<String[]> findVariable(String s) {
+    public List<String[]> findVariable(ConstraintSet constraints) {
         List<String[]> result = new ArrayList<>();
-        if (s.contains("or")) {
-            // Skip constraints with 'or' for simplicity
-            return result;
-        }
-        StringBuilder sb = new StringBuilder();
-        for (char c : s.toCharArray()) {
-            if (c != '\n') {
-                sb.append(c);
-                if (c == '(' || c == ')') {
-                    sb.append(" ");
+        for (ConstraintSet.Assertion assertion : constraints) {
+            List<Formula.Order> atoms = new ArrayList<>();
+            List<Formula> clauses = new ArrayList<>();
+            split(assertion.formula, atoms, clauses);
+            if (clauses.isEmpty()) {
+                for (Formula.Order order : atoms) {
+                    result.add(new String[]{SmtLibWriter.variable(order.gid1), SmtLibWriter.variable(order.gid2), String.valueOf(order.op)});
                 }
             }
         }
-        String[] s1 = sb.toString().split("\\s+");
-        for (int i = 0; i < s1.length; i++) {
-            String s2 = s1[i];
-            if ("<".equals(s2) || ">".equals(s2)) {
-                String var1 = s1[i + 1];
-                String var2 = s1[i + 2];
-                result.add(new String[]{var1, var2, s2});
-                i += 2;
-            }
-        }
         return result;
     }
 
     /**
-     * Rebuild expression with conflict checking against order map.
+     * Split formula at its 'and's into the atoms every solution satisfies and the 'or's.
      */
-    public Queue<Pair<String, String>> rebuildExpression_with_expression(String anAssert, List<OrderNode> orderMapList) {
-        Queue<Pair<String, String>> queue = new LinkedList<>();
-        String[] s1 = anAssert.split("\\s+");
-        for (int i = 0; i < s1.length; i++) {
-            String s2 = s1[i];
-            if ("<".equals(s2) || ">".equals(s2)) {
-                String target;
-                String next;
-                String var1 = s1[i + 1];
-                String var2 = s1[i + 2];
-                if ("<".equals(s2)) {
-                    target = var1;
-                    next = var2;
-                } else {
-                    target = var2;
-                    next = var1;
-                }
+    private static void split(Formula formula, final List<Formula.Order> atoms, final List<Formula> clauses) {
+        formula.accept(new Formula.Visitor<Void>() {
+            @Override
+            public Void visitOrder(Formula.Order order) {
+                atoms.add(order);
+                return null;
+            }
 
-                boolean isConflict = isConflictWithOrderMap(target, next, orderMapList);
-                String expression = "(" + s2 + " " + var1 + " " + var2 + " )";
-                if (isConflict) {
-                    queue.offer(new Pair<>("false", ""));
-                } else {
-                    queue.offer(new Pair<>("true", expression));
-                }
-                i += 2;
-            } else if (!"(".equals(s1[i]) && !")".equals(s1[i]) && !"assert".equals(s1[i]) && !"".equals(s1[i].trim())) {
-                queue.offer(new Pair<>(s1[i], s1[i]));
+            @Override
+            public Void visitAnd(Formula.And and) {
+                and.left.accept(this);
+                and.right.accept(this);
+                return null;
             }
-        }
-        return queue;
+
+            @Override
+            public Void visitOr(Formula.Or or) {
+                clauses.add(or);
+                return null;
+            }
+
+            @Override
+            public Void visitTrue() {
+                return null;
+            }
+        });
     }
 
-    /**
-     * Check if adding target > next conflicts with existing order map.
-     * Returns true if there's already a path from next to target.
-     */
-    public boolean isConflictWithOrderMap(String target, String next, List<OrderNode> orderMapList) {
-        OrderNode targetNode = null;
-        OrderNode nextNode = null;
-        for (OrderNode orderNode : orderMapList) {
-            if (target.equals(orderNode.value)) {
-                nextNode = orderNode;
-            } else if (next.equals(orderNode.value)) {
-                targetNode = orderNode;
+    private static void events(Formula formula, final Set<Long> events) {
+        formula.accept(new Formula.Visitor<Void>() {
+            @Override
+            public Void visitOrder(Formula.Order order) {
+                events.add(order.gid1);
+                events.add(order.gid2);
+                return null;
             }
-        }
-        if (targetNode == null || nextNode == null) {
-            return false;
-        }
-        return canFindRoute(targetNode, nextNode.value, orderMapList);
+
+            @Override
+            public Void visitAnd(Formula.And and) {
+                and.left.accept(this);
+                and.right.accept(this);
+                return null;
+            }
+
+            @Override
+            public Void visitOr(Formula.Or or) {
+                or.left.accept(this);
+                or.right.accept(this);
+                return null;
+            }
+
+            @Override
+            public Void visitTrue() {
+                return null;
+            }
+        });
     }
 
     /**
-     * Check if there's a path from currentNode to targetValue.
+     * Unit propagation of the 'or's: the branches with an atom the closure contradicts are out,
+     * the orderings of the only branch left are added to the closure, until nothing changes.
+     * @return false if every branch of an 'or' is out, or the orderings added make a cycle
      */
-    public boolean canFindRoute(OrderNode currentNode, String targetValue, List<OrderNode> orderMapList) {
-        if (currentNode.largerNodes == null || currentNode.largerNodes.size() == 0) {
-            return currentNode.value.equals(targetValue);
-        }
-
-        for (OrderNode largerNode : currentNode.largerNodes) {
-            if (canFindRoute(largerNode, targetValue, orderMapList)) {
-                return true;
+    private boolean propagate(List<Formula> clauses, OrderClosure closure) {
+        //clauses grows with the 'or's of the branches taken
+        List<Boolean> done = new ArrayList<>(Collections.nCopies(clauses.size(), false));
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int c = 0; c < clauses.size(); c++) {
+                if (done.get(c)) {
+                    continue;
+                }
+                List<Formula> branches = new ArrayList<>();
+                branches(clauses.get(c), closure, branches);
+                if (branches.isEmpty()) {
+                    return false;
+                }
+                if (branches.size() == 1) {
+                    done.set(c, true);
+                    List<Formula.Order> orderings = new ArrayList<>();
+                    int numClauses = clauses.size();
+                    split(branches.get(0), orderings, clauses);
+                    done.addAll(Collections.nCopies(clauses.size() - numClauses, false));
+                    for (Formula.Order order : orderings) {
+                        if (!closure.add(order.before(), order.after())) {
+                            return false;
+                        }
+                    }
+                    changed = true;
+                }
             }
         }
-        return false;
+        return true;
     }
 
     /**
-     * Create order map (directed graph) from variable constraints.
+     * the branches of an 'or' the closure does not contradict
      */
-    public List<OrderNode> createOrderMap(List<String[]> variables) {
-        List<OrderNode> orderMap = new ArrayList<>();
-        for (String[] variable : variables) {
-            String option = variable[2];
-            String target;
-            String next;
-            if ("<".equals(option)) {
-                target = variable[0];
-                next = variable[1];
-            } else {
-                target = variable[1];
-                next = variable[0];
+    private static void branches(Formula formula, OrderClosure closure, List<Formula> branches) {
+        if (formula instanceof Formula.Or) {
+            branches(((Formula.Or) formula).left, closure, branches);
+            branches(((Formula.Or) formula).right, closure, branches);
+        } else if (!isFalse(formula, closure)) {
+            branches.add(formula);
+        }
+    }
+
+    private static boolean isFalse(Formula formula, final OrderClosure closure) {
+        return formula.accept(new Formula.Visitor<Boolean>() {
+            @Override
+            public Boolean visitOrder(Formula.Order order) {
+                return closure.conflicts(order.before(), order.after());
             }
 
-            OrderNode targetNode = null;
-            OrderNode nextNode = null;
-            for (OrderNode orderNode : orderMap) {
-                if (target.equals(orderNode.value)) {
-                    targetNode = orderNode;
-                } else if (next.equals(orderNode.value)) {
-                    nextNode = orderNode;
-                }
+            @Override
+            public Boolean visitAnd(Formula.And and) {
+                return and.left.accept(this) || and.right.accept(this);
             }
 
-            if (targetNode == null) {
-                targetNode = new OrderNode(target);
-                targetNode.largerNodes = new ArrayList<>();
-                orderMap.add(targetNode);
+            @Override
+            public Boolean visitOr(Formula.Or or) {
+                return or.left.accept(this) && or.right.accept(this);
             }
-            if (nextNode == null) {
-                nextNode = new OrderNode(next);
-                nextNode.largerNodes = new ArrayList<>();
-                orderMap.add(nextNode);
+
+            @Override
+            public Boolean visitTrue() {
+                return false;
             }
-            targetNode.largerNodes.add(nextNode);
-        }
-        return orderMap;
+        });
     }
 
     /**
-     * Node class for representing directed acyclic graph.
+     * Rebuild expression with conflict checking against the closure of the orderings.
+     * @return the expression without the atoms that conflict with the closure, null if it is false
      */
-    static class OrderNode {
-        public String value;
-        public List<OrderNode> largerNodes;
+    public Formula rebuildExpression_with_expression(Formula anAssert, final OrderClosure closure) {
+        return anAssert.accept(new Formula.Visitor<Formula>() {
+            @Override
+            public Formula visitOrder(Formula.Order order) {
+                return closure.conflicts(order.before(), order.after()) ? null : order;
+            }
 
-        public OrderNode(String value) {
-            this.value = value;
-        }
+            @Override
+            public Formula visitAnd(Formula.And and) {
+                Formula left = and.left.accept(this);
+                Formula right = and.right.accept(this);
+                return left != null && right != null ? Formula.and(left, right) : null;
+            }
+
+            @Override
+            public Formula visitOr(Formula.Or or) {
+                Formula left = or.left.accept(this);
+                Formula right = or.right.accept(this);
+                if (left != null && right != null) return Formula.or(left, right);
+                return left != null ? left : right;
+            }
+
+            @Override
+            public Formula visitTrue() {
+                return Formula.TRUE;
+            }
+        });
     }
 }
@@ -2,6 +2,9 @@ package constraints.constraints;
 
 import javafx.util.Pair;
 import constraints.config.Configuration;
+import constraints.formula.ConstraintSet;
+import constraints.formula.Formula;
+import constraints.formula.SmtLibWriter;
 import java.util.*;
 import java.io.*;
 
@@ -31,50 +34,26 @@ public class ConstraintsFilterWithDataExtraction {
      * @param CONS_ASSERT_PO    Program order constraints
      * @param CONS_ASSERT_VALID Lock-related constraints
      * @param causalConstraint  New read-write constraints
-     * @return Pair<Boolean, StringBuilder> where Boolean indicates if constraints are satisfiable,
-     *         and StringBuilder contains the filtered constraint if available
+     * @return Pair<Boolean, ConstraintSet> where Boolean indicates if constraints are satisfiable,
+     *         and ConstraintSet contains the filtered constraint if available
      */
-    public Pair<Boolean, StringBuilder> doFilter_with_expression(StringBuilder CONS_ASSERT_PO, StringBuilder CONS_ASSERT_VALID, StringBuilder causalConstraint) {
+    public Pair<Boolean, ConstraintSet> doFilter_with_expression(ConstraintSet CONS_ASSERT_PO, ConstraintSet CONS_ASSERT_VALID, ConstraintSet causalConstraint) {
         try {
             cau = 0;
             con = 0;
-            StringBuilder result = new StringBuilder("");
+            ConstraintSet result = new ConstraintSet();
             List<String[]> variables = new ArrayList<>();
-            variables.addAll(findVariable(CONS_ASSERT_PO.toString()));
-            variables.addAll(findVariable(CONS_ASSERT_VALID.toString()));
+            variables.addAll(findVariable(CONS_ASSERT_PO));
+            variables.addAll(findVariable(CONS_ASSERT_VALID));
 
             // Build adjacency list from program order and lock constraints
             List<OrderNode> orderMapList = createOrderMap(variables);
             con = orderMapList.size();
 
-            // Process causal constraints
-            StringBuilder sb = new StringBuilder();
-            String causalStr = causalConstraint.toString();
-
-            // 处理PCR的命名约束格式 (! ... :named INTER_X) -> 提取真正的约束内容
-            // 同时处理多层嵌套的情况
-            causalStr = causalStr.replaceAll("\\(assert\\s*\\(\\s*!\\s+([^:]+?)\\s*:named[^)]+\\)\\s*\\)", "(assert $1)");
-
-            // 如果还有残留的命名约束格式，继续处理
-            causalStr = causalStr.replaceAll("\\(\\s*!\\s+([^:]+?)\\s*:named[^)]+\\)", "$1");
-
-            for (char c : causalStr.toCharArray()) {
-                if (c != '\n') {
-                    if (c == '(' || c == ')') {
-                        sb.append(" ");
-                    } else {
-                        sb.append(c);
-                    }
-                }
-            }
-
-            // Split causal constraint into individual assertions
-            String[] asserts = sb.toString().trim().split("assert");
+            // 每个因果约束按前序遍历展开成 token 串
             List<String> assertsString = new ArrayList<>();
-            for (String anAssert : asserts) {
-                if (!anAssert.equals("\\s+") && !anAssert.isEmpty()) {
-                    assertsString.add(anAssert);
-                }
+            for (ConstraintSet.Assertion anAssert : causalConstraint) {
+                assertsString.add(preorder(anAssert.formula));
             }
 
             // Extract data for analysis
@@ -82,51 +61,16 @@ public class ConstraintsFilterWithDataExtraction {
             data_output(variables, assertsString, basePath);
 
             // Check each assertion for conflicts
-            for (String anAssert : assertsString) {
+            for (ConstraintSet.Assertion anAssert : causalConstraint) {
                 System.out.println(orderMapList);
-                Queue<Pair<String, String>> rebuildCausalConstraint = rebuildExpression_with_expression(anAssert, orderMapList);
-                System.out.println("1111");
-                System.out.println(rebuildCausalConstraint.toString());
-                if (!rebuildCausalConstraint.isEmpty()) {
-                    Stack<Pair<String, String>> stack = new Stack<>();
-                    while (!rebuildCausalConstraint.isEmpty()) {
-                        Pair<String, String> var1 = rebuildCausalConstraint.poll();
-                        while (!stack.isEmpty() && ("true".equals(stack.peek().getKey()) || "false".equals(stack.peek().getKey())) && ("true".equals(var1.getKey()) || "false".equals(var1.getKey()))) {
-                            Pair<String, String> var2 = stack.pop();
-                            Pair<String, String> option = stack.pop();
-
-                            boolean var1Value = "true".equals(var1.getKey());
-                            boolean var2Value = "true".equals(var2.getKey());
-                            boolean finalValue;
-                            String expression = "";
-
-                            if ("and".equals(option.getKey())) {
-                                finalValue = var1Value && var2Value;
-                                if (finalValue) expression = "(and " + var1.getValue() + " " + var2.getValue() + " )";
-                            } else {
-                                finalValue = var1Value || var2Value;
-                                if (finalValue) {
-                                    if (var1Value && var2Value) expression = "(or " + var1.getValue() + " " + var2.getValue() + " )";
-                                    else if (var1Value) expression = var1.getValue();
-                                    else if (var2Value) expression = var2.getValue();
-                                }
-                            }
-                            var1 = new Pair<>(String.valueOf(finalValue), expression);
-                        }
-                        stack.push(var1);
-                    }
-
-                    if ("false".equals(stack.get(0).getKey())) {
-                        tagupload(basePath + "tag.txt", "0");
-                        return new Pair<>(false, result);
-                    } else {
-                        String constraint = stack.get(0).getValue();
-                        // 只有当约束内容不为空且不是纯"true"时才添加（参照GC-MCR_逻辑）
-                        if (constraint != null && !constraint.trim().isEmpty() &&
-                                !"true".equals(constraint.trim())) {
-                            result.append("(assert " + constraint + ")\n");
-                        }
-                    }
+                Formula constraint = rebuildExpression_with_expression(anAssert.formula, orderMapList);
+                if (constraint == null) {
+                    tagupload(basePath + "tag.txt", "0");
+                    return new Pair<>(false, result);
+                }
+                // 只有当约束不是纯"true"时才添加（参照GC-MCR_逻辑）
+                if (constraint != Formula.TRUE) {
+                    result.add(null, constraint);
                 }
             }
             return new Pair<>(true, result);
@@ -137,69 +81,118 @@ public class ConstraintsFilterWithDataExtraction {
     }
 
     /**
-     * Extract variable relationships from constraint string.
+     * Extract the orderings every solution satisfies: the atoms of the assertions without 'or'.
      */
-    public List<String[]> findVariable(String s) {
+    public List<String[]> findVariable(ConstraintSet constraints) {
         List<String[]> result = new ArrayList<>();
-        if (s.contains("or")) {
-            return result;
-        }
-        StringBuilder sb = new StringBuilder();
-        for (char c : s.toCharArray()) {
-            if (c != '\n') {
-                sb.append(c);
-                if (c == '(' || c == ')') {
-                    sb.append(" ");
-                }
-            }
-        }
-        String[] s1 = sb.toString().split("\\s+");
-        for (int i = 0; i < s1.length; i++) {
-            String s2 = s1[i];
-            if ("<".equals(s2) || ">".equals(s2)) {
-                String var1 = s1[i + 1];
-                String var2 = s1[i + 2];
-                result.add(new String[]{var1, var2, s2});
-                i += 2;
+        for (ConstraintSet.Assertion assertion : constraints) {
+            List<String[]> atoms = new ArrayList<>();
+            if (conjunctionAtoms(assertion.formula, atoms)) {
+                result.addAll(atoms);
             }
         }
         return result;
     }
 
+    /**
+     * @return false if formula contains 'or', its atoms are then not all implied
+     */
+    private boolean conjunctionAtoms(Formula formula, final List<String[]> atoms) {
+        return formula.accept(new Formula.Visitor<Boolean>() {
+            @Override
+            public Boolean visitOrder(Formula.Order order) {
+                atoms.add(new String[]{SmtLibWriter.variable(order.gid1), SmtLibWriter.variable(order.gid2), String.valueOf(order.op)});
+                return true;
+            }
+
+            @Override
+            public Boolean visitAnd(Formula.And and) {
+                return and.left.accept(this) && and.right.accept(this);
+            }
+
+            @Override
+            public Boolean visitOr(Formula.Or or) {
+                return false;
+            }
+
+            @Override
+            public Boolean visitTrue() {
+                return true;
+            }
+        });
+    }
+
+    /**
+     * the tokens of formula in prefix order, e.g. (and (< x1 x2 ) true ) -> "and < x1 x2 true"
+     */
+    private String preorder(Formula formula) {
+        final StringBuilder sb = new StringBuilder();
+        formula.accept(new Formula.Visitor<Void>() {
+            @Override
+            public Void visitOrder(Formula.Order order) {
+                sb.append(order.op).append(' ').append(SmtLibWriter.variable(order.gid1))
+                        .append(' ').append(SmtLibWriter.variable(order.gid2)).append(' ');
+                return null;
+            }
+
+            @Override
+            public Void visitAnd(Formula.And and) {
+                sb.append("and ");
+                and.left.accept(this);
+                and.right.accept(this);
+                return null;
+            }
+
+            @Override
+            public Void visitOr(Formula.Or or) {
+                sb.append("or ");
+                or.left.accept(this);
+                or.right.accept(this);
+                return null;
+            }
+
+            @Override
+            public Void visitTrue() {
+                sb.append("true ");
+                return null;
+            }
+        });
+        return sb.toString();
+    }
+
     /**
      * Rebuild expression with conflict checking against order map.
+     * @return the expression without the atoms that conflict with the order map, null if it is false
      */
-    public Queue<Pair<String, String>> rebuildExpression_with_expression(String anAssert, List<OrderNode> orderMapList) {
-        Queue<Pair<String, String>> queue = new LinkedList<>();
-        String[] s1 = anAssert.split("\\s+");
-        for (int i = 0; i < s1.length; i++) {
-            String s2 = s1[i];
-            if ("<".equals(s2) || ">".equals(s2)) {
-                String target;
-                String next;
-                String var1 = s1[i + 1];
-                String var2 = s1[i + 2];
-                if ("<".equals(s2)) {
-                    target = var1;
-                    next = var2;
-                } else {
-                    target = var2;
-                    next = var1;
-                }
+    public Formula rebuildExpression_with_expression(Formula anAssert, final List<OrderNode> orderMapList) {
+        return anAssert.accept(new Formula.Visitor<Formula>() {
+            @Override
+            public Formula visitOrder(Formula.Order order) {
+                String target = SmtLibWriter.variable(order.before());
+                String next = SmtLibWriter.variable(order.after());
+                return isConflictWithOrderMap(target, next, orderMapList) ? null : order;
+            }
 
-                boolean isConflict = isConflictWithOrderMap(target, next, orderMapList);
-                String expression = "(" + s2 + " " + var1 + " " + var2 + " )";
-                if (isConflict) {
-                    queue.offer(new Pair<>("false", ""));
-                } else {
-                    queue.offer(new Pair<>("true", expression));
-                }
-                i += 2;
-            } else if (!"(".equals(s1[i]) && !")".equals(s1[i]) && !"assert".equals(s1[i]) && !"".equals(s1[i].trim())) {
-                queue.offer(new Pair<>(s1[i], s1[i]));
+            @Override
+            public Formula visitAnd(Formula.And and) {
+                Formula left = and.left.accept(this);
+                Formula right = and.right.accept(this);
+                return left != null && right != null ? Formula.and(left, right) : null;
             }
-        }
-        return queue;
+
+            @Override
+            public Formula visitOr(Formula.Or or) {
+                Formula left = or.left.accept(this);
+                Formula right = or.right.accept(this);
+                if (left != null && right != null) return Formula.or(left, right);
+                return left != null ? left : right;
+            }
+
+            @Override
+            public Formula visitTrue() {
+                return Formula.TRUE;
+            }
+        });
     }
 
     /**
@@ -292,25 +285,7 @@ public class ConstraintsFilterWithDataExtraction {
         String conGraphpath = base + "conGraph.txt";
         String casualpath = base + "casual.txt";
 
-        StringBuilder conGraph = new StringBuilder();
-        StringBuilder casual = new StringBuilder();
-
-        // Process constraint graph
-        for (String[] edge : list) {
-            StringBuilder var0 = new StringBuilder(edge[0]);
-            StringBuilder var1 = new StringBuilder(edge[1]);
-
-            var0.deleteCharAt(0);
-            var1.deleteCharAt(0);
-
-            conGraph.append(var0.toString()).append(" ");
-            conGraph.append(var1.toString()).append(" ");
-            if (edge[2].equals("<")) {
-                conGraph.append("-1 ");
-            } else {
-                conGraph.append("1 ");
-            }
-        }
+        String conGraph = conGraphRecord(list);
 
         String tmp = convert_Constraints(assertsString);
 
@@ -321,15 +296,15 @@ public class ConstraintsFilterWithDataExtraction {
 
         // GC-MCR_风格：只在第一次调用时初始化文件
         if (filterCount == 0) {
-            File file1 = new File(conGraphpath);
-            File file2 = new File(casualpath);
+            File file1 = DatasetSink.file(conGraphpath);
+            File file2 = DatasetSink.file(casualpath);
             if (file1.exists()) {
                 fconexist = true;
             } else {
                 try {
                     file1.getParentFile().mkdirs();
                     file1.createNewFile();
-                    System.out.println("Created file: " + conGraphpath);
+                    System.out.println("Created file: " + file1.getPath());
                 } catch (IOException e) {
                     System.err.println("Failed to create file: " + e.getMessage());
                 }
@@ -340,7 +315,7 @@ public class ConstraintsFilterWithDataExtraction {
                 try {
                     file2.getParentFile().mkdirs();
                     file2.createNewFile();
-                    System.out.println("Created file: " + casualpath);
+                    System.out.println("Created file: " + file2.getPath());
                 } catch (IOException e) {
                     System.err.println("Failed to create file: " + e.getMessage());
                 }
@@ -348,35 +323,46 @@ public class ConstraintsFilterWithDataExtraction {
         }
 
         // 写入约束图数据（GC-MCR_风格：只有当文件不存在时）
+        // the records are written by the DatasetSink thread
         if (!fconexist) {
-            synchronized(this) {
-                try {
-                    FileWriter fw1 = new FileWriter(conGraphpath, true);
-                    BufferedWriter bw1 = new BufferedWriter(fw1);
-                    bw1.write(conGraph.toString());
-                    bw1.write("\n");
-                    bw1.close();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
+            DatasetSink.get().append(conGraphpath, conGraph);
         }
 
         // 写入因果约束数据（GC-MCR_风格：只有当文件不存在时）
         if (!fcauexist) {
-            synchronized(this) {
-                try {
-                    FileWriter fw2 = new FileWriter(casualpath, true);
-                    BufferedWriter bw2 = new BufferedWriter(fw2);
-                    bw2.write(tmp);
-                    bw2.write("\n");
-                    bw2.flush();
-                    bw2.close();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+            DatasetSink.get().append(casualpath, tmp);
+        }
+    }
+
+    /**
+     * the conGraph record of the orderings: "<event> <event> -1" for '<', 1 for '>', per ordering
+     */
+    static String conGraphRecord(List<String[]> list) {
+        StringBuilder conGraph = new StringBuilder();
+        for (String[] edge : list) {
+            conGraph.append(edge[0], 1, edge[0].length()).append(" ");
+            conGraph.append(edge[1], 1, edge[1].length()).append(" ");
+            if (edge[2].equals("<")) {
+                conGraph.append("-1 ");
+            } else {
+                conGraph.append("1 ");
             }
         }
+        return conGraph.toString();
+    }
+
+    /**
+     * the conGraph and casual records of a query, as data_output writes them
+     */
+    String[] records(ConstraintSet CONS_ASSERT_PO, ConstraintSet CONS_ASSERT_VALID, ConstraintSet causalConstraint) {
+        List<String[]> variables = new ArrayList<>();
+        variables.addAll(findVariable(CONS_ASSERT_PO));
+        variables.addAll(findVariable(CONS_ASSERT_VALID));
+        List<String> assertsString = new ArrayList<>();
+        for (ConstraintSet.Assertion anAssert : causalConstraint) {
+            assertsString.add(preorder(anAssert.formula));
+        }
+        return new String[]{conGraphRecord(variables), convert_Constraints(assertsString)};
     }
 
     /**
@@ -636,18 +622,15 @@ public class ConstraintsFilterWithDataExtraction {
      */
     public static void tagupload(String path, String tag) {
         // GC-MCR_风格：只在第一次调用时初始化文件
-        System.out.println("222");
-        System.out.println(filterCount);
         if (filterCount == 0) {
-            System.out.println("here");
-            File file = new File(path);
+            File file = DatasetSink.file(path);
             if (file.exists()) {
                 ftagexist = true;
             } else {
                 try {
                     file.getParentFile().mkdirs();
                     file.createNewFile();
-                    System.out.println("Created file: " + path);
+                    System.out.println("Created file: " + file.getPath());
                 } catch (IOException e) {
                     System.err.println("Failed to create file: " + e.getMessage());
                 }
@@ -660,17 +643,7 @@ public class ConstraintsFilterWithDataExtraction {
 
         // GC-MCR_风格：只有当文件不存在时才写入
         if (!ftagexist) {
-            synchronized(ConstraintsFilterWithDataExtraction.class) {
-                try {
-                    FileWriter fw = new FileWriter(path, true);
-                    BufferedWriter bw = new BufferedWriter(fw);
-                    bw.write(tag);
-                    bw.write("\n");
-                    bw.close();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
+            DatasetSink.get().append(path, tag);
         }
     }
 
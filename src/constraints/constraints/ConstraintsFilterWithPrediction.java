@@ -0,0 +1,64 @@
+package constraints.constraints;
+
+import javafx.util.Pair;
+import constraints.config.Configuration;
+import constraints.formula.ConstraintSet;
+
+/**
+ * Constraints filter that checks for conflicts as the simple filter does and
+ * then scores the query with the UnsatPredictor of unsat_model: a query with
+ * a score of at least unsat_predict_threshold is skipped as unsat. In shadow
+ * mode (unsat_predict_shadow) every query is solved and the prediction only
+ * compared with the outcome, for the precision, recall and solving time saved
+ * of the exploration stats.
+ */
+public class ConstraintsFilterWithPrediction {
+
+    private final ConstraintsFilterSimple simpleFilter = new ConstraintsFilterSimple();
+    //only used for the conGraph/casual records the model is trained on
+    private final ConstraintsFilterWithDataExtraction records = new ConstraintsFilterWithDataExtraction();
+
+    //whether the last query was scored, and predicted unsat
+    private boolean scored = false;
+    private boolean predictedUnsat = false;
+
+    /**
+     * Filter constraints as ConstraintsFilterSimple, and skip the queries predicted unsat.
+     *
+     * @param CONS_ASSERT_PO    Program order constraints
+     * @param CONS_ASSERT_VALID Lock-related constraints
+     * @param causalConstraint  New read-write constraints
+     * @return Pair<Boolean, ConstraintSet> where Boolean is false if the constraints conflict
+     *         or are predicted unsat, and ConstraintSet contains the filtered constraint
+     */
+    public Pair<Boolean, ConstraintSet> doFilter_with_expression(ConstraintSet CONS_ASSERT_PO, ConstraintSet CONS_ASSERT_VALID, ConstraintSet causalConstraint) {
+        scored = false;
+        Pair<Boolean, ConstraintSet> result = simpleFilter.doFilter_with_expression(CONS_ASSERT_PO, CONS_ASSERT_VALID, causalConstraint);
+        UnsatPredictor model = UnsatPredictor.model();
+        if (!result.getKey() || model == null) {
+            return result;
+        }
+        try {
+            String[] query = records.records(CONS_ASSERT_PO, CONS_ASSERT_VALID, causalConstraint);
+            predictedUnsat = model.score(query[0], query[1]) >= Configuration.unsatPredictThreshold;
+            scored = true;
+        } catch (Exception e) {
+            System.err.println("Error in unsat prediction: " + e.getMessage());
+            return result;
+        }
+        if (predictedUnsat && !Configuration.unsatPredictShadow) {
+            UnsatPredictor.skipped();
+            return new Pair<>(false, new ConstraintSet());
+        }
+        return result;
+    }
+
+    /**
+     * the query let through was solved in millis, sat or not
+     */
+    public void solved(boolean sat, long millis) {
+        if (scored && Configuration.unsatPredictShadow) {
+            UnsatPredictor.solved(predictedUnsat, sat, millis);
+        }
+    }
+}
@@ -1,19 +1,17 @@
 
 package constraints.constraints;
 
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.nio.file.Files;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.Map.Entry;
 
-import org.apache.commons.io.FileUtils;
 import constraints.config.Configuration;
-import constraints.config.Util;
+import constraints.formula.ConstraintSet;
 import constraints.graph.ReachabilityEngine;
-import org.w3c.tools.sexpr.SimpleSExprStream;
 import scheduler.listeners.ExplorationStatsListener;
 
 /**
@@ -24,11 +22,8 @@ import scheduler.listeners.ExplorationStatsListener;
  */
 public class ConstraintsSolving
 {
-	protected static String OUT = ".smtout";
-
 	private String OS = System.getProperty("os.name").toLowerCase();
 
-	private File outFile,smtFile;
 	private List<String> CMD;
 	
 	private Model model;
@@ -39,43 +34,23 @@ public class ConstraintsSolving
 
     private long timeout;
 	
-	public ConstraintsSolving(Configuration config, int id)
-	{				
-		try{
-			init(config,id);
-		
-		}catch(IOException e)
-		{
-			System.err.println(e.getMessage());
-		}
+	/**
+	 * the query is piped to the solver and its answer parsed as it is
+	 * printed, no .smt/.smtout files are written
+	 * @param config
+	 */
+	public ConstraintsSolving(Configuration config)
+	{
+		init(config);
 	}
+
 	/**
 	 * initialize solver configuration
 	 * @param config
-	 * @param id
-	 * @throws IOException
 	 */
-	public void init(Configuration config, int id) throws IOException
+	public void init(Configuration config)
 	{
-		String SMT = ".smt";
-		if(Configuration.Optimize){
-			smtFile = Util.newOutFile(config.constraint_outdir,config.tableName +"_opt" +"_"+id+ SMT);
-	        
-			outFile = Util.newOutFile(config.constraint_outdir,config.tableName +"_opt" +"_"+id+OUT);
-		}
-		else{
-			smtFile = Util.newOutFile(config.constraint_outdir,config.tableName +"_"+id+ SMT);
-
-			outFile = Util.newOutFile(config.constraint_outdir,config.tableName +"_"+id+OUT);
-
-//			smtFile = Util.newOutFile(config.constraint_outdir,id+ SMT);
-//
-//			outFile = Util.newOutFile(config.constraint_outdir,id+OUT);
-		}
-		
-
         String[] quotes = config.smt_solver.split(" ");
-        boolean inQuote = false;
         CMD = new ArrayList<>();
 
 		String Z3_PATH = "z3";
@@ -85,6 +60,8 @@ public class ConstraintsSolving
         for(String arg: quotes){
         	CMD.add(arg);
         }
+        //read the query from stdin
+        CMD.add("-in");
         timeout = config.solver_timeout;
 	}
 	
@@ -94,34 +71,21 @@ public class ConstraintsSolving
 	 */
 	public void sendMessage(String msg)
 	{
-		PrintWriter smtWriter = null;
 		try{
-			smtWriter = Util.newWriter(smtFile, true);
-			smtWriter.println(msg);
-		    smtWriter.close();
-		    
 		    //invoke the solver
-	        exec(outFile, smtFile.getAbsolutePath());
+	        GetModel answer = exec(msg);
 
-	        model = GetModel.read(outFile);
+	        model = answer.getModel();
 	        
 	        if(model!=null)
 	        {
 	        	sat = true;
-	        	//schedule = computeSchedule(model);
 	        }else{
 				/**
 				 * model is null, check reason, get unsat core
 				 */
-				unsats = GetModel.getUnsatCore(outFile);
+				unsats = answer.getUnsatCore();
 			}
-	        //String z3OutFileName = z3OutFile.getAbsolutePath();
-	        //retrieveResult(z3OutFileName);
-		    
-	        //delete files
-//	        Files.delete(outFile.toPath());
-//	        Files.delete(smtFile.toPath());
-	        
 		}catch(IOException e)
 		{
 			System.err.println(e.getMessage());
@@ -130,32 +94,9 @@ public class ConstraintsSolving
 	}
 	public boolean isSatisfiable(String msg)
 	{
-		PrintWriter smtWriter = null;
 		try{
-			smtWriter = Util.newWriter(smtFile, true);
-			smtWriter.println(msg);
-		    smtWriter.close();
-		    
 		    //invoke the solver
-	        exec(outFile, smtFile.getAbsolutePath());
-
-			FileInputStream fis = new FileInputStream(outFile);
-			SimpleSExprStream p = new SimpleSExprStream(fis);
-			p.setListsAsVectors(true);
-
-			boolean isSatisfied = false;
-			String result = GetModel.readResult(p);
-
-			if("sat".equals(result)) {
-
-				isSatisfied =  true;
-			}
-
-			//delete files
-			Files.delete(outFile.toPath());
-			Files.delete(smtFile.toPath());
-
-			return isSatisfied;
+			return "sat".equals(exec(msg).getResult());
 		    
 		}catch(Exception e)
 		{
@@ -170,22 +111,18 @@ public class ConstraintsSolving
 	 * add reachEngine and causalConstraint to the parameter
 	 * @author Alan
 	 */
-    void sendMessage(String msg, String endVar, String wVar, String endVar_prefix,
-                     ReachabilityEngine reachEngine, String causalConstraint, Configuration config)
+    void sendMessage(byte[][] query, String endVar, String wVar, String endVar_prefix,
+                     ReachabilityEngine reachEngine, String causalConstraint)
 	{
-		PrintWriter smtWriter = null;
 		try{
             sat = false;
-			smtWriter = Util.newWriter(smtFile, true);
-		  	smtWriter.println(msg);
-		    smtWriter.close();
 
 			//log numConstraints
-			ExplorationStatsListener.numConstraints += 1;
+			ExplorationStatsListener.numConstraints.incrementAndGet();
 		    //invoke the solver
-	        exec(outFile, smtFile.getAbsolutePath());
+	        GetModel answer = exec(query);
 
-	        model = GetModel.read(outFile);
+	        model = answer.getModel();
 	        
 	        if(model!=null)
 	        {
@@ -196,19 +133,52 @@ public class ConstraintsSolving
 				/**
 				 * model is null, check reason, get unsat core
 				 */
-				//unsats = GetModel.getUnsatReason(outFile);
 				long getUnsatStart = System.currentTimeMillis();
-				unsats = GetModel.getUnsatCore(outFile);
-				ExplorationStatsListener.numUnSatConstraints += 1;
-				ExplorationStatsListener.unsatCoreTime += (System.currentTimeMillis() - getUnsatStart);
+				unsats = answer.getUnsatCore();
+				ExplorationStatsListener.numUnSatConstraints.incrementAndGet();
+				ExplorationStatsListener.unsatCoreTime.addAndGet(System.currentTimeMillis() - getUnsatStart);
+			}
+
+		}catch(IOException e)
+		{
+			System.err.println(e.getMessage());
+
+		}
+	}
+
+	/**
+	 * same as sendMessage, but solve in the persistent z3 session,
+	 * prelude is kept asserted across queries, causal is scoped by push/pop
+	 */
+	void sendMessage(Z3Session session, Prelude prelude, ConstraintSet causal, String endVar, String wVar, String endVar_prefix,
+					 ReachabilityEngine reachEngine, String causalConstraint)
+	{
+		try{
+			sat = false;
+
+			//log numConstraints
+			ExplorationStatsListener.numConstraints.incrementAndGet();
+			long solveStart = System.currentTimeMillis();
+			String answer = session.solve(prelude, causal);
+			Configuration.solveTime.addAndGet(System.currentTimeMillis() - solveStart);
+
+			GetModel parsed = GetModel.read(new StringReader(answer));
+			model = parsed.getModel();
+
+			if(model!=null)
+			{
+				sat = true;
+				schedule = computeSchedule(model,endVar, wVar, endVar_prefix, reachEngine, causalConstraint);
+			}else {
+
+				/**
+				 * model is null, check reason, get unsat core
+				 */
+				long getUnsatStart = System.currentTimeMillis();
+				unsats = parsed.getUnsatCore();
+				ExplorationStatsListener.numUnSatConstraints.incrementAndGet();
+				ExplorationStatsListener.unsatCoreTime.addAndGet(System.currentTimeMillis() - getUnsatStart);
 			}
-	        //String z3OutFileName = z3OutFile.getAbsolutePath();
-	        //retrieveResult(z3OutFileName);
-	        
-	        //delete files
-	        Files.delete(outFile.toPath());
-	        Files.delete(smtFile.toPath());
-			FileUtils.cleanDirectory(new File(config.constraint_outdir));
 
 		}catch(IOException e)
 		{
@@ -216,6 +186,65 @@ public class ConstraintsSolving
 
 		}
 	}
+
+	/**
+	 * same as sendMessage, but solve with IdlSolver, without z3
+	 * @return false if the query is over native_solver_budget, it is then left to z3
+	 */
+	boolean solveNative(ConstraintSet[] constraints, String endVar, String wVar, String endVar_prefix,
+						ReachabilityEngine reachEngine, String causalConstraint)
+	{
+		sat = false;
+		long solveStart = System.currentTimeMillis();
+		IdlSolver solver = new IdlSolver(Configuration.nativeSolverBudget);
+		int result = solver.solve(constraints);
+		Configuration.solveTime.addAndGet(System.currentTimeMillis() - solveStart);
+
+		if (result == IdlSolver.UNKNOWN) {
+			ExplorationStatsListener.numNativeFallbacks.incrementAndGet();
+			return false;
+		}
+		//log numConstraints
+		ExplorationStatsListener.numConstraints.incrementAndGet();
+		ExplorationStatsListener.numNativeSolved.incrementAndGet();
+
+		if (result == IdlSolver.SAT) {
+			model = solver.getModel();
+			sat = true;
+			schedule = computeSchedule(model,endVar, wVar, endVar_prefix, reachEngine, causalConstraint);
+		} else {
+			unsats = solver.getUnsatCore();
+			ExplorationStatsListener.numUnSatConstraints.incrementAndGet();
+		}
+		return true;
+	}
+
+	Model getModel()
+	{
+		return model;
+	}
+
+	/**
+	 * take model as the answer to the query, as SolverCache does for a query solved before
+	 */
+	void setModel(Model model, String endVar, String wVar, String endVar_prefix,
+				  ReachabilityEngine reachEngine, String causalConstraint)
+	{
+		this.model = model;
+		sat = true;
+		schedule = computeSchedule(model,endVar, wVar, endVar_prefix, reachEngine, causalConstraint);
+	}
+
+	/**
+	 * take unsats as the unsat core of the query, as SolverCache does for a query solved before
+	 */
+	void setUnsatCore(HashSet<String> unsats)
+	{
+		model = null;
+		sat = false;
+		this.unsats = unsats;
+	}
+
 	/**
 	 * Given the model of solution, return the corresponding schedule
 	 * 
@@ -231,16 +260,16 @@ public class ConstraintsSolving
             ReachabilityEngine reachEngine,
             String causalConstraint) {
 		
-		//Alan
-		String constraint[] = causalConstraint.split("\n");
-		long gidEndVar = Integer.parseInt(endVar.substring(1));
+		long gidEndVar = Long.parseLong(endVar.substring(1));
 		
 		Vector<String> schedule = new Vector<String>();
+		//the model value of each var of the schedule
+		int[] scheduleValues = new int[16];
 		//add endVar
 		schedule.add(endVar);
 		
 		//no constraint -- just endVar in the schedule
-		if(model.getMap().isEmpty())return schedule;
+		if(model.size() == 0)return schedule;
 		
 		//what if end var has no relationship with other nodes
 		//in the depNodes? then the solution will not include this var
@@ -248,21 +277,25 @@ public class ConstraintsSolving
 		//e.g endVar = x2, x1<x3
 		//for this case, I simply make endVar the first one
 		int endValue = 0;
-		if(model.getMap().get(endVar) != null){
-			endValue = (Integer) model.getMap().get(endVar);
+		int endIndex = model.indexOf(gidEndVar);
+		if(endIndex >= 0){
+			endValue = model.getValue(endIndex);
 		}
 		else{
 			endValue = -100;
 		}
+		scheduleValues[0] = endValue;
 		
 		
 		int VALUE = endValue;
 		
-		if(!endVar_prefix.equals("x0"))
+		long gidPrefix = Long.parseLong(endVar_prefix.substring(1));
+		if(gidPrefix != 0)
 		{
 		schedule.add(endVar_prefix);
 
-		int endValue_prefix = (Integer) model.getMap().get(endVar_prefix);
+		int endValue_prefix = model.getValue(model.indexOf(gidPrefix));
+		scheduleValues[1] = endValue_prefix;
 		
 		if(VALUE<endValue_prefix)
 			VALUE = endValue_prefix;
@@ -270,24 +303,13 @@ public class ConstraintsSolving
 		
 		//it is super hard to build prefix under TSO or PSO
 		//since it is difficult to make it shortest
+		boolean relaxed = Objects.equals(Configuration.mode, "TSO") || Objects.equals(Configuration.mode, "PSO");
+		long gidWVar = relaxed ? Long.parseLong(wVar.substring(1)) : 0;
 		
-		Map<String, Object> map = model.getMap();
-		Map<String, Integer> newMap = new HashMap<String, Integer>();
-		for(String key: map.keySet()){
-			int value = (Integer)map.get(key);
-			newMap.put(key, value);
-			
-		}
 		//decreasing
-		Map<String, Integer> sortedMap = sortByValue(newMap);
-		
-//		Iterator<Entry<String,Object>> setIt = model.getMap().entrySet().iterator();
-		
-		Set<Entry<String, Integer>> entrySet = sortedMap.entrySet();
-
-        for (Entry<String, Integer> entryModel : entrySet) {
-            String op = entryModel.getKey();
-            int order = entryModel.getValue();
+        for (int index : model.byDecreasingValue()) {
+            long gid = model.getGid(index);
+            int order = model.getValue(index);
 
             {
                 if (order < VALUE)//only add var that value smaller than endValue
@@ -299,34 +321,22 @@ public class ConstraintsSolving
                      * 2. the nodes reach p
                      */
 
-                    if (Objects.equals(Configuration.mode, "TSO") || Objects.equals(Configuration.mode, "PSO")) {
-                        boolean flag = false;
-                        for (String var : schedule) {
-                            if (Objects.equals(var, endVar)) {
-                                long gidFirst = Integer.parseInt(op.substring(1));
-                                long gidSecond = Integer.parseInt(var.substring(1));
-                                if (reachEngine.canReach(gidFirst, gidSecond)) {
-                                    flag = true;
-                                    break;
-                                }
-                            } else if (Objects.equals(var, wVar)) {
-                                long gidFirst = Integer.parseInt(op.substring(1));
-                                long gidSecond = Integer.parseInt(var.substring(1));
-                                if (reachEngine.canReach(gidFirst, gidSecond)) {
-                                    flag = true;
-                                    break;
-                                }
-                            }
-                        }
+                    if (relaxed) {
+                        boolean flag = reachEngine.canReach(gid, gidEndVar)
+                                || (schedule.contains(wVar) && reachEngine.canReach(gid, gidWVar));
 
                         if (!flag) continue;
                     }
 
-
+                    if (gid == gidEndVar || gid == gidPrefix)
+                        continue;
                     for (int i = 0; i < schedule.size(); i++) {
-                        if (order < (Integer) model.getMap().get(schedule.get(i))) {
-                            if (!schedule.contains(op))
-                                schedule.insertElementAt(op, i);
+                        if (order < scheduleValues[i]) {
+                            schedule.insertElementAt("x" + gid, i);
+                            if (schedule.size() > scheduleValues.length)
+                                scheduleValues = Arrays.copyOf(scheduleValues, 2 * scheduleValues.length);
+                            System.arraycopy(scheduleValues, i, scheduleValues, i + 1, schedule.size() - 1 - i);
+                            scheduleValues[i] = order;
                             break;
                         }
 
@@ -337,30 +347,42 @@ public class ConstraintsSolving
 		return schedule;
 	}
 	
-	private void exec(final File outFile, String file) throws IOException
+	private GetModel exec(String msg) throws IOException
+	{
+		return exec(new byte[][]{(msg + "\n").getBytes(StandardCharsets.UTF_8)});
+	}
+
+	/**
+	 * pipe the parts of query to the solver and parse its answer from its output,
+	 * each part is written to the pipe as it is, they are not joined first
+	 */
+	private GetModel exec(byte[][] query) throws IOException
 	{
 
-		//CMD = "ls";
 		final List<String> cmds = new ArrayList<String>();
         cmds.addAll(CMD);
-        cmds.add(file);
 
-		//for tests
-		//System.out.println("here out the cmd:");
-		//System.out.println(cmds);
         ProcessBuilder processBuilder = new ProcessBuilder(cmds);
-        processBuilder.redirectOutput(outFile);
         processBuilder.redirectErrorStream(true);
 
         Process process = null;
         try {
         	 process = processBuilder.start();
 		} catch (Exception e) {
-			// TODO: handle exception
-			//System.out.println("process start wrong");
 			e.printStackTrace();
 			System.exit(-1);
 		}
+
+        try (OutputStream toSolver = process.getOutputStream()) {
+            for (byte[] part : query) {
+                toSolver.write(part);
+            }
+        }
+        GetModel answer;
+        try (BufferedReader fromSolver = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            answer = GetModel.read(fromSolver);
+        }
         
         try {
             process.waitFor();
@@ -369,33 +391,6 @@ public class ConstraintsSolving
             process.destroy();
             
         }
+        return answer;
     }
-	
-	/**
-	 *  sort the map by the value
-	 */
-	private static <K, V extends Comparable<? super V>> Map<K, V>
-    sortByValue(Map<K, V> map)
-	{
-	    List<Entry<K, V>> list =
-	        new LinkedList<>( map.entrySet() );
-	    Collections.sort( list, new Comparator<Entry<K, V>>()
-	    {
-	        @Override
-	        public int compare( Entry<K, V> o1, Entry<K, V> o2 )
-	        {
-	            return (o2.getValue()).compareTo( o1.getValue() );
-	        }
-	    } );
-	
-	    Map<K, V> result = new LinkedHashMap<>();
-	    for (Entry<K, V> entry : list)
-	    {
-	        result.put( entry.getKey(), entry.getValue() );
-	    }
-	    return result;
-	}
-	
 }
-
-
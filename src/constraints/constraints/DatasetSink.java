@@ -0,0 +1,300 @@
+package constraints.constraints;
+
+import constraints.config.Configuration;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the records of the data_extraction dataset (conGraph.txt, casual.txt,
+ * tag.txt of ConstraintsFilterWithDataExtraction) from a background thread.
+ *
+ * The exploration thread only queues a record; the writer keeps one buffered
+ * stream open per file, appending to it, and flushes the streams when the
+ * queue has been idle for a while, on flush() and at exit. A full queue
+ * (dataset_queue_size) blocks the exploration thread until the writer catches up,
+ * no record is dropped.
+ *
+ * dataset_format text writes a record as a line, as the files were written
+ * before; binary writes it as its length (int) and its UTF-8 bytes, to a .bin
+ * file. With dataset_gzip the file is gzip compressed, .gz appended to its name.
+ */
+public class DatasetSink
+{
+    private static final int BUFFER_SIZE = 1 << 16;
+    //the streams are flushed when no record came in this time
+    private static final long IDLE_FLUSH_MS = 1000;
+
+    private static DatasetSink instance;
+
+    private final BlockingQueue<Record> queue;
+    private final boolean binary;
+    private final boolean gzip;
+    //path of the dataset file -> stream to it, only used by the writer thread
+    private final HashMap<String,OutputStream> streams = new HashMap<>();
+    private boolean dirty = false;
+
+    private static class Record
+    {
+        final String path;
+        final String text;
+        //set for a flush: counted down once the records before are written
+        final CountDownLatch done;
+        final boolean close;
+
+        Record(String path, String text, CountDownLatch done, boolean close)
+        {
+            this.path = path;
+            this.text = text;
+            this.done = done;
+            this.close = close;
+        }
+    }
+
+    DatasetSink(int queueSize, boolean binary, boolean gzip)
+    {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.binary = binary;
+        this.gzip = gzip;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "mcr-dataset-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return the sink of the configured format, started on the first call
+     */
+    public static synchronized DatasetSink get()
+    {
+        if (instance == null) {
+            instance = new DatasetSink(Configuration.datasetQueueSize,
+                    "binary".equals(Configuration.datasetFormat), Configuration.datasetGzip);
+            final DatasetSink sink = instance;
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    sink.close();
+                }
+            }));
+        }
+        return instance;
+    }
+
+    /**
+     * write out the records queued so far, if a sink was started
+     */
+    public static void flushAll()
+    {
+        DatasetSink sink;
+        synchronized (DatasetSink.class) {
+            sink = instance;
+        }
+        if (sink != null) {
+            sink.flush();
+        }
+    }
+
+    /**
+     * @return the file the records of path are written to in the configured format
+     */
+    public static File file(String path)
+    {
+        return new File(fileName(path, "binary".equals(Configuration.datasetFormat), Configuration.datasetGzip));
+    }
+
+    /**
+     * @return the records of the file of path in the configured format, none if there is no file
+     */
+    public static List<String> read(String path) throws IOException
+    {
+        List<String> records = new ArrayList<>();
+        File file = file(path);
+        if (!file.exists()) {
+            return records;
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        if (Configuration.datasetGzip) {
+            in = new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        if ("binary".equals(Configuration.datasetFormat)) {
+            try (DataInputStream data = new DataInputStream(in)) {
+                while (true) {
+                    int length;
+                    try {
+                        length = data.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    byte[] bytes = new byte[length];
+                    data.readFully(bytes);
+                    records.add(new String(bytes, StandardCharsets.UTF_8));
+                }
+            }
+        } else {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                for (String line; (line = reader.readLine()) != null; ) {
+                    records.add(line);
+                }
+            }
+        }
+        return records;
+    }
+
+    private static String fileName(String path, boolean binary, boolean gzip)
+    {
+        if (binary) {
+            path = (path.endsWith(".txt") ? path.substring(0, path.length() - 4) : path) + ".bin";
+        }
+        return gzip ? path + ".gz" : path;
+    }
+
+    /**
+     * queue record for the file of path, waits if the queue is full
+     */
+    public void append(String path, String record)
+    {
+        put(new Record(path, record, null, false));
+    }
+
+    /**
+     * wait until the records queued before are written and the files flushed
+     */
+    public void flush()
+    {
+        sync(false);
+    }
+
+    /**
+     * flush and close the files, a record appended later opens its file again
+     */
+    public void close()
+    {
+        sync(true);
+    }
+
+    private void sync(boolean close)
+    {
+        CountDownLatch done = new CountDownLatch(1);
+        put(new Record(null, null, done, close));
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void put(Record record)
+    {
+        try {
+            queue.put(record);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write()
+    {
+        while (true) {
+            Record record;
+            try {
+                record = queue.poll(IDLE_FLUSH_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (record == null) {
+                flushStreams(false);
+            } else if (record.done != null) {
+                flushStreams(record.close);
+                record.done.countDown();
+            } else {
+                try {
+                    writeRecord(record);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void writeRecord(Record record) throws IOException
+    {
+        OutputStream out = streams.get(record.path);
+        if (out == null) {
+            File file = new File(fileName(record.path, binary, gzip));
+            if (file.getParentFile() != null) {
+                file.getParentFile().mkdirs();
+            }
+            out = new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE);
+            if (gzip) {
+                //a gzip member per open, readers (GZIPInputStream, zcat) read the members one after the other;
+                //the fastest level, the default one takes longer than the exploration waits for the legacy writes
+                out = new GZIPOutputStream(out, BUFFER_SIZE, true) {
+                    {
+                        def.setLevel(Deflater.BEST_SPEED);
+                    }
+                };
+            }
+            if (binary) {
+                out = new DataOutputStream(out);
+            }
+            streams.put(record.path, out);
+        }
+        byte[] bytes = record.text.getBytes(StandardCharsets.UTF_8);
+        if (binary) {
+            ((DataOutputStream) out).writeInt(bytes.length);
+            out.write(bytes);
+        } else {
+            out.write(bytes);
+            out.write('\n');
+        }
+        dirty = true;
+    }
+
+    private void flushStreams(boolean close)
+    {
+        if (dirty || close) {
+            for (OutputStream out : streams.values()) {
+                try {
+                    if (close) {
+                        out.close();
+                    } else {
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            dirty = false;
+        }
+        if (close) {
+            streams.clear();
+        }
+    }
+}
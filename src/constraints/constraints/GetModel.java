@@ -32,23 +32,17 @@
 
 package constraints.constraints;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.util.HashSet;
-import java.util.Vector;
-import java.text.DecimalFormat;
 
 import constraints.config.Configuration;
-import org.w3c.tools.sexpr.Symbol;
-import org.w3c.tools.sexpr.SimpleSExprStream;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.BufferedReader;
-import java.io.File;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
- * Parser of the model returned by Z3
+ * Parser of the answer returned by Z3, in one pass over its output:
+ * the result (sat/unsat), the values of the order variables x<GID>
+ * into a Model, the names in the unsat core, and the solving time of
+ * the statistics (-st).
  * 
  * @author jeffhuang
  *
@@ -56,333 +50,236 @@ import java.util.regex.Pattern;
 
 public class GetModel
 {
+	private static final int EOF = -1;
+	private static final int OPEN = 0;
+	private static final int CLOSE = 1;
+	private static final int ATOM = 2;
 
-	/**
-	 * ZYQ
-	 * get unsatcore
-	 * @param file
-	 * @return
-	 */
-	public static HashSet<String> getUnsatCore(File file){
-
-		try {
-
-			HashSet<String> unsats = new HashSet<>();
-			FileInputStream fis = new FileInputStream(file);
-			BufferedReader reader = new BufferedReader(new InputStreamReader(fis));
+	private final Reader in;
+	private int peek = -2;
+	private final StringBuilder atom = new StringBuilder();
 
-			String line = reader.readLine();
-			while (line != null){
-
-				unsats.addAll(checkUnsatCore(line));
-				line = reader.readLine();
-			}
+	private String result;
+	private String error;
+	private Model model;
+	private HashSet<String> unsats;
 
-			return unsats;
-		} catch (Exception e) {
-			e.printStackTrace();
-			return null;
-		}
+	private GetModel(Reader in)
+	{
+		this.in = in;
 	}
 
 	/**
-	 * ZYQ
-	 * match unsat cores
-	 * @param thisLine
-	 * @return
+	 * read the answer of the solver up to the end of in
 	 */
-	public static HashSet<String> checkUnsatCore(String thisLine){
-
-		HashSet<String> unsats = new HashSet<>();
-
-		if (thisLine.startsWith("(")){
-
-			Pattern p = Pattern.compile("INTER_\\d+");
-			Matcher m = p.matcher(thisLine);
-			while (m.find()){
-
-				String result = m.group();
-				unsats.add(result);
-			}
-		}
-
-		return unsats;
+	public static GetModel read(Reader in) throws IOException
+	{
+		GetModel answer = new GetModel(in);
+		answer.parse();
+		return answer;
 	}
 
-	public static Model read(File file)
+	/**
+	 * @return sat, unsat, unknown, or null if the solver gave none
+	 */
+	public String getResult()
 	{
-		try{
-
-			FileInputStream fis = new FileInputStream(file);
-			SimpleSExprStream p = new SimpleSExprStream(fis);
-			p.setListsAsVectors(true);
-			
-			String result = readResult(p);
-			
-			//get sovling time
-			BufferedReader reader = new BufferedReader(new InputStreamReader(fis));
-		
-			if(result.startsWith("(error "))
-				throw new Error("smt file has errors");
-			//System.out.println("Feasible: " + "sat".equals(result));
+		return result;
+	}
 
-			if("sat".equals(result)) {
-				//if the constraints are satisfied
+	/**
+	 * @return the model if the result is sat, null otherwise
+	 */
+	public Model getModel()
+	{
+		return "sat".equals(result) ? model : null;
+	}
 
-				Model model = process((Vector) p.parse());
-				
-				String line = reader.readLine();
-				while(line !=null){
-					if (line.contains(":time")) {
-//						String[] vStrings = line.split("\\s+");
-						String time = line.split("\\s+")[2];
-						
-						float f= Float.valueOf(time.replace(")", ""));
-						float t = f*1000;
-						Configuration.solveTime += t;
-						break;
-					}
-					line = reader.readLine();
-				}
-				
-				fis.close();
-				return model;
-			}
-			else if("unsat".equals(result))
-			{
-				//constraint not satisfied
-				String line = reader.readLine();
-				while(line !=null){
-					if (line.contains(":time")) {
-//						String[] vStrings = line.split("\\s+");
-						String time = line.split("\\s+")[2];
-						float f= Float.valueOf(time.replace(")", ""));
-						float t = f*1000;
-						Configuration.solveTime += t;
-						break;
-					}
-					line = reader.readLine();
-				}
-			}
-			else
-				System.err.println("Solver error: "+result);
-			
-			fis.close();
-			return null;
-		}catch(Exception | Error e){
-			//throw new Error(e);
-			e.printStackTrace();
+	/**
+	 * @return the INTER_<index> names of the unsat core if the result is unsat, null otherwise
+	 */
+	public HashSet<String> getUnsatCore()
+	{
+		if (!"unsat".equals(result))
 			return null;
-		}
-    }
+		return unsats == null ? new HashSet<String>() : unsats;
+	}
 
-	static String readResult(SimpleSExprStream p) throws IOException
+	private void parse() throws IOException
 	{
-		final int len = 10;
-		char[] cs = new char[len];
-		int c = p.read();
-		
-		int i = 0;
-		while(c > 0 && c != '\n' && c != '\r'){
-			if(i < len)
-				cs[i++] = (char) c;
-			c = p.read();
+		for (int t = next(); t != EOF; t = next()) {
+			if (t == ATOM) {
+				//nothing is trusted after an error in the query
+				if (result == null && error == null)
+					result = atom.toString();
+			} else if (t == OPEN) {
+				list();
+			}
 		}
-		if(c < 0)
-			return null;
-		return new String(cs, 0, i);
+		if (result == null || !("sat".equals(result) || "unsat".equals(result)))
+			System.err.println("Solver error: " + (error != null ? error : result));
 	}
-	
-	private static Model process(Vector root)
-	{
 
-		if(!((Symbol) root.elementAt(0)).toString().equals("model"))
-			assert false;
-
-		Model model = new Model();
-	
-		int size = root.size();
-		for(int i = 1; i < size; i++)
-			define_fun(root.elementAt(i), model);
-		
-		return model;
+	//a list at the top level of the output, its '(' read
+	private void list() throws IOException
+	{
+		int t = next();
+		if (t == OPEN) {
+			//model printed without the model keyword
+			definition();
+			definitions();
+			return;
+		}
+		if (t != ATOM)
+			return;
+
+		String head = atom.toString();
+		if (head.equals("model")) {
+			definitions();
+		} else if (head.equals("error")) {
+			t = next();
+			if (error == null)
+				error = t == ATOM ? atom.toString() : head;
+			skip(t == OPEN ? 2 : t == CLOSE ? 0 : 1);
+		} else if (head.startsWith(":")) {
+			statistics(head);
+		} else {
+			core(head);
+		}
 	}
 
-	static private void define_fun(Object obj, Model model)
+	//(define-fun x<GID> () Int <value>) ... up to the ')' of the model
+	private void definitions() throws IOException
 	{
-		Vector node = (Vector) obj;
-		if(!((Symbol) node.elementAt(0)).toString().equals("define-fun"))
-			assert false;
-		String varName = ((Symbol) node.elementAt(1)).toString();
-		//System.out.print(varName + " ");
-				
-		Object value = value(node.elementAt(2), node.elementAt(3), node.elementAt(4));
-		//System.out.println(value);
-		
-		model.put(varName, value);
+		if (model == null)
+			model = new Model();
+		for (int t = next(); t != CLOSE && t != EOF; t = next()) {
+			if (t == OPEN)
+				definition();
+		}
 	}
 
-	static private Object value(Object paramTypes, Object type, Object v)
+	//a definition, its '(' read
+	private void definition() throws IOException
 	{
-		if(type instanceof Symbol){
-			String t = ((Symbol) type).toString();
-			return primValue(paramTypes, t, v);
+		if (model == null)
+			model = new Model();
+		if (next() != ATOM || !atom.toString().equals("define-fun") || next() != ATOM) {
+			skip(1);
+			return;
+		}
+		long gid = variable();
+		//() Int
+		if (next() != OPEN || next() != CLOSE) {
+			skip(2);
+			return;
 		}
-		else if(type instanceof Vector){
-			Object t = ((Vector) type).elementAt(0);
-			if(t instanceof Symbol){
-				if(((Symbol) t).toString().equals("Array")){
-					Vector value = (Vector) v;
-					if(!("_".equals(((Symbol) value.elementAt(0)).toString())))
-						assert false;
-					if(!("as-array".equals(((Symbol) value.elementAt(1)).toString())))
-						assert false;
-					return ((Symbol) value.elementAt(2)).toString();
-				}
-				else 
-					assert false; 
+		int t = next();
+		if (t != ATOM || gid < 0) {
+			skip(t == OPEN ? 2 : 1);
+			return;
+		}
+
+		t = next();
+		boolean negative = false;
+		if (t == OPEN) {
+			//(- n)
+			if (next() != ATOM || !atom.toString().equals("-")) {
+				skip(2);
+				return;
 			}
-			else
-				assert false;
+			negative = true;
+			t = next();
 		}
-		return null;
+		if (t == ATOM) {
+			int value = Integer.parseInt(atom.toString());
+			model.put(gid, negative ? -value : value);
+		}
+		skip(negative ? 2 : 1);
 	}
 
-	static private Object primValue(Object paramTypes, String t, Object v)
+	//the GID of the variable named x<GID> in atom, -1 for other names
+	private long variable()
 	{
-		if("Int".equals(t) || "Real".equals(t)){
-			Number ret = number(t, v);
-			if(ret != null){
-				return ret;
-			}
-			else{
-				Vector value = (Vector) v;
-				String opName = ((Symbol) value.elementAt(0)).toString();
-				if(opName.equals("ite")){
-					Model.Array array = new Model.Array();
-					ite(t, value, array);
-					return array;
-				}
-				else
-					assert false;
-			}
+		if (atom.length() < 2 || atom.charAt(0) != 'x')
+			return -1;
+		long gid = 0;
+		for (int i = 1; i < atom.length(); i++) {
+			char c = atom.charAt(i);
+			if (c < '0' || c > '9')
+				return -1;
+			gid = gid * 10 + (c - '0');
 		}
-		else
-			assert false;
-		return null;
+		return gid;
 	}
-	
-	static private void ite(String t, Vector iteExpr, Model.Array array)
-	{
-		String opName = ((Symbol) iteExpr.elementAt(0)).toString();
-		if(opName.equals("ite")){
-			Vector cond = (Vector) iteExpr.elementAt(1);
-			Object thenVal = iteExpr.elementAt(2);
-			Object elseVal = iteExpr.elementAt(3);
 
-			//find the index
-			Integer index = null;
-			if(((Symbol) cond.elementAt(0)).toString().equals("=")){
-				index = (Integer) number("Int", cond.elementAt(2));
-			}
-			else
-				assert false;
-			
-			array.put(index, number(t, thenVal));
-			
-			Number num = number(t, elseVal);
-			if(num != null){
-				array.setDefaultValue(num);
-			}
-			else{
-				//must be another ite
-				ite(t, (Vector) elseVal, array);
-			}
+	//(INTER_1 INTER_5 ...), the first name read
+	private void core(String first) throws IOException
+	{
+		if (unsats == null)
+			unsats = new HashSet<>();
+		if (first.startsWith("INTER_"))
+			unsats.add(first);
+		for (int t = next(); t != CLOSE && t != EOF; t = next()) {
+			if (t == ATOM && atom.toString().startsWith("INTER_"))
+				unsats.add(atom.toString());
+			else if (t == OPEN)
+				skip(1);
 		}
 	}
 
-	static private Number number(String t, Object v)
+	//(:key value ... :time <seconds> ...)
+	private void statistics(String key) throws IOException
 	{
-		if(v instanceof Number){
-			//positive number
-			return (Number) v;
-		}
-		else if(v instanceof Vector){
-			Vector value = (Vector) v;
-			String opName = ((Symbol) value.elementAt(0)).toString();
-			if(opName.equals("-")){
-				//negative number
-				v = value.elementAt(1);
-				if(v instanceof Vector){
-					//negative rational number
-					value = (Vector) v;
-					opName = ((Symbol) value.elementAt(0)).toString();
-					if(opName.equals("/")){
-						Number numerator = (Number) value.elementAt(1);
-						Number denominator = (Number) value.elementAt(2);
-						return fromRational(false, numerator, denominator);
-					}
-					else
-						assert false;
-				}
-				else{
-					Number mag = (Number) v;
-					//System.out.println("**"+type);
-					if("Int".equals(t)){
-						return 0 - mag.intValue();
-					}
-					else if("Real".equals(t)){
-						return 0 - mag.doubleValue();
-					}
-					else 
-						assert false;
-					//System.out.println(v);
-				}
-			}
-			else if(opName.equals("/")){
-				Number numerator = (Number) value.elementAt(1);
-				Number denominator = (Number) value.elementAt(2);
-				return fromRational(true, numerator, denominator);
+		for (int t = ATOM; t != CLOSE && t != EOF; t = next()) {
+			if (t == ATOM && atom.toString().equals(":time") && next() == ATOM) {
+				float f = Float.parseFloat(atom.toString());
+				Configuration.solveTime.addAndGet((long) (f * 1000));
 			}
-			return null;
 		}
-		throw new RuntimeException("");
 	}
 
-	private static Double fromRational(boolean sign, Number numerator, Number denominator)
+	//skip up to the ')' closing depth open lists
+	private void skip(int depth) throws IOException
 	{
-		DecimalFormat oneDForm = new DecimalFormat("#.#");
-		double d = numerator.doubleValue()/denominator.doubleValue();
-		d = Double.valueOf(oneDForm.format(d));
-		d = sign ? d : -d;
-        return d;
+		while (depth > 0) {
+			int t = next();
+			if (t == EOF)
+				return;
+			if (t == OPEN)
+				depth++;
+			else if (t == CLOSE)
+				depth--;
+		}
 	}
 
-	//for testing
-	public static void main(String[] args) 
+	/**
+	 * @return the next token, the text of an ATOM in atom; strings "..." are atoms
+	 */
+	private int next() throws IOException
 	{
-		String dirName = "z3";
-		File dir = new File(dirName);
-		if(!dir.exists())
-			throw new RuntimeException();
-
-		File[] z3OutFiles;
-		if(args.length > 1) {
-			z3OutFiles = new File[1];
-			z3OutFiles[0] = new File(dir, "z3out."+1);
-		}
-		else{
-			z3OutFiles = dir.listFiles(new java.io.FileFilter() {
-					public boolean accept(File f) {
-						return f.getName().startsWith("z3out.");
-					}
-				});
+		int c = peek != -2 ? peek : in.read();
+		peek = -2;
+		while (c == ' ' || c == '\n' || c == '\r' || c == '\t')
+			c = in.read();
+		if (c < 0)
+			return EOF;
+		if (c == '(')
+			return OPEN;
+		if (c == ')')
+			return CLOSE;
+
+		atom.setLength(0);
+		if (c == '"') {
+			for (c = in.read(); c >= 0 && c != '"'; c = in.read())
+				atom.append((char) c);
+			return ATOM;
 		}
-
-        assert z3OutFiles != null;
-        for(File f : z3OutFiles) {
-			System.out.println("reading " + f.getName());
-			read(f);
+		while (c >= 0 && c != '(' && c != ')' && c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+			atom.append((char) c);
+			c = in.read();
 		}
+		peek = c;
+		return ATOM;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,366 @@
+package constraints.constraints;
+
+import constraints.formula.ConstraintSet;
+import constraints.formula.Formula;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * A solver in Java for the constraints of a pattern, tried before z3.
+ *
+ * The constraints only order the events (x1 < x2 over integers, no
+ * constants), so a conjunction of atoms is satisfiable iff the graph with an
+ * edge from the earlier to the later event of each atom has no cycle, the
+ * difference constraint graph having a negative cycle exactly then. Every
+ * edge is checked for a cycle as it is added; the or's (lock pairs,
+ * read-write alternatives) are split on, DPLL style: an or with a branch
+ * closing a cycle takes the other branch, otherwise the left branch is tried
+ * first, then the right one.
+ *
+ * A query that needs more than the budget of graph steps is left to z3.
+ */
+public class IdlSolver
+{
+    public static final int SAT = 0;
+    public static final int UNSAT = 1;
+    public static final int UNKNOWN = 2;
+
+    private final long budget;
+    private long steps;
+
+    //the events, by index
+    private final HashMap<Long,Integer> index = new HashMap<>();
+    private final ArrayList<Long> gids = new ArrayList<>();
+    private final ArrayList<ArrayList<Integer>> out = new ArrayList<>();
+    //the edges from/to, and the names of the assertions each follows from
+    private final ArrayList<int[]> edges = new ArrayList<>();
+    private final ArrayList<Set<String>> reasons = new ArrayList<>();
+
+    //for the searches in the graph
+    private int[] seen = new int[0];
+    private int[] parentEdge = new int[0];
+    private int stamp = 0;
+
+    //names of the assertions of the last conflict
+    private HashSet<String> conflict;
+
+    private Model model;
+    private HashSet<String> unsatCore;
+
+    public IdlSolver(long budget)
+    {
+        this.budget = budget;
+    }
+
+    /**
+     * @return SAT, with the model in getModel(), UNSAT with the core in
+     * getUnsatCore(), or UNKNOWN if the budget ran out
+     */
+    public int solve(ConstraintSet... constraints)
+    {
+        LinkedHashSet<Long> vars = new LinkedHashSet<>();
+        for (ConstraintSet cons : constraints) {
+            cons.collectVariables(vars);
+        }
+        for (long gid : vars) {
+            node(gid);
+        }
+
+        try {
+            ArrayList<Item> ors = new ArrayList<>();
+            for (ConstraintSet cons : constraints) {
+                for (ConstraintSet.Assertion assertion : cons) {
+                    if (!assertFormula(assertion.formula, named(assertion.name), ors)) {
+                        unsatCore = conflict;
+                        return UNSAT;
+                    }
+                }
+            }
+            if (!search(ors)) {
+                unsatCore = conflict;
+                return UNSAT;
+            }
+        } catch (OverBudget e) {
+            return UNKNOWN;
+        }
+
+        model = topologicalModel();
+        return SAT;
+    }
+
+    public Model getModel()
+    {
+        return model;
+    }
+
+    /**
+     * @return the names of the assertions in conflict, as GetModel gives them for z3
+     */
+    public HashSet<String> getUnsatCore()
+    {
+        return unsatCore;
+    }
+
+    private static class Item
+    {
+        final Formula.Or or;
+        final Set<String> reason;
+
+        Item(Formula.Or or, Set<String> reason)
+        {
+            this.or = or;
+            this.reason = reason;
+        }
+    }
+
+    private static class OverBudget extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        OverBudget()
+        {
+            super(null, null, false, false);
+        }
+
+        //thrown on every query over budget, the stack trace is never looked at
+        @Override
+        public synchronized Throwable fillInStackTrace()
+        {
+            return this;
+        }
+    }
+
+    /**
+     * add the atoms of formula to the graph, its or's to ors
+     * @param reason the assertions formula follows from
+     * @return false on a cycle, conflict holds its assertions
+     */
+    private boolean assertFormula(Formula formula, Set<String> reason, ArrayList<Item> ors)
+    {
+        if (formula instanceof Formula.Order) {
+            Formula.Order order = (Formula.Order) formula;
+            return addEdge(index.get(order.before()), index.get(order.after()), reason);
+        }
+        if (formula instanceof Formula.And) {
+            Formula.And and = (Formula.And) formula;
+            return assertFormula(and.left, reason, ors) && assertFormula(and.right, reason, ors);
+        }
+        if (formula instanceof Formula.Or) {
+            ors.add(new Item((Formula.Or) formula, reason));
+        }
+        return true;
+    }
+
+    private boolean search(ArrayList<Item> ors)
+    {
+        //propagate: an or with a branch already holding is dropped,
+        //an or with a branch closing a cycle takes the other one
+        ArrayList<Item> open = ors;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            ArrayList<Item> next = new ArrayList<>();
+            for (int i = 0; i < open.size(); i++) {
+                Item item = open.get(i);
+                if (holds(item.or.left) || holds(item.or.right)) {
+                    changed = true;
+                    continue;
+                }
+                HashSet<String> leftConflict = cycleWith(item.or.left);
+                HashSet<String> rightConflict = leftConflict == null ? null : cycleWith(item.or.right);
+                if (rightConflict != null) {
+                    conflict = leftConflict;
+                    conflict.addAll(rightConflict);
+                    conflict.addAll(item.reason);
+                    return false;
+                }
+                if (leftConflict != null) {
+                    //the right branch follows from the or and the cycle of the left one
+                    changed = true;
+                    leftConflict.addAll(item.reason);
+                    if (!assertFormula(item.or.right, leftConflict, next)) {
+                        return false;
+                    }
+                    continue;
+                }
+                next.add(item);
+            }
+            open = next;
+        }
+        if (open.isEmpty()) {
+            return true;
+        }
+
+        //split on the first or left
+        Item item = open.get(0);
+        List<Item> rest = open.subList(1, open.size());
+        HashSet<String> core = new HashSet<>();
+        for (Formula branch : Arrays.asList(item.or.left, item.or.right)) {
+            int mark = edges.size();
+            ArrayList<Item> branchOrs = new ArrayList<>(rest);
+            if (assertFormula(branch, item.reason, branchOrs) && search(branchOrs)) {
+                return true;
+            }
+            core.addAll(conflict);
+            undo(mark);
+        }
+        core.addAll(item.reason);
+        conflict = core;
+        return false;
+    }
+
+    /**
+     * @return true if formula is an atom the graph already implies
+     */
+    private boolean holds(Formula formula)
+    {
+        if (!(formula instanceof Formula.Order)) {
+            return false;
+        }
+        Formula.Order order = (Formula.Order) formula;
+        return path(index.get(order.before()), index.get(order.after())) != null;
+    }
+
+    /**
+     * @return the assertions of the cycle formula closes if it is an atom, null otherwise
+     */
+    private HashSet<String> cycleWith(Formula formula)
+    {
+        if (!(formula instanceof Formula.Order)) {
+            return null;
+        }
+        Formula.Order order = (Formula.Order) formula;
+        int from = index.get(order.before());
+        int to = index.get(order.after());
+        ArrayList<Integer> back = from == to ? new ArrayList<Integer>() : path(to, from);
+        if (back == null) {
+            return null;
+        }
+        HashSet<String> names = new HashSet<>();
+        for (int e : back) {
+            names.addAll(reasons.get(e));
+        }
+        return names;
+    }
+
+    private boolean addEdge(int from, int to, Set<String> reason)
+    {
+        ArrayList<Integer> back = from == to ? new ArrayList<Integer>() : path(to, from);
+        if (back != null) {
+            conflict = new HashSet<>(reason);
+            for (int e : back) {
+                conflict.addAll(reasons.get(e));
+            }
+            return false;
+        }
+        out.get(from).add(edges.size());
+        edges.add(new int[]{from, to});
+        reasons.add(reason);
+        return true;
+    }
+
+    private void undo(int mark)
+    {
+        for (int e = edges.size() - 1; e >= mark; e--) {
+            ArrayList<Integer> fromOut = out.get(edges.get(e)[0]);
+            fromOut.remove(fromOut.size() - 1);
+            edges.remove(e);
+            reasons.remove(e);
+        }
+    }
+
+    /**
+     * breadth first, so that the cycles and cores are short
+     * @return the edges of a path from to to, null if there is none
+     */
+    private ArrayList<Integer> path(int from, int to)
+    {
+        stamp++;
+        ArrayList<Integer> queue = new ArrayList<>();
+        queue.add(from);
+        seen[from] = stamp;
+        for (int head = 0; head < queue.size(); head++) {
+            int n = queue.get(head);
+            for (int e : out.get(n)) {
+                if (++steps > budget) {
+                    throw new OverBudget();
+                }
+                int m = edges.get(e)[1];
+                if (seen[m] == stamp) {
+                    continue;
+                }
+                seen[m] = stamp;
+                parentEdge[m] = e;
+                if (m == to) {
+                    ArrayList<Integer> path = new ArrayList<>();
+                    for (int v = to; v != from; v = edges.get(parentEdge[v])[0]) {
+                        path.add(parentEdge[v]);
+                    }
+                    return path;
+                }
+                queue.add(m);
+            }
+        }
+        return null;
+    }
+
+    private int node(long gid)
+    {
+        Integer n = index.get(gid);
+        if (n == null) {
+            n = gids.size();
+            index.put(gid, n);
+            gids.add(gid);
+            out.add(new ArrayList<Integer>());
+            if (seen.length <= n) {
+                seen = Arrays.copyOf(seen, 2 * n + 16);
+                parentEdge = Arrays.copyOf(parentEdge, 2 * n + 16);
+            }
+        }
+        return n;
+    }
+
+    private static Set<String> named(String label)
+    {
+        return label == null ? Collections.<String>emptySet() : Collections.singleton(label);
+    }
+
+    /**
+     * the position of every event in a topological order of the graph,
+     * events free to go either way keep the order of the trace
+     */
+    private Model topologicalModel()
+    {
+        int n = gids.size();
+        int[] inDegree = new int[n];
+        for (int[] edge : edges) {
+            inDegree[edge[1]]++;
+        }
+        PriorityQueue<Integer> ready = new PriorityQueue<>(Math.max(1, n), (a, b) -> Long.compare(gids.get(a), gids.get(b)));
+        for (int i = 0; i < n; i++) {
+            if (inDegree[i] == 0) {
+                ready.add(i);
+            }
+        }
+        Model model = new Model();
+        int position = 0;
+        while (!ready.isEmpty()) {
+            int i = ready.poll();
+            model.put(gids.get(i), position++);
+            for (int e : out.get(i)) {
+                if (--inDegree[edges.get(e)[1]] == 0) {
+                    ready.add(edges.get(e)[1]);
+                }
+            }
+        }
+        return model;
+    }
+}
@@ -0,0 +1,137 @@
+package constraints.constraints;
+
+import constraints.config.Configuration;
+import constraints.formula.ConstraintSet;
+import constraints.trace.AbstractNode;
+import constraints.trace.JoinNode;
+import constraints.trace.LockNode;
+import constraints.trace.LockPair;
+import constraints.trace.StartNode;
+import constraints.trace.ThreadPrefixSet;
+import constraints.trace.Trace;
+import constraints.trace.TraceInfo;
+import constraints.trace.UnlockNode;
+import constraints.trace.WriteNode;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.Vector;
+
+/*
+ * Report the lock-mutual-exclusion constraints constructLockConstraints
+ * builds for each lock of a synthetic trace: their count and build time.
+ * The main thread starts the workers in overlapping waves and joins them,
+ * WAVE of them run at a time, and take LOCKS locks, lock 0 the most.
+ *
+ * usage: LockConstraintBenchmark [#events ...]   (default 1k 10k 20k)
+ */
+public class LockConstraintBenchmark {
+
+	private static final int WORKERS = 32;
+	private static final int WAVE = 4;
+	private static final int LOCKS = 4;
+	private static final int LOCK_PERCENT = 20;
+	private static final int UNLOCK_PERCENT = 40;
+
+	public static void main(String[] args) {
+
+		int[] sizes = {1000, 10000, 20000};
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++)
+				sizes[i] = Integer.parseInt(args[i]);
+		}
+
+		System.out.println(String.format("%10s %6s %8s %12s %14s",
+				"#events", "lock", "#pairs", "#cons", "build"));
+		for (int n : sizes)
+			run(n);
+	}
+
+	private static void run(int n) {
+
+		Trace trace = syntheticTrace(n, new Random(n));
+
+		ConstraintsBuildEngine engine = new ConstraintsBuildEngine(new Configuration());
+		engine.preprocess(trace);
+		ThreadPrefixSet all = new ThreadPrefixSet(new ThreadPrefixSet.Threads(trace));
+		all.addAll(trace.getFullTrace());
+
+		for (int l = 0; l < LOCKS; l++) {
+			Vector<LockPair> LPs = engine.getLockPairsMap().get("l" + l);
+			if (LPs == null)
+				continue;
+
+			engine.resetParameter();
+			ConstraintSet cons = new ConstraintSet();
+			long ts = System.nanoTime();
+			engine.constructLockConstraints(cons, LPs, trace, all);
+			long build = System.nanoTime() - ts;
+
+			System.out.println(String.format("%10d %6s %8d %12d %12dus",
+					n, "l" + l, LPs.size(), cons.size(), build / 1000));
+		}
+	}
+
+	private static Trace syntheticTrace(int n, Random ran) {
+
+		HashMap<Long, String> threadNames = new HashMap<>();
+		for (long t = 1; t <= WORKERS + 1; t++)
+			threadNames.put(t, "T" + t);
+		Trace trace = new Trace(new TraceInfo(new HashMap<Integer, String>(), new HashMap<Integer, String>(),
+				new HashMap<Integer, String>(), threadNames));
+
+		//worker w (tid w + 2) runs in waves w to w + WAVE - 1 of span steps, tid 1 is the main thread
+		int span = n / (WORKERS + WAVE);
+		//the lock each worker holds, -1 for none
+		int[] held = new int[WORKERS];
+		Arrays.fill(held, -1);
+		boolean[] taken = new boolean[LOCKS];
+		boolean[] joined = new boolean[WORKERS];
+		long gid = 1;
+		for (int w = 0; w < WAVE; w++)
+			trace.addRawNode(new StartNode(gid++, 1, 1, "" + (w + 2), AbstractNode.TYPE.START));
+
+		for (int step = 0; step < n; step++) {
+			int wave = Math.min(step / Math.max(1, span), WORKERS + WAVE - 1);
+			//workers leaving the wave release their lock and are joined, the next one is started
+			int done = wave - WAVE;
+			if (done >= 0 && done < WORKERS && !joined[done]) {
+				if (held[done] >= 0) {
+					trace.addRawNode(new UnlockNode(gid++, done + 2, 3, "l" + held[done], AbstractNode.TYPE.UNLOCK));
+					taken[held[done]] = false;
+				}
+				joined[done] = true;
+				trace.addRawNode(new JoinNode(gid++, 1, 2, "" + (done + 2), AbstractNode.TYPE.JOIN));
+				if (wave < WORKERS)
+					trace.addRawNode(new StartNode(gid++, 1, 1, "" + (wave + 2), AbstractNode.TYPE.START));
+			}
+
+			int w = Math.max(0, wave - WAVE + 1) + ran.nextInt(WAVE);
+			if (w >= WORKERS || joined[w])
+				continue;
+			long tid = w + 2;
+			if (held[w] >= 0) {
+				if (ran.nextInt(100) < UNLOCK_PERCENT) {
+					trace.addRawNode(new UnlockNode(gid++, tid, 3, "l" + held[w], AbstractNode.TYPE.UNLOCK));
+					taken[held[w]] = false;
+					held[w] = -1;
+					continue;
+				}
+			} else if (ran.nextInt(100) < LOCK_PERCENT) {
+				//lock 0 is the hot one
+				int l = ran.nextInt(2) == 0 ? 0 : ran.nextInt(LOCKS);
+				if (!taken[l]) {
+					taken[l] = true;
+					held[w] = l;
+					trace.addRawNode(new LockNode(gid++, tid, 4, "l" + l, AbstractNode.TYPE.LOCK));
+					continue;
+				}
+			}
+			trace.addRawNode(new WriteNode(gid++, tid, 5, "a" + w, "1", AbstractNode.TYPE.WRITE, null));
+		}
+		trace.finishedLoading(true);
+		return trace;
+	}
+}
@@ -31,72 +31,79 @@
 
 package constraints.constraints;
 
-import java.util.Map;
-import java.util.HashMap;
+import java.util.Arrays;
 
 /**
- * Z3 model of the solution to order variables.
- * THhe model is kept as a map from each order 
- * variable to the corresponding value.
+ * Model of the solution to order variables.
+ * The model is kept as parallel arrays of the GID
+ * of each order variable x<GID> and its value.
  * 
  * @author jeffhuang
  *
  */
 public class Model
 {
-	Map<String,Object> vals = new HashMap<>();
-	
-	void put(String varName, Object value)
+	private long[] gids = new long[16];
+	private int[] vals = new int[16];
+	private int size;
+
+	void put(long gid, int value)
 	{
-		vals.put(varName, value);
+		if(size == gids.length){
+			gids = Arrays.copyOf(gids, 2 * size);
+			vals = Arrays.copyOf(vals, 2 * size);
+		}
+		gids[size] = gid;
+		vals[size++] = value;
 	}
-	public Map<String,Object> getMap()
+
+	public int size()
 	{
-		return vals;
+		return size;
 	}
-	public Object get(String varName)
+
+	public long getGid(int i)
 	{
-		return vals.get(varName);
+		return gids[i];
 	}
 
-	public void print()
+	public int getValue(int i)
 	{
-		for(Map.Entry<String,Object> e : vals.entrySet()){
-			System.out.println(e.getKey() + " " + e.getValue());
-		}
+		return vals[i];
 	}
 
-	public static class Array
+	/**
+	 * @return the position of gid in the model, -1 if it has no value
+	 */
+	public int indexOf(long gid)
 	{
-		private Map<Integer,Number> vals = new HashMap<>();
-		private Number defaultVal;
-		
-		void put(Integer index, Number value)
-		{
-			vals.put(index, value);
-		}
-		
-		public Number get(int index)
-		{
-			Number elem = vals.get(index);
-			if(elem != null)
-				return elem;
-			return defaultVal;
-		}
-		
-		void setDefaultValue(Number defaultVal)
-		{
-			this.defaultVal = defaultVal;
-		}
-		
-		public String toString()
-		{
-			StringBuilder buf = new StringBuilder();
-			for(Map.Entry<Integer,Number> e : vals.entrySet()){
-				buf.append("("+e.getKey()+", " + e.getValue()+") ");
-			}
-			buf.append("(?, "+defaultVal+")");
-			return buf.toString();
+		for(int i = 0; i < size; i++)
+			if(gids[i] == gid)
+				return i;
+		return -1;
+	}
+
+	/**
+	 * @return the positions in the model by decreasing value
+	 */
+	public int[] byDecreasingValue()
+	{
+		//value in the high bits, position in the low ones, sorted as plain longs
+		long[] keys = new long[size];
+		for(int i = 0; i < size; i++)
+			keys[i] = ((long) vals[i] << 32) | i;
+		Arrays.sort(keys);
+
+		int[] order = new int[size];
+		for(int i = 0; i < size; i++)
+			order[i] = (int) keys[size - 1 - i];
+		return order;
+	}
+
+	public void print()
+	{
+		for(int i = 0; i < size; i++){
+			System.out.println("x" + gids[i] + " " + vals[i]);
 		}
 	}
 }
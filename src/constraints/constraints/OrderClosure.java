@@ -0,0 +1,186 @@
+package constraints.constraints;
+
+import constraints.formula.Formula;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The orderings between the events of a query implied by a set of orderings
+ * (a before b): the events of the query are numbered, and for each of them a
+ * bitset over the others holds those it is before, directly or through other
+ * events. Whether an ordering is implied is a bit lookup, and an ordering
+ * added later updates the bitsets of the events before its first event.
+ *
+ * Only the events orderings are looked up and added for (the query events)
+ * get a bitset, the other events only carry the orderings between them.
+ */
+class OrderClosure {
+
+    //GID -> number of a query event
+    private final HashMap<Long, Integer> queryIndex = new HashMap<>();
+    //rows[i] bit j: query event i is before query event j
+    private final long[][] rows;
+    //false once the orderings make a cycle
+    private boolean consistent = true;
+
+    /**
+     * @param orderings {before GID, after GID} of each ordering
+     * @param queryEvents the events orderings are looked up and added for
+     */
+    OrderClosure(List<long[]> orderings, Collection<Long> queryEvents) {
+        for (long gid : queryEvents) {
+            if (!queryIndex.containsKey(gid)) {
+                queryIndex.put(gid, queryIndex.size());
+            }
+        }
+        int q = queryIndex.size();
+        int words = (q + 63) >>> 6;
+
+        //all the events, the query events first
+        HashMap<Long, Integer> index = new HashMap<>(queryIndex);
+        for (long[] ordering : orderings) {
+            for (long gid : ordering) {
+                if (!index.containsKey(gid)) {
+                    index.put(gid, index.size());
+                }
+            }
+        }
+        int n = index.size();
+        int[] outDegree = new int[n];
+        int[] inDegree = new int[n];
+        int[][] edges = new int[orderings.size()][];
+        for (int e = 0; e < edges.length; e++) {
+            edges[e] = new int[]{index.get(orderings.get(e)[0]), index.get(orderings.get(e)[1])};
+            outDegree[edges[e][0]]++;
+            inDegree[edges[e][1]]++;
+        }
+        int[][] successors = new int[n][];
+        for (int v = 0; v < n; v++) {
+            successors[v] = new int[outDegree[v]];
+        }
+        int[] filled = new int[n];
+        for (int[] edge : edges) {
+            successors[edge[0]][filled[edge[0]]++] = edge[1];
+        }
+
+        //topological order, a cycle leaves events out
+        int[] order = new int[n];
+        int numOrdered = 0;
+        for (int v = 0; v < n; v++) {
+            if (inDegree[v] == 0) {
+                order[numOrdered++] = v;
+            }
+        }
+        for (int k = 0; k < numOrdered; k++) {
+            for (int s : successors[order[k]]) {
+                if (--inDegree[s] == 0) {
+                    order[numOrdered++] = s;
+                }
+            }
+        }
+        if (numOrdered < n) {
+            consistent = false;
+        }
+
+        //the query events after each event, from the last events back; null: none
+        long[][] after = new long[n][];
+        for (int k = numOrdered - 1; k >= 0; k--) {
+            int v = order[k];
+            long[] row = null;
+            for (int s : successors[v]) {
+                if (s < q || after[s] != null) {
+                    if (row == null) {
+                        row = new long[words];
+                    }
+                    if (s < q) {
+                        row[s >>> 6] |= 1L << s;
+                    }
+                    if (after[s] != null) {
+                        or(row, after[s]);
+                    }
+                }
+            }
+            after[v] = row;
+        }
+        rows = new long[q][];
+        for (int i = 0; i < q; i++) {
+            rows[i] = after[i] != null ? after[i] : new long[words];
+        }
+    }
+
+    boolean isConsistent() {
+        return consistent;
+    }
+
+    /**
+     * @return true if the orderings imply that before is before after
+     */
+    boolean implies(long before, long after) {
+        Integer b = queryIndex.get(before);
+        Integer a = queryIndex.get(after);
+        return b != null && a != null && get(rows[b], a);
+    }
+
+    /**
+     * @return true if the orderings imply that after is before before, the ordering can then not hold
+     */
+    boolean conflicts(long before, long after) {
+        return before == after || implies(after, before);
+    }
+
+    /**
+     * add the ordering before, after of query events
+     * @return false if it makes a cycle, the orderings can then not all hold
+     */
+    boolean add(long before, long after) {
+        if (conflicts(before, after)) {
+            consistent = false;
+            return false;
+        }
+        int b = queryIndex.get(before);
+        int a = queryIndex.get(after);
+        if (get(rows[b], a)) {
+            return true;
+        }
+        //the events before b, and b, are now before a and the events after a
+        long[] afterA = rows[a].clone();
+        afterA[a >>> 6] |= 1L << a;
+        for (int i = 0; i < rows.length; i++) {
+            if (i == b || get(rows[i], b)) {
+                or(rows[i], afterA);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the event is a query event
+     */
+    boolean isQueryEvent(long gid) {
+        return queryIndex.containsKey(gid);
+    }
+
+    private static boolean get(long[] row, int j) {
+        return (row[j >>> 6] & (1L << j)) != 0;
+    }
+
+    private static void or(long[] row, long[] other) {
+        for (int w = 0; w < row.length; w++) {
+            row[w] |= other[w];
+        }
+    }
+
+    /**
+     * {before, after} of the orderings a list of atoms gives
+     */
+    static List<long[]> orderings(List<Formula.Order> atoms) {
+        List<long[]> orderings = new ArrayList<>(atoms.size());
+        for (Formula.Order atom : atoms) {
+            orderings.add(new long[]{atom.before(), atom.after()});
+        }
+        return orderings;
+    }
+}
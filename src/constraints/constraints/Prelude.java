@@ -0,0 +1,85 @@
+package constraints.constraints;
+
+import constraints.formula.ConstraintSet;
+import constraints.formula.SmtLibWriter;
+import constraints.trace.ThreadPrefixSet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+
+/**
+ * The part of a query shared by the patterns of a trace with the same
+ * dependent nodes: the sync and PO constraints, with the names and uniform
+ * formulas they were added under.
+ *
+ * It is built once per dependent node set and kept in the prelude cache of
+ * the engine; its SMT-LIB text is only built when a query goes to z3, and
+ * then written as it is for every query.
+ */
+class Prelude
+{
+    final ConstraintSet sync;
+    final ConstraintSet po;
+    //the dependent nodes with those the sync constraints added (the unlocks of the lock pairs)
+    final ThreadPrefixSet depNodes;
+    //name -> uniform formula of the assertions, null if the prelude is not cached
+    final HashMap<String,String> formulas;
+    //the causal constraints are named from INTER_<nextIndex>
+    final int nextIndex;
+
+    private HashSet<Long> vars;
+    private byte[] declarations;
+    private byte[] assertions;
+
+    Prelude(ConstraintSet sync, ConstraintSet po, ThreadPrefixSet depNodes, HashMap<String,String> formulas, int nextIndex)
+    {
+        this.sync = sync;
+        this.po = po;
+        this.depNodes = depNodes;
+        this.formulas = formulas;
+        this.nextIndex = nextIndex;
+    }
+
+    /**
+     * @return the variables of the assertions
+     */
+    synchronized HashSet<Long> vars()
+    {
+        if (vars == null) {
+            LinkedHashSet<Long> collected = new LinkedHashSet<>();
+            sync.collectVariables(collected);
+            po.collectVariables(collected);
+            vars = collected;
+        }
+        return vars;
+    }
+
+    /**
+     * @return (declare-const ...) of the variables, UTF-8
+     */
+    synchronized byte[] declarations()
+    {
+        if (declarations == null) {
+            StringBuilder sb = new StringBuilder();
+            SmtLibWriter.declare(vars(), sb);
+            declarations = sb.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        return declarations;
+    }
+
+    /**
+     * @return (assert ...) of the sync then the PO constraints, UTF-8
+     */
+    synchronized byte[] assertions()
+    {
+        if (assertions == null) {
+            StringBuilder sb = new StringBuilder();
+            SmtLibWriter.append(sync, sb);
+            SmtLibWriter.append(po, sb);
+            assertions = sb.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        return assertions;
+    }
+}
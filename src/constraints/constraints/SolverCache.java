@@ -0,0 +1,428 @@
+package constraints.constraints;
+
+import constraints.config.Configuration;
+import constraints.formula.ConstraintSet;
+import constraints.formula.Formula;
+import constraints.graph.ReachabilityEngine;
+import constraints.pattern.FingerprintRegistry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The results of the solved queries, by the canonical form of the query:
+ * its events renamed to 0..n-1 in GID order, so that the queries of two
+ * traces differing only in their GIDs have the same form. The form is only
+ * kept as its 128-bit hash; a hit gives the model of a sat query, or the
+ * positions of the assertions of the unsat core, taken back to the GIDs and
+ * names of the query looked up.
+ *
+ * At most solver_cache_size results are kept, the least recently used is
+ * dropped first. With solver_cache_dir set they are loaded from and saved to
+ * <solver_cache_dir>/solver_cache.bin, as the fingerprint registries are.
+ */
+public class SolverCache
+{
+    private static final String FILE_NAME = "solver_cache.bin";
+    private static final int MAGIC = 0x4d435253;
+    private static final int VERSION = 1;
+
+    //hash input tags of the parts of a formula
+    private static final long LESS = -1, GREATER = -2, AND = -3, OR = -4, TRUE = -5;
+    private static final long NAMED = -6, UNNAMED = -7, END_OF_SET = -8;
+
+    private static SolverCache instance;
+
+    private final int capacity;
+    private final LinkedHashMap<Key,Result> results;
+    private int numLoaded = 0;
+
+    //for statistics, per exploration
+    private long numLookups = 0;
+    private long numHits = 0;
+
+    private static final class Key
+    {
+        final long hi;
+        final long lo;
+
+        Key(long hi, long lo)
+        {
+            this.hi = hi;
+            this.lo = lo;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof Key && ((Key) o).hi == hi && ((Key) o).lo == lo;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (int) (lo ^ (lo >>> 32));
+        }
+    }
+
+    /**
+     * a query in canonical form
+     */
+    static final class Query
+    {
+        final Key key;
+        //canonical number -> GID, ascending
+        final long[] gids;
+        //the names of the assertions, in order of the sets, null: unnamed
+        final String[] names;
+
+        private Query(Key key, long[] gids, String[] names)
+        {
+            this.key = key;
+            this.gids = gids;
+            this.names = names;
+        }
+    }
+
+    private static final class Result
+    {
+        final boolean sat;
+        //sat: canonical number and value of each variable of the model
+        final int[] vars;
+        final int[] values;
+        //unsat: the positions of the assertions of the core
+        final int[] core;
+
+        Result(boolean sat, int[] vars, int[] values, int[] core)
+        {
+            this.sat = sat;
+            this.vars = vars;
+            this.values = values;
+            this.core = core;
+        }
+    }
+
+    SolverCache(int capacity)
+    {
+        this.capacity = capacity;
+        this.results = new LinkedHashMap<Key,Result>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key,Result> eldest)
+            {
+                return size() > SolverCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the cache, loaded from solver_cache_dir on the first call; null if solver_cache_size is 0
+     */
+    static synchronized SolverCache get()
+    {
+        if (Configuration.solverCacheSize <= 0) {
+            return null;
+        }
+        if (instance == null) {
+            instance = new SolverCache(Configuration.solverCacheSize);
+            if (!Configuration.solverCacheDir.isEmpty()) {
+                instance.load(new File(Configuration.solverCacheDir, FILE_NAME));
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * the canonical form of the query of the constraint sets, in the order they are asserted
+     */
+    static Query canonicalize(ConstraintSet... sets)
+    {
+        //the GIDs of the query, sorted, without duplicates
+        final long[][] collected = {new long[64]};
+        final int[] numCollected = {0};
+        Formula.Visitor<Void> collector = new Formula.Visitor<Void>() {
+            @Override
+            public Void visitOrder(Formula.Order order) {
+                if (numCollected[0] + 2 > collected[0].length) {
+                    collected[0] = Arrays.copyOf(collected[0], collected[0].length * 2);
+                }
+                collected[0][numCollected[0]++] = order.gid1;
+                collected[0][numCollected[0]++] = order.gid2;
+                return null;
+            }
+
+            @Override
+            public Void visitAnd(Formula.And and) {
+                and.left.accept(this);
+                and.right.accept(this);
+                return null;
+            }
+
+            @Override
+            public Void visitOr(Formula.Or or) {
+                or.left.accept(this);
+                or.right.accept(this);
+                return null;
+            }
+
+            @Override
+            public Void visitTrue() {
+                return null;
+            }
+        };
+        int numAssertions = 0;
+        for (ConstraintSet set : sets) {
+            for (ConstraintSet.Assertion assertion : set) {
+                assertion.formula.accept(collector);
+            }
+            numAssertions += set.size();
+        }
+        long[] all = collected[0];
+        Arrays.sort(all, 0, numCollected[0]);
+        int n = 0;
+        for (int i = 0; i < numCollected[0]; i++) {
+            if (n == 0 || all[n - 1] != all[i]) {
+                all[n++] = all[i];
+            }
+        }
+        final long[] gids = Arrays.copyOf(all, n);
+
+        final FingerprintRegistry.Hasher hasher = new FingerprintRegistry.Hasher();
+        hasher.add(gids.length);
+        Formula.Visitor<Void> writer = new Formula.Visitor<Void>() {
+            @Override
+            public Void visitOrder(Formula.Order order) {
+                hasher.add(order.op == Formula.Order.LESS ? LESS : GREATER)
+                        .add(Arrays.binarySearch(gids, order.gid1))
+                        .add(Arrays.binarySearch(gids, order.gid2));
+                return null;
+            }
+
+            @Override
+            public Void visitAnd(Formula.And and) {
+                hasher.add(AND);
+                and.left.accept(this);
+                and.right.accept(this);
+                return null;
+            }
+
+            @Override
+            public Void visitOr(Formula.Or or) {
+                hasher.add(OR);
+                or.left.accept(this);
+                or.right.accept(this);
+                return null;
+            }
+
+            @Override
+            public Void visitTrue() {
+                hasher.add(TRUE);
+                return null;
+            }
+        };
+        String[] names = new String[numAssertions];
+        int position = 0;
+        for (ConstraintSet set : sets) {
+            for (ConstraintSet.Assertion assertion : set) {
+                //only the named assertions can be in an unsat core
+                hasher.add(assertion.name != null ? NAMED : UNNAMED);
+                assertion.formula.accept(writer);
+                names[position++] = assertion.name;
+            }
+            hasher.add(END_OF_SET);
+        }
+        return new Query(new Key(hasher.hi(), hasher.lo()), gids, names);
+    }
+
+    /**
+     * look up the result of query for task: on a hit its model (sat) or
+     * unsat core is set as if the solver had answered
+     * @return false if the query was not solved before
+     */
+    synchronized boolean lookup(Query query, ConstraintsSolving task, String endVar, String wVar, String endVar_prefix,
+                                ReachabilityEngine reachEngine, String causalConstraint)
+    {
+        numLookups++;
+        Result result = results.get(query.key);
+        if (result == null) {
+            return false;
+        }
+        numHits++;
+        if (result.sat) {
+            Model model = new Model();
+            for (int i = 0; i < result.vars.length; i++) {
+                model.put(query.gids[result.vars[i]], result.values[i]);
+            }
+            task.setModel(model, endVar, wVar, endVar_prefix, reachEngine, causalConstraint);
+        } else {
+            HashSet<String> unsats = new HashSet<>();
+            for (int position : result.core) {
+                unsats.add(query.names[position]);
+            }
+            task.setUnsatCore(unsats);
+        }
+        return true;
+    }
+
+    /**
+     * keep the answer of the solver to query, if it was sat or unsat
+     */
+    synchronized void put(Query query, ConstraintsSolving task)
+    {
+        Result result;
+        if (task.sat && task.getModel() != null) {
+            Model model = task.getModel();
+            int[] vars = new int[model.size()];
+            int[] values = new int[model.size()];
+            int n = 0;
+            for (int i = 0; i < model.size(); i++) {
+                //the model may hold a variable only the solver declared
+                int var = Arrays.binarySearch(query.gids, model.getGid(i));
+                if (var >= 0) {
+                    vars[n] = var;
+                    values[n++] = model.getValue(i);
+                }
+            }
+            result = new Result(true, Arrays.copyOf(vars, n), Arrays.copyOf(values, n), null);
+        } else if (!task.sat && task.unsats != null) {
+            HashMap<String,Integer> positions = new HashMap<>();
+            for (int i = 0; i < query.names.length; i++) {
+                if (query.names[i] != null) {
+                    positions.put(query.names[i], i);
+                }
+            }
+            int[] core = new int[task.unsats.size()];
+            int n = 0;
+            for (String name : task.unsats) {
+                Integer position = positions.get(name);
+                if (position == null) {
+                    //a name that is not an assertion of the query, the core cannot be taken to another query
+                    return;
+                }
+                core[n++] = position;
+            }
+            result = new Result(false, null, null, core);
+        } else {
+            //unknown, timeout or solver error
+            return;
+        }
+        results.put(query.key, result);
+    }
+
+    /**
+     * reset the hit counts for a new exploration
+     */
+    public static synchronized void startingExploration()
+    {
+        if (instance != null) {
+            instance.numLookups = 0;
+            instance.numHits = 0;
+        }
+    }
+
+    /**
+     * one line, for the exploration stats
+     */
+    public static synchronized String stats()
+    {
+        if (instance == null) {
+            return "";
+        }
+        synchronized (instance) {
+            return String.format("solver cache: %d/%d hits (%.1f%%), %d results, %d loaded%n",
+                    instance.numHits, instance.numLookups,
+                    instance.numLookups == 0 ? 0.0 : 100.0 * instance.numHits / instance.numLookups,
+                    instance.results.size(), instance.numLoaded);
+        }
+    }
+
+    /**
+     * save the results to solver_cache_dir, if it is set
+     */
+    public static synchronized void saveAll()
+    {
+        if (instance == null || Configuration.solverCacheDir.isEmpty()) {
+            return;
+        }
+        File dir = new File(Configuration.solverCacheDir);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            System.err.println("cannot create solver cache dir " + dir);
+            return;
+        }
+        instance.save(new File(dir, FILE_NAME));
+    }
+
+    private synchronized void save(File file)
+    {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(results.size());
+            //least recently used first, loading them in order keeps the order
+            for (Map.Entry<Key,Result> entry : results.entrySet()) {
+                Result result = entry.getValue();
+                out.writeLong(entry.getKey().hi);
+                out.writeLong(entry.getKey().lo);
+                out.writeBoolean(result.sat);
+                writeInts(out, result.sat ? result.vars : result.core);
+                if (result.sat) {
+                    writeInts(out, result.values);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("cannot save " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void load(File file)
+    {
+        if (!file.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                System.err.println("ignoring " + file + ": not a solver cache of version " + VERSION);
+                return;
+            }
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                Key key = new Key(in.readLong(), in.readLong());
+                boolean sat = in.readBoolean();
+                int[] ints = readInts(in);
+                results.put(key, sat ? new Result(true, ints, readInts(in), null) : new Result(false, null, null, ints));
+                numLoaded++;
+            }
+        } catch (IOException e) {
+            System.err.println("cannot load " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, int[] ints) throws IOException
+    {
+        out.writeInt(ints.length);
+        for (int v : ints) {
+            out.writeInt(v);
+        }
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException
+    {
+        int[] ints = new int[in.readInt()];
+        for (int i = 0; i < ints.length; i++) {
+            ints[i] = in.readInt();
+        }
+        return ints;
+    }
+}
@@ -0,0 +1,355 @@
+package constraints.constraints;
+
+import constraints.config.Configuration;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A logistic regression over features of the conGraph and casual records of
+ * a query (see ConstraintsFilterWithDataExtraction), giving the probability
+ * the query is unsat. It is trained by main on the dataset the data_extraction
+ * filter collects (conGraph, casual and tag), and loaded from unsat_model by
+ * the predict filter mode.
+ *
+ * The model file is a properties file: the mean and scale the features are
+ * standardized with, and the weights, the first one the bias.
+ *
+ * usage: UnsatPredictor [<dataset dir> [<model file>]]   (default ./data/Conhash/ and unsat_model)
+ */
+public class UnsatPredictor
+{
+    static final int NUM_FEATURES = 8;
+
+    private static final int EPOCHS = 2000;
+    private static final double RATE = 0.5;
+    private static final double L2 = 1e-4;
+    //every HOLD_OUT-th record of the dataset is left out of the training to evaluate the model
+    private static final int HOLD_OUT = 5;
+
+    //scored queries; skipped ones; shadow mode: predicted and actual outcomes, solving time of the true unsat predictions
+    private static final AtomicLong numScored = new AtomicLong();
+    private static final AtomicLong numSkipped = new AtomicLong();
+    private static final AtomicLong truePositives = new AtomicLong();
+    private static final AtomicLong falsePositives = new AtomicLong();
+    private static final AtomicLong falseNegatives = new AtomicLong();
+    private static final AtomicLong savedMillis = new AtomicLong();
+
+    private static UnsatPredictor model;
+    private static boolean loaded = false;
+
+    private final double[] mean;
+    private final double[] scale;
+    private final double[] weights;
+
+    private UnsatPredictor(double[] mean, double[] scale, double[] weights)
+    {
+        this.mean = mean;
+        this.scale = scale;
+        this.weights = weights;
+    }
+
+    /**
+     * @return the model of unsat_model, null if it is not set or cannot be read
+     */
+    static synchronized UnsatPredictor model()
+    {
+        if (!loaded) {
+            loaded = true;
+            if (Configuration.unsatModel.isEmpty()) {
+                System.err.println("constraints filter mode predict: unsat_model is not set, no query is predicted");
+            } else {
+                try {
+                    model = load(new File(Configuration.unsatModel));
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("cannot read unsat_model " + Configuration.unsatModel + ": " + e.getMessage());
+                }
+            }
+        }
+        return model;
+    }
+
+    /**
+     * the features of a query from its conGraph and casual records:
+     * bias, #orderings, #events of the orderings, #atoms of the causal constraint,
+     * share of 'or' among its connectives, and share of its atoms over events of the
+     * orderings, contradicted by an ordering and implied by an ordering
+     */
+    static double[] features(String conGraph, String casual)
+    {
+        double[] f = new double[NUM_FEATURES];
+        //"a b" for each ordering a before b
+        HashSet<String> before = new HashSet<>();
+        HashSet<String> events = new HashSet<>();
+        String[] edges = conGraph.trim().isEmpty() ? new String[0] : conGraph.trim().split("\\s+");
+        int numEdges = edges.length / 3;
+        for (int e = 0; e < numEdges; e++) {
+            String a = edges[3 * e];
+            String b = edges[3 * e + 1];
+            events.add(a);
+            events.add(b);
+            before.add("-1".equals(edges[3 * e + 2]) ? a + " " + b : b + " " + a);
+        }
+
+        String[] tokens = casual.trim().isEmpty() ? new String[0] : casual.trim().split("\\s+");
+        int atoms = 0, ands = 0, ors = 0, known = 0, contradicted = 0, implied = 0;
+        for (int t = 0; t < tokens.length; t++) {
+            if ("and".equals(tokens[t])) {
+                ands++;
+            } else if ("or".equals(tokens[t])) {
+                ors++;
+            } else if (("<".equals(tokens[t]) || ">".equals(tokens[t])) && t + 2 < tokens.length) {
+                String a = tokens[t + 1].substring(1);
+                String b = tokens[t + 2].substring(1);
+                if (">".equals(tokens[t])) {
+                    String swap = a;
+                    a = b;
+                    b = swap;
+                }
+                atoms++;
+                if (events.contains(a) && events.contains(b)) {
+                    known++;
+                }
+                if (before.contains(b + " " + a)) {
+                    contradicted++;
+                } else if (before.contains(a + " " + b)) {
+                    implied++;
+                }
+                t += 2;
+            }
+        }
+        f[0] = 1;
+        f[1] = Math.log1p(numEdges);
+        f[2] = Math.log1p(events.size());
+        f[3] = Math.log1p(atoms);
+        f[4] = ands + ors == 0 ? 0 : (double) ors / (ands + ors);
+        f[5] = atoms == 0 ? 0 : (double) known / atoms;
+        f[6] = atoms == 0 ? 0 : (double) contradicted / atoms;
+        f[7] = atoms == 0 ? 0 : (double) implied / atoms;
+        return f;
+    }
+
+    /**
+     * @return the probability the query with the features is unsat
+     */
+    double score(double[] features)
+    {
+        double z = weights[0];
+        for (int i = 1; i < NUM_FEATURES; i++) {
+            z += weights[i] * (features[i] - mean[i]) / scale[i];
+        }
+        return 1 / (1 + Math.exp(-z));
+    }
+
+    double score(String conGraph, String casual)
+    {
+        numScored.incrementAndGet();
+        return score(features(conGraph, casual));
+    }
+
+    /**
+     * a query predicted unsat was skipped
+     */
+    static void skipped()
+    {
+        numSkipped.incrementAndGet();
+    }
+
+    /**
+     * shadow mode: the outcome of a scored query, solved in millis
+     */
+    static void solved(boolean predictedUnsat, boolean sat, long millis)
+    {
+        if (predictedUnsat && !sat) {
+            truePositives.incrementAndGet();
+            savedMillis.addAndGet(millis);
+        } else if (predictedUnsat) {
+            falsePositives.incrementAndGet();
+        } else if (!sat) {
+            falseNegatives.incrementAndGet();
+        }
+    }
+
+    /**
+     * one line for the exploration stats, none if no query was scored
+     */
+    public static String stats()
+    {
+        if (numScored.get() == 0) {
+            return "";
+        }
+        long tp = truePositives.get(), fp = falsePositives.get(), fn = falseNegatives.get();
+        if (!Configuration.unsatPredictShadow) {
+            return String.format("UNSAT PREDICTOR: %d queries scored, %d skipped as unsat",
+                    numScored.get(), numSkipped.get()) + "\n";
+        }
+        return String.format("UNSAT PREDICTOR (shadow): %d queries scored, precision %.3f, recall %.3f, "
+                        + "%d ms of solving saved, %d sat queries would be skipped",
+                numScored.get(), tp + fp == 0 ? 0.0 : (double) tp / (tp + fp),
+                tp + fn == 0 ? 0.0 : (double) tp / (tp + fn), savedMillis.get(), fp) + "\n";
+    }
+
+    static UnsatPredictor load(File file) throws IOException
+    {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        if (Integer.parseInt(properties.getProperty("features", "0").trim()) != NUM_FEATURES) {
+            throw new IOException("the model is not over the " + NUM_FEATURES + " features of UnsatPredictor");
+        }
+        return new UnsatPredictor(values(properties, "mean"), values(properties, "scale"), values(properties, "weights"));
+    }
+
+    void save(File file) throws IOException
+    {
+        Properties properties = new Properties();
+        properties.setProperty("features", String.valueOf(NUM_FEATURES));
+        properties.setProperty("mean", join(mean));
+        properties.setProperty("scale", join(scale));
+        properties.setProperty("weights", join(weights));
+        try (OutputStream out = new FileOutputStream(file)) {
+            properties.store(out, "unsat predictor: logistic regression over UnsatPredictor.features");
+        }
+    }
+
+    /**
+     * fit the model by gradient descent on the features of the queries and whether they are unsat
+     */
+    static UnsatPredictor train(List<double[]> features, List<Boolean> unsat)
+    {
+        int n = features.size();
+        double[] mean = new double[NUM_FEATURES];
+        double[] scale = new double[NUM_FEATURES];
+        for (double[] f : features) {
+            for (int i = 1; i < NUM_FEATURES; i++) {
+                mean[i] += f[i] / n;
+            }
+        }
+        for (double[] f : features) {
+            for (int i = 1; i < NUM_FEATURES; i++) {
+                scale[i] += (f[i] - mean[i]) * (f[i] - mean[i]) / n;
+            }
+        }
+        for (int i = 0; i < NUM_FEATURES; i++) {
+            scale[i] = scale[i] > 1e-12 ? Math.sqrt(scale[i]) : 1;
+        }
+        UnsatPredictor predictor = new UnsatPredictor(mean, scale, new double[NUM_FEATURES]);
+        double[] gradient = new double[NUM_FEATURES];
+        for (int epoch = 0; epoch < EPOCHS; epoch++) {
+            Arrays.fill(gradient, 0);
+            for (int k = 0; k < n; k++) {
+                double[] f = features.get(k);
+                double error = predictor.score(f) - (unsat.get(k) ? 1 : 0);
+                gradient[0] += error / n;
+                for (int i = 1; i < NUM_FEATURES; i++) {
+                    gradient[i] += error * (f[i] - mean[i]) / scale[i] / n;
+                }
+            }
+            for (int i = 0; i < NUM_FEATURES; i++) {
+                predictor.weights[i] -= RATE * (gradient[i] + (i == 0 ? 0 : L2 * predictor.weights[i]));
+            }
+        }
+        return predictor;
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        String base = args.length > 0 ? args[0] : ConstraintsFilterWithDataExtraction.basePath;
+        if (!base.endsWith(File.separator)) {
+            base += File.separator;
+        }
+        String out = args.length > 1 ? args[1] : Configuration.unsatModel;
+        if (out.isEmpty()) {
+            System.err.println("usage: UnsatPredictor [<dataset dir> [<model file>]], or set unsat_model");
+            System.exit(1);
+        }
+
+        //the records of a query are on the same line of the three files
+        List<String> conGraphs = DatasetSink.read(base + "conGraph.txt");
+        List<String> casuals = DatasetSink.read(base + "casual.txt");
+        List<String> tags = DatasetSink.read(base + "tag.txt");
+        int n = Math.min(conGraphs.size(), Math.min(casuals.size(), tags.size()));
+        if (n == 0) {
+            System.err.println("no dataset in " + base);
+            System.exit(1);
+        }
+        List<double[]> trainFeatures = new ArrayList<>(), testFeatures = new ArrayList<>();
+        List<Boolean> trainUnsat = new ArrayList<>(), testUnsat = new ArrayList<>();
+        for (int k = 0; k < n; k++) {
+            double[] f = features(conGraphs.get(k), casuals.get(k));
+            boolean unsat = "0".equals(tags.get(k).trim());
+            if (n >= 2 * HOLD_OUT && k % HOLD_OUT == HOLD_OUT - 1) {
+                testFeatures.add(f);
+                testUnsat.add(unsat);
+            } else {
+                trainFeatures.add(f);
+                trainUnsat.add(unsat);
+            }
+        }
+        UnsatPredictor predictor = train(trainFeatures, trainUnsat);
+        predictor.save(new File(out));
+        System.out.println(String.format("trained on %d queries, model saved to %s", trainFeatures.size(), out));
+        if (!testFeatures.isEmpty()) {
+            predictor.evaluate(testFeatures, testUnsat);
+        }
+    }
+
+    //precision and recall of the unsat predictions on the held out queries, at a few thresholds
+    private void evaluate(List<double[]> features, List<Boolean> unsat)
+    {
+        System.out.println(String.format("held out %d queries:", features.size()));
+        System.out.println(String.format("%10s %10s %10s %10s", "threshold", "precision", "recall", "#skipped"));
+        for (double threshold : new double[]{0.5, 0.7, 0.8, 0.9, 0.95, 0.99}) {
+            int tp = 0, fp = 0, fn = 0;
+            for (int k = 0; k < features.size(); k++) {
+                boolean predicted = score(features.get(k)) >= threshold;
+                if (predicted && unsat.get(k)) {
+                    tp++;
+                } else if (predicted) {
+                    fp++;
+                } else if (unsat.get(k)) {
+                    fn++;
+                }
+            }
+            System.out.println(String.format("%10.2f %10.3f %10.3f %10d", threshold,
+                    tp + fp == 0 ? 0.0 : (double) tp / (tp + fp), tp + fn == 0 ? 0.0 : (double) tp / (tp + fn), tp + fp));
+        }
+    }
+
+    private static double[] values(Properties properties, String key) throws IOException
+    {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            throw new IOException("no " + key + " in the model");
+        }
+        String[] parts = value.trim().split("\\s+");
+        if (parts.length != NUM_FEATURES) {
+            throw new IOException(key + " has " + parts.length + " values, not " + NUM_FEATURES);
+        }
+        double[] values = new double[NUM_FEATURES];
+        for (int i = 0; i < NUM_FEATURES; i++) {
+            values[i] = Double.parseDouble(parts[i]);
+        }
+        return values;
+    }
+
+    private static String join(double[] values)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (double value : values) {
+            sb.append(sb.length() == 0 ? "" : " ").append(value);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,157 @@
+package constraints.constraints;
+
+import constraints.config.Configuration;
+import constraints.formula.ConstraintSet;
+import constraints.formula.SmtLibWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A long-lived z3 process driven over stdin/stdout.
+ *
+ * The shared part of a query (the PO and sync constraints) is asserted once
+ * in an outer (push) scope and kept as long as the next query carries the same
+ * prelude; every pattern only sends its causal constraints inside an inner
+ * (push)/(pop) scope. This avoids forking z3 for each checkPattern call.
+ * z3 exits by itself once its stdin is closed, so a session left open dies
+ * together with the JVM.
+ */
+public class Z3Session
+{
+    public static final String MODE_FILE = "file";
+    public static final String MODE_INTERACTIVE = "interactive";
+
+    //printed by z3 after the answer of each query, marks the end of the output
+    private static final String END_MARKER = "__MCR_QUERY_END__";
+
+    private final List<String> CMD;
+
+    private Process process;
+    //the prelude bytes go to the pipe as they are, the rest through toSolver
+    private OutputStream rawToSolver;
+    private BufferedWriter toSolver;
+    private BufferedReader fromSolver;
+
+    //the prelude currently asserted in the outer scope
+    private Prelude currentPrelude;
+
+    //for statistics
+    public static final AtomicLong numQueries = new AtomicLong();
+    public static final AtomicLong numPreludeReuse = new AtomicLong();
+    public static final AtomicLong numRestarts = new AtomicLong();
+
+    public Z3Session(Configuration config)
+    {
+        CMD = new ArrayList<>();
+        CMD.add("z3");
+        CMD.add("-smt2");
+        CMD.add("-in");
+        //-T is a wall clock limit for the whole process, use the per query soft timeout instead
+        CMD.add("-t:" + config.solver_timeout * 1000);
+    }
+
+    private void start() throws IOException
+    {
+        ProcessBuilder processBuilder = new ProcessBuilder(CMD);
+        processBuilder.redirectErrorStream(true);
+        process = processBuilder.start();
+        rawToSolver = process.getOutputStream();
+        toSolver = new BufferedWriter(new OutputStreamWriter(rawToSolver, StandardCharsets.UTF_8));
+        fromSolver = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+
+        toSolver.write("(set-option :produce-unsat-cores true)\n");
+        toSolver.write("(set-logic QF_IDL)\n");
+        currentPrelude = null;
+    }
+
+    public boolean isAlive()
+    {
+        return process != null && process.isAlive();
+    }
+
+    /**
+     * solve prelude + causal in the running solver
+     *
+     * @param prelude the shared sync and PO assertions
+     * @param causalConstraints the pattern specific assertions
+     * @return the raw solver answer, in the same shape as the output of z3 in the file mode
+     * @throws IOException if the solver died, the session is closed and must be restarted
+     */
+    synchronized String solve(Prelude prelude, ConstraintSet causalConstraints) throws IOException
+    {
+        if (!isAlive()) {
+            if (process != null) {
+                numRestarts.incrementAndGet();
+            }
+            start();
+        }
+
+        try {
+            //a prelude taken from the cache of the engine is the same object, one rebuilt has the same text
+            if (prelude == currentPrelude
+                    || currentPrelude != null && Arrays.equals(prelude.assertions(), currentPrelude.assertions())) {
+                numPreludeReuse.incrementAndGet();
+            } else {
+                if (currentPrelude != null) {
+                    toSolver.write("(pop 1)\n");
+                }
+                toSolver.write("(push 1)\n");
+                toSolver.flush();
+                rawToSolver.write(prelude.declarations());
+                rawToSolver.write(prelude.assertions());
+                currentPrelude = prelude;
+            }
+
+            LinkedHashSet<Long> vars = new LinkedHashSet<>();
+            causalConstraints.collectVariables(vars);
+            vars.removeAll(currentPrelude.vars());
+            StringBuilder sb = new StringBuilder("(push 1)\n");
+            SmtLibWriter.declare(vars, sb);
+            SmtLibWriter.append(causalConstraints, sb);
+            sb.append("(check-sat)\n(get-model)\n(get-unsat-core)\n(pop 1)\n");
+            sb.append("(echo \"").append(END_MARKER).append("\")\n");
+            toSolver.write(sb.toString());
+            toSolver.flush();
+            numQueries.incrementAndGet();
+
+            StringBuilder out = new StringBuilder();
+            String line = fromSolver.readLine();
+            while (line != null && !line.trim().equals(END_MARKER)) {
+                out.append(line).append("\n");
+                line = fromSolver.readLine();
+            }
+            if (line == null) {
+                throw new IOException("z3 session terminated unexpectedly");
+            }
+            return out.toString();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public synchronized void close()
+    {
+        if (process != null) {
+            try {
+                toSolver.write("(exit)\n");
+                toSolver.flush();
+            } catch (IOException e) {
+                //the solver is already gone
+            }
+            process.destroy();
+        }
+        currentPrelude = null;
+    }
+}
@@ -0,0 +1,99 @@
+package constraints.formula;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The assertions of a group of constraints (PO, sync, causal) in the order
+ * they are built. An assertion is named INTER_<index> when it takes part in
+ * the unsat cores, unnamed otherwise.
+ */
+public class ConstraintSet implements Iterable<ConstraintSet.Assertion> {
+
+    public static final class Assertion {
+
+        //null: unnamed
+        public final String name;
+        public final Formula formula;
+
+        public Assertion(String name, Formula formula) {
+            this.name = name;
+            this.formula = formula;
+        }
+    }
+
+    private final ArrayList<Assertion> assertions = new ArrayList<>();
+
+    public void add(String name, Formula formula) {
+        assertions.add(new Assertion(name, formula));
+    }
+
+    public void addAll(ConstraintSet other) {
+        assertions.addAll(other.assertions);
+    }
+
+    public List<Assertion> getAssertions() {
+        return assertions;
+    }
+
+    public int size() {
+        return assertions.size();
+    }
+
+    public boolean isEmpty() {
+        return assertions.isEmpty();
+    }
+
+    @Override
+    public Iterator<Assertion> iterator() {
+        return assertions.iterator();
+    }
+
+    /**
+     * add the GIDs of the events in the assertions to vars, in order of appearance
+     */
+    public void collectVariables(final Collection<Long> vars) {
+        Formula.Visitor<Void> collector = new Formula.Visitor<Void>() {
+            @Override
+            public Void visitOrder(Formula.Order order) {
+                vars.add(order.gid1);
+                vars.add(order.gid2);
+                return null;
+            }
+
+            @Override
+            public Void visitAnd(Formula.And and) {
+                and.left.accept(this);
+                and.right.accept(this);
+                return null;
+            }
+
+            @Override
+            public Void visitOr(Formula.Or or) {
+                or.left.accept(this);
+                or.right.accept(this);
+                return null;
+            }
+
+            @Override
+            public Void visitTrue() {
+                return null;
+            }
+        };
+        for (Assertion assertion : assertions) {
+            assertion.formula.accept(collector);
+        }
+    }
+
+    /**
+     * @return the assertions in SMT-LIB
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        SmtLibWriter.append(this, sb);
+        return sb.toString();
+    }
+}
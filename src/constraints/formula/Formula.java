@@ -0,0 +1,155 @@
+package constraints.formula;
+
+import java.util.List;
+
+/**
+ * A constraint over the order of the events of a trace, as the engine builds
+ * them: ordering atoms (< x1 x2) / (> x1 x2) over event GIDs, combined with
+ * binary and / or, and the constant true.
+ *
+ * The formulas are immutable, the SMT-LIB text is produced by SmtLibWriter,
+ * other consumers walk them with a Visitor.
+ */
+public abstract class Formula {
+
+    public static final Formula TRUE = new True();
+
+    public interface Visitor<R> {
+
+        R visitOrder(Order order);
+
+        R visitAnd(And and);
+
+        R visitOr(Or or);
+
+        R visitTrue();
+    }
+
+    public abstract <R> R accept(Visitor<R> visitor);
+
+    /**
+     * (< x<gid1> x<gid2>)
+     */
+    public static Formula less(long gid1, long gid2) {
+        return new Order(Order.LESS, gid1, gid2);
+    }
+
+    /**
+     * (> x<gid1> x<gid2>)
+     */
+    public static Formula greater(long gid1, long gid2) {
+        return new Order(Order.GREATER, gid1, gid2);
+    }
+
+    public static Formula and(Formula left, Formula right) {
+        return new And(left, right);
+    }
+
+    public static Formula or(Formula left, Formula right) {
+        return new Or(left, right);
+    }
+
+    /**
+     * (and f_1 (and f_2 ... f_n)), null if formulas is empty
+     */
+    public static Formula conjunction(List<Formula> formulas) {
+        Formula result = null;
+        for (int i = formulas.size() - 1; i >= 0; i--) {
+            result = result == null ? formulas.get(i) : and(formulas.get(i), result);
+        }
+        return result;
+    }
+
+    /**
+     * (or f_1 (or f_2 ... f_n)), null if formulas is empty
+     */
+    public static Formula disjunction(List<Formula> formulas) {
+        Formula result = null;
+        for (int i = formulas.size() - 1; i >= 0; i--) {
+            result = result == null ? formulas.get(i) : or(formulas.get(i), result);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        SmtLibWriter.append(this, sb);
+        return sb.toString();
+    }
+
+    public static final class Order extends Formula {
+
+        public static final char LESS = '<';
+        public static final char GREATER = '>';
+
+        public final char op;
+        public final long gid1;
+        public final long gid2;
+
+        private Order(char op, long gid1, long gid2) {
+            this.op = op;
+            this.gid1 = gid1;
+            this.gid2 = gid2;
+        }
+
+        /**
+         * @return the GID of the event the atom orders first
+         */
+        public long before() {
+            return op == LESS ? gid1 : gid2;
+        }
+
+        /**
+         * @return the GID of the event the atom orders last
+         */
+        public long after() {
+            return op == LESS ? gid2 : gid1;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitOrder(this);
+        }
+    }
+
+    public static final class And extends Formula {
+
+        public final Formula left;
+        public final Formula right;
+
+        private And(Formula left, Formula right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitAnd(this);
+        }
+    }
+
+    public static final class Or extends Formula {
+
+        public final Formula left;
+        public final Formula right;
+
+        private Or(Formula left, Formula right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitOr(this);
+        }
+    }
+
+    private static final class True extends Formula {
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitTrue();
+        }
+    }
+}
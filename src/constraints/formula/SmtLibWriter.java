@@ -0,0 +1,75 @@
+package constraints.formula;
+
+/**
+ * SMT-LIB (QF_IDL) form of the constraints, the events are the integer
+ * variables x<GID>.
+ */
+public class SmtLibWriter {
+
+    public static String variable(long gid) {
+        return "x" + gid;
+    }
+
+    public static void append(Formula formula, final StringBuilder sb) {
+        formula.accept(new Formula.Visitor<Void>() {
+            @Override
+            public Void visitOrder(Formula.Order order) {
+                sb.append('(').append(order.op).append(" x").append(order.gid1).append(" x").append(order.gid2).append(" )");
+                return null;
+            }
+
+            @Override
+            public Void visitAnd(Formula.And and) {
+                sb.append("(and ");
+                and.left.accept(this);
+                sb.append(' ');
+                and.right.accept(this);
+                sb.append(" )");
+                return null;
+            }
+
+            @Override
+            public Void visitOr(Formula.Or or) {
+                sb.append("(or ");
+                or.left.accept(this);
+                sb.append(' ');
+                or.right.accept(this);
+                sb.append(" )");
+                return null;
+            }
+
+            @Override
+            public Void visitTrue() {
+                sb.append("true");
+                return null;
+            }
+        });
+    }
+
+    public static void append(ConstraintSet.Assertion assertion, StringBuilder sb) {
+        if (assertion.name == null) {
+            sb.append("(assert ");
+            append(assertion.formula, sb);
+            sb.append(")\n");
+        } else {
+            sb.append("(assert (! ");
+            append(assertion.formula, sb);
+            sb.append(" :named ").append(assertion.name).append("))\n");
+        }
+    }
+
+    public static void append(ConstraintSet constraints, StringBuilder sb) {
+        for (ConstraintSet.Assertion assertion : constraints) {
+            append(assertion, sb);
+        }
+    }
+
+    /**
+     * (declare-const x<gid> Int) for each of gids
+     */
+    public static void declare(Iterable<Long> gids, StringBuilder sb) {
+        for (long gid : gids) {
+            sb.append("(declare-const x").append(gid).append(" Int)\n");
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package constraints.graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * Reachability over a happens-before graph whose events are covered by chains,
+ * i.e. the events of a thread in program order, plus cross-chain edges
+ * (start/join/wait/notify).
+ *
+ * For every event it keeps, per chain, the latest position of that chain which
+ * reaches the event. a reaches b iff pos(a) <= latest[b][chain(a)], so a query
+ * is two array reads. Memory is O(#events * #chains).
+ *
+ * Built once, after all the edges are known; it cannot be extended.
+ */
+public class ChainReachabilityIndex {
+
+	private final long minGID;
+	private final int numChains;
+	//indexed by gid - minGID, -1 if the gid is not in the graph
+	private final int[] chainOf;
+	private final int[] posOf;
+	//latest[node * numChains + c]: latest position of chain c reaching node, -1 for none
+	private final int[] latest;
+
+	private ChainReachabilityIndex(long minGID, int numChains, int[] chainOf, int[] posOf, int[] latest)
+	{
+		this.minGID = minGID;
+		this.numChains = numChains;
+		this.chainOf = chainOf;
+		this.posOf = posOf;
+		this.latest = latest;
+	}
+
+	public boolean canReach(long gid1, long gid2)
+	{
+		long i1 = gid1 - minGID;
+		long i2 = gid2 - minGID;
+		if (i1 < 0 || i2 < 0 || i1 >= chainOf.length || i2 >= chainOf.length)
+			return false;
+		int c1 = chainOf[(int) i1];
+		if (c1 < 0 || chainOf[(int) i2] < 0)
+			return false;
+		return latest[(int) i2 * numChains + c1] >= posOf[(int) i1];
+	}
+
+	public int getNumChains()
+	{
+		return numChains;
+	}
+
+	public static class Builder {
+
+		private final ArrayList<long[]> chains = new ArrayList<long[]>();
+		private long[] edges = new long[64];
+		private int numEdges = 0;
+
+		/**
+		 * @param gids the events of one chain, in order
+		 */
+		public void addChain(long[] gids)
+		{
+			chains.add(gids);
+		}
+
+		public void addEdge(long gid1, long gid2)
+		{
+			if (2 * numEdges + 2 > edges.length)
+				edges = Arrays.copyOf(edges, edges.length * 2);
+			edges[2 * numEdges] = gid1;
+			edges[2 * numEdges + 1] = gid2;
+			numEdges++;
+		}
+
+		/**
+		 * add the same graph to a DFS based engine,
+		 * used when the index would be too large
+		 */
+		public void fill(ReachabilityEngine engine)
+		{
+			for (long[] chain : chains)
+				for (int i = 1; i < chain.length; i++)
+					engine.addEdge(chain[i - 1], chain[i]);
+			for (int e = 0; e < numEdges; e++)
+				engine.addEdge(edges[2 * e], edges[2 * e + 1]);
+		}
+
+		/**
+		 * @return the index, or null if it does not fit in memory or the graph has a cycle
+		 */
+		public ChainReachabilityIndex build()
+		{
+			long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+			for (long[] chain : chains)
+				for (long gid : chain) {
+					min = Math.min(min, gid);
+					max = Math.max(max, gid);
+				}
+			for (int e = 0; e < 2 * numEdges; e++) {
+				min = Math.min(min, edges[e]);
+				max = Math.max(max, edges[e]);
+			}
+			if (min > max)
+				return new ChainReachabilityIndex(0, 0, new int[0], new int[0], new int[0]);
+			if (max - min + 1 > Integer.MAX_VALUE - 8)
+				return null;
+
+			int n = (int) (max - min + 1);
+			int[] chainOf = new int[n];
+			int[] posOf = new int[n];
+			Arrays.fill(chainOf, -1);
+
+			int k = 0;
+			for (long[] chain : chains) {
+				for (int i = 0; i < chain.length; i++) {
+					int v = (int) (chain[i] - min);
+					chainOf[v] = k;
+					posOf[v] = i;
+				}
+				k++;
+			}
+			//events only known from the edges become chains of their own
+			ArrayList<long[]> allChains = new ArrayList<long[]>(chains);
+			for (int e = 0; e < 2 * numEdges; e++) {
+				int v = (int) (edges[e] - min);
+				if (chainOf[v] < 0) {
+					chainOf[v] = k++;
+					posOf[v] = 0;
+					allChains.add(new long[]{edges[e]});
+				}
+			}
+
+			if ((long) n * k > Integer.MAX_VALUE - 8)
+				return null;
+
+			//cross edges in CSR form, and in-degrees for the topological order
+			int[] inDegree = new int[n];
+			int[] outStart = new int[n + 1];
+			for (int e = 0; e < numEdges; e++) {
+				outStart[(int) (edges[2 * e] - min) + 1]++;
+				inDegree[(int) (edges[2 * e + 1] - min)]++;
+			}
+			for (int v = 0; v < n; v++)
+				outStart[v + 1] += outStart[v];
+			int[] outFill = Arrays.copyOf(outStart, n);
+			int[] outTarget = new int[numEdges];
+			for (int e = 0; e < numEdges; e++)
+				outTarget[outFill[(int) (edges[2 * e] - min)]++] = (int) (edges[2 * e + 1] - min);
+			for (long[] chain : allChains)
+				for (int i = 1; i < chain.length; i++)
+					inDegree[(int) (chain[i] - min)]++;
+
+			int[] latest = new int[n * k];
+			Arrays.fill(latest, -1);
+
+			int[] queue = new int[n];
+			int head = 0, tail = 0;
+			int numNodes = 0;
+			for (int v = 0; v < n; v++) {
+				if (chainOf[v] >= 0) {
+					numNodes++;
+					if (inDegree[v] == 0)
+						queue[tail++] = v;
+				}
+			}
+			while (head < tail) {
+				int v = queue[head++];
+				int c = chainOf[v];
+				int base = v * k;
+				if (latest[base + c] < posOf[v])
+					latest[base + c] = posOf[v];
+
+				long[] chain = allChains.get(c);
+				int p = posOf[v];
+				if (p + 1 < chain.length)
+					tail = propagate(v, (int) (chain[p + 1] - min), k, latest, inDegree, queue, tail);
+				for (int e = outStart[v]; e < outStart[v + 1]; e++)
+					tail = propagate(v, outTarget[e], k, latest, inDegree, queue, tail);
+			}
+			if (tail != numNodes)
+				return null;//cycle
+
+			return new ChainReachabilityIndex(min, k, chainOf, posOf, latest);
+		}
+
+		private static int propagate(int from, int to, int k, int[] latest, int[] inDegree, int[] queue, int tail)
+		{
+			int fb = from * k, tb = to * k;
+			for (int c = 0; c < k; c++)
+				if (latest[fb + c] > latest[tb + c])
+					latest[tb + c] = latest[fb + c];
+			if (--inDegree[to] == 0)
+				queue[tail++] = to;
+			return tail;
+		}
+	}
+}
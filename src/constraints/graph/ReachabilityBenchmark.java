@@ -0,0 +1,103 @@
+package constraints.graph;
+
+import java.util.Random;
+
+/*
+ * Compare ChainReachabilityIndex against ReachabilityEngine on synthetic traces:
+ * T threads in program order plus random cross thread edges going forward in time,
+ * the way start/join/wait/notify edges do.
+ *
+ * usage: ReachabilityBenchmark [#events ...]   (default 10k 100k 1M)
+ */
+public class ReachabilityBenchmark {
+
+	private static final int THREADS = 8;
+	private static final int CROSS_EDGE_PERCENT = 1;
+	private static final int QUERIES = 100000;
+	//the DFS engine can take seconds per negative query on big graphs, bound its run time
+	private static final int DFS_QUERIES = 2000;
+	private static final long DFS_BUDGET_NANOS = 10000000000L;
+
+	public static void main(String[] args) {
+
+		int[] sizes = {10000, 100000, 1000000};
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++)
+				sizes[i] = Integer.parseInt(args[i]);
+		}
+
+		System.out.println(String.format("%10s %14s %14s %16s %16s %10s",
+				"#events", "index build", "dfs build", "index query", "dfs query", "agree"));
+		for (int n : sizes)
+			run(n);
+	}
+
+	private static void run(int n) {
+
+		Random ran = new Random(n);
+
+		//gid i belongs to a random thread, gids are in execution order
+		int[] threadOf = new int[n + 1];
+		int[] threadSize = new int[THREADS];
+		for (int gid = 1; gid <= n; gid++) {
+			threadOf[gid] = ran.nextInt(THREADS);
+			threadSize[threadOf[gid]]++;
+		}
+		long[][] chains = new long[THREADS][];
+		int[] fill = new int[THREADS];
+		for (int t = 0; t < THREADS; t++)
+			chains[t] = new long[threadSize[t]];
+		for (int gid = 1; gid <= n; gid++)
+			chains[threadOf[gid]][fill[threadOf[gid]]++] = gid;
+
+		int numCross = n * CROSS_EDGE_PERCENT / 100;
+		long[] from = new long[numCross], to = new long[numCross];
+		for (int e = 0; e < numCross; e++) {
+			long a = 1 + ran.nextInt(n - 1);
+			long b = a + 1 + ran.nextInt((int) Math.min(1000, n - a));
+			from[e] = a;
+			to[e] = b;
+		}
+
+		long ts = System.nanoTime();
+		ChainReachabilityIndex.Builder builder = new ChainReachabilityIndex.Builder();
+		for (long[] chain : chains)
+			builder.addChain(chain);
+		for (int e = 0; e < numCross; e++)
+			builder.addEdge(from[e], to[e]);
+		ChainReachabilityIndex index = builder.build();
+		long indexBuild = System.nanoTime() - ts;
+
+		ts = System.nanoTime();
+		ReachabilityEngine engine = new ReachabilityEngine();
+		builder.fill(engine);
+		long dfsBuild = System.nanoTime() - ts;
+
+		long[] q1 = new long[QUERIES], q2 = new long[QUERIES];
+		for (int i = 0; i < QUERIES; i++) {
+			q1[i] = 1 + ran.nextInt(n);
+			q2[i] = 1 + ran.nextInt(n);
+		}
+
+		int reachable = 0;
+		ts = System.nanoTime();
+		for (int i = 0; i < QUERIES; i++)
+			if (index.canReach(q1[i], q2[i]))
+				reachable++;
+		long indexQuery = (System.nanoTime() - ts) / QUERIES;
+
+		int agree = 0, dfsQueries = 0;
+		ts = System.nanoTime();
+		while (dfsQueries < DFS_QUERIES && System.nanoTime() - ts < DFS_BUDGET_NANOS) {
+			if (engine.canReach(q1[dfsQueries], q2[dfsQueries]) == index.canReach(q1[dfsQueries], q2[dfsQueries]))
+				agree++;
+			dfsQueries++;
+		}
+		long dfsQuery = (System.nanoTime() - ts) / dfsQueries;
+
+		System.out.println(String.format("%10d %12dms %12dms %13dns %13dns %5d/%d   (%d%% reachable)",
+				n, indexBuild / 1000000, dfsBuild / 1000000, indexQuery, dfsQuery,
+				agree, dfsQueries, 100L * reachable / QUERIES));
+	}
+}
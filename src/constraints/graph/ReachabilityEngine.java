@@ -42,12 +42,11 @@ public class ReachabilityEngine {
 	
 	HashMap<Long,Long> idMap = new HashMap<Long,Long>();
 	
-	private int M = 100000;//five Os
 	HashSet<Long> cachedNoReachSet = new HashSet<Long>();
 
 	HashMap<Long,HashSet<Long>> edgeSetMap = new HashMap<Long,HashSet<Long>>();
 	
-	public void addEdge(long gid1, long gid2)
+	public synchronized void addEdge(long gid1, long gid2)
 	{
 		long i1 = getId(gid1);
 //		if (i1==3) {
@@ -71,7 +70,7 @@ public class ReachabilityEngine {
 		s.add(i2);
 	}
 	
-	public boolean deleteEdge(long i1, long i2)
+	public synchronized boolean deleteEdge(long i1, long i2)
 	{
 		i1 = getId(i1);
 		i2 = getId(i2);
@@ -181,7 +180,15 @@ public class ReachabilityEngine {
 		}
 		return s.contains(i2);
 	}
-	public boolean canReach(long i1, long i2)
+
+	//ids are assigned by a counter, so they fit in 32 bits
+	private static long signature(long i1, long i2)
+	{
+		return (i1 << 32) | i2;
+	}
+
+	//synchronized: the DFS updates the edge and no-reach caches, and the solver workers share this engine
+	public synchronized boolean canReach(long i1, long i2)
 	{
 try{
 		//must have corresponding real id
@@ -192,7 +199,7 @@ try{
 		i2 = idMap.get(i2);
 		
 		//return reachmx[i1][i2];
-		long SIG = i1*M+i2;
+		long SIG = signature(i1, i2);
 		if(cachedNoReachSet.contains(SIG))
 			return false;
 		else if(hasEdge(i1,i2))
@@ -232,7 +239,7 @@ try{
 					{
 						long i1__ = sIter.next();									
 						//System.out.print("DEBUG: "+i1+" "+i1_+" "+ i1__+"\n");
-						long sig = i1__*M+i2;
+						long sig = signature(i1__, i2);
 						if(!visitedNodes.contains(i1__)&&!cachedNoReachSet.contains(sig)) 
 							stack.push(i1__);
 					}
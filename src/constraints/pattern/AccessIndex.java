@@ -0,0 +1,473 @@
+package constraints.pattern;
+
+import constraints.trace.AbstractNode;
+import constraints.trace.IMemNode;
+import constraints.trace.ReadNode;
+import constraints.trace.Trace;
+import constraints.trace.WriteNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * Positions of the reads and writes of a trace, thread by thread, for the
+ * checks the length 3/4 patterns are composed with.
+ *
+ * For every event of a thread it keeps the position of the previous and next
+ * access and write to the same address in the thread and of the next write,
+ * so that the checks of PatternUtil (checkIfTwoEventsAdjon, checkIfContainsWrite,
+ * checkIfTwoPatternsAdjon) and those of the covered patterns of PatternAnalysis
+ * do not scan the thread. A Lookup indexes a list of length 2 patterns by their
+ * nodes, the patterns a pattern can be composed with are looked up from its
+ * nodes instead of trying every pair.
+ *
+ * The events of a thread are in GID order, as the checks compare GIDs.
+ */
+class AccessIndex {
+    private final HashMap<Long,Integer> slots = new HashMap<>();
+    private final AbstractNode[][] events;
+    private final long[][] gids;
+    //previous/next access and write to the same address in the thread, -1/length if none
+    private final int[][] prevAccess;
+    private final int[][] nextAccess;
+    private final int[][] prevSameWrite;
+    private final int[][] nextSameWrite;
+    //first write at or after the position, length if none
+    private final int[][] nextWrite;
+
+    AccessIndex(Trace trace) {
+        int numThreads = trace.getThreadNodesMap().size();
+        events = new AbstractNode[numThreads][];
+        gids = new long[numThreads][];
+        prevAccess = new int[numThreads][];
+        nextAccess = new int[numThreads][];
+        prevSameWrite = new int[numThreads][];
+        nextSameWrite = new int[numThreads][];
+        nextWrite = new int[numThreads][];
+
+        for (Vector<AbstractNode> threadNodes : trace.getThreadNodesMap().values()) {
+            int slot = slots.size();
+            AbstractNode[] nodes = threadNodes.toArray(new AbstractNode[0]);
+            if (nodes.length == 0) {
+                continue;
+            }
+            slots.put(nodes[0].getTid(), slot);
+            if (!inGidOrder(nodes)) {
+                Arrays.sort(nodes, Comparator.comparingLong(AbstractNode::getGID));
+            }
+            int n = nodes.length;
+            events[slot] = nodes;
+            gids[slot] = new long[n];
+            prevAccess[slot] = new int[n];
+            nextAccess[slot] = new int[n];
+            prevSameWrite[slot] = new int[n];
+            nextSameWrite[slot] = new int[n];
+            nextWrite[slot] = new int[n + 1];
+
+            HashMap<String,Integer> lastAccess = new HashMap<>();
+            HashMap<String,Integer> lastWrite = new HashMap<>();
+            for (int p = 0; p < n; p++) {
+                gids[slot][p] = nodes[p].getGID();
+                prevAccess[slot][p] = -1;
+                nextAccess[slot][p] = n;
+                prevSameWrite[slot][p] = -1;
+                nextSameWrite[slot][p] = n;
+                if (isAccess(nodes[p])) {
+                    String addr = ((IMemNode) nodes[p]).getAddr();
+                    Integer prev = lastAccess.put(addr, p);
+                    if (prev != null) {
+                        prevAccess[slot][p] = prev;
+                        nextAccess[slot][prev] = p;
+                    }
+                    Integer write = lastWrite.get(addr);
+                    if (write != null) {
+                        prevSameWrite[slot][p] = write;
+                    }
+                    if (nodes[p].getType() == AbstractNode.TYPE.WRITE) {
+                        lastWrite.put(addr, p);
+                    }
+                }
+            }
+            HashMap<String,Integer> nextWriteTo = new HashMap<>();
+            for (int p = n - 1; p >= 0; p--) {
+                if (isAccess(nodes[p])) {
+                    String addr = ((IMemNode) nodes[p]).getAddr();
+                    Integer write = nextWriteTo.get(addr);
+                    if (write != null) {
+                        nextSameWrite[slot][p] = write;
+                    }
+                    if (nodes[p].getType() == AbstractNode.TYPE.WRITE) {
+                        nextWriteTo.put(addr, p);
+                    }
+                }
+            }
+            nextWrite[slot][n] = n;
+            for (int p = n - 1; p >= 0; p--) {
+                nextWrite[slot][p] = nodes[p].getType() == AbstractNode.TYPE.WRITE ? p : nextWrite[slot][p + 1];
+            }
+        }
+    }
+
+    /**
+     * same as PatternUtil.checkIfTwoEventsAdjon
+     */
+    boolean adjacent(AbstractNode startNode, AbstractNode endNode) {
+        if (!((IMemNode) startNode).getAddr().equals(((IMemNode) endNode).getAddr())
+                || startNode.getGID() >= endNode.getGID()
+                || startNode.getTid() != endNode.getTid()) {
+            return false;
+        }
+        int slot = slot(startNode);
+        return nextAccess[slot][position(startNode)] >= position(endNode);
+    }
+
+    /**
+     * same as PatternUtil.checkIfContainsWrite: a write of the thread of
+     * endNode, to any address, between the GIDs of the two events
+     */
+    boolean containsWrite(AbstractNode startNode, AbstractNode endNode) {
+        if (!((IMemNode) startNode).getAddr().equals(((IMemNode) endNode).getAddr())
+                || startNode.getGID() >= endNode.getGID()) {
+            return true;
+        }
+        int slot = slot(endNode);
+        int after = startNode.getTid() == endNode.getTid()
+                ? position(startNode) + 1
+                : upperBound(gids[slot], startNode.getGID());
+        return nextWrite[slot][after] < position(endNode);
+    }
+
+    /**
+     * same as PatternUtil.checkIfTwoPatternsAdjon
+     */
+    boolean patternsAdjacent(Pattern pattern1, Pattern pattern2) {
+        if (pattern1.getNodes().size() != 2 || pattern2.getNodes().size() != 2) {
+            return false;
+        }
+        for (AbstractNode p1Node : pattern1.getNodes()) {
+            for (AbstractNode p2Node : pattern2.getNodes()) {
+                if (p1Node.getTid() == p2Node.getTid()) {
+                    int slot = slot(p1Node);
+                    int p1 = position(p1Node);
+                    int p2 = position(p2Node);
+                    int start = Math.min(p1, p2);
+                    int end = Math.max(p1, p2);
+                    if (accessBetween(slot, p1, start, end) || accessBetween(slot, p2, start, end)) {
+                        return false;
+                    }
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * same as the check of the covered patterns (PatternAnalysis): a write to
+     * the address in the thread of startNode or of endNode between the two events
+     */
+    boolean containsWriteTo(AbstractNode startNode, AbstractNode endNode) {
+        if (!((IMemNode) startNode).getAddr().equals(((IMemNode) endNode).getAddr())
+                || startNode.getGID() >= endNode.getGID()) {
+            return true;
+        }
+        int startSlot = slot(startNode);
+        int write = nextSameWrite[startSlot][position(startNode)];
+        if (write < events[startSlot].length && gids[startSlot][write] < endNode.getGID()) {
+            return true;
+        }
+        int endSlot = slot(endNode);
+        write = prevSameWrite[endSlot][position(endNode)];
+        return write >= 0 && gids[endSlot][write] > startNode.getGID();
+    }
+
+    /**
+     * same as patternsAdjacent, with only the writes between the events counted,
+     * the check of the covered patterns (PatternAnalysis)
+     */
+    boolean patternsAdjacentByWrites(Pattern pattern1, Pattern pattern2) {
+        if (pattern1.getNodes().size() != 2 || pattern2.getNodes().size() != 2) {
+            return false;
+        }
+        for (AbstractNode p1Node : pattern1.getNodes()) {
+            for (AbstractNode p2Node : pattern2.getNodes()) {
+                if (p1Node.getTid() == p2Node.getTid()) {
+                    int slot = slot(p1Node);
+                    int p1 = position(p1Node);
+                    int p2 = position(p2Node);
+                    int start = Math.min(p1, p2);
+                    int end = Math.max(p1, p2);
+                    if (writeBetween(slot, p1, start, end) || writeBetween(slot, p2, start, end)) {
+                        return false;
+                    }
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    Lookup lookup(List<Pattern> pattern2s) {
+        return new Lookup(pattern2s);
+    }
+
+    /**
+     * a list of length 2 patterns indexed by their nodes
+     */
+    class Lookup {
+        //first node GID -> second node GID -> index
+        private final HashMap<Long,HashMap<Long,Integer>> byNodes = new HashMap<>();
+        //positions of the first/second nodes of the patterns in each thread, sorted
+        private final int[][] firsts;
+        private final int[][] seconds;
+        private final List<Pattern> pattern2s;
+
+        private Lookup(List<Pattern> pattern2s) {
+            this.pattern2s = pattern2s;
+            ArrayList<ArrayList<Integer>> firstPositions = new ArrayList<>();
+            ArrayList<ArrayList<Integer>> secondPositions = new ArrayList<>();
+            for (int slot = 0; slot < events.length; slot++) {
+                firstPositions.add(new ArrayList<Integer>());
+                secondPositions.add(new ArrayList<Integer>());
+            }
+            for (int i = 0; i < pattern2s.size(); i++) {
+                List<AbstractNode> nodes = pattern2s.get(i).getNodes();
+                if (nodes.size() != 2) {
+                    continue;
+                }
+                HashMap<Long,Integer> bySecond = byNodes.get(nodes.get(0).getGID());
+                if (bySecond == null) {
+                    bySecond = new HashMap<>();
+                    byNodes.put(nodes.get(0).getGID(), bySecond);
+                    firstPositions.get(slot(nodes.get(0))).add(position(nodes.get(0)));
+                }
+                if (bySecond.putIfAbsent(nodes.get(1).getGID(), i) == null) {
+                    secondPositions.get(slot(nodes.get(1))).add(position(nodes.get(1)));
+                }
+            }
+            firsts = sortedDistinct(firstPositions);
+            seconds = sortedDistinct(secondPositions);
+        }
+
+        /**
+         * @return the indexes after i of the patterns pattern i can make a length 3
+         * (PatternUtil.tryConstructFalconPattern) or 4 (tryConstructUnicornPattern)
+         * pattern with, in increasing order. The other patterns after i make none.
+         */
+        int[] candidates(int i) {
+            List<AbstractNode> nodes = pattern2s.get(i).getNodes();
+            AbstractNode node1 = nodes.get(0);
+            int slot1 = slot(node1);
+            int a = position(node1);
+
+            Found found = new Found(i);
+            //falcon: node2 then the next access to the address in the thread of node1
+            if (nextAccess[slot1][a] < events[slot1].length) {
+                found.add(nodes.get(1), events[slot1][nextAccess[slot1][a]]);
+            }
+            //unicorn: node3 next to node2 and node4 next to node1 on another address Y,
+            //no access to the address or to Y between them
+            addUnicorns(nodes, prevAccess, nextAccess, found);
+            return found.sorted();
+        }
+
+        /**
+         * same as candidates, for the covered patterns of PatternAnalysis:
+         * only the writes between the events are counted
+         */
+        int[] coveredCandidates(int i) {
+            List<AbstractNode> nodes = pattern2s.get(i).getNodes();
+            AbstractNode node1 = nodes.get(0);
+            int slot1 = slot(node1);
+            int a = position(node1);
+
+            Found found = new Found(i);
+            //falcon: node2 then an access to the address in the thread of node1 up to its next write
+            for (int q = nextAccess[slot1][a]; q < events[slot1].length; q = nextAccess[slot1][q]) {
+                found.add(nodes.get(1), events[slot1][q]);
+                if (events[slot1][q].getType() == AbstractNode.TYPE.WRITE) {
+                    break;
+                }
+            }
+            addUnicorns(nodes, prevSameWrite, nextSameWrite, found);
+            return found.sorted();
+        }
+
+        /**
+         * add the patterns (node3, node4) with node3 next to node2 and node4 next to
+         * node1 on another address, next by the links prev/next
+         */
+        private void addUnicorns(List<AbstractNode> nodes, int[][] prev, int[][] next, Found found) {
+            AbstractNode node1 = nodes.get(0);
+            AbstractNode node2 = nodes.get(1);
+            int slot1 = slot(node1);
+            int slot2 = slot(node2);
+            String addr = ((IMemNode) node1).getAddr();
+
+            HashMap<String,List<AbstractNode>> node4s = new HashMap<>();
+            for (int p : neighbours(slot1, position(node1), seconds[slot1], prev, next)) {
+                String y = ((IMemNode) events[slot1][p]).getAddr();
+                if (!y.equals(addr)) {
+                    node4s.computeIfAbsent(y, k -> new ArrayList<>(2)).add(events[slot1][p]);
+                }
+            }
+            if (node4s.isEmpty()) {
+                return;
+            }
+            for (int p : neighbours(slot2, position(node2), firsts[slot2], prev, next)) {
+                AbstractNode node3 = events[slot2][p];
+                List<AbstractNode> candidates = node4s.get(((IMemNode) node3).getAddr());
+                if (candidates != null) {
+                    for (AbstractNode node4 : candidates) {
+                        found.add(node3, node4);
+                    }
+                }
+            }
+        }
+
+        /**
+         * the indexes after i of the patterns added
+         */
+        private class Found {
+            private final int i;
+            private int[] found = new int[8];
+            private int numFound = 0;
+
+            Found(int i) {
+                this.i = i;
+            }
+
+            void add(AbstractNode first, AbstractNode second) {
+                HashMap<Long,Integer> bySecond = byNodes.get(first.getGID());
+                Integer j = bySecond == null ? null : bySecond.get(second.getGID());
+                if (j != null && j > i) {
+                    if (numFound == found.length) {
+                        found = Arrays.copyOf(found, 2 * numFound);
+                    }
+                    found[numFound++] = j;
+                }
+            }
+
+            int[] sorted() {
+                Arrays.sort(found, 0, numFound);
+                return Arrays.copyOf(found, distinct(found, numFound));
+            }
+        }
+    }
+
+    /**
+     * @return the positions among from of the accesses with no access (by the links
+     * prev/next) to their address or to the address of position p between them and p
+     */
+    private int[] neighbours(int slot, int p, int[] from, int[][] prev, int[][] next) {
+        int lo = prev[slot][p];
+        int hi = next[slot][p];
+        int k = upperBound(from, lo);
+        int[] found = new int[8];
+        int numFound = 0;
+        for (; k < from.length && from[k] < hi; k++) {
+            int q = from[k];
+            if (q == p || !isAccess(events[slot][q])) {
+                continue;
+            }
+            if (q > p ? prev[slot][q] < p : next[slot][q] > p) {
+                if (numFound == found.length) {
+                    found = Arrays.copyOf(found, 2 * numFound);
+                }
+                found[numFound++] = q;
+            }
+        }
+        return Arrays.copyOf(found, numFound);
+    }
+
+    //an access to the address of the event at p strictly between start and end, p being one of them
+    private boolean accessBetween(int slot, int p, int start, int end) {
+        return p == start ? nextAccess[slot][p] < end : prevAccess[slot][p] > start;
+    }
+
+    private boolean writeBetween(int slot, int p, int start, int end) {
+        return p == start ? nextSameWrite[slot][p] < end : prevSameWrite[slot][p] > start;
+    }
+
+    private int slot(AbstractNode node) {
+        return slots.get(node.getTid());
+    }
+
+    private int position(AbstractNode node) {
+        int slot = slot(node);
+        int p = node.getThreadIndex();
+        if (p >= 0 && p < events[slot].length && events[slot][p] == node) {
+            return p;
+        }
+        return Arrays.binarySearch(gids[slot], node.getGID());
+    }
+
+    private static boolean isAccess(AbstractNode node) {
+        return node instanceof ReadNode || node instanceof WriteNode;
+    }
+
+    private static boolean inGidOrder(AbstractNode[] nodes) {
+        for (int p = 1; p < nodes.length; p++) {
+            if (nodes[p - 1].getGID() > nodes[p].getGID()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //the first index of sorted with a value greater than value
+    private static int upperBound(long[] sorted, long value) {
+        int lo = 0, hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] <= value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static int upperBound(int[] sorted, int value) {
+        int lo = 0, hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] <= value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static int[][] sortedDistinct(ArrayList<ArrayList<Integer>> positions) {
+        int[][] sorted = new int[positions.size()][];
+        for (int slot = 0; slot < sorted.length; slot++) {
+            ArrayList<Integer> list = positions.get(slot);
+            int[] values = new int[list.size()];
+            for (int k = 0; k < values.length; k++) {
+                values[k] = list.get(k);
+            }
+            Arrays.sort(values);
+            sorted[slot] = Arrays.copyOf(values, distinct(values, values.length));
+        }
+        return sorted;
+    }
+
+    //moves the distinct values of the first length ones of sorted to its front, and returns their number
+    private static int distinct(int[] sorted, int length) {
+        int distinct = 0;
+        for (int k = 0; k < length; k++) {
+            if (distinct == 0 || sorted[distinct - 1] != sorted[k]) {
+                sorted[distinct++] = sorted[k];
+            }
+        }
+        return distinct;
+    }
+}
@@ -0,0 +1,96 @@
+package constraints.pattern;
+
+import instrumentor.instrumentation.RVGlobalStateForInstrumentation;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The hashes of the class files of the instrumented classes, saved with what
+ * the explorations of a test found (explored schedules, unsat cores): the
+ * test class alone does not tell whether the code under test changed, and
+ * what was found for other code must not be loaded again.
+ */
+public class ClassHashes {
+
+    //class name -> hash of its class file
+    private final HashMap<String,String> hashes;
+
+    private ClassHashes(HashMap<String,String> hashes) {
+        this.hashes = hashes;
+    }
+
+    /**
+     * the classes instrumented so far in this run, hashed now, and those of earlier,
+     * which were checked unchanged when they were read
+     */
+    public static ClassHashes current(ClassHashes earlier) {
+        HashMap<String,String> hashes = earlier == null ? new HashMap<String,String>() : new HashMap<>(earlier.hashes);
+        for (String className : RVGlobalStateForInstrumentation.instance.instrumentedClasses.keySet()) {
+            String hash = bytecodeHash(className);
+            //a class generated at run time has no class file, it comes from code that does
+            if (!hash.equals("none")) {
+                hashes.put(className, hash);
+            }
+        }
+        return new ClassHashes(hashes);
+    }
+
+    /**
+     * @return a class whose class file is not the one hashed, null if none changed
+     */
+    public String changed() {
+        for (Map.Entry<String,String> entry : hashes.entrySet()) {
+            if (!entry.getValue().equals(bytecodeHash(entry.getKey()))) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(hashes.size());
+        for (Map.Entry<String,String> entry : hashes.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+    }
+
+    public static ClassHashes read(DataInputStream in) throws IOException {
+        HashMap<String,String> hashes = new HashMap<>();
+        for (int n = in.readInt(); n > 0; n--) {
+            hashes.put(in.readUTF(), in.readUTF());
+        }
+        return new ClassHashes(hashes);
+    }
+
+    /**
+     * hash of the class file of className, "none" if it is not found
+     */
+    public static String bytecodeHash(String className) {
+        String resource = className.replace('.', '/') + ".class";
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null) {
+            loader = ClassLoader.getSystemClassLoader();
+        }
+        FingerprintRegistry.Hasher hasher = new FingerprintRegistry.Hasher();
+        try (InputStream in = loader.getResourceAsStream(resource)) {
+            if (in == null) {
+                return "none";
+            }
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                for (int i = 0; i < n; i++) {
+                    hasher.add(buffer[i]);
+                }
+            }
+        } catch (IOException e) {
+            return "none";
+        }
+        return String.format("%016x", hasher.hi());
+    }
+}
@@ -1,48 +1,34 @@
 package constraints.pattern;
 
-import java.util.ArrayList;
+import java.util.List;
 
 public class ExploredPSchedules {
 
-    private static ArrayList<String> exploredPScheduls;
-    private static ArrayList<String> exploredSchedules;
+    //fingerprints of PSchedule signs (pattern + schedule) and of the schedules alone
+    private static final FingerprintRegistry exploredPSchedules = FingerprintRegistry.create("explored_pschedules");
+    private static final FingerprintRegistry exploredSchedules = FingerprintRegistry.create("explored_schedules");
 
-    public static ArrayList<String> getExploredPScheduls(){
+    private static final FingerprintRegistry.Hasher hasher = new FingerprintRegistry.Hasher();
 
-        if (exploredPScheduls == null){
-            exploredPScheduls = new ArrayList<>();
-        }
-        return exploredPScheduls;
-    }
-
-    public static ArrayList<String> getExploredScheduls(){
+    public static synchronized boolean checkIfThisPScheduleExplored(PSchedule curPSchedule){
 
-        if (exploredSchedules == null){
-            exploredSchedules = new ArrayList<>();
-        }
-        return exploredSchedules;
+        hasher.reset().add(curPSchedule.getCurPattern().getUpattern());
+        addSchedule(curPSchedule.getCurSchedule());
+        return !exploredPSchedules.add(hasher);
     }
 
-    public static boolean checkIfThisPScheduleExplored(PSchedule curPSchedule){
+    public static synchronized boolean checkIfThisScheduleExplored(PSchedule curPSchedule){
 
-        exploredPScheduls = getExploredPScheduls();
-        if (exploredPScheduls.contains(curPSchedule.getPScheduleSign())){
-            return true;
-        }else {
-            exploredPScheduls.add(curPSchedule.getPScheduleSign());
-            return false;
-        }
+        hasher.reset();
+        addSchedule(curPSchedule.getCurSchedule());
+        return !exploredSchedules.add(hasher);
     }
 
-    public static boolean checkIfThisScheduleExplored(PSchedule curPSchedule){
-
-        exploredSchedules = getExploredScheduls();
-        if (exploredSchedules.contains(curPSchedule.getCurSchedule().toString())){
-            return true;
-        } else {
-            exploredSchedules.add(curPSchedule.getCurSchedule().toString());
-            return false;
+    private static void addSchedule(List<String> schedule){
 
+        hasher.add(schedule.size());
+        for (String choice : schedule) {
+            hasher.add(choice);
         }
     }
 
@@ -0,0 +1,318 @@
+package constraints.pattern;
+
+import constraints.config.Configuration;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A set of 128-bit fingerprints of canonical schedule/pattern forms,
+ * in an open addressing table of longs: a lookup hashes the form once
+ * instead of comparing it against every registered entry, and an entry
+ * takes 16 bytes whatever the length of the form.
+ *
+ * The registries belong to the test class explored: they are cleared when
+ * the exploration of another test class starts. With registry_dir set, they
+ * are loaded from and saved to <registry_dir>/<test class>-<hash>/<name>.fp,
+ * hash being that of the bytecode of the test class, so a new run of the
+ * same test skips what an earlier run explored. The hashes of the classes
+ * instrumented are saved with them: if one of them changed since, the code
+ * under test is not the one explored and the registries start empty.
+ */
+public class FingerprintRegistry {
+
+    private static final String SUFFIX = ".fp";
+    private static final String CLASSES_FILE = "classes.hash";
+
+    private static final List<FingerprintRegistry> registries = new ArrayList<>();
+
+    //<test class>-<hash> of the test class explored, null: no exploration started
+    private static String testKey;
+    //the classes the saved registries were explored with, null: they are not loaded
+    private static ClassHashes classHashes;
+
+    private final String name;
+
+    //slot i holds (his[i], los[i]), (0,0) marks an empty slot
+    private long[] his = new long[1024];
+    private long[] los = new long[1024];
+    private int size = 0;
+
+    private long numLookups = 0;
+    private long numHits = 0;
+
+    private FingerprintRegistry(String name) {
+        this.name = name;
+    }
+
+    /**
+     * a new registry, loaded from registry_dir if there is a saved one for the test class explored
+     */
+    public static synchronized FingerprintRegistry create(String name) {
+        FingerprintRegistry registry = new FingerprintRegistry(name);
+        File dir = dir();
+        if (dir != null && classHashes != null) {
+            registry.load(new File(dir, name + SUFFIX));
+        }
+        registries.add(registry);
+        return registry;
+    }
+
+    /**
+     * the exploration of the test name (class.method) starts: if its test class is not the one
+     * explored so far, the registries are cleared and loaded from registry_dir for it
+     */
+    public static synchronized void startingExploration(String name) {
+        String testClass = name.lastIndexOf('.') > 0 ? name.substring(0, name.lastIndexOf('.')) : name;
+        String key = testClass + "-" + ClassHashes.bytecodeHash(testClass);
+        if (key.equals(testKey)) {
+            //the other methods of the class share its registries, already loaded
+            return;
+        }
+        testKey = key;
+        File dir = dir();
+        classHashes = dir == null ? null : readClassHashes(new File(dir, CLASSES_FILE));
+        for (FingerprintRegistry registry : registries) {
+            registry.reload(classHashes == null ? null : new File(dir, registry.name + SUFFIX));
+        }
+    }
+
+    /**
+     * @return the classes of the saved registries, null if there are none or a class changed
+     */
+    private static ClassHashes readClassHashes(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            ClassHashes hashes = ClassHashes.read(in);
+            String changed = hashes.changed();
+            if (changed != null) {
+                System.err.println("ignoring the registries in " + file.getParent() + ": " + changed + " changed since");
+                return null;
+            }
+            return hashes;
+        } catch (IOException e) {
+            System.err.println("cannot load " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * the directory of the registries of the test class explored, null if they are not kept
+     */
+    private static File dir() {
+        if (Configuration.registryDir.isEmpty() || testKey == null) {
+            return null;
+        }
+        return new File(Configuration.registryDir, testKey);
+    }
+
+    /**
+     * @return true if the fingerprint was not registered yet, it is registered now
+     */
+    public synchronized boolean add(Hasher fp) {
+        numLookups++;
+        if (insert(fp.hi(), fp.lo())) {
+            return true;
+        }
+        numHits++;
+        return false;
+    }
+
+    public synchronized boolean contains(Hasher fp) {
+        numLookups++;
+        long hi = fp.hi(), lo = fp.lo();
+        int mask = his.length - 1;
+        for (int i = (int) lo & mask; his[i] != 0 || los[i] != 0; i = (i + 1) & mask) {
+            if (his[i] == hi && los[i] == lo) {
+                numHits++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean insert(long hi, long lo) {
+        int mask = his.length - 1;
+        int i = (int) lo & mask;
+        for (; his[i] != 0 || los[i] != 0; i = (i + 1) & mask) {
+            if (his[i] == hi && los[i] == lo) {
+                return false;
+            }
+        }
+        his[i] = hi;
+        los[i] = lo;
+        if (++size * 2 > his.length) {
+            rehash();
+        }
+        return true;
+    }
+
+    private void rehash() {
+        long[] oldHis = his, oldLos = los;
+        his = new long[oldHis.length * 2];
+        los = new long[oldLos.length * 2];
+        size = 0;
+        for (int i = 0; i < oldHis.length; i++) {
+            if (oldHis[i] != 0 || oldLos[i] != 0) {
+                insert(oldHis[i], oldLos[i]);
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        his = new long[1024];
+        los = new long[1024];
+        size = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: %d entries, %d/%d hits (%.1f%%)", name, size, numHits, numLookups,
+                numLookups == 0 ? 0.0 : 100.0 * numHits / numLookups);
+    }
+
+    /**
+     * one line per registry, for the exploration stats
+     */
+    public static synchronized String stats() {
+        StringBuilder sb = new StringBuilder();
+        for (FingerprintRegistry registry : registries) {
+            sb.append(registry).append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * save all registries to registry_dir, if it is set and an exploration was started
+     */
+    public static synchronized void saveAll() {
+        File dir = dir();
+        if (dir == null) {
+            return;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            System.err.println("cannot create registry dir " + dir);
+            return;
+        }
+        for (FingerprintRegistry registry : registries) {
+            registry.save(new File(dir, registry.name + SUFFIX));
+        }
+        //the registries now hold what was explored with the classes of this run too
+        classHashes = ClassHashes.current(classHashes);
+        File file = new File(dir, CLASSES_FILE);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            classHashes.write(out);
+        } catch (IOException e) {
+            System.err.println("cannot save " + file + ": " + e.getMessage());
+        }
+    }
+
+    private synchronized void save(File file) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(size);
+            for (int i = 0; i < his.length; i++) {
+                if (his[i] != 0 || los[i] != 0) {
+                    out.writeLong(his[i]);
+                    out.writeLong(los[i]);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("cannot save " + file + ": " + e.getMessage());
+        }
+    }
+
+    //empty, with no hits, then loaded from file unless it is null
+    private synchronized void reload(File file) {
+        clear();
+        numLookups = 0;
+        numHits = 0;
+        if (file != null) {
+            load(file);
+        }
+    }
+
+    private void load(File file) {
+        if (!file.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                insert(in.readLong(), in.readLong());
+            }
+        } catch (IOException e) {
+            System.err.println("cannot load " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * streaming 128-bit hash of a canonical form, two independent 64-bit lanes
+     * finished with the murmur3 mixer. Reusable after reset().
+     */
+    public static class Hasher {
+
+        private static final long PRIME1 = 0x100000001b3L;
+        private static final long PRIME2 = 0x9e3779b97f4a7c15L;
+        private static final long SEED1 = 0xcbf29ce484222325L;
+        private static final long SEED2 = 0x84222325cbf29ce4L;
+
+        private long h1 = SEED1;
+        private long h2 = SEED2;
+        private long length = 0;
+
+        public Hasher reset() {
+            h1 = SEED1;
+            h2 = SEED2;
+            length = 0;
+            return this;
+        }
+
+        public Hasher add(long v) {
+            h1 = (h1 ^ v) * PRIME1;
+            h2 = Long.rotateLeft(h2 ^ v, 31) * PRIME2;
+            length++;
+            return this;
+        }
+
+        public Hasher add(CharSequence s) {
+            for (int i = 0; i < s.length(); i++) {
+                add(s.charAt(i));
+            }
+            //separator, so that ("ab","c") and ("a","bc") differ
+            return add(-1L);
+        }
+
+        public long hi() {
+            return fmix(h1 ^ length) ^ fmix(h2);
+        }
+
+        public long lo() {
+            long lo = fmix(h2 + length) + fmix(h1);
+            //(0,0) marks an empty slot
+            return lo == 0 && hi() == 0 ? 1 : lo;
+        }
+
+        private static long fmix(long k) {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb93fe53d3e4fL;
+            k ^= k >>> 33;
+            return k;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package constraints.pattern;
+
+import constraints.config.Configuration;
+import constraints.trace.AbstractNode;
+import constraints.trace.IMemNode;
+import constraints.trace.ReadNode;
+import constraints.trace.Trace;
+import constraints.trace.WriteNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The pattern analysis of a trace, done once and kept on the trace: the
+ * patterns the trace covers, for the coverage of mapcov.mapcalc, and the
+ * patterns to explore, those of PatternUtil.getAllPatterns. Both are built
+ * from one collection of the shared accesses of the trace and one AccessIndex
+ * of its threads.
+ *
+ * The covered length 2 patterns are the pairs of accesses of two threads to
+ * an address, the earlier one a write or the later one a write, with no write
+ * to the address in between; the length 3/4 ones are composed from them as the
+ * patterns to explore are, counting only the writes between the events.
+ */
+public class PatternAnalysis {
+
+    //analyses done, the time they took, and the lookups served by the analysis kept on the trace
+    private static final AtomicLong numAnalyses = new AtomicLong();
+    private static final AtomicLong analysisNanos = new AtomicLong();
+    private static final AtomicLong numReused = new AtomicLong();
+
+    private final long window;
+    private final List<Pattern> coveredPatterns;
+    private final List<Pattern> patterns;
+
+    /**
+     * @return the analysis of trace with pattern_window, done if the trace has none
+     */
+    public static PatternAnalysis of(Trace trace) {
+        return of(trace, Configuration.patternWindow);
+    }
+
+    /**
+     * @param window see PatternUtil.getAllPatterns(Trace, long)
+     */
+    public static PatternAnalysis of(Trace trace, long window) {
+        synchronized (trace) {
+            PatternAnalysis analysis = trace.getPatternAnalysis();
+            if (analysis != null && analysis.window == window) {
+                numReused.incrementAndGet();
+                return analysis;
+            }
+            long start = System.nanoTime();
+            analysis = new PatternAnalysis(trace, window);
+            analysisNanos.addAndGet(System.nanoTime() - start);
+            numAnalyses.incrementAndGet();
+            trace.setPatternAnalysis(analysis);
+            return analysis;
+        }
+    }
+
+    /**
+     * one line for the exploration stats
+     */
+    public static String stats() {
+        long analyses = numAnalyses.get();
+        return String.format("PATTERN ANALYSIS: %d traces, %d ms (%.2f ms/trace), %d lookups served from the trace",
+                analyses, analysisNanos.get() / 1000000,
+                analyses == 0 ? 0.0 : analysisNanos.get() / 1e6 / analyses, numReused.get()) + "\n";
+    }
+
+    private PatternAnalysis(Trace trace, long window) {
+
+        this.window = window;
+        Long mainThreadID = trace.getFullTrace().get(0).getTid();
+
+        //the shared accesses of the other threads by address, reads then writes, as
+        //getAllRWNodes gives them; PatternUtil leaves out the addresses never read
+        LinkedHashMap<String, List<AbstractNode>> byAddr = new LinkedHashMap<>();
+        HashSet<String> unread = new HashSet<>();
+        Iterator<String> addrIt = trace.getIndexedThreadReadWriteNodes().keySet().iterator();
+        while (addrIt.hasNext()) {
+            String addr = addrIt.next();
+            Vector<ReadNode> readnodes = trace.getIndexedReadNodes().get(addr);
+            Vector<WriteNode> writenodes = trace.getIndexedWriteNodes().get(addr);
+            if (trace.isLocalAddress(addr) || writenodes == null || writenodes.size() < 1)
+                continue;
+            List<AbstractNode> nodes = new ArrayList<>();
+            if (readnodes != null) {
+                for (ReadNode node : readnodes) {
+                    if (node.getTid() != mainThreadID)
+                        nodes.add(node);
+                }
+            } else {
+                unread.add(addr);
+            }
+            for (WriteNode node : writenodes) {
+                if (node.getTid() != mainThreadID)
+                    nodes.add(node);
+            }
+            if (!nodes.isEmpty())
+                byAddr.put(addr, nodes);
+        }
+        //grouped in the hash maps the two extractions grouped them in, for the same order of the patterns
+        Map<String, List<AbstractNode>> coveredAddrs = new HashMap<>();
+        Map<String, List<AbstractNode>> exploredAddrs = new HashMap<>();
+        for (Map.Entry<String, List<AbstractNode>> entry : byAddr.entrySet()) {
+            coveredAddrs.put(entry.getKey(), entry.getValue());
+            if (!unread.contains(entry.getKey()))
+                exploredAddrs.put(entry.getKey(), entry.getValue());
+        }
+
+        AccessIndex index = new AccessIndex(trace);
+
+        List<Pattern> pattern2 = new ArrayList<>();
+        List<Pattern> pattern2s = new ArrayList<>();
+        for (List<AbstractNode> nodes : exploredAddrs.values()) {
+            PatternUtil.addDiffPatterns(nodes, window, pattern2, pattern2s);
+        }
+        if (pattern2.size() == 0) {
+            pattern2.addAll(pattern2s);
+        }
+        HashMap<String, List<Pattern>> lengthTwoPatterns = new HashMap<>();
+        lengthTwoPatterns.put("pattern2", pattern2);
+        lengthTwoPatterns.put("pattern2s", pattern2s);
+        patterns = new ArrayList<>(pattern2);
+        patterns.addAll(PatternUtil.getPatternsFromLengthTwoPattern(trace, index, lengthTwoPatterns));
+
+        List<Pattern> covered2s = new ArrayList<>();
+        for (List<AbstractNode> nodes : coveredAddrs.values()) {
+            for (AbstractNode currentNode : nodes) {
+                addCoveredPatterns(index, nodes, currentNode, covered2s);
+            }
+        }
+        coveredPatterns = new ArrayList<>(covered2s);
+        coveredPatterns.addAll(composeCoveredPatterns(index, covered2s));
+    }
+
+    /**
+     * @return the covered patterns, a list of the caller
+     */
+    public List<Pattern> getCoveredPatterns() {
+        return new ArrayList<>(coveredPatterns);
+    }
+
+    /**
+     * @return the patterns to explore, as PatternUtil.getAllPatterns, a list of the caller
+     */
+    public List<Pattern> getPatterns() {
+        return new ArrayList<>(patterns);
+    }
+
+    private static void addCoveredPatterns(AccessIndex index, List<AbstractNode> nodes, AbstractNode currentNode, List<Pattern> patterns) {
+
+        for (AbstractNode targetNode : nodes) {
+            if (targetNode.getTid() == currentNode.getTid()
+                    || currentNode.getGID() >= targetNode.getGID()
+                    || !((IMemNode) targetNode).getAddr().equals(((IMemNode) currentNode).getAddr()))
+                continue;
+            // rw, wr, ww
+            if ((currentNode.getType() == AbstractNode.TYPE.WRITE || targetNode.getType() == AbstractNode.TYPE.WRITE)
+                    && !index.containsWriteTo(currentNode, targetNode)) {
+                patterns.add(new Pattern(Arrays.asList(currentNode, targetNode)));
+            }
+        }
+    }
+
+    private static List<Pattern> composeCoveredPatterns(AccessIndex index, List<Pattern> pattern2s) {
+
+        List<Pattern> result = new ArrayList<>();
+        AccessIndex.Lookup lookup = index.lookup(pattern2s);
+        for (int i = 0; i < pattern2s.size(); i++) {
+            Pattern currentPattern = pattern2s.get(i);
+            if (currentPattern.getNodes().size() != 2)
+                continue;
+            for (int j : lookup.coveredCandidates(i)) {
+                Pattern nextPattern = pattern2s.get(j);
+                if (nextPattern.getNodes().size() != 2)
+                    continue;
+                Pattern generatedPattern = tryConstructCoveredFalconPattern(index, currentPattern, nextPattern);
+                if (generatedPattern != null) {
+                    result.add(generatedPattern);
+                }
+                result.addAll(tryConstructCoveredUnicornPattern(index, currentPattern, nextPattern));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * construct one length-3 pattern from two length-2 pattern
+     */
+    private static Pattern tryConstructCoveredFalconPattern(AccessIndex index, Pattern pattern1, Pattern pattern2) {
+
+        AbstractNode node1 = pattern1.getNodes().get(0);
+        AbstractNode node2 = pattern1.getNodes().get(1);
+        AbstractNode node3 = pattern2.getNodes().get(0);
+        AbstractNode node4 = pattern2.getNodes().get(1);
+        if (node2.getGID() == node3.getGID() && node1.getTid() == node4.getTid() && !index.containsWriteTo(node1, node4)) {
+            if (node1.getGID() < node2.getGID() && node3.getGID() < node4.getGID() && node1.getGID() < node4.getGID()) {
+                return new Pattern(Arrays.asList(node1, node2, node4));
+            }
+        }
+        return null;
+    }
+
+    private static List<Pattern> tryConstructCoveredUnicornPattern(AccessIndex index, Pattern pattern1, Pattern pattern2) {
+
+        List<Pattern> newPatterns = new ArrayList<Pattern>();
+        AbstractNode node1 = pattern1.getNodes().get(0);
+        AbstractNode node2 = pattern1.getNodes().get(1);
+        AbstractNode node3 = pattern2.getNodes().get(0);
+        AbstractNode node4 = pattern2.getNodes().get(1);
+        if (((IMemNode) node1).getAddr().equals(((IMemNode) node3).getAddr())
+                || !index.patternsAdjacentByWrites(pattern1, pattern2)
+                || node1.getTid() != node4.getTid() || node2.getTid() != node3.getTid()) {
+            return newPatterns;
+        }
+        PatternType type1 = pattern1.getPatternType();
+        PatternType type2 = pattern2.getPatternType();
+        PatternType[] types;
+        if (type1 == PatternType.WW && type2 == PatternType.WW) {
+            types = new PatternType[]{PatternType.W1XW2XW2YW1Y, PatternType.W1XW2YW2XW1Y, PatternType.W1XW2YW1YW2X};
+        } else if (type1 == PatternType.WR && type2 == PatternType.RW) {
+            types = new PatternType[]{PatternType.W1XR2XR2YW1Y, PatternType.W1XR2YR2XW1Y, PatternType.W1XR2YW1YR2X};
+        } else if (type1 == PatternType.RW && type2 == PatternType.WR) {
+            types = new PatternType[]{PatternType.R1XW2XW2YR1Y, PatternType.R1XW2YW2XR1Y, PatternType.W1XR2YW1YR2X};
+        } else {
+            return newPatterns;
+        }
+        //1X 2X 2Y 1Y
+        if (node1.getGID() < node4.getGID() && node2.getGID() < node3.getGID()) {
+            newPatterns.add(fourNodePattern(types[0], node1, node2, node3, node4));
+        }
+        //1X 2Y 2X 1Y
+        if (node1.getGID() < node4.getGID() && node3.getGID() < node2.getGID()) {
+            newPatterns.add(fourNodePattern(types[1], node1, node3, node2, node4));
+        }
+        //1X 2Y 1Y 2X
+        if (node1.getGID() < node4.getGID() && node4.getGID() < node2.getGID()) {
+            newPatterns.add(fourNodePattern(types[2], node1, node3, node4, node2));
+        }
+        return newPatterns;
+    }
+
+    private static Pattern fourNodePattern(PatternType type, AbstractNode... nodes) {
+        Pattern pattern = new Pattern(Arrays.asList(nodes));
+        pattern.setPatternType(type);
+        return pattern;
+    }
+}
@@ -0,0 +1,100 @@
+package constraints.pattern;
+
+import constraints.config.Configuration;
+import constraints.trace.AbstractNode;
+import constraints.trace.ReadNode;
+import constraints.trace.StartNode;
+import constraints.trace.Trace;
+import constraints.trace.TraceFile;
+import constraints.trace.TraceInfo;
+import constraints.trace.WriteNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Time PatternUtil.getAllPatterns on traces, and with pattern_window set,
+ * the windowed extraction too.
+ *
+ * The traces are the ones saved with trace_capture_dir, e.g. of the
+ * src/test/examples testers; without arguments synthetic traces are used:
+ * THREADS workers reading and writing ADDRS shared addresses.
+ *
+ * usage: PatternExtractionBenchmark [<dir or .mcrt file> ...]   (default synthetic 250 500 750 events)
+ */
+public class PatternExtractionBenchmark {
+
+	private static final int THREADS = 4;
+	private static final int ADDRS = 16;
+	private static final int WRITE_PERCENT = 30;
+
+	public static void main(String[] args) throws IOException {
+
+		System.out.println(String.format("%-40s %8s %10s %12s %12s %12s",
+				"trace", "#events", "#patterns", "extraction", "#windowed", "windowed"));
+		if (args.length == 0) {
+			for (int n : new int[]{250, 500, 750})
+				run("synthetic-" + n, syntheticTrace(n, new Random(n)));
+		}
+		for (String arg : args) {
+			File file = new File(arg);
+			File[] files = file.isDirectory()
+					? file.listFiles((dir, name) -> name.endsWith(TraceFile.SUFFIX))
+					: new File[]{file};
+			if (files == null)
+				continue;
+			Arrays.sort(files);
+			for (File f : files)
+				run(f.getName(), TraceFile.read(f).getTrace());
+		}
+		System.exit(0);
+	}
+
+	private static void run(String name, Trace trace) {
+
+		if (trace.getFullTrace().isEmpty())
+			return;
+		long ts = System.nanoTime();
+		List<Pattern> patterns = PatternUtil.getAllPatterns(trace);
+		long extraction = System.nanoTime() - ts;
+
+		String windowed = "-", windowedTime = "-";
+		if (Configuration.patternWindow > 0) {
+			ts = System.nanoTime();
+			windowed = "" + PatternUtil.getAllPatterns(trace, Configuration.patternWindow).size();
+			windowedTime = (System.nanoTime() - ts) / 1000000 + "ms";
+		}
+
+		System.out.println(String.format("%-40s %8d %10d %10dms %12s %12s",
+				name, trace.getFullTrace().size(), patterns.size(), extraction / 1000000, windowed, windowedTime));
+	}
+
+	private static Trace syntheticTrace(int n, Random ran) {
+
+		HashMap<Long, String> threadNames = new HashMap<>();
+		for (long t = 1; t <= THREADS + 1; t++)
+			threadNames.put(t, "T" + t);
+		Trace trace = new Trace(new TraceInfo(new HashMap<Integer, String>(), new HashMap<Integer, String>(),
+				new HashMap<Integer, String>(), threadNames));
+
+		//tid 1 is the main thread, it starts the workers
+		long gid = 1;
+		for (int w = 0; w < THREADS; w++)
+			trace.addRawNode(new StartNode(gid++, 1, 1, "" + (w + 2), AbstractNode.TYPE.START));
+		for (int step = 0; step < n; step++) {
+			long tid = 2 + ran.nextInt(THREADS);
+			String addr = "o.f" + ran.nextInt(ADDRS);
+			String value = "" + ran.nextInt(3);
+			if (ran.nextInt(100) < WRITE_PERCENT)
+				trace.addRawNode(new WriteNode(gid++, tid, 2, addr, value, AbstractNode.TYPE.WRITE, "L" + step));
+			else
+				trace.addRawNode(new ReadNode(gid++, tid, 3, addr, value, AbstractNode.TYPE.READ, "L" + step));
+		}
+		trace.finishedLoading(true);
+		return trace;
+	}
+}
@@ -4,7 +4,6 @@ package constraints.pattern;
 import constraints.trace.*;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class PatternUtil {
 
@@ -15,9 +14,22 @@ public class PatternUtil {
      */
     public static List<Pattern> getAllPatterns(Trace trace) {
 
+        return getAllPatterns(trace, 0);
+    }
+
+    /**
+     * extract the patterns of trace with the events of each length 2 pattern at
+     * most window GIDs apart, so that a long trace does not pair every access to
+     * an address with every other one
+     * @param trace
+     * @param window 0: no bound
+     * @return
+     */
+    public static List<Pattern> getAllPatterns(Trace trace, long window) {
+
         Long mainThreadID = trace.getFullTrace().get(0).getTid();
         List<AbstractNode> RWNodes = getAllRWNodes(trace, mainThreadID);
-        HashMap<String, List<Pattern>> lengthTwoPatterns = getPatternsWithDiffValue(trace,RWNodes);
+        HashMap<String, List<Pattern>> lengthTwoPatterns = getPatternsWithDiffValue(trace, RWNodes, window);
         List<Pattern> pattern2 = lengthTwoPatterns.get("pattern2");
         List<Pattern> pattern2s = lengthTwoPatterns.get("pattern2s");
 
@@ -41,7 +53,6 @@ public class PatternUtil {
 
         Vector<AbstractNode> nodes = new Vector<>();
         Iterator<String> addrIt = trace.getIndexedThreadReadWriteNodes().keySet().iterator();
-        Vector<AbstractNode> filterNodes = trace.getThreadNodesMap().get(mainThreadID);
         while(addrIt.hasNext()) {
             String addr = addrIt.next();
             Vector<ReadNode> readnodes = trace.getIndexedReadNodes().get(addr);
@@ -54,18 +65,14 @@ public class PatternUtil {
             if (writenodes == null || writenodes.size() < 1)
                 continue;
             if (readnodes != null){
-                List<ReadNode> rnodes = readnodes.stream()
-                        .filter(node -> (node.getTid() != mainThreadID))
-                        .collect(Collectors.toList());
-
-                nodes.addAll(rnodes);
-            }
-            if (readnodes!=null && writenodes != null){
-
-                List<WriteNode> wnodes = writenodes.stream()
-                        .filter(node -> (node.getTid() != mainThreadID))
-                        .collect(Collectors.toList());
-                nodes.addAll(wnodes);
+                for (ReadNode node : readnodes) {
+                    if (node.getTid() != mainThreadID)
+                        nodes.add(node);
+                }
+                for (WriteNode node : writenodes) {
+                    if (node.getTid() != mainThreadID)
+                        nodes.add(node);
+                }
             }
         }
 //        HashSet<String> variables = trace.getSharedVariables();
@@ -174,6 +181,16 @@ public class PatternUtil {
      */
     public static HashMap<String, List<Pattern>> getPatternsWithDiffValue(Trace trace,List<AbstractNode> nodes){
 
+        return getPatternsWithDiffValue(trace, nodes, 0);
+    }
+
+    /**
+     * @param nodes
+     * @param window the events of a pattern are at most window GIDs apart, 0: no bound
+     * @return
+     */
+    public static HashMap<String, List<Pattern>> getPatternsWithDiffValue(Trace trace,List<AbstractNode> nodes, long window){
+
         List<Pattern> pattern2 = new ArrayList<>();
         List<Pattern> pattern2s = new ArrayList<>();
 
@@ -193,19 +210,52 @@ public class PatternUtil {
         }
 
         for (String addr : addrToNodes.keySet()){
+            addDiffPatterns(addrToNodes.get(addr), window, pattern2, pattern2s);
+        }
+        return patterns;
+    }
 
-            nodes = addrToNodes.get(addr);
-            for (int i = 0; i < nodes.size(); i++){
+    /**
+     * add the length 2 patterns of the accesses to an address
+     * @param nodes the accesses to the address
+     * @param window the events of a pattern are at most window GIDs apart, 0: no bound
+     */
+    static void addDiffPatterns(List<AbstractNode> nodes, long window, List<Pattern> pattern2, List<Pattern> pattern2s){
 
+        if (window <= 0) {
+            for (int i = 0; i < nodes.size(); i++){
                 AbstractNode currentNode = nodes.get(i);
-
-                HashMap<String, List<Pattern>> singleValuePattern2s = assembleDiffPatterns(trace,nodes,currentNode);
-                pattern2.addAll(singleValuePattern2s.get("pattern2"));
-                pattern2s.addAll(singleValuePattern2s.get("pattern2s"));
+                for (int j = 0; j < nodes.size(); j++) {
+                    addDiffPatterns(currentNode, nodes.get(j), pattern2, pattern2s);
+                }
+            }
+            return;
+        }
+
+        //the nodes by GID, those in the window of a node are looked up in it
+        //and paired in the order of nodes, as without window
+        Integer[] byGid = new Integer[nodes.size()];
+        for (int i = 0; i < byGid.length; i++) {
+            byGid[i] = i;
+        }
+        Arrays.sort(byGid, (i, j) -> Long.compare(nodes.get(i).getGID(), nodes.get(j).getGID()));
+        long[] gids = new long[byGid.length];
+        for (int i = 0; i < byGid.length; i++) {
+            gids[i] = nodes.get(byGid[i]).getGID();
+        }
+        int[] inWindow = new int[byGid.length];
+        for (int i = 0; i < nodes.size(); i++){
+            AbstractNode currentNode = nodes.get(i);
+            int from = lowerBound(gids, currentNode.getGID() - window);
+            int to = lowerBound(gids, currentNode.getGID() + window + 1);
+            for (int k = from; k < to; k++) {
+                inWindow[k - from] = byGid[k];
+            }
+            Arrays.sort(inWindow, 0, to - from);
+            for (int k = 0; k < to - from; k++) {
+                addDiffPatterns(currentNode, nodes.get(inWindow[k]), pattern2, pattern2s);
             }
-
         }
-        return patterns;
     }
 
     /**
@@ -217,63 +267,81 @@ public class PatternUtil {
 
         List<Pattern> pattern2 = new ArrayList<>();
         List<Pattern> pattern2s = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++){
+            addDiffPatterns(currentNode, nodes.get(i), pattern2, pattern2s);
+        }
+
+        HashMap<String, List<Pattern>> patterns = new HashMap<>();
+        patterns.put("pattern2",pattern2);
+        patterns.put("pattern2s",pattern2s);
+
+        return patterns;
+    }
+
+    /**
+     * add the length 2 patterns of currentNode then targetNode
+     */
+    private static void addDiffPatterns(AbstractNode currentNode, AbstractNode targetNode, List<Pattern> pattern2, List<Pattern> pattern2s){
+
         if (currentNode.getType() == AbstractNode.TYPE.READ){
 
-            for (int i = 0; i < nodes.size(); i++){
-                AbstractNode targetNode = nodes.get(i);
-                if (targetNode.getType() == AbstractNode.TYPE.WRITE
-                        && targetNode.getTid() != currentNode.getTid()
-                        && ((IMemNode)targetNode).getAddr().equals( ((IMemNode)currentNode).getAddr() )
-                ){
-                    pattern2s.add(new Pattern(Arrays.asList(currentNode, targetNode)));
-                    if (((WriteNode)targetNode).getValue().equals(((ReadNode)currentNode).getValue())){
-                        if( ((WriteNode)targetNode).getGID() < ((ReadNode)currentNode).getGID() ) {
+            if (targetNode.getType() == AbstractNode.TYPE.WRITE
+                    && targetNode.getTid() != currentNode.getTid()
+                    && ((IMemNode)targetNode).getAddr().equals( ((IMemNode)currentNode).getAddr() )
+            ){
+                pattern2s.add(new Pattern(Arrays.asList(currentNode, targetNode)));
+                if (((WriteNode)targetNode).getValue().equals(((ReadNode)currentNode).getValue())){
+                    if( ((WriteNode)targetNode).getGID() < ((ReadNode)currentNode).getGID() ) {
 
-                            //RW
-                            pattern2.add(new Pattern(Arrays.asList(currentNode, targetNode)));
-                        }
+                        //RW
+                        pattern2.add(new Pattern(Arrays.asList(currentNode, targetNode)));
                     }
                 }
             }
         } else  {
-            for (int i = 0; i < nodes.size(); i++) {
-
-                AbstractNode targetNode = nodes.get(i);
 
-                if (targetNode.getTid() != currentNode.getTid()){
+            if (targetNode.getTid() != currentNode.getTid()){
 
-                    // wr node
-                    // access the same location
-                    // in different thread
-                    if (targetNode.getType() == AbstractNode.TYPE.READ
-                            && ((IMemNode)targetNode).getAddr().equals(((IMemNode)currentNode).getAddr())
-                    ) {
-                        pattern2s.add(new Pattern(Arrays.asList(currentNode, targetNode)));
-                        if (!((ReadNode)targetNode).getValue().equals(((WriteNode)currentNode).getValue())){
-                            pattern2.add(new Pattern(Arrays.asList(currentNode, targetNode)));
-                        }
+                // wr node
+                // access the same location
+                // in different thread
+                if (targetNode.getType() == AbstractNode.TYPE.READ
+                        && ((IMemNode)targetNode).getAddr().equals(((IMemNode)currentNode).getAddr())
+                ) {
+                    pattern2s.add(new Pattern(Arrays.asList(currentNode, targetNode)));
+                    if (!((ReadNode)targetNode).getValue().equals(((WriteNode)currentNode).getValue())){
+                        pattern2.add(new Pattern(Arrays.asList(currentNode, targetNode)));
                     }
-                    // ww node
-                    if (targetNode.getType() == AbstractNode.TYPE.WRITE
-                            && ((IMemNode)targetNode).getAddr().equals(((IMemNode)currentNode).getAddr())
-                            && targetNode.getGID() != currentNode.getGID()
-                    ){
-                        pattern2s.add(new Pattern(Arrays.asList(currentNode, targetNode)));
-                        if (!((WriteNode)targetNode).getValue().equals(((WriteNode)currentNode).getValue())){
-                            if( ((WriteNode)targetNode).getGID() < ((WriteNode)currentNode).getGID() ) {
-                                pattern2.add(new Pattern(Arrays.asList(currentNode, targetNode)));
-                            }
+                }
+                // ww node
+                if (targetNode.getType() == AbstractNode.TYPE.WRITE
+                        && ((IMemNode)targetNode).getAddr().equals(((IMemNode)currentNode).getAddr())
+                        && targetNode.getGID() != currentNode.getGID()
+                ){
+                    pattern2s.add(new Pattern(Arrays.asList(currentNode, targetNode)));
+                    if (!((WriteNode)targetNode).getValue().equals(((WriteNode)currentNode).getValue())){
+                        if( ((WriteNode)targetNode).getGID() < ((WriteNode)currentNode).getGID() ) {
+                            pattern2.add(new Pattern(Arrays.asList(currentNode, targetNode)));
                         }
                     }
                 }
             }
         }
+    }
 
-        HashMap<String, List<Pattern>> patterns = new HashMap<>();
-        patterns.put("pattern2",pattern2);
-        patterns.put("pattern2s",pattern2s);
+    //the first index of sorted with a value not less than value
+    private static int lowerBound(long[] sorted, long value) {
 
-        return patterns;
+        int lo = 0, hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
     }
 
 //    public static boolean checkIfValid(Trace trace, AbstractNode firstNode, AbstractNode secondNode){
@@ -296,13 +364,26 @@ public class PatternUtil {
 //        return false;
 //    }
 
+    /**
+     * compose the length 3/4 patterns of each pair of length 2 patterns, in the order of the pairs.
+     * Only the pairs AccessIndex finds for a pattern can make one, the others are not tried.
+     * @param trace
+     * @param lengthTwoPatterns
+     * @return
+     */
     public static List<Pattern> getPatternsFromLengthTwoPattern(Trace trace, HashMap<String, List<Pattern>> lengthTwoPatterns) {
 
+        return getPatternsFromLengthTwoPattern(trace, new AccessIndex(trace), lengthTwoPatterns);
+    }
+
+    static List<Pattern> getPatternsFromLengthTwoPattern(Trace trace, AccessIndex index, HashMap<String, List<Pattern>> lengthTwoPatterns) {
+
         List<Pattern> pattern2 = lengthTwoPatterns.get("pattern2");
         List<Pattern> pattern2s = lengthTwoPatterns.get("pattern2s");
 
         Pattern currentPattern, nextPattern, generatedPattern;
         List<Pattern> result = new ArrayList<>();
+        AccessIndex.Lookup lookup = index.lookup(pattern2s);
 
         for(int i = 0; i < pattern2s.size(); i++) {
 
@@ -310,16 +391,16 @@ public class PatternUtil {
 
             if(currentPattern.getNodes().size() != 2)
                 continue;
-            for(int j = i + 1; j < pattern2s.size(); j++) {
+            for(int j : lookup.candidates(i)) {
                 nextPattern = pattern2s.get(j);
                 if(nextPattern.getNodes().size() != 2)
                     continue;
-                generatedPattern = tryConstructFalconPattern(trace, pattern2, currentPattern, nextPattern);
+                generatedPattern = tryConstructFalconPattern(trace, index, pattern2, currentPattern, nextPattern);
                 if (generatedPattern != null) {
                     result.add(generatedPattern);
                 }
 
-                List <Pattern> generatedUniCornPattern = tryConstructUnicornPattern(trace, pattern2, currentPattern, nextPattern);
+                List <Pattern> generatedUniCornPattern = tryConstructUnicornPattern(trace, index, pattern2, currentPattern, nextPattern);
 
                 if (generatedUniCornPattern != null){
 
@@ -341,6 +422,14 @@ public class PatternUtil {
      */
     public static Pattern tryConstructFalconPattern(Trace trace, List<Pattern> rpattern2, Pattern pattern1, Pattern pattern2) {
 
+        return tryConstructFalconPattern(trace, null, rpattern2, pattern1, pattern2);
+    }
+
+    /**
+     * @param index the checks are done with it, by scanning the trace if null
+     */
+    static Pattern tryConstructFalconPattern(Trace trace, AccessIndex index, List<Pattern> rpattern2, Pattern pattern1, Pattern pattern2) {
+
         List<AbstractNode> nodes1 = pattern1.getNodes();
         List<AbstractNode> nodes2 = pattern2.getNodes();
         Pattern result = null;
@@ -354,7 +443,7 @@ public class PatternUtil {
             AbstractNode node4 = nodes2.get(1);
 
 
-            if(node2.getGID() == node3.getGID() && node1.getTid() == node4.getTid() && checkIfTwoEventsAdjon(trace,node1,node4)) {
+            if(node2.getGID() == node3.getGID() && node1.getTid() == node4.getTid() && eventsAdjacent(trace,index,node1,node4)) {
 
                 if ( !(node2.getGID() > node1.getGID() && node3.getGID() < node4.getGID()) && node1.getGID() < node4.getGID()){
                     //rwr
@@ -373,7 +462,7 @@ public class PatternUtil {
                     else if (pattern1.getPatternType() == PatternType.WR && pattern2.getPatternType() == PatternType.RW){
                         if ( !(node2.getGID() < node1.getGID() || node3.getGID() < node4.getGID()) ){
                             if ( ! ((WriteNode)node1).getValue().equals( ((ReadNode)node2).getValue() )
-                                    && !checkIfContainsWrite(trace,node4,node3) ){
+                                    && !containsWrite(trace,index,node4,node3) ){
                                 result = new Pattern(Arrays.asList(node1, node2, node4));
                             }
                         }
@@ -534,8 +623,31 @@ public class PatternUtil {
 
 
 
+    private static boolean eventsAdjacent(Trace trace, AccessIndex index, AbstractNode startNode, AbstractNode endNode) {
+
+        return index != null ? index.adjacent(startNode, endNode) : checkIfTwoEventsAdjon(trace, startNode, endNode);
+    }
+
+    private static boolean containsWrite(Trace trace, AccessIndex index, AbstractNode startNode, AbstractNode endNode) {
+
+        return index != null ? index.containsWrite(startNode, endNode) : checkIfContainsWrite(trace, startNode, endNode);
+    }
+
+    private static boolean patternsAdjacent(Trace trace, AccessIndex index, Pattern pattern1, Pattern pattern2) {
+
+        return index != null ? index.patternsAdjacent(pattern1, pattern2) : checkIfTwoPatternsAdjon(trace, pattern1, pattern2);
+    }
+
     public static List<Pattern> tryConstructUnicornPattern(Trace trace, List<Pattern> rpattern2, Pattern pattern1, Pattern pattern2) {
 
+        return tryConstructUnicornPattern(trace, null, rpattern2, pattern1, pattern2);
+    }
+
+    /**
+     * @param index the checks are done with it, by scanning the trace if null
+     */
+    static List<Pattern> tryConstructUnicornPattern(Trace trace, AccessIndex index, List<Pattern> rpattern2, Pattern pattern1, Pattern pattern2) {
+
         List<AbstractNode> nodes1 = pattern1.getNodes();
         List<AbstractNode> nodes2 = pattern2.getNodes();
         List<Pattern> newPatterns = new ArrayList<Pattern>();
@@ -550,7 +662,7 @@ public class PatternUtil {
             if(((IMemNode)node1).getAddr().equals(((IMemNode)node3).getAddr())) {
                 return null;
             }
-            if (checkIfTwoPatternsAdjon(trace,pattern1,pattern2)){
+            if (patternsAdjacent(trace,index,pattern1,pattern2)){
                 if(node1.getTid() == node4.getTid() && node2.getTid() == node3.getTid()) {
                     //WW,WW
                     if (pattern1.getPatternType() == PatternType.WW && pattern2.getPatternType() == PatternType.WW) {
@@ -603,7 +715,7 @@ public class PatternUtil {
                         //W1XR2YR2XW1Y
                         if (node1.getGID() < node4.getGID() && node3.getGID() < node2.getGID()) {
                             if (node3.getGID() > node4.getGID()) {
-                                if (!checkIfContainsWrite(trace, node4, node3)) {
+                                if (!containsWrite(trace, index, node4, node3)) {
                                     result = new Pattern(Arrays.asList(node1, node3, node2, node4));
                                     result.setPatternType(PatternType.W1XR2YR2XW1Y);
                                     newPatterns.add(result);
@@ -620,7 +732,7 @@ public class PatternUtil {
                         //W1XR2YW1YR2X
                         if (node1.getGID() < node4.getGID() && node3.getGID() < node2.getGID()) {
                             if (node3.getGID() > node4.getGID()) {
-                                if (!checkIfContainsWrite(trace, node4, node3)) {
+                                if (!containsWrite(trace, index, node4, node3)) {
                                     result = new Pattern(Arrays.asList(node1, node3, node4, node2));
                                     result.setPatternType(PatternType.W1XR2YW1YR2X);
                                     newPatterns.add(result);
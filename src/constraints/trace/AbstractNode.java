@@ -53,6 +53,9 @@ public abstract class AbstractNode{
 	protected TYPE type;
 	
 	protected String label;
+
+	//position in the events of its thread, set when the trace is loaded, -1: not in a thread
+	protected int threadIndex = -1;
 	
 	public AbstractNode(long GID, long tid, int ID, TYPE type)
 	{
@@ -91,6 +94,16 @@ public abstract class AbstractNode{
 	{
 		this.tid = tid;
 	}
+
+	public int getThreadIndex()
+	{
+		return threadIndex;
+	}
+
+	void setThreadIndex(int threadIndex)
+	{
+		this.threadIndex = threadIndex;
+	}
 	public boolean equals(AbstractNode node)
 	{
 		if(this.GID == node.getGID())
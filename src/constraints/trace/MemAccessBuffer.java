@@ -0,0 +1,150 @@
+package constraints.trace;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read/write events of one thread kept in primitive arrays, so that
+ * recording an access allocates no node, address, value or label string.
+ * The ReadNode/WriteNode objects are created by Trace.finishedLoading,
+ * with the same addr/value strings as RVRunTime.logFieldAcc builds and
+ * the label looked up by location ID.
+ *
+ * Only the owning thread appends; the buffer is read once the execution is over.
+ */
+public class MemAccessBuffer {
+
+	//kind of the value, decides how it is printed
+	private static final byte REF = 0;
+	private static final byte LONG = 1;
+	private static final byte BOOLEAN = 2;
+	private static final byte CHAR = 3;
+	private static final byte FLOAT = 4;
+	private static final byte DOUBLE = 5;
+
+	private static final byte FLAG_WRITE = 1;
+	//static field, the addr has no object part
+	private static final byte FLAG_STATIC = 2;
+
+	private static final String UNKNOWN_LABEL = "Unknown";
+
+	private int size = 0;
+	private long[] gids = new long[256];
+	private long[] tids = new long[256];
+	private long[] values = new long[256];
+	private int[] ids = new int[256];
+	private int[] sids = new int[256];
+	private int[] objs = new int[256];
+	private byte[] kinds = new byte[256];
+	private byte[] flags = new byte[256];
+
+	public void add(long gid, long tid, int ID, Object o, int SID, Object v, boolean write)
+	{
+		if (size == gids.length)
+			grow();
+
+		gids[size] = gid;
+		tids[size] = tid;
+		ids[size] = ID;
+		sids[size] = SID;
+		objs[size] = o == null ? 0 : System.identityHashCode(o);
+		flags[size] = (byte) ((write ? FLAG_WRITE : 0) | (o == null ? FLAG_STATIC : 0));
+
+		if (v instanceof Integer) {
+			kinds[size] = LONG;
+			values[size] = (Integer) v;
+		} else if (v instanceof Long) {
+			kinds[size] = LONG;
+			values[size] = (Long) v;
+		} else if (v instanceof Short) {
+			kinds[size] = LONG;
+			values[size] = (Short) v;
+		} else if (v instanceof Byte) {
+			kinds[size] = LONG;
+			values[size] = (Byte) v;
+		} else if (v instanceof Boolean) {
+			kinds[size] = BOOLEAN;
+			values[size] = (Boolean) v ? 1 : 0;
+		} else if (v instanceof Character) {
+			kinds[size] = CHAR;
+			values[size] = (Character) v;
+		} else if (v instanceof Float) {
+			kinds[size] = FLOAT;
+			values[size] = Float.floatToRawIntBits((Float) v);
+		} else if (v instanceof Double) {
+			kinds[size] = DOUBLE;
+			values[size] = Double.doubleToRawLongBits((Double) v);
+		} else {
+			kinds[size] = REF;
+			values[size] = System.identityHashCode(v);
+		}
+		size++;
+	}
+
+	private void grow()
+	{
+		int capacity = gids.length * 2;
+		gids = Arrays.copyOf(gids, capacity);
+		tids = Arrays.copyOf(tids, capacity);
+		values = Arrays.copyOf(values, capacity);
+		ids = Arrays.copyOf(ids, capacity);
+		sids = Arrays.copyOf(sids, capacity);
+		objs = Arrays.copyOf(objs, capacity);
+		kinds = Arrays.copyOf(kinds, capacity);
+		flags = Arrays.copyOf(flags, capacity);
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public void clear()
+	{
+		size = 0;
+	}
+
+	/**
+	 * create the nodes of the buffered events, in recording order
+	 * @param nodes the list to append to
+	 * @param labels location ID to file:line
+	 */
+	public void materialize(List<AbstractNode> nodes, Map<Integer, String> labels)
+	{
+		for (int i = 0; i < size; i++) {
+			boolean prim = kinds[i] != REF;
+			String sep = prim ? "." : "_.";
+			String addr = (flags[i] & FLAG_STATIC) != 0 ? sep + sids[i] : objs[i] + sep + sids[i];
+			String value = valueString(kinds[i], values[i]);
+
+			String label = labels == null ? null : labels.get(ids[i]);
+			if (label == null)
+				label = UNKNOWN_LABEL;
+
+			if ((flags[i] & FLAG_WRITE) != 0)
+				nodes.add(new WriteNode(gids[i], tids[i], ids[i], addr, value, AbstractNode.TYPE.WRITE, label));
+			else
+				nodes.add(new ReadNode(gids[i], tids[i], ids[i], addr, value, AbstractNode.TYPE.READ, label));
+		}
+	}
+
+	//same text as v+"" for primitives and identityHashCode(v)+"_" for objects
+	private static String valueString(byte kind, long value)
+	{
+		switch (kind) {
+		case LONG:
+			return Long.toString(value);
+		case BOOLEAN:
+			return value != 0 ? "true" : "false";
+		case CHAR:
+			return String.valueOf((char) value);
+		case FLOAT:
+			return Float.toString(Float.intBitsToFloat((int) value));
+		case DOUBLE:
+			return Double.toString(Double.longBitsToDouble(value));
+		default:
+			return value + "_";
+		}
+	}
+}
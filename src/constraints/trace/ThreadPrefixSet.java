@@ -0,0 +1,198 @@
+package constraints.trace;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Vector;
+
+/**
+ * A set of events of a trace closed under the order of each thread: with an
+ * event it holds all the earlier events of its thread. This is the shape of
+ * the dependent nodes of an event (see ConstraintsBuildEngine.getDependentNodes)
+ * and of their unions, so the set is kept as the length of the prefix of
+ * each thread it holds: union and membership cost O(#threads).
+ */
+public class ThreadPrefixSet implements Iterable<AbstractNode> {
+
+	/**
+	 * the threads of a trace, numbered by slot
+	 */
+	public static class Threads {
+
+		private final long[] tids;
+		private final Vector<AbstractNode>[] nodes;
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		public Threads(Trace trace)
+		{
+			Map<Long, Vector<AbstractNode>> map = trace.getThreadNodesMap();
+			tids = new long[map.size()];
+			nodes = new Vector[map.size()];
+			int slot = 0;
+			for (Map.Entry<Long, Vector<AbstractNode>> entry : map.entrySet()) {
+				tids[slot] = entry.getKey();
+				nodes[slot++] = entry.getValue();
+			}
+		}
+
+		public int size()
+		{
+			return tids.length;
+		}
+
+		/**
+		 * @return the slot of thread tid, -1 if it has no event
+		 */
+		public int slot(long tid)
+		{
+			for (int slot = 0; slot < tids.length; slot++)
+				if (tids[slot] == tid)
+					return slot;
+			return -1;
+		}
+
+		public Vector<AbstractNode> nodes(int slot)
+		{
+			return nodes[slot];
+		}
+	}
+
+	private final Threads threads;
+	private final int[] prefix;
+
+	public ThreadPrefixSet(Threads threads)
+	{
+		this.threads = threads;
+		this.prefix = new int[threads.size()];
+	}
+
+	/**
+	 * @param prefix the length of the prefix of each thread held, by slot, copied
+	 */
+	public ThreadPrefixSet(Threads threads, int[] prefix)
+	{
+		this.threads = threads;
+		this.prefix = Arrays.copyOf(prefix, threads.size());
+	}
+
+	/**
+	 * @param o an event, ISyncNode and IMemNode are events too
+	 */
+	public boolean contains(Object o)
+	{
+		if (!(o instanceof AbstractNode))
+			return false;
+		AbstractNode node = (AbstractNode) o;
+		int slot = threads.slot(node.getTid());
+		int index = node.getThreadIndex();
+		return slot >= 0 && index >= 0 && index < prefix[slot]
+				&& threads.nodes(slot).get(index) == node;
+	}
+
+	/**
+	 * add node, and the earlier events of its thread
+	 */
+	public void add(AbstractNode node)
+	{
+		int slot = threads.slot(node.getTid());
+		int index = node.getThreadIndex();
+		if (slot >= 0 && index >= 0 && prefix[slot] <= index)
+			prefix[slot] = index + 1;
+	}
+
+	public void addAll(Iterable<? extends AbstractNode> nodes)
+	{
+		for (AbstractNode node : nodes)
+			add(node);
+	}
+
+	public void addAll(ThreadPrefixSet other)
+	{
+		for (int slot = 0; slot < prefix.length; slot++)
+			if (prefix[slot] < other.prefix[slot])
+				prefix[slot] = other.prefix[slot];
+	}
+
+	/**
+	 * @return the number of events of thread tid held
+	 */
+	public int prefixLength(long tid)
+	{
+		int slot = threads.slot(tid);
+		return slot < 0 ? 0 : prefix[slot];
+	}
+
+	public int size()
+	{
+		int size = 0;
+		for (int length : prefix)
+			size += length;
+		return size;
+	}
+
+	/**
+	 * @return the events of this set that are not in other, thread by thread
+	 */
+	public Vector<AbstractNode> minus(ThreadPrefixSet other)
+	{
+		Vector<AbstractNode> nodes = new Vector<AbstractNode>();
+		for (int slot = 0; slot < prefix.length; slot++)
+			for (int i = other.prefix[slot]; i < prefix[slot]; i++)
+				nodes.add(threads.nodes(slot).get(i));
+		return nodes;
+	}
+
+	public ThreadPrefixSet copy()
+	{
+		return new ThreadPrefixSet(threads, prefix);
+	}
+
+	/**
+	 * sets of the same trace holding the same events are equal
+	 */
+	@Override
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof ThreadPrefixSet))
+			return false;
+		ThreadPrefixSet other = (ThreadPrefixSet) o;
+		return threads == other.threads && Arrays.equals(prefix, other.prefix);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return Arrays.hashCode(prefix);
+	}
+
+	/**
+	 * the events thread by thread, each thread in trace order
+	 */
+	@Override
+	public Iterator<AbstractNode> iterator()
+	{
+		return new Iterator<AbstractNode>() {
+			private int slot = 0;
+			private int index = 0;
+
+			@Override
+			public boolean hasNext()
+			{
+				while (slot < prefix.length && index >= prefix[slot]) {
+					slot++;
+					index = 0;
+				}
+				return slot < prefix.length;
+			}
+
+			@Override
+			public AbstractNode next()
+			{
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return threads.nodes(slot).get(index++);
+			}
+		};
+	}
+}
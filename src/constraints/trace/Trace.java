@@ -28,9 +28,15 @@
  ******************************************************************************/
 package constraints.trace;
 
+import constraints.pattern.PatternAnalysis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Stack;
 import java.util.Vector;
@@ -47,6 +53,30 @@ public class Trace {
 
 	//rawfulltrace represents all the raw events in the global order
 	Vector<AbstractNode> rawfulltrace = new Vector<AbstractNode>();
+
+	//events appended by each thread without locking, one buffer per thread,
+	//merged into rawfulltrace in the globalEventID order by finishedLoading
+	private final Vector<ArrayList<AbstractNode>> rawNodeBuffers = new Vector<ArrayList<AbstractNode>>();
+	private final ThreadLocal<ArrayList<AbstractNode>> threadRawNodeBuffer = new ThreadLocal<ArrayList<AbstractNode>>() {
+		@Override
+		protected ArrayList<AbstractNode> initialValue() {
+			ArrayList<AbstractNode> buffer = new ArrayList<AbstractNode>();
+			rawNodeBuffers.add(buffer);
+			return buffer;
+		}
+	};
+	//read/write events recorded without nodes, see MemAccessBuffer
+	private final Vector<MemAccessBuffer> memAccessBuffers = new Vector<MemAccessBuffer>();
+	private final ThreadLocal<MemAccessBuffer> threadMemAccessBuffer = new ThreadLocal<MemAccessBuffer>() {
+		@Override
+		protected MemAccessBuffer initialValue() {
+			MemAccessBuffer buffer = new MemAccessBuffer();
+			memAccessBuffers.add(buffer);
+			return buffer;
+		}
+	};
+	//location ID to file:line, for the labels of the buffered events
+	private Map<Integer, String> locationLabelMap;
 	
 	//indexed by address, the set of read/write threads
 	//used to prune away local data accesses
@@ -61,6 +91,10 @@ public class Trace {
 	//fulltrace represents all the critical events in the global order
 	Vector<AbstractNode> fulltrace = new Vector<AbstractNode>();
 
+	//fulltrace indexed by GID - firstGID, rebuilt by finishedLoading
+	private AbstractNode[] gidIndex = new AbstractNode[0];
+	private long firstGID = 0;
+
 	//keep a node GID to tid Map, used for generating schedules
 	HashMap<Long, Long> nodeGIDTidMap = new HashMap<Long, Long>();
 	
@@ -98,6 +132,11 @@ public class Trace {
 	
 	
 	TraceInfo info;
+
+	//set once finishedLoading has processed the trace
+	private boolean loaded;
+	//the pattern analysis of the loaded trace, kept by PatternAnalysis.of
+	private PatternAnalysis patternAnalysis;
 	
 	public static String appname;
 	public Trace(String name, TraceInfo info)
@@ -134,6 +173,24 @@ public class Trace {
 	{
 		return fulltrace;
 	}
+	public synchronized PatternAnalysis getPatternAnalysis()
+	{
+		return patternAnalysis;
+	}
+	public synchronized void setPatternAnalysis(PatternAnalysis patternAnalysis)
+	{
+		this.patternAnalysis = patternAnalysis;
+	}
+	/**
+	 * the node of fulltrace with the given GID, null if there is none
+	 */
+	public AbstractNode getNode(long gid)
+	{
+		long i = gid - firstGID;
+		if (i < 0 || i >= gidIndex.length)
+			return null;
+		return gidIndex[(int) i];
+	}
 	public HashSet<String> getSharedVariables()
 	{
 		return sharedAddresses;
@@ -273,13 +330,30 @@ public class Trace {
 		return readnodes;
 	}
 	/**
-	 * add a new event to the trace in the order of its appearance
+	 * add a new event to the trace in the order of its appearance,
+	 * i.e. its GID. It goes to the buffer of the calling thread, no lock is taken;
+	 * the buffers are read by finishedLoading, once the threads are done.
 	 * 
 	 * @param node
 	 */
-	public synchronized void addRawNode(AbstractNode node)
+	public void addRawNode(AbstractNode node)
+	{
+		threadRawNodeBuffer.get().add(node);
+	}
+	/**
+	 * the buffer of the current thread, for recording read/write events
+	 * without creating their nodes
+	 */
+	public MemAccessBuffer getMemAccessBuffer()
+	{
+		return threadMemAccessBuffer.get();
+	}
+	public void setLocationLabelMap(Map<Integer, String> map)
+	{
+		locationLabelMap = map;
+	}
+	private void indexRawNode(AbstractNode node)
 	{
-		rawfulltrace.add(node);
 		if(node instanceof IMemNode)
 		{
 			String addr = ((IMemNode) node).getAddr();
@@ -375,6 +449,7 @@ public class Trace {
 				
 			}
 			
+			node.setThreadIndex(threadNodes.size());
 			threadNodes.add(node);
 			
 			//TODO: Optimize it -- no need to update it every time
@@ -540,10 +615,17 @@ public class Trace {
 	 * 1. prune away local data accesses 
 	 * 2. process the remaining trace
 	 * 3. if needsReplay, don't remove any local access node
+	 * calling it again on a loaded trace with nothing added is a no-op
 	 * @param needsReplay
 	 */
 	public synchronized void finishedLoading(boolean needsReplay)
 	{
+		mergeRawBuffers();
+		if (loaded && rawfulltrace.isEmpty())
+			return;
+		//the nodes added since the last analysis change its patterns
+		patternAnalysis = null;
+
 		HashSet<String> addrs = new HashSet<String>();
 		addrs.addAll(indexedReadThreads.keySet());
 		addrs.addAll(indexedWriteThreads.keySet());
@@ -600,6 +682,8 @@ public class Trace {
 		
 		//process sync stack to handle windowing
 		checkSyncStack();
+
+		indexGIDs();
 		
 		
 		//clear rawfulltrace
@@ -608,7 +692,60 @@ public class Trace {
 		//add info 
 		info.addSharedAddresses(sharedAddresses);
 		info.addThreads(threads);
-		
+		loaded = true;
+	}
+	/**
+	 * merge the per thread buffers into rawfulltrace in the GID order,
+	 * creating the nodes of the buffered read/write events,
+	 * and index the read/write threads of each address
+	 */
+	private void mergeRawBuffers()
+	{
+		ArrayList<AbstractNode> nodes = new ArrayList<AbstractNode>(rawfulltrace);
+		synchronized (rawNodeBuffers) {
+			for (ArrayList<AbstractNode> buffer : rawNodeBuffers) {
+				nodes.addAll(buffer);
+				buffer.clear();
+			}
+		}
+		synchronized (memAccessBuffers) {
+			for (MemAccessBuffer buffer : memAccessBuffers) {
+				buffer.materialize(nodes, locationLabelMap);
+				buffer.clear();
+			}
+		}
+		if (nodes.size() == rawfulltrace.size())
+			return;
+		for (int i = rawfulltrace.size(); i < nodes.size(); i++)
+			indexRawNode(nodes.get(i));
+
+		//every buffer is already sorted by GID, so this is a merge
+		Collections.sort(nodes, new Comparator<AbstractNode>() {
+			@Override
+			public int compare(AbstractNode n1, AbstractNode n2) {
+				return Long.compare(n1.getGID(), n2.getGID());
+			}
+		});
+		rawfulltrace = new Vector<AbstractNode>(nodes);
+	}
+	/**
+	 * the GIDs of fulltrace are increasing with gaps where local accesses were
+	 * pruned, so an array over their range is dense enough
+	 */
+	private void indexGIDs()
+	{
+		if (fulltrace.isEmpty())
+			return;
+		long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+		for (AbstractNode node : fulltrace) {
+			min = Math.min(min, node.getGID());
+			max = Math.max(max, node.getGID());
+		}
+		AbstractNode[] index = new AbstractNode[(int) (max - min + 1)];
+		for (AbstractNode node : fulltrace)
+			index[(int) (node.getGID() - min)] = node;
+		firstGID = min;
+		gidIndex = index;
 	}
 	public	Vector<AbstractNode> getRawFullTrace()
 	{
@@ -0,0 +1,365 @@
+package constraints.trace;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * Binary capture of a loaded trace, so that pattern extraction and
+ * constraint exploration can be re-run on it without executing the program.
+ *
+ * Layout (big endian):
+ *   magic, version
+ *   string table: #strings, then (#bytes, utf-8 bytes) each
+ *   application name, schedule prefix
+ *   TraceInfo maps: shared variable, volatile address, statement, thread name
+ *   initial write values
+ *   events in GID order: type, GID, tid, ID, then the fields of the type
+ * Strings are written as indexes into the table, -1 for null.
+ *
+ * The reader maps the file and rebuilds the trace through addRawNode and
+ * finishedLoading(true), as MCRStrategy does for a live execution.
+ */
+public class TraceFile {
+
+	public static final String SUFFIX = ".mcrt";
+
+	private static final int MAGIC = 0x4d435254;//MCRT
+	private static final int VERSION = 1;
+
+	private static final AbstractNode.TYPE[] TYPES = AbstractNode.TYPE.values();
+
+	private final Trace trace;
+	private final Vector<String> schedulePrefix;
+
+	private TraceFile(Trace trace, Vector<String> schedulePrefix)
+	{
+		this.trace = trace;
+		this.schedulePrefix = schedulePrefix;
+	}
+
+	public Trace getTrace()
+	{
+		return trace;
+	}
+
+	public Vector<String> getSchedulePrefix()
+	{
+		return schedulePrefix;
+	}
+
+	/**
+	 * write a trace on which finishedLoading has been called
+	 * @param prefix the schedule prefix the trace was generated along
+	 */
+	public static void write(Trace trace, List<String> prefix, File file) throws IOException
+	{
+		try (OutputStream out = new FileOutputStream(file)) {
+			write(trace, prefix, out);
+		}
+	}
+
+	/**
+	 * same as write(Trace, List, File), to a stream, which is left open
+	 */
+	public static void write(Trace trace, List<String> prefix, OutputStream stream) throws IOException
+	{
+		ArrayList<AbstractNode> nodes = new ArrayList<AbstractNode>(trace.getFullTrace());
+		for (Vector<BranchNode> branchNodes : trace.threadBranchNodes.values())
+			nodes.addAll(branchNodes);
+		for (Vector<BBNode> bbNodes : trace.threadBBNodes.values())
+			nodes.addAll(bbNodes);
+		Collections.sort(nodes, new Comparator<AbstractNode>() {
+			@Override
+			public int compare(AbstractNode n1, AbstractNode n2) {
+				return Long.compare(n1.getGID(), n2.getGID());
+			}
+		});
+
+		TraceInfo info = trace.getTraceInfo();
+		StringTable strings = new StringTable();
+		strings.add(trace.getApplicationName());
+		for (String s : prefix)
+			strings.add(s);
+		strings.addAll(info.getSharedVarIdMap());
+		strings.addAll(info.volatileAddresses);
+		strings.addAll(info.getStmtSigIdMap());
+		strings.addAll(info.getThreadIdNameMap());
+		for (Map.Entry<String, String> entry : trace.getInitialWriteValueMap().entrySet()) {
+			strings.add(entry.getKey());
+			strings.add(entry.getValue());
+		}
+		for (AbstractNode node : nodes) {
+			strings.add(addrOf(node));
+			strings.add(valueOf(node));
+			strings.add(labelOf(node));
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+
+		out.writeInt(strings.list.size());
+		for (String s : strings.list) {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+		out.writeInt(strings.indexOf(trace.getApplicationName()));
+		out.writeInt(prefix.size());
+		for (String s : prefix)
+			out.writeInt(strings.indexOf(s));
+
+		writeIntMap(out, strings, info.getSharedVarIdMap());
+		writeIntMap(out, strings, info.volatileAddresses);
+		writeIntMap(out, strings, info.getStmtSigIdMap());
+		Map<Long, String> threadNames = info.getThreadIdNameMap();
+		out.writeInt(threadNames == null ? 0 : threadNames.size());
+		if (threadNames != null) {
+			for (Map.Entry<Long, String> entry : threadNames.entrySet()) {
+				out.writeLong(entry.getKey());
+				out.writeInt(strings.indexOf(entry.getValue()));
+			}
+		}
+
+		out.writeInt(trace.getInitialWriteValueMap().size());
+		for (Map.Entry<String, String> entry : trace.getInitialWriteValueMap().entrySet()) {
+			out.writeInt(strings.indexOf(entry.getKey()));
+			out.writeInt(strings.indexOf(entry.getValue()));
+		}
+
+		out.writeInt(nodes.size());
+		for (AbstractNode node : nodes) {
+			out.writeByte(node.getType().ordinal());
+			out.writeLong(node.getGID());
+			out.writeLong(node.getTid());
+			out.writeInt(node.getID());
+			switch (node.getType()) {
+			case READ:
+			case WRITE:
+				out.writeInt(strings.indexOf(addrOf(node)));
+				out.writeInt(strings.indexOf(valueOf(node)));
+				out.writeInt(strings.indexOf(labelOf(node)));
+				break;
+			case INIT:
+				out.writeInt(strings.indexOf(addrOf(node)));
+				out.writeInt(strings.indexOf(valueOf(node)));
+				break;
+			case NOTIFY:
+				out.writeInt(strings.indexOf(addrOf(node)));
+				out.writeLong(((NotifyNode) node).getWaitTid());
+				break;
+			case BRANCH:
+			case BB:
+				break;
+			default:
+				out.writeInt(strings.indexOf(addrOf(node)));
+			}
+		}
+		out.flush();
+	}
+
+	public static TraceFile read(File file) throws IOException
+	{
+		MappedByteBuffer in;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			//the mapping stays valid once the channel is closed
+			in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		}
+		return read(in, file.toString());
+	}
+
+	/**
+	 * read a trace written by write(Trace, List, OutputStream)
+	 * @param source the name of the buffer in error messages
+	 */
+	public static TraceFile read(ByteBuffer in, String source) throws IOException
+	{
+		if (in.getInt() != MAGIC)
+			throw new IOException(source + " is not a trace file");
+		int version = in.getInt();
+		if (version != VERSION)
+			throw new IOException(source + ": unsupported trace file version " + version);
+
+		String[] strings = new String[in.getInt()];
+		byte[] bytes = new byte[256];
+		for (int i = 0; i < strings.length; i++) {
+			int length = in.getInt();
+			if (length > bytes.length)
+				bytes = new byte[Math.max(length, 2 * bytes.length)];
+			in.get(bytes, 0, length);
+			strings[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+		}
+
+		String appname = string(strings, in.getInt());
+		Vector<String> prefix = new Vector<String>();
+		for (int i = in.getInt(); i > 0; i--)
+			prefix.add(string(strings, in.getInt()));
+
+		HashMap<Integer, String> sharedVarIdSigMap = readIntMap(in, strings);
+		HashMap<Integer, String> volatileAddresses = readIntMap(in, strings);
+		HashMap<Integer, String> stmtIdSigMap = readIntMap(in, strings);
+		HashMap<Long, String> threadIdNameMap = new HashMap<Long, String>();
+		for (int i = in.getInt(); i > 0; i--) {
+			long tid = in.getLong();
+			threadIdNameMap.put(tid, string(strings, in.getInt()));
+		}
+
+		TraceInfo info = new TraceInfo(sharedVarIdSigMap, volatileAddresses, stmtIdSigMap, threadIdNameMap);
+		Trace trace = appname == null ? new Trace(info) : new Trace(appname, info);
+
+		for (int i = in.getInt(); i > 0; i--) {
+			String addr = string(strings, in.getInt());
+			trace.updateInitWriteValueToAddress(addr, string(strings, in.getInt()));
+		}
+
+		for (int i = in.getInt(); i > 0; i--) {
+			AbstractNode.TYPE type = TYPES[in.get()];
+			long gid = in.getLong();
+			long tid = in.getLong();
+			int ID = in.getInt();
+			AbstractNode node;
+			switch (type) {
+			case READ:
+				node = new ReadNode(gid, tid, ID, string(strings, in.getInt()), string(strings, in.getInt()),
+						type, string(strings, in.getInt()));
+				break;
+			case WRITE:
+				node = new WriteNode(gid, tid, ID, string(strings, in.getInt()), string(strings, in.getInt()),
+						type, string(strings, in.getInt()));
+				break;
+			case INIT:
+				node = new InitNode(gid, tid, ID, string(strings, in.getInt()), string(strings, in.getInt()), type);
+				break;
+			case LOCK:
+				node = new LockNode(gid, tid, ID, string(strings, in.getInt()), type);
+				break;
+			case UNLOCK:
+				node = new UnlockNode(gid, tid, ID, string(strings, in.getInt()), type);
+				break;
+			case WAIT:
+				node = new WaitNode(gid, tid, ID, string(strings, in.getInt()), type);
+				break;
+			case NOTIFY:
+				String addr = string(strings, in.getInt());
+				node = new NotifyNode(gid, tid, ID, addr, in.getLong(), type);
+				break;
+			case START:
+				node = new StartNode(gid, tid, ID, string(strings, in.getInt()), type);
+				break;
+			case JOIN:
+				node = new JoinNode(gid, tid, ID, string(strings, in.getInt()), type);
+				break;
+			case PROPERTY:
+				node = new PropertyNode(gid, tid, ID, string(strings, in.getInt()), type);
+				break;
+			case BRANCH:
+				node = new BranchNode(gid, tid, ID, type);
+				break;
+			default:
+				node = new BBNode(gid, tid, ID, type);
+			}
+			trace.addRawNode(node);
+		}
+		trace.finishedLoading(true);
+
+		return new TraceFile(trace, prefix);
+	}
+
+	private static String addrOf(AbstractNode node)
+	{
+		if (node instanceof IMemNode)
+			return ((IMemNode) node).getAddr();
+		if (node instanceof ISyncNode)
+			return ((ISyncNode) node).getAddr();
+		if (node instanceof InitNode)
+			return ((InitNode) node).getAddr();
+		if (node instanceof PropertyNode)
+			return ((PropertyNode) node).getAddr();
+		return null;
+	}
+
+	private static String valueOf(AbstractNode node)
+	{
+		if (node instanceof ReadNode)
+			return ((ReadNode) node).getValue();
+		if (node instanceof WriteNode)
+			return ((WriteNode) node).getValue();
+		if (node instanceof InitNode)
+			return ((InitNode) node).getValue();
+		return null;
+	}
+
+	private static String labelOf(AbstractNode node)
+	{
+		return node instanceof IMemNode ? node.getLabel() : null;
+	}
+
+	private static void writeIntMap(DataOutputStream out, StringTable strings, Map<Integer, String> map) throws IOException
+	{
+		out.writeInt(map == null ? 0 : map.size());
+		if (map == null)
+			return;
+		for (Map.Entry<Integer, String> entry : map.entrySet()) {
+			out.writeInt(entry.getKey());
+			out.writeInt(strings.indexOf(entry.getValue()));
+		}
+	}
+
+	private static HashMap<Integer, String> readIntMap(ByteBuffer in, String[] strings)
+	{
+		HashMap<Integer, String> map = new HashMap<Integer, String>();
+		for (int i = in.getInt(); i > 0; i--) {
+			int key = in.getInt();
+			map.put(key, string(strings, in.getInt()));
+		}
+		return map;
+	}
+
+	private static String string(String[] strings, int index)
+	{
+		return index < 0 ? null : strings[index];
+	}
+
+	private static class StringTable {
+
+		private final ArrayList<String> list = new ArrayList<String>();
+		private final HashMap<String, Integer> index = new HashMap<String, Integer>();
+
+		void add(String s)
+		{
+			if (s != null && !index.containsKey(s)) {
+				index.put(s, list.size());
+				list.add(s);
+			}
+		}
+
+		void addAll(Map<?, String> map)
+		{
+			if (map != null)
+				for (String s : map.values())
+					add(s);
+		}
+
+		int indexOf(String s)
+		{
+			return s == null ? -1 : index.get(s);
+		}
+	}
+}
@@ -3,32 +3,149 @@ package constraints.unsatcore;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class UnSatConstraint {
 
-    private static HashMap<Integer,ArrayList<String>> unsats;
+    //read concurrently by the solver workers
+    private static final Map<Integer,ArrayList<String>> unsats = new ConcurrentHashMap<>();
+    private static final AtomicInteger unsatIndex = new AtomicInteger();
+
+    //inverted index: each core is listed under one of its formulas, the one in the fewest cores,
+    //so a query only looks at the cores listed under its own formulas
+    private static final Map<String,List<Core>> coresByFormula = new ConcurrentHashMap<>();
+    private static final HashMap<String,Integer> numCoresByFormula = new HashMap<>();
+    //the indexed cores, in the order they were added
+    private static final List<Core> cores = new CopyOnWriteArrayList<>();
+    //a core without formulas subsumes every query
+    private static volatile boolean emptyCore = false;
+
+    //queries subsumed by a core loaded by UnSatCoreStore
+    private static final AtomicLong numStoredHits = new AtomicLong();
+
+    /**
+     * an indexed core, with how much it was used for UnSatCoreStore
+     */
+    static class Core {
+
+        final String[] formulas;
+        //loaded by UnSatCoreStore, with the hits and the last run it was used in of the earlier runs
+        final boolean stored;
+        final int storedHits;
+        final long lastUsed;
+        //queries it subsumed in this run
+        final AtomicInteger hits = new AtomicInteger();
+
+        Core(String[] formulas, boolean stored, int storedHits, long lastUsed) {
+
+            this.formulas = formulas;
+            this.stored = stored;
+            this.storedHits = storedHits;
+            this.lastUsed = lastUsed;
+        }
+    }
 
     /**
      * remove all unsats when a new solving is beginning
      */
-    public static void clearUnSatsCache(){
+    public static synchronized void clearUnSatsCache(){
 
-        unsats = getUnSats();
         unsats.clear();
+        unsatIndex.set(0);
+        coresByFormula.clear();
+        numCoresByFormula.clear();
+        cores.clear();
+        emptyCore = false;
+        numStoredHits.set(0);
     }
 
-    public static HashMap<Integer,ArrayList<String>> getUnSats() {
+    /**
+     * check if the uniform formulas of a query contain all the formulas of an unsat core
+     */
+    public static boolean isSubsumed(Set<String> formulas){
+
+        if (emptyCore){
+            return true;
+        }
+        for (String formula : formulas) {
+
+            List<Core> cores = coresByFormula.get(formula);
+            if (cores == null){
+                continue;
+            }
+            for (Core core : cores) {
+
+                boolean contained = true;
+                for (String f : core.formulas) {
+                    if (!formulas.contains(f)){
+                        contained = false;
+                        break;
+                    }
+                }
+                if (contained){
+                    core.hits.incrementAndGet();
+                    if (core.stored){
+                        numStoredHits.incrementAndGet();
+                    }
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 
-        if (unsats == null){
+    private static synchronized void index(ArrayList<String> aunsats, boolean stored, int storedHits, long lastUsed){
 
-            unsats = new HashMap<Integer, ArrayList<String>>();
+        //a name the query did not record has no formula, such a core never matches
+        if (aunsats.contains(null)){
+            return;
+        }
+        String[] formulas = new LinkedHashSet<>(aunsats).toArray(new String[0]);
+        if (formulas.length == 0){
+            emptyCore = true;
+            return;
+        }
+        String rarest = formulas[0];
+        for (String formula : formulas) {
+            if (numCoresByFormula.getOrDefault(formula, 0) < numCoresByFormula.getOrDefault(rarest, 0)){
+                rarest = formula;
+            }
         }
+        for (String formula : formulas) {
+            numCoresByFormula.merge(formula, 1, Integer::sum);
+        }
+        Core core = new Core(formulas, stored, storedHits, lastUsed);
+        coresByFormula.computeIfAbsent(rarest, f -> new CopyOnWriteArrayList<>()).add(core);
+        cores.add(core);
+    }
+
+    /**
+     * the indexed cores, for UnSatCoreStore to save
+     */
+    static List<Core> getCores(){
+
+        return cores;
+    }
+
+    static long getNumStoredHits(){
+
+        return numStoredHits.get();
+    }
+
+    public static Map<Integer,ArrayList<String>> getUnSats() {
+
         return unsats;
     }
 
     public static void addUnsatFormula(String unsatFormula){
 
-        unsats = getUnSats();
 //        if (unsatFormula != null && unsats != null){
 //
 //            unsats.add(unsatFormula);
@@ -42,7 +159,16 @@ public class UnSatConstraint {
      */
     public static void addUnSatFormulas(HashSet<String> cunsats, HashMap<String,String> currentFormulas){
 
-        unsats = getUnSats();
+        addUnSatCore(getUnSatFormulas(cunsats, currentFormulas));
+    }
+
+    /**
+     * map the names in task.unsats to their uniform formulas
+     * @param cunsats
+     * @param currentFormulas
+     * @return
+     */
+    public static ArrayList<String> getUnSatFormulas(HashSet<String> cunsats, HashMap<String,String> currentFormulas){
 
         ArrayList<String> aunsats = new ArrayList<>();
 
@@ -50,13 +176,26 @@ public class UnSatConstraint {
 
             aunsats.add(currentFormulas.get(unsat));
         });
+        return aunsats;
+    }
+
+    public static void addUnSatCore(ArrayList<String> aunsats){
+
+        unsats.put(unsatIndex.incrementAndGet(), aunsats);
+        index(aunsats, false, 0, 0);
+    }
+
+    /**
+     * add a core UnSatCoreStore loaded, found in an earlier run
+     */
+    static void addStoredCore(ArrayList<String> aunsats, int storedHits, long lastUsed){
 
-        unsats.put(unsats.size()+1, aunsats);
+        unsats.put(unsatIndex.incrementAndGet(), aunsats);
+        index(aunsats, true, storedHits, lastUsed);
     }
 
     public static void printAllConstraints(){
 
-        unsats = getUnSats();
         for (Integer index : unsats.keySet()){
 
             unsats.get(index).forEach(System.out::println);
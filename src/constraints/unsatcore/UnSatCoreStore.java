@@ -0,0 +1,270 @@
+package constraints.unsatcore;
+
+import constraints.config.Configuration;
+import constraints.pattern.ClassHashes;
+import instrumentor.instrumentation.RVGlobalStateForInstrumentation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the unsat cores of UnSatConstraint across runs. The cores are in the
+ * trace independent form of UniformFormula (location IDs), so a later run of
+ * the same test starts with the cores an earlier one found.
+ *
+ * With unsat_core_dir set, the cores of a test class are loaded when its
+ * exploration starts, from <unsat_core_dir>/<test class>-<hash>.cores, hash
+ * being that of the bytecode of the test class. The file keeps the hashes of
+ * the classes instrumented too: if the test or one of them changed, the
+ * locations are not the same and the test starts without cores. They are
+ * saved back when the exploration completes, at most unsat_core_max of them:
+ * the ones used in the latest runs first, then the most used.
+ *
+ * The location IDs are handed out in the order the locations are
+ * instrumented, so they are not saved as they are: the file keeps the
+ * signature of each location, and on load a signature gets the ID it has in
+ * this run, registered now if its class is not instrumented yet. A core
+ * with a location that has no signature is not saved.
+ */
+public class UnSatCoreStore {
+
+    private static final String SUFFIX = ".cores";
+    private static final int MAGIC = 0x4d435243;
+    private static final int VERSION = 1;
+
+    //the x<ID1>x<ID2>T/F keys of a uniform formula
+    private static final Pattern KEY = Pattern.compile("x(\\d+)x(\\d+)([TF])");
+
+    //the file of the test class explored, null: the cores are not kept
+    private static File file;
+    //runs saved to file so far
+    private static long run = 0;
+    //the classes the cores of file were found with
+    private static ClassHashes classHashes;
+
+    private static int numLoaded = 0;
+    private static int numEvicted = 0;
+
+    /**
+     * load the cores of the test class of the test name (class.method), if unsat_core_dir is set;
+     * the cores of another test class explored before are dropped
+     */
+    public static synchronized void load(String name){
+
+        if (Configuration.unsatCoreDir.isEmpty()){
+            return;
+        }
+        String testClass = name.lastIndexOf('.') > 0 ? name.substring(0, name.lastIndexOf('.')) : name;
+        File classFile = new File(Configuration.unsatCoreDir, testClass + "-" + ClassHashes.bytecodeHash(testClass) + SUFFIX);
+        if (classFile.equals(file)){
+            //the other methods of the class share its cores, already loaded
+            return;
+        }
+        UnSatConstraint.clearUnSatsCache();
+        file = classFile;
+        run = 0;
+        classHashes = null;
+        numLoaded = 0;
+        numEvicted = 0;
+        if (!file.isFile()){
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION){
+                System.err.println("ignoring " + file + ": not an unsat core file of version " + VERSION);
+                return;
+            }
+            ClassHashes hashes = ClassHashes.read(in);
+            String changed = hashes.changed();
+            if (changed != null){
+                System.err.println("ignoring " + file + ": " + changed + " changed since");
+                return;
+            }
+            run = in.readLong();
+            classHashes = hashes;
+            //position in the file -> ID of the location in this run
+            int[] ids = new int[in.readInt()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = RVGlobalStateForInstrumentation.instance.getLocationId(in.readUTF());
+            }
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                long lastUsed = in.readLong();
+                int hits = in.readInt();
+                ArrayList<String> core = new ArrayList<>();
+                for (int k = in.readInt(); k > 0; k--) {
+                    core.add(renumber(in.readUTF(), ids));
+                }
+                if (core.contains(null)) {
+                    continue;
+                }
+                UnSatConstraint.addStoredCore(core, hits, lastUsed);
+                numLoaded++;
+            }
+        } catch (IOException e) {
+            System.err.println("cannot load " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * save the cores of the test class explored, if they are kept
+     */
+    public static synchronized void save(){
+
+        if (file == null){
+            return;
+        }
+        final long current = run + 1;
+        //one entry per core, with the run it was last used in and its hits so far
+        LinkedHashMap<List<String>,long[]> entries = new LinkedHashMap<>();
+        for (UnSatConstraint.Core core : UnSatConstraint.getCores()) {
+
+            int hits = core.hits.get();
+            long lastUsed = !core.stored || hits > 0 ? current : core.lastUsed;
+            entries.put(Arrays.asList(core.formulas), new long[]{lastUsed, core.storedHits + hits});
+        }
+        //the cores with the positions of their locations in sigs in place of the IDs
+        List<String> sigs = new ArrayList<>();
+        HashMap<Integer,Integer> positions = new HashMap<>();
+        LinkedHashMap<List<String>,List<String>> saved = new LinkedHashMap<>();
+        for (List<String> core : entries.keySet()) {
+            List<String> formulas = new ArrayList<>();
+            for (String formula : core) {
+                formulas.add(toPositions(formula, sigs, positions));
+            }
+            if (!formulas.contains(null)) {
+                saved.put(core, formulas);
+            }
+        }
+        List<List<String>> kept = new ArrayList<>(saved.keySet());
+        Collections.sort(kept, (a, b) -> {
+            long[] ea = entries.get(a), eb = entries.get(b);
+            return ea[0] != eb[0] ? Long.compare(eb[0], ea[0]) : Long.compare(eb[1], ea[1]);
+        });
+        if (kept.size() > Configuration.unsatCoreMax){
+            numEvicted += kept.size() - Configuration.unsatCoreMax;
+            kept = kept.subList(0, Math.max(0, Configuration.unsatCoreMax));
+        }
+
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()){
+            System.err.println("cannot create unsat core dir " + dir);
+            return;
+        }
+        //the cores found with the classes of this run too
+        ClassHashes hashes = ClassHashes.current(classHashes);
+        //written aside and renamed, a run stopped while saving leaves the earlier file
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            hashes.write(out);
+            out.writeLong(current);
+            out.writeInt(sigs.size());
+            for (String sig : sigs) {
+                out.writeUTF(sig);
+            }
+            out.writeInt(kept.size());
+            for (List<String> core : kept) {
+                long[] entry = entries.get(core);
+                out.writeLong(entry[0]);
+                out.writeInt((int) Math.min(Integer.MAX_VALUE, entry[1]));
+                out.writeInt(core.size());
+                for (String formula : saved.get(core)) {
+                    out.writeUTF(formula);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("cannot save " + file + ": " + e.getMessage());
+            return;
+        }
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))){
+            System.err.println("cannot save " + file);
+            return;
+        }
+        run = current;
+        classHashes = hashes;
+    }
+
+    /**
+     * formula with the position in sigs of the signature of each location in place of its ID
+     * @return null if a location has no signature
+     */
+    private static String toPositions(String formula, List<String> sigs, HashMap<Integer,Integer> positions){
+
+        Matcher m = KEY.matcher(formula);
+        StringBuffer sb = new StringBuffer();
+        while (m.find()) {
+            Integer p1 = position(Integer.parseInt(m.group(1)), sigs, positions);
+            Integer p2 = position(Integer.parseInt(m.group(2)), sigs, positions);
+            if (p1 == null || p2 == null){
+                return null;
+            }
+            m.appendReplacement(sb, "x" + p1 + "x" + p2 + m.group(3));
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+
+    private static Integer position(int ID, List<String> sigs, HashMap<Integer,Integer> positions){
+
+        Integer position = positions.get(ID);
+        if (position == null){
+            String sig = RVGlobalStateForInstrumentation.instance.getLocationSig(ID);
+            if (sig == null){
+                return null;
+            }
+            position = sigs.size();
+            sigs.add(sig);
+            positions.put(ID, position);
+        }
+        return position;
+    }
+
+    /**
+     * formula of the file with the IDs of this run in place of the positions of the locations
+     * @return null if a position is not in the signature table
+     */
+    private static String renumber(String formula, int[] ids){
+
+        Matcher m = KEY.matcher(formula);
+        StringBuffer sb = new StringBuffer();
+        while (m.find()) {
+            int p1 = Integer.parseInt(m.group(1));
+            int p2 = Integer.parseInt(m.group(2));
+            if (p1 >= ids.length || p2 >= ids.length){
+                return null;
+            }
+            m.appendReplacement(sb, "x" + ids[p1] + "x" + ids[p2] + m.group(3));
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+
+    /**
+     * one line, for the exploration stats
+     */
+    public static synchronized String stats(){
+
+        if (file == null){
+            return "";
+        }
+        return String.format("unsat cores: %d loaded from %s (run %d), %d now, %d queries subsumed by a loaded core, %d dropped%n",
+                numLoaded, file.getName(), run + 1, UnSatConstraint.getCores().size(),
+                UnSatConstraint.getNumStoredHits(), numEvicted);
+    }
+}
@@ -0,0 +1,79 @@
+package constraints.unsatcore;
+
+import constraints.formula.Formula;
+import constraints.trace.AbstractNode;
+import constraints.trace.Trace;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The trace independent form the unsat cores are kept in: the SMT-LIB text of
+ * a formula without blanks, where the variables x<GID1> x<GID2> of every
+ * atom become x<ID1>x<ID2>T or x<ID1>x<ID2>F, ID being the location of the
+ * event and T/F whether the two events are in the same thread.
+ * e.g. (< x12 x15 ) -> (<x3x7F)
+ */
+public class UniformFormula {
+
+    //interned x<ID1>x<ID2>T/F keys, indexed by ID1 << 32 | ID2
+    private static final ConcurrentHashMap<Long,String> sameThreadKeys = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Long,String> otherThreadKeys = new ConcurrentHashMap<>();
+
+    /**
+     * @return the uniform form of formula, null if one of its events is not in the trace
+     */
+    public static String normalize(Formula formula, final Trace trace) {
+
+        final StringBuilder uniform = new StringBuilder();
+        Boolean found = formula.accept(new Formula.Visitor<Boolean>() {
+            @Override
+            public Boolean visitOrder(Formula.Order order) {
+                AbstractNode node1 = trace.getNode(order.gid1);
+                AbstractNode node2 = trace.getNode(order.gid2);
+                if (node1 == null || node2 == null) {
+                    System.err.println("Could not find corresponding event!" + " GID1:" + order.gid1 + " node1:" + node1 + " GID2:" + order.gid2 + " node2:" + node2);
+                    return false;
+                }
+                uniform.append('(').append(order.op)
+                        .append(key(node1.getID(), node2.getID(), node1.getTid() == node2.getTid())).append(')');
+                return true;
+            }
+
+            @Override
+            public Boolean visitAnd(Formula.And and) {
+                uniform.append("(and");
+                return and.left.accept(this) && and.right.accept(this) && close();
+            }
+
+            @Override
+            public Boolean visitOr(Formula.Or or) {
+                uniform.append("(or");
+                return or.left.accept(this) && or.right.accept(this) && close();
+            }
+
+            @Override
+            public Boolean visitTrue() {
+                uniform.append("true");
+                return true;
+            }
+
+            private boolean close() {
+                uniform.append(')');
+                return true;
+            }
+        });
+        return found ? uniform.toString() : null;
+    }
+
+    private static String key(int ID1, int ID2, boolean sameThread) {
+
+        Long index = ((long) ID1 << 32) | (ID2 & 0xffffffffL);
+        ConcurrentHashMap<Long,String> keys = sameThread ? sameThreadKeys : otherThreadKeys;
+        String key = keys.get(index);
+        if (key == null) {
+            key = "x" + ID1 + "x" + ID2 + (sameThread ? "T" : "F");
+            keys.putIfAbsent(index, key);
+        }
+        return key;
+    }
+}
@@ -18,6 +18,8 @@ import instrumentor.icb.JUCEventsClassTransformer;
 import instrumentor.icb.SharedAccessEventsClassTransformer;
 import instrumentor.icb.ThreadEventsClassTransformer;
 import instrumentor.mcr.ClassAdapter;
+import instrumentor.profile.ProfileClassTransformer;
+import instrumentor.profile.ProfileRunTime;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 
@@ -86,6 +88,25 @@ public class Instrumentor {
         debug = Boolean.parseBoolean(mcrProps.getProperty("debug"));
 
         final String strategy = mcrProps.getProperty(MCRProperties.SCHEDULING_STRATEGY_KEY);
+
+        /*
+         * profile-guided instrumentation: the profiling run records the shared locations,
+         * the MCR runs then instrument only those, in the classes whose bytecode did not change
+         */
+        final boolean profile = Boolean.parseBoolean(mcrProps.getProperty(MCRProperties.PROFILE_KEY));
+        String profileDir = mcrProps.getProperty(MCRProperties.PROFILE_DIR_KEY);
+        if (profileDir == null || profileDir.trim().isEmpty()) {
+            profileDir = null;
+        }
+        if (profile) {
+            if (profileDir != null) {
+                RVGlobalStateForInstrumentation.instance.profileDir = profileDir.trim();
+            }
+            ProfileRunTime.init();
+        } else if (profileDir != null
+                && !RVGlobalStateForInstrumentation.instance.initSharedData(profileDir.trim())) {
+            System.err.println("No usable profile in " + profileDir.trim() + ", instrumenting all the locations");
+        }
         /*
          * choose the runtime instrumentation based on the model checker specified
          */
@@ -108,9 +129,16 @@ public class Instrumentor {
                         {
                             System.out.println("Instrumenting " + className);
                         }
+                        RVGlobalStateForInstrumentation.instance.instrumentedClasses.put(className, true);
                         ClassReader classReader = new ClassReader(classfileBuffer);
                         ClassWriter classWriter = new ExtendedClassWriter(classReader, ClassWriter.COMPUTE_FRAMES);
-                        if (MCR_STRATEGY.equals(strategy)) {
+                        if (profile) {
+
+                            RVGlobalStateForInstrumentation.instance.recordClassHash(className, classfileBuffer);
+                            ProfileClassTransformer classVisitor = new ProfileClassTransformer(classWriter);
+                            classReader.accept(classVisitor, ClassReader.EXPAND_FRAMES);
+                            classfileBuffer = classWriter.toByteArray();
+                        } else if (MCR_STRATEGY.equals(strategy)) {
 
                             ClassAdapter classVisitor = new ClassAdapter(classWriter);
                             //in the accept method, it calls visitor.visit()
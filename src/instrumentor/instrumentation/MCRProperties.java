@@ -26,6 +26,10 @@ public class MCRProperties extends Properties {
 
     //memory model, whether using static dependency analysis
     public static final String memModel_KEY = "mm";
+
+    //profile-guided instrumentation: profiling run, directory of the shared locations
+    public static final String PROFILE_KEY = "profile";
+    public static final String PROFILE_DIR_KEY = "profile_dir";
     
     /* Listeners/Debugging related properties */
     public static final String LISTENERS_KEY = "mcr.exploration.listeners";
@@ -15,8 +15,11 @@ public class RVConfig {
     public final String MEM_BARRIER="bufferEmpty";
     //public final String 
     
-    public final String DESC_BUFFER_STORE="(Ljava/lang/Object;Ljava/lang/String;)V";//return a boolean
-    public final String DESC_BUFFER_STORE_PSO="(Ljava/lang/Object;Ljava/lang/String;)V";
+    //(value, store site id), primitive values as raw long bits
+    public final String DESC_BUFFER_STORE="(JI)V";
+    public final String DESC_BUFFER_STORE_REF="(Ljava/lang/Object;I)V";
+    public final String DESC_BUFFER_STORE_PSO="(JI)V";
+    public final String DESC_BUFFER_STORE_PSO_REF="(Ljava/lang/Object;I)V";
     //    public final String DESC_UPDATE_JUDGE="()Z";
     //public final String DESC_UPDATE_STORE="()Ljava/lang/String;";
     public final String DESC_UPDATE_STORE="()V";
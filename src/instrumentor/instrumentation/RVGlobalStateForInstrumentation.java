@@ -1,10 +1,15 @@
 package instrumentor.instrumentation;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -13,6 +18,7 @@ import java.util.concurrent.ConcurrentHashMap;
 //import ProfileRunTime;
 import instrumentor.profile.ProfileRunTime;
 import org.objectweb.asm.ClassReader;
+import scheduler.runtime.StoreSite;
 
 //import ProfileRunTime;
 //import edu.tamu.aser.trace.Trace;
@@ -23,6 +29,8 @@ public class RVGlobalStateForInstrumentation {
     
     public final static String FILE_SHARED_VARIABLE = "sharedvariables.ser";
     public final static String FILE_SHARED_ARRAY_LOCATION = "sharedarrayloc.ser";
+    public final static String FILE_LOCAL_VARIABLE = "localvariables.ser";
+    public final static String FILE_CLASS_HASHES = "classhashes.ser";
 
     public static final String RUNNABLE_CLASS_NAME = "java/lang/Runnable";
     public static final String OBJECT_CLASS_NAME = "java/lang/Object";
@@ -32,6 +40,8 @@ public class RVGlobalStateForInstrumentation {
     public static RVGlobalStateForInstrumentation instance = new RVGlobalStateForInstrumentation();
 	public static HashMap<Integer, String> variableIdSigMap = new HashMap<Integer, String>();
 	public static HashMap<Integer, String> stmtIdSigMap = new HashMap<Integer, String>();
+	//location id to file:line, the label the runtime would otherwise get from the stack
+	public static ConcurrentHashMap<Integer, String> stmtIdLabelMap = new ConcurrentHashMap<Integer, String>();
 	public HashSet<String> volatilevariables = new HashSet<String>();
 
     public ConcurrentHashMap<String,Integer> variableIdMap = new ConcurrentHashMap<String,Integer>();
@@ -43,7 +53,16 @@ public class RVGlobalStateForInstrumentation {
     public ConcurrentHashMap<String,Integer> stmtSigIdMap = new ConcurrentHashMap<String,Integer>();
     //public ConcurrentHashMap<String,Integer> unsavedStmtSigIdMap = new ConcurrentHashMap<String,Integer>();
     HashSet<String> sharedVariables;
+    //the variables the profiling run saw accessed by a single thread
+    HashSet<String> localVariables;
     HashSet<String> sharedArrayLocations;
+    //directory the profiling run saves the shared locations to
+    public String profileDir = ".";
+    //class name to bytecode hash: recorded while profiling, loaded with the shared locations
+    ConcurrentHashMap<String,String> classHashes = new ConcurrentHashMap<String,String>();
+    HashMap<String,String> profiledClassHashes;
+    //the classes the agent instrumented, their class files tell the code explored
+    public ConcurrentHashMap<String,Boolean> instrumentedClasses = new ConcurrentHashMap<String,Boolean>();
 	    
 	public void saveObjectToFile(Object o, String filename)
 	{
@@ -62,17 +81,45 @@ public class RVGlobalStateForInstrumentation {
 
 
 	}
-	    public boolean initSharedData()
+	    /**
+	     * load the locations saved by a profiling run in dir
+	     * @return false if dir holds no profile, or one of a class that changed since:
+	     * every location is then instrumented
+	     */
+	    public boolean initSharedData(String dir)
 	    {
-	        Object o = loadObjectFromFile(FILE_SHARED_VARIABLE);
+	        if(!new File(dir, FILE_CLASS_HASHES).exists())
+	            return false;
+
+	        Object o = loadObjectFromFile(new File(dir, FILE_LOCAL_VARIABLE).getPath());
 	        if(o==null)return false;
-	        else sharedVariables = (HashSet<String>) o;
-	        
-	            o = loadObjectFromFile(FILE_SHARED_ARRAY_LOCATION);
-	            if(o==null)return false;
-	            else sharedArrayLocations = (HashSet<String>) o;
-	            
-	            return true;
+	        @SuppressWarnings("unchecked")
+	        HashSet<String> variables = (HashSet<String>) o;
+
+	        o = loadObjectFromFile(new File(dir, FILE_SHARED_ARRAY_LOCATION).getPath());
+	        if(o==null)return false;
+	        @SuppressWarnings("unchecked")
+	        HashSet<String> arrayLocations = (HashSet<String>) o;
+
+	        o = loadObjectFromFile(new File(dir, FILE_CLASS_HASHES).getPath());
+	        if(o==null)return false;
+	        @SuppressWarnings("unchecked")
+	        HashMap<String,String> classHashes = (HashMap<String,String>) o;
+	        //a changed class may access the variables from other threads, the profile is of other code
+	        for(Map.Entry<String,String> entry: classHashes.entrySet())
+	        {
+	            String hash = hashClassFile(entry.getKey());
+	            if(hash!=null && !hash.equals(entry.getValue()))
+	            {
+	                System.err.println("class "+entry.getKey()+" changed since profiling");
+	                return false;
+	            }
+	        }
+
+	        localVariables = variables;
+	        sharedArrayLocations = arrayLocations;
+	        profiledClassHashes = classHashes;
+	        return true;
 	    }
 	    private Object loadObjectFromFile(String filename)
 	    {
@@ -93,25 +140,36 @@ public class RVGlobalStateForInstrumentation {
             
             return o;
 	    }
+	    /**
+	     * whether the accesses to field sig must be instrumented, decided per field: an
+	     * instrumented store may be buffered, a load of the field left as is would not see it
+	     */
 	    public boolean isVariableShared(String sig)
 	    {
-	        if(true)return true;
-	        if(sharedVariables==null
-	                ||sharedVariables.contains(sig))
+	        if(localVariables==null
+	                ||!localVariables.contains(sig))
 	            return true;
 	        else
 	            return false;
 	    }
 	    public boolean shouldInstrumentArray(String loc)
 	    {
-	           if(true)return true;
-
 	        if(sharedArrayLocations==null
 	                ||sharedArrayLocations.contains(loc))
 	            return true;
 	        else
 	            return false;
 	    }
+	    /**
+	     * the locations of a class the profiling run did not load are not in the profile
+	     */
+	    public boolean shouldInstrumentArray(String cname, String loc)
+	    {
+	        if(sharedArrayLocations==null
+	                ||!profiledClassHashes.containsKey(cname))
+	            return true;
+	        return shouldInstrumentArray(loc);
+	    }
 	    public void setSharedArrayLocations(HashSet<String> locs)
 	    {
 	        this.sharedArrayLocations = locs;
@@ -121,25 +179,79 @@ public class RVGlobalStateForInstrumentation {
 	        this.sharedVariables = locs;
 	    }
 
+	    /**
+	     * profiling run: keep the hash of the bytecode the locations of cname come from
+	     */
+	    public void recordClassHash(String cname, byte[] classfileBuffer)
+	    {
+	        classHashes.put(cname, hashClass(classfileBuffer));
+	    }
+	    /**
+	     * MCR run: hash of the class file cname is loaded from, null if it is not found
+	     */
+	    private static String hashClassFile(String cname)
+	    {
+	        InputStream in = ClassLoader.getSystemResourceAsStream(cname+".class");
+	        if(in==null)
+	            return null;
+	        try {
+	            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	            byte[] buf = new byte[8192];
+	            int n;
+	            while((n=in.read(buf))>0)
+	                bytes.write(buf, 0, n);
+	            in.close();
+	            return hashClass(bytes.toByteArray());
+	        } catch (IOException e) {
+	            e.printStackTrace();
+	            return null;
+	        }
+	    }
+	    private static String hashClass(byte[] classfileBuffer)
+	    {
+	        try {
+	            byte[] digest = MessageDigest.getInstance("SHA-1").digest(classfileBuffer);
+	            StringBuilder hex = new StringBuilder(2*digest.length);
+	            for(byte b: digest)
+	                hex.append(Character.forDigit((b>>4)&0xf, 16)).append(Character.forDigit(b&0xf, 16));
+	            return hex.toString();
+	        } catch (NoSuchAlgorithmException e) {
+	            throw new RuntimeException(e);
+	        }
+	    }
+
+	    /**
+	     * save the profile in profileDir: the variables and array locations to
+	     * instrument, accessed by more than one thread or never reached, nothing is
+	     * known about those, and the variables accessed by a single thread, the
+	     * ones MCR runs leave as is
+	     */
 	    public void saveMetaData() {
 
 	        {
 	            //show arrayId
 	            HashSet<Integer> sharedArrayIds = new HashSet<Integer>();
-	            for(Integer sid: ProfileRunTime.sharedArrayIds)
+	            HashSet<Integer> reachedArrayIds = new HashSet<Integer>();
+	            for(Map.Entry<Integer,HashSet<Integer>> entry: ProfileRunTime.arrayIdsMap.entrySet())
 	            {
-	                HashSet<Integer> ids = ProfileRunTime.arrayIdsMap.get(sid);
-	                    sharedArrayIds.addAll(ids);
+	                reachedArrayIds.addAll(entry.getValue());
+	                if(ProfileRunTime.sharedArrayIds.contains(entry.getKey()))
+	                    sharedArrayIds.addAll(entry.getValue());
 	            }
+	            HashSet<Integer> reachedVariableIds = ProfileRunTime.reachedVariableIds();
 
 	            sharedVariables = new HashSet<String>();
+	            localVariables = new HashSet<String>();
 	                //show variableId
 	                for(Map.Entry<String,Integer> entry: variableIdMap.entrySet())
 	                {
 	                    Integer id = entry.getValue();
 	                    String var = entry.getKey();
-	                    if(ProfileRunTime.sharedVariableIds.contains(id))
+	                    if(ProfileRunTime.sharedVariableIds.contains(id)
+	                            ||!reachedVariableIds.contains(id))
 	                        sharedVariables.add(var);
+	                    else
+	                        localVariables.add(var);
 
 	                }
 
@@ -148,7 +260,8 @@ public class RVGlobalStateForInstrumentation {
 	                for(Integer id: arrayIdMap.keySet())
 	                {
 	                    String var = arrayIdMap.get(id);
-	                    if(sharedArrayIds.contains(id))
+	                    if(sharedArrayIds.contains(id)
+	                            ||!reachedArrayIds.contains(id))
 	                        sharedArrayLocations.add(var);
 	                }
 
@@ -159,17 +272,19 @@ public class RVGlobalStateForInstrumentation {
 	                int size_var = variableIdMap.entrySet().size();
 	                int size_array = arrayIdMap.entrySet().size();
 
-	                double svar_percent = size_var==0?0:((double)ProfileRunTime.sharedVariableIds.size()/variableIdMap.entrySet().size());
-	                double sarray_percent = size_array==0?0:((double)sharedArrayIds.size()/arrayIdMap.entrySet().size());
+	                double svar_percent = size_var==0?0:((double)sharedVariables.size()/size_var);
+	                double sarray_percent = size_array==0?0:((double)sharedArrayLocations.size()/size_array);
 
 	                System.out.println("\nSHARED VARIABLE PERCENTAGE: "+svar_percent);
 	                System.out.println("SHARED ARRAY PERCENTAGE: "+sarray_percent);
 	            }
-	            //save the sharedvariable to file??
-	            // sharedVariables,sharedArrayLocations
-	            
-	            saveObjectToFile(sharedVariables,FILE_SHARED_VARIABLE);
-	            saveObjectToFile(sharedArrayLocations,FILE_SHARED_ARRAY_LOCATION);
+
+	            new File(profileDir).mkdirs();
+	            saveObjectToFile(sharedVariables,new File(profileDir, FILE_SHARED_VARIABLE).getPath());
+	            saveObjectToFile(sharedArrayLocations,new File(profileDir, FILE_SHARED_ARRAY_LOCATION).getPath());
+	            saveObjectToFile(localVariables,new File(profileDir, FILE_LOCAL_VARIABLE).getPath());
+	            //written last, initSharedData takes a profile without it as incomplete
+	            saveObjectToFile(new HashMap<String,String>(classHashes),new File(profileDir, FILE_CLASS_HASHES).getPath());
 
 	        }
 	    }
@@ -201,6 +316,35 @@ public class RVGlobalStateForInstrumentation {
 	      
 	      return stmtSigIdMap.get(sig);
 	    }
+	    /**
+	     * @return the signature of location id, null if no location has the id
+	     */
+	    public String getLocationSig(int id)
+	    {
+	        synchronized (stmtSigIdMap) {
+	            return stmtIdSigMap.get(id);
+	        }
+	    }
+	    /**
+	     * same as getLocationId, also keeps the file:line label of the location
+	     */
+	    public int getLocationId(String sig, String label)
+	    {
+	        int id = getLocationId(sig);
+	        stmtIdLabelMap.putIfAbsent(id, label);
+	        return id;
+	    }
+	    public String getLocationLabel(int id)
+	    {
+	        return stmtIdLabelMap.get(id);
+	    }
+	    /**
+	     * id of the buffered PUTSTATIC at location ID, passed to RVRunTime.bufferStore
+	     */
+	    public int getStoreSiteId(String owner, String name, String desc, int ID, int SID)
+	    {
+	        return StoreSite.register(owner, name, desc, ID, SID);
+	    }
 	    public int getArrayLocationId(String sig)
 	    {
 	        int id = getLocationId(sig);
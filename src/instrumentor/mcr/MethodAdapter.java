@@ -347,6 +347,11 @@ public class MethodAdapter extends AdviceAdapter implements Opcodes {
 	public void visitFieldInsn(int opcode, String owner, String name, String desc) {
 	    
 	    String sig_var = (owner + "." + name).replace("/", ".");// + "_" + opcode;		
+	    if (!RVGlobalStateForInstrumentation.instance.isVariableShared(sig_var)) {
+	        //thread local in the profiling run, no scheduling point
+	        mv.visitFieldInsn(opcode, owner, name, desc);
+	        return;
+	    }
 	    /*
 	     * if using this, for x=x, read(x) and write(x) have the same signature
 	     * but it's OK because it it not difficult to check the source code
@@ -354,7 +359,7 @@ public class MethodAdapter extends AdviceAdapter implements Opcodes {
 	    String sig_loc = (owner + "|" + methodSignature + "|" + sig_var + "|" + line_cur).replace("/", ".");
 //	    String sig_loc = ( sig_var + "|" + line_cur ).replace("/", ".");  //the above is too verbose
 	    int SID = RVGlobalStateForInstrumentation.instance.getVariableId(sig_var);   //SID : sig_var //variable
-	    int ID = RVGlobalStateForInstrumentation.instance.getLocationId(sig_loc);    //ID : sig_loc   //location
+	    int ID = RVGlobalStateForInstrumentation.instance.getLocationId(sig_loc, source + ":" + line_cur);    //ID : sig_loc   //location
 
 	    boolean isRead = false;
         if (opcode == Opcodes.GETFIELD || opcode == Opcodes.GETSTATIC) {
@@ -442,24 +447,23 @@ public class MethodAdapter extends AdviceAdapter implements Opcodes {
                     //mv.visitVarInsn(ISTORE, index);  //pop value to #index
                     popValue(desc, index);
                     
-                    String info =  owner + ":" + name + ":" + ID + ":" + SID;
-                    //the parameter
-                    loadValue(desc, index);  //the value
-                    mv.visitLdcInsn(info);
+                    int site = RVGlobalStateForInstrumentation.instance.getStoreSiteId(owner, name, desc, ID, SID);
+                    //the parameters
+                    boolean isRef = loadRawValue(desc, index);  //the value
+                    addBipushInsn(mv, site);
                     /*
                      * instrument the buffer operation 
-                     * this callback function will return a boolean
-                     * to decide whether or not it needs to be buffered
+                     * the runtime decides whether or not it needs to be buffered
                      */
                     if (Instrumentor.memModel.equals("TSO")){
                         mv.visitMethodInsn(INVOKESTATIC, Instrumentor.logClass,
                                 RVConfig.instance.BUFFER_STORE, 
-                                RVConfig.instance.DESC_BUFFER_STORE);
+                                isRef ? RVConfig.instance.DESC_BUFFER_STORE_REF : RVConfig.instance.DESC_BUFFER_STORE);
                     }
                     else{
                         mv.visitMethodInsn(INVOKESTATIC, Instrumentor.logClass,
                                 RVConfig.instance.BUFFER_STORE_PSO, 
-                                RVConfig.instance.DESC_BUFFER_STORE_PSO);
+                                isRef ? RVConfig.instance.DESC_BUFFER_STORE_PSO_REF : RVConfig.instance.DESC_BUFFER_STORE_PSO);
                     }           
                 }
                 else{
@@ -674,7 +678,9 @@ public class MethodAdapter extends AdviceAdapter implements Opcodes {
             arrayWrite = true;
 
         }
-        boolean arrayAccess = (arrayRead || arrayWrite);
+        //an array location only one thread reached in the profiling run is left as is
+        boolean arrayAccess = (arrayRead || arrayWrite)
+                && RVGlobalStateForInstrumentation.instance.shouldInstrumentArray(className, sig_loc);
 
 		if(arrayAccess)
 		{
@@ -1334,6 +1340,32 @@ public class MethodAdapter extends AdviceAdapter implements Opcodes {
         // System.out.println("Signature: "+desc);
     }
 
+	/**
+	 * load a value stored by popValue as the long bits of a primitive,
+	 * or as is for a reference, without boxing
+	 * @return true if it is a reference
+	 */
+	private boolean loadRawValue(String desc, int index) {
+		if (desc.startsWith("L") || desc.startsWith("[")) {
+			mv.visitVarInsn(ALOAD, index);
+			return true;
+		} else if (desc.startsWith("J")) {
+			mv.visitVarInsn(LLOAD, index);
+		} else if (desc.startsWith("F")) {
+			mv.visitVarInsn(FLOAD, index);
+			mv.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "floatToRawIntBits", "(F)I");
+			mv.visitInsn(I2L);
+		} else if (desc.startsWith("D")) {
+			mv.visitVarInsn(DLOAD, index);
+			mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "doubleToRawLongBits", "(D)J");
+		} else {
+			// integer,char,short,byte,boolean
+			mv.visitVarInsn(ILOAD, index);
+			mv.visitInsn(I2L);
+		}
+		return false;
+	}
+
 	private void loadValue(String desc, int index) {
 		if (desc.startsWith("L") || desc.startsWith("[")) {
 			mv.visitVarInsn(ALOAD, index);
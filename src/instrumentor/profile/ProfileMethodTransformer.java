@@ -9,7 +9,7 @@ import org.objectweb.asm.Type;
 
 public class ProfileMethodTransformer extends MethodVisitor implements Opcodes {
 
-    final static String logClass = "edu/tamu/aser/profile/ProfileRunTime";
+    final static String logClass = "instrumentor/profile/ProfileRunTime";
 
 	final static String CLASS_INTEGER = "java/lang/Integer";
 	final static String CLASS_BOOLEAN = "java/lang/Boolean";
@@ -270,10 +270,11 @@ public class ProfileMethodTransformer extends MethodVisitor implements Opcodes {
         //super.updateThreadLocation();
         //this.informSchedulerAboutArrayAccess(true, !isWrite);
         
+        //same signature as the array locations of MethodAdapter
         String sig_loc = (className + "|" + methodSignature + "|" + line_cur)
                 .replace("/", ".");
         int ID = RVGlobalStateForInstrumentation.instance
-                .getLocationId(sig_loc);
+                .getArrayLocationId(sig_loc);
         
 
         if(isWrite)
@@ -281,6 +282,9 @@ public class ProfileMethodTransformer extends MethodVisitor implements Opcodes {
             maxindex_cur++;
             int index1 = maxindex_cur;
             mv.visitVarInsn(arrayStoreOpcode(opcode), index1);
+            if (opcode == LASTORE || opcode == DASTORE) {
+                maxindex_cur++;// long or double
+            }
             maxindex_cur++;
             int index2 = maxindex_cur;
             mv.visitVarInsn(ISTORE, index2);
@@ -318,7 +322,7 @@ public class ProfileMethodTransformer extends MethodVisitor implements Opcodes {
             mv.visitVarInsn(ALOAD, index2);
             mv.visitVarInsn(ILOAD, index1);
 
-            addBipushInsn(mv, 1);
+            addBipushInsn(mv, 0);
 
             mv.visitMethodInsn(INVOKESTATIC, logClass, RVConfig.instance.LOG_ARRAY_ACCESS,
                     RVConfig.instance.DESC_LOG_ARRAY_ACCESS_DETECT_SHARING);
@@ -22,8 +22,15 @@ public class ProfileRunTime {
     static ThreadLocal<HashSet<Integer>> threadLocalIDSet;
     static ThreadLocal<HashSet<Integer>> threadLocalIDSet2;
 
+    private static boolean profiling = false;
+
     
+	/**
+	 * the profiling run of the two-phase instrumentation: record the shared
+	 * locations and save them at exit, the MCR run then instruments only those
+	 */
 	public static void init() {
+		profiling = true;
 		sharedVariableIds = new HashSet<Integer>();
         writeThreadMap = new HashMap<Integer,Long>();
         readThreadMap = new HashMap<Integer,long[]> ();
@@ -49,12 +56,32 @@ public class ProfileRunTime {
 		//add shutdown hook
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			public void run() {
-				RVGlobalStateForInstrumentation.instance.saveMetaData();
+				//threads still running must not change the maps while they are saved
+				synchronized (ProfileRunTime.class) {
+					RVGlobalStateForInstrumentation.instance.saveMetaData();
+				}
 			}
 		});
 
 	}
 
+	/**
+	 * the test runs once, without the scheduler
+	 */
+	public static boolean isProfiling() {
+		return profiling;
+	}
+
+	/**
+	 * variables the profiling run accessed outside constructors
+	 */
+	public static synchronized HashSet<Integer> reachedVariableIds() {
+		HashSet<Integer> ids = new HashSet<Integer>(sharedVariableIds);
+		ids.addAll(writeThreadMap.keySet());
+		ids.addAll(readThreadMap.keySet());
+		return ids;
+	}
+
 	/**
 	   * detect shared variables -- two conditions
 	   * 1. the address is accessed by more than two threads 
@@ -86,6 +113,8 @@ public class ProfileRunTime {
 					String readOrWrite = (write?" write":" read");
 					//System.out.println("Thread "+tid+" "+readOrWrite+" variable "+SID);
 				}
+				//the maps are shared by all threads
+				synchronized (ProfileRunTime.class) {
 				if(!sharedVariableIds.contains(SID))
 				{
 					if(writeThreadMap.containsKey(SID))
@@ -130,6 +159,7 @@ public class ProfileRunTime {
 						}
 					}
 				}
+				}
 			}
 		}
 	}
@@ -151,6 +181,7 @@ public class ProfileRunTime {
 
 		  	Integer sig = System.identityHashCode(o);//+"_"+index;//array
 
+		  	synchronized (ProfileRunTime.class) {
 		  	HashSet<Integer> ids = arrayIdsMap.get(sig);
 		  	if(ids==null){
 			  	ids = new HashSet<Integer>();
@@ -207,6 +238,7 @@ public class ProfileRunTime {
 				 	}
 			 	}
 		 	}
+		  	}
 	 	}
   	}
 
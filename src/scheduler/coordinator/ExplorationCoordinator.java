@@ -0,0 +1,371 @@
+package scheduler.coordinator;
+
+import constraints.pattern.FingerprintRegistry;
+import constraints.pattern.PSchedule;
+import constraints.trace.TraceFile;
+import scheduler.scheduling.MCRProperties;
+import scheduler.scheduling.strategy.MCRStrategy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Vector;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Explores one test method with a pool of worker JVMs (see ExplorationWorker).
+ *
+ * The coordinator owns the schedules to explore and runs the pattern and
+ * constraint analysis of every trace, so the covered patterns, explored
+ * schedules and unsat cores are those of this JVM. The workers stay up
+ * across schedules: each one executes the prefixes it is given and sends
+ * the trace back. A worker that exits, e.g. through System.exit(2) in the
+ * uncaught exception handler of the Scheduler, has its schedule counted as
+ * a failure and is replaced, so with stoponfirsterror = false the
+ * exploration goes on.
+ *
+ *   java -javaagent:... scheduler.coordinator.ExplorationCoordinator <test class> <test method> [#workers]
+ * The JVM options of the coordinator (agent, -D properties) are passed on to the workers.
+ */
+public class ExplorationCoordinator {
+
+    private static final int STOP = -1;
+
+    private final String testClass;
+    private final String testMethod;
+    private final int numWorkers;
+    private final boolean stopOnFirstError;
+
+    private final Queue<PSchedule> toExplore = new ConcurrentLinkedQueue<PSchedule>();
+    //filled by the worker threads, consumed by explore()
+    private final BlockingQueue<Event> events = new LinkedBlockingQueue<Event>();
+    private final Map<Integer, Worker> workers = new ConcurrentHashMap<Integer, Worker>();
+    private final ArrayDeque<Worker> idleWorkers = new ArrayDeque<Worker>();
+    private ServerSocket server;
+    private volatile boolean shuttingDown = false;
+    private int nextWorkerId = 0;
+
+    private int numSchedules = 0;
+    private int numFailures = 0;
+    private int numCrashes = 0;
+
+    public ExplorationCoordinator(String testClass, String testMethod, int numWorkers) {
+        this.testClass = testClass;
+        this.testMethod = testMethod;
+        this.numWorkers = numWorkers;
+        this.stopOnFirstError = !"false".equalsIgnoreCase(
+                MCRProperties.getInstance().getProperty(MCRProperties.STOP_ON_FIRST_ERROR_KEY));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("usage: ExplorationCoordinator <test class> <test method> [#workers]");
+            System.exit(1);
+        }
+        int numWorkers = args.length == 3 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        new ExplorationCoordinator(args[0], args[1], numWorkers).explore();
+        System.exit(0);
+    }
+
+    public void explore() throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        FingerprintRegistry.startingExploration(testClass + "." + testMethod);
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        startAcceptor();
+        for (int i = 0; i < numWorkers; i++) {
+            startWorker();
+        }
+
+        //the first execution follows no prefix
+        boolean seedSent = false;
+        int busy = 0;
+
+        while (!workers.isEmpty()) {
+            while (!idleWorkers.isEmpty()) {
+                Vector<String> prefix;
+                if (!seedSent) {
+                    prefix = new Vector<String>();
+                    seedSent = true;
+                } else {
+                    PSchedule schedule = toExplore.poll();
+                    if (schedule == null) {
+                        break;
+                    }
+                    prefix = new Vector<String>(schedule.getCurSchedule());
+                }
+                idleWorkers.poll().send(prefix);
+                busy++;
+            }
+            if (busy == 0 && seedSent && toExplore.isEmpty()) {
+                break;
+            }
+
+            Event event = events.take();
+            Worker worker = event.worker;
+            if (event.kind == Event.READY) {
+                idleWorkers.add(worker);
+                continue;
+            }
+
+            if (event.kind == Event.TRACE) {
+                busy--;
+                numSchedules++;
+                if (worker.failure != null) {
+                    numFailures++;
+                    System.err.println("failure in schedule " + worker.prefix + ": " + worker.failure);
+                }
+                try {
+                    TraceFile captured = TraceFile.read(ByteBuffer.wrap(event.trace), "trace of " + worker);
+                    MCRStrategy.exploreTrace(captured.getTrace(), captured.getSchedulePrefix(), toExplore);
+                } catch (IOException e) {
+                    System.err.println("cannot read the trace of " + worker + ": " + e.getMessage());
+                } catch (RuntimeException e) {
+                    //a trace the analysis cannot handle must not end the exploration
+                    System.err.println("cannot explore the trace of schedule " + worker.prefix + ":");
+                    e.printStackTrace();
+                }
+                worker.prefix = null;
+                worker.failure = null;
+                idleWorkers.add(worker);
+            } else {
+                //EXITED
+                workers.remove(worker.id);
+                idleWorkers.remove(worker);
+                if (worker.prefix != null) {
+                    busy--;
+                    numSchedules++;
+                    numFailures++;
+                    numCrashes++;
+                    System.err.println(worker + " crashed in schedule " + worker.prefix
+                            + (worker.failure == null || worker.failure.isEmpty() ? "" : ": " + worker.failure));
+                }
+                if (worker.connected) {
+                    startWorker();
+                } else {
+                    //it would most likely fail the same way again
+                    System.err.println(worker + " exited before connecting, not replaced");
+                }
+            }
+
+            if (numFailures > 0 && stopOnFirstError) {
+                break;
+            }
+        }
+        if (workers.isEmpty()) {
+            System.err.println("no worker left, exploration aborted");
+        }
+
+        shutdown();
+        FingerprintRegistry.saveAll();
+
+        System.err.println("\nEXPLORED " + testClass + "." + testMethod + " WITH " + numWorkers + " WORKERS");
+        System.err.println("NUMBER OF SCHEDULES: " + numSchedules);
+        System.err.println("NUMBER OF FAILURES: " + numFailures);
+        System.err.println("WORKER CRASHES: " + numCrashes);
+        System.err.println("EXPLORATION TIME: " + (System.currentTimeMillis() - start) + " ms");
+        System.err.print(FingerprintRegistry.stats());
+    }
+
+    private void startWorker() throws IOException {
+        int id = nextWorkerId++;
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        cmd.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        cmd.add("-Dworker_port=" + server.getLocalPort());
+        cmd.add("-D" + WorkerConnection.WORKER_ID + "=" + id);
+        //a failure ends the schedule, not the worker
+        cmd.add("-D" + MCRProperties.STOP_ON_FIRST_ERROR_KEY + "=false");
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(ExplorationWorker.class.getName());
+        cmd.add(testClass);
+        cmd.add(testMethod);
+
+        final Worker worker = new Worker(id, new ProcessBuilder(cmd).inheritIO().start());
+        workers.put(id, worker);
+
+        //reports a worker that exits before connecting, the connection reports the others
+        Thread watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    worker.process.waitFor();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (!worker.connected && !shuttingDown) {
+                    events.add(new Event(worker, Event.EXITED, null));
+                }
+            }
+        }, "Worker-" + id + "-exit");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * accept the worker connections, each is served by a thread of its own
+     */
+    private void startAcceptor() {
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!server.isClosed()) {
+                    try {
+                        final Socket socket = server.accept();
+                        socket.setTcpNoDelay(true);
+                        final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                        final Worker worker = workers.get(in.readInt());
+                        if (worker == null) {
+                            socket.close();
+                            continue;
+                        }
+                        Thread reader = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                worker.receive(socket, in);
+                            }
+                        }, "Worker-" + worker.id);
+                        reader.setDaemon(true);
+                        reader.start();
+                    } catch (IOException e) {
+                        if (!server.isClosed()) {
+                            System.err.println("cannot accept a worker: " + e.getMessage());
+                        }
+                    }
+                }
+            }
+        }, "WorkerAcceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void shutdown() throws IOException, InterruptedException {
+        shuttingDown = true;
+        for (Worker worker : workers.values()) {
+            worker.stop();
+        }
+        for (Worker worker : workers.values()) {
+            if (!worker.process.waitFor(5, TimeUnit.SECONDS)) {
+                worker.process.destroyForcibly();
+            }
+        }
+        server.close();
+    }
+
+    private static class Event {
+
+        static final int READY = 0;
+        static final int TRACE = 1;
+        static final int EXITED = 2;
+
+        final Worker worker;
+        final int kind;
+        final byte[] trace;
+
+        Event(Worker worker, int kind, byte[] trace) {
+            this.worker = worker;
+            this.kind = kind;
+            this.trace = trace;
+        }
+    }
+
+    private class Worker {
+
+        final int id;
+        final Process process;
+        volatile boolean connected = false;
+        private DataOutputStream out;
+
+        //schedule being executed, failure reported for it
+        volatile Vector<String> prefix;
+        volatile String failure;
+
+        Worker(int id, Process process) {
+            this.id = id;
+            this.process = process;
+        }
+
+        /**
+         * runs on the thread of the connection: forward the messages of the worker
+         */
+        void receive(Socket socket, DataInputStream in) {
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                connected = true;
+                events.add(new Event(this, Event.READY, null));
+
+                while (true) {
+                    byte kind = in.readByte();
+                    if (kind == WorkerConnection.MSG_FAILURE) {
+                        failure = in.readUTF();
+                    } else if (kind == WorkerConnection.MSG_TRACE) {
+                        byte[] trace = new byte[in.readInt()];
+                        in.readFully(trace);
+                        events.add(new Event(this, Event.TRACE, trace));
+                    } else {
+                        throw new IOException("unknown message " + kind);
+                    }
+                }
+            } catch (EOFException e) {
+                //the worker exited
+            } catch (IOException e) {
+                if (!shuttingDown) {
+                    System.err.println(this + ": " + e.getMessage());
+                }
+            }
+            if (!shuttingDown) {
+                events.add(new Event(this, Event.EXITED, null));
+            }
+        }
+
+        /**
+         * a worker that is gone is reported by the thread of its connection
+         */
+        void send(Vector<String> prefix) {
+            this.prefix = prefix;
+            try {
+                out.writeInt(prefix.size());
+                for (String choice : prefix) {
+                    out.writeUTF(choice);
+                }
+                out.flush();
+            } catch (IOException e) {
+                System.err.println("cannot send a schedule to " + this + ": " + e.getMessage());
+            }
+        }
+
+        void stop() {
+            if (out != null) {
+                try {
+                    out.writeInt(STOP);
+                    out.flush();
+                } catch (IOException e) {
+                    //already gone
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "worker " + id;
+        }
+    }
+}
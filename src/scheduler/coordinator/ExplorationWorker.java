@@ -0,0 +1,25 @@
+package scheduler.coordinator;
+
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Request;
+
+/**
+ * Main class of the worker JVMs started by ExplorationCoordinator. It runs
+ * one test method under JUnit4MCRRunner; with worker_port set, MCRStrategy
+ * takes every schedule prefix from the coordinator and sends the recorded
+ * trace back instead of exploring it, so the instrumented classes stay
+ * loaded across schedules.
+ *
+ *   java -javaagent:... -Dworker_port=<port> scheduler.coordinator.ExplorationWorker <test class> <test method>
+ */
+public class ExplorationWorker {
+
+    public static void main(String[] args) throws ClassNotFoundException {
+        if (args.length != 2) {
+            System.err.println("usage: ExplorationWorker <test class> <test method>");
+            System.exit(1);
+        }
+        new JUnitCore().run(Request.method(Class.forName(args[0]), args[1]));
+        System.exit(0);
+    }
+}
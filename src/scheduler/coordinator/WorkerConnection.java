@@ -0,0 +1,124 @@
+package scheduler.coordinator;
+
+import constraints.config.Configuration;
+import constraints.trace.Trace;
+import constraints.trace.TraceFile;
+import scheduler.listeners.ExplorationListenerAdapter;
+import scheduler.listeners.Listeners;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * The worker side of the connection to ExplorationCoordinator: schedule
+ * prefixes come in, the traces recorded along them and the failures go out.
+ *
+ * Protocol, over a localhost socket:
+ *   worker to coordinator: the worker id, once
+ *   coordinator to worker: #choices (-1: no more schedules), then the choices
+ *   worker to coordinator: MSG_TRACE, #bytes, the trace in the TraceFile format
+ *                          MSG_FAILURE, message of a failure of the current schedule
+ */
+public class WorkerConnection {
+
+    static final byte MSG_TRACE = 1;
+    static final byte MSG_FAILURE = 2;
+
+    //system property set by the coordinator on each worker
+    static final String WORKER_ID = "worker_id";
+
+    private static WorkerConnection instance;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    private WorkerConnection(int port) throws IOException {
+        socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.writeInt(Integer.getInteger(WORKER_ID, 0));
+        out.flush();
+    }
+
+    /**
+     * the connection to the coordinator, opened on the first call
+     * @return null if this JVM is not a worker or the coordinator cannot be reached
+     */
+    public static synchronized WorkerConnection get() {
+        if (instance == null && Configuration.workerPort > 0) {
+            try {
+                instance = new WorkerConnection(Configuration.workerPort);
+            } catch (IOException e) {
+                System.err.println("cannot connect to the coordinator on port " + Configuration.workerPort);
+                e.printStackTrace();
+                System.exit(2);
+            }
+            Listeners.addListener(new ExplorationListenerAdapter() {
+                @Override
+                public void failureDetected(String errorMsg, List<Integer> choicesMade) {
+                    instance.sendFailure(errorMsg);
+                }
+            });
+        }
+        return instance;
+    }
+
+    /**
+     * wait for the next schedule prefix
+     * @return null when the coordinator has no more schedules, or is gone
+     */
+    public Vector<String> nextPrefix() {
+        try {
+            int size = in.readInt();
+            if (size < 0) {
+                return null;
+            }
+            Vector<String> prefix = new Vector<String>(size);
+            for (int i = 0; i < size; i++) {
+                prefix.add(in.readUTF());
+            }
+            return prefix;
+        } catch (IOException e) {
+            System.err.println("lost the connection to the coordinator: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * send the trace recorded along prefix, finishedLoading must have been called
+     */
+    public synchronized void sendTrace(Trace trace, List<String> prefix) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+            TraceFile.write(trace, prefix, bytes);
+            out.writeByte(MSG_TRACE);
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("cannot send the trace to the coordinator: " + e.getMessage());
+        }
+    }
+
+    public synchronized void sendFailure(String errorMsg) {
+        try {
+            out.writeByte(MSG_FAILURE);
+            String message = errorMsg == null ? "" : errorMsg;
+            //writeUTF takes at most 64K bytes
+            out.writeUTF(message.length() > 8192 ? message.substring(0, 8192) : message);
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("cannot send the failure to the coordinator: " + e.getMessage());
+        }
+    }
+}
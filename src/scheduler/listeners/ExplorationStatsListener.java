@@ -2,7 +2,14 @@ package scheduler.listeners;
 
 import mapcov.LogUtil;
 import mapcov.mapcalc;
+import scheduler.reex.Scheduler;
+import constraints.pattern.FingerprintRegistry;
+import constraints.pattern.PatternAnalysis;
+import constraints.constraints.SolverCache;
+import constraints.constraints.UnsatPredictor;
+import constraints.constraints.Z3Session;
 import constraints.trace.Trace;
+import constraints.unsatcore.UnSatCoreStore;
 import scheduler.runtime.RVRunTime;
 import scheduler.scheduling.MCRProperties;
 import scheduler.scheduling.events.EventDesc;
@@ -14,6 +21,7 @@ import java.util.List;
 import java.util.SortedSet;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 
@@ -29,6 +37,9 @@ public class ExplorationStatsListener extends ExplorationListenerAdapter {
     private static final String MAX_CHOICE_DEPTH = "MAX CHOICE DEPTH: ";
     private static final String NUMBER_OF_CHOICES = "NUMBER OF CHOICES: ";
     private static final String NUMBER_OF_SCHEDULES = "NUMBER OF SCHEDULES: ";
+    private static final String SCHEDULER_WAIT = "SCHEDULER WAIT: ";
+    private static final String SOLVER_QUERIES = "SOLVER QUERIES: ";
+    private static final String PRELUDES = "PRELUDES: ";
     private static final String EXPLORATION_STATS_FOOTER = "=================================================";
     private static final String EXPLORATION_STATS_HEADER = "=============== EXPLORATION STATS ===============";
 
@@ -51,14 +62,28 @@ public class ExplorationStatsListener extends ExplorationListenerAdapter {
     protected long numThreads;
     protected boolean timeoutOccurred = false;
 
+    //time threads spent paused waiting for the scheduler, see Scheduler.pause
+    protected long schedulerWaitNanos;
+    protected long maxSchedulerWaitNanos;
+    protected long numHandoffs;
+    protected long numUntrackedBlocks;
+    protected long numBlockTimeouts;
+
     private static String EXPLORATIONSTATSLOGFILE = "";
     private static String FAILURETRACELOGFILE = "";
 
-    public static volatile long numConstraints = 0;
-    public static volatile long numFilterConstraints = 0;
-    public static volatile long numUnSatConstraints = 0;
+    //updated from the solver workers
+    public static final AtomicLong numConstraints = new AtomicLong();
+    public static final AtomicLong numFilterConstraints = new AtomicLong();
+    public static final AtomicLong numUnSatConstraints = new AtomicLong();
+    //queries decided by IdlSolver, and those over its budget sent to z3
+    public static final AtomicLong numNativeSolved = new AtomicLong();
+    public static final AtomicLong numNativeFallbacks = new AtomicLong();
+    //sync and PO constraints built for a pattern, and taken from the prelude cache
+    public static final AtomicLong numPreludeBuilt = new AtomicLong();
+    public static final AtomicLong numPreludeReused = new AtomicLong();
     public static volatile long constraintsTime = 0;
-    public static volatile long unsatCoreTime = 0;
+    public static final AtomicLong unsatCoreTime = new AtomicLong();
     public static volatile long numCheckPattern = 0;
     public static String bugTriggerPattern = "";
     
@@ -88,6 +113,12 @@ public class ExplorationStatsListener extends ExplorationListenerAdapter {
         currentNumEvents = 0;
         maxNumEvents = 0;
         numThreads = 0;
+        schedulerWaitNanos = 0;
+        maxSchedulerWaitNanos = 0;
+        numHandoffs = 0;
+        numUntrackedBlocks = 0;
+        numBlockTimeouts = 0;
+        SolverCache.startingExploration();
         System.out.println(EXPLORING + name + String.format(": %tT", Calendar.getInstance()));
         failureDetected = false;
         //        startTimeoutTask();
@@ -128,6 +159,13 @@ public class ExplorationStatsListener extends ExplorationListenerAdapter {
         numThreads += currentNumThreads;
         maxNumThreads = maxNumThreads < currentNumThreads ? currentNumThreads : maxNumThreads;
         maxNumEvents = maxNumEvents < currentNumEvents ? currentNumEvents : maxNumEvents;
+
+        long waitNanos = Scheduler.getScheduleWaitNanos();
+        schedulerWaitNanos += waitNanos;
+        maxSchedulerWaitNanos = Math.max(maxSchedulerWaitNanos, waitNanos);
+        numHandoffs += Scheduler.getScheduleHandoffs();
+        numUntrackedBlocks += Scheduler.getScheduleUntrackedBlocks();
+        numBlockTimeouts += Scheduler.getScheduleBlockTimeouts();
     }
 
     @Override
@@ -146,6 +184,26 @@ public class ExplorationStatsListener extends ExplorationListenerAdapter {
         EXPLORATIONSTATSLOGFILE += EXPLORATION_STATS_HEADER + "\n";
         EXPLORATIONSTATSLOGFILE += NUMBER_OF_SCHEDULES + numSchedules + "\n";
         EXPLORATIONSTATSLOGFILE += EXPLORATION_TIME + getDurationString(System.currentTimeMillis() - startTime) + "\n";
+        EXPLORATIONSTATSLOGFILE += SCHEDULER_WAIT + String.format(
+                "%d ms in %d handoffs, %.2f ms/schedule, max %d ms, %d untracked blocks detected, %d timeouts",
+                schedulerWaitNanos / 1000000, numHandoffs,
+                numSchedules == 0 ? 0.0 : schedulerWaitNanos / 1e6 / numSchedules,
+                maxSchedulerWaitNanos / 1000000, numUntrackedBlocks, numBlockTimeouts) + "\n";
+        EXPLORATIONSTATSLOGFILE += SOLVER_QUERIES + String.format(
+                "%d, %d solved in Java, %d by z3 (%d over the native budget)",
+                numConstraints.get(), numNativeSolved.get(),
+                numConstraints.get() - numNativeSolved.get(), numNativeFallbacks.get()) + "\n";
+        long preludes = numPreludeBuilt.get() + numPreludeReused.get();
+        EXPLORATIONSTATSLOGFILE += PRELUDES + String.format(
+                "%d built, %d reused (%.1f%%), %d kept asserted in the z3 session",
+                numPreludeBuilt.get(), numPreludeReused.get(),
+                preludes == 0 ? 0.0 : 100.0 * numPreludeReused.get() / preludes,
+                Z3Session.numPreludeReuse.get()) + "\n";
+        EXPLORATIONSTATSLOGFILE += SolverCache.stats();
+        EXPLORATIONSTATSLOGFILE += FingerprintRegistry.stats();
+        EXPLORATIONSTATSLOGFILE += PatternAnalysis.stats();
+        EXPLORATIONSTATSLOGFILE += UnsatPredictor.stats();
+        EXPLORATIONSTATSLOGFILE += UnSatCoreStore.stats();
 
 //        System.out.println(NUMBER_OF_CHOICES + numChoices);
 //        System.out.println(MAX_CHOICE_DEPTH + maxDepth);
@@ -7,6 +7,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 
 import constraints.trace.Trace;
+import instrumentor.profile.ProfileRunTime;
 import org.junit.runner.notification.Failure;
 import org.junit.runner.notification.RunNotifier;
 import org.junit.runners.BlockJUnit4ClassRunner;
@@ -21,6 +22,7 @@ import edu.illinois.imunit.internal.parsing.Orderings;
 import edu.illinois.imunit.internal.parsing.ParseException;
 import edu.illinois.imunit.internal.parsing.ScheduleParser;
 import edu.illinois.imunit.internal.parsing.TokenMgrError;
+import scheduler.internaljuc.Reex_LockSupport;
 import scheduler.scheduling.MCRProperties;
 
 
@@ -111,6 +113,11 @@ public class JUnit4MCRRunner extends BlockJUnit4ClassRunner {
     @Override
     protected void runChild(final FrameworkMethod method, RunNotifier notifier) {
         
+        if (ProfileRunTime.isProfiling()) {
+            //profiling run of the instrumentation, the test runs once as is
+            super.runChild(method, notifier);
+            return;
+        }
         this.currentTestMethod = method;
         this.currentTestNotifier = notifier;
         Trace.appname = method.getMethod().getDeclaringClass().getName();
@@ -158,8 +165,11 @@ public class JUnit4MCRRunner extends BlockJUnit4ClassRunner {
                 // wait for either a normal finish or a deadlock to occur
                 Scheduler.getTerminationNotifer().acquire();
                 
+                //back off instead of spinning while the exploration thread finishes or blocks
+                long backoffNanos = 1000;
                 while (explorationThread.getState().equals(Thread.State.RUNNABLE)) {
-                    Thread.yield();
+                    Reex_LockSupport.parkNanos(backoffNanos);
+                    backoffNanos = Math.min(2 * backoffNanos, 1000000);
                 }
                 // check for deadlock
                 if (!isDeadlockExpected && (explorationThread.getState().equals(Thread.State.WAITING) || 
@@ -201,7 +211,8 @@ public class JUnit4MCRRunner extends BlockJUnit4ClassRunner {
         Scheduler.completedExploration();
 
         try {
-            Thread.sleep(40);
+            //returns at once when the exploration thread is done, waits at most 40 ms for a deadlocked one
+            explorationThread.join(40);
 
         } catch (InterruptedException e) {
             // TODO Auto-generated catch block
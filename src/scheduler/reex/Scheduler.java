@@ -17,8 +17,14 @@ import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import constraints.config.Configuration;
+import constraints.constraints.DatasetSink;
+import constraints.constraints.SolverCache;
+import constraints.pattern.FingerprintRegistry;
 import constraints.pattern.PSchedule;
+import constraints.unsatcore.UnSatCoreStore;
 import scheduler.internaljuc.*;
 import scheduler.listeners.ExplorationStatsListener;
 import scheduler.listeners.Listeners;
@@ -67,6 +73,16 @@ public class Scheduler {
 
     private final static Reex_Semaphore deadlockOrFinishNotifier = new Reex_Semaphore(0);
 
+    /*
+     * per schedule: time threads spent paused waiting for the scheduler, number of
+     * such waits, fairness choices made for threads found blocked in an untracked
+     * operation and made after untracked_block_timeout
+     */
+    private static final AtomicLong scheduleWaitNanos = new AtomicLong();
+    private static final AtomicLong scheduleHandoffs = new AtomicLong();
+    private static final AtomicLong scheduleUntrackedBlocks = new AtomicLong();
+    private static final AtomicLong scheduleBlockTimeouts = new AtomicLong();
+
     /**
      * {@link SchedulingStrategy} to be used for scheduling decisions.
      */
@@ -179,6 +195,7 @@ public class Scheduler {
             @Override
             public void run() {
                 boolean timeout = false;
+                UntrackedBlockDetector detector = new UntrackedBlockDetector();
                 while (true) {
 
                     schedulerStateLock.lock();
@@ -215,10 +232,27 @@ public class Scheduler {
                                 }
                             }
                         }
-                        //JEFF: in case some blocking operation not tracked
-                       timeout = !schedulerWakeupCondition.await(500, Reex_TimeUnit.MILLISECONDS);
-
-                        
+                        if (pausedThreadInfos.isEmpty()) {
+                            //no choice to make until a thread pauses, blocks or ends, which signals
+                            schedulerWakeupCondition.await();
+                            detector.signalled();
+                            timeout = false;
+                        } else {
+                            //JEFF: in case some blocking operation not tracked
+                            long start = System.nanoTime();
+                            if (schedulerWakeupCondition.awaitNanos(detector.pollNanos()) > 0) {
+                                detector.signalled();
+                                timeout = false;
+                            } else {
+                                int blocked = detector.expired(System.nanoTime() - start, runningThreads());
+                                if (blocked == UntrackedBlockDetector.BLOCKED) {
+                                    scheduleUntrackedBlocks.incrementAndGet();
+                                } else if (blocked == UntrackedBlockDetector.TIMEOUT) {
+                                    scheduleBlockTimeouts.incrementAndGet();
+                                }
+                                timeout = blocked != UntrackedBlockDetector.NONE;
+                            }
+                        }
                     } catch (Throwable exp) {
                         System.out.flush();
                         System.err.println("Uncaught exception in scheduler thread:");
@@ -303,11 +337,16 @@ public class Scheduler {
      * 
      * 1) Informs the scheduling strategy that is being used that a new
      * exploration will be performed. <br/>
-     * 2) Prepares for a schedule execution.
+     * 2) Prepares for a schedule execution. <br/>
+     * 3) Clears the explored schedule and covered pattern registries if the test class changed,
+     * loads them for the test class if registry_dir is set <br/>
+     * 4) Loads the unsat cores earlier runs found for the test class, if unsat_core_dir is set
      */
     public static void startingExploration(String name) {
         Listeners.fireStartingExploration(name);
         schedulingStrategy.startingExploration();
+        FingerprintRegistry.startingExploration(name);
+        UnSatCoreStore.load(name);
 
         instrumentGlobalTS = new AtomicInteger(0);
         // Delete CovCon trace files
@@ -317,11 +356,19 @@ public class Scheduler {
     /**
      * Should be called after an exploration has been performed.
      * 
-     * 1) Informs the listeners that the exploration has completed
+     * 1) Informs the listeners that the exploration has completed <br/>
+     * 2) Saves the explored schedule and covered pattern registries, if registry_dir is set <br/>
+     * 3) Saves the unsat cores of the test class, if unsat_core_dir is set <br/>
+     * 4) Saves the solver cache, if solver_cache_dir is set <br/>
+     * 5) Writes out the queued records of the data_extraction dataset
      */
     public static void completedExploration() {
 
         Listeners.fireCompletedExploration();
+        FingerprintRegistry.saveAll();
+        UnSatCoreStore.save();
+        SolverCache.saveAll();
+        DatasetSink.flushAll();
     }
 
     /**
@@ -381,6 +428,11 @@ public class Scheduler {
         blockedThreadInfos.clear();
         informSchedulerOfCurrentThread();
 
+        scheduleWaitNanos.set(0);
+        scheduleHandoffs.set(0);
+        scheduleUntrackedBlocks.set(0);
+        scheduleBlockTimeouts.set(0);
+
         instrumentGlobalTS = new AtomicInteger(0);
         // Delete CovCon trace files
         delete("." + File.separator + "Instrument_Traces");
@@ -516,6 +568,45 @@ public class Scheduler {
         return deadlockOrFinishNotifier;
     }
 
+    public static long getScheduleWaitNanos() {
+        return scheduleWaitNanos.get();
+    }
+
+    public static long getScheduleHandoffs() {
+        return scheduleHandoffs.get();
+    }
+
+    public static long getScheduleUntrackedBlocks() {
+        return scheduleUntrackedBlocks.get();
+    }
+
+    public static long getScheduleBlockTimeouts() {
+        return scheduleBlockTimeouts.get();
+    }
+
+    /**
+     * Wait until the scheduler hands the execution to the given (current) thread.
+     */
+    private static void pause(ThreadInfo threadInfo) throws InterruptedException {
+        long start = System.nanoTime();
+        threadInfo.getPausingSemaphore().acquire();
+        scheduleWaitNanos.addAndGet(System.nanoTime() - start);
+        scheduleHandoffs.incrementAndGet();
+    }
+
+    /**
+     * The live threads that are neither paused nor blocked, called with schedulerStateLock held.
+     */
+    private static Set<Thread> runningThreads() {
+        Set<Thread> running = new HashSet<Thread>();
+        for (ThreadInfo threadInfo : liveThreadInfos.values()) {
+            if (!pausedThreadInfos.contains(threadInfo) && !blockedThreadInfos.contains(threadInfo)) {
+                running.add(threadInfo.getThread());
+            }
+        }
+        return running;
+    }
+
     /******************************************************************
      ****************************************************************** 
      **************** SCHEDULER THREAD & CHOICE POINT *****************
@@ -785,7 +876,7 @@ public class Scheduler {
             try {
 //                System.err.println("acquiring");
 //                System.out.println("Available permits:" + lockingThreadInfo.getPausingSemaphore().);
-                lockingThreadInfo.getPausingSemaphore().acquire();
+                pause(lockingThreadInfo);
 //                System.err.println("acquired");
             } catch (InterruptedException e) {
                 e.printStackTrace();
@@ -877,7 +968,7 @@ public class Scheduler {
                 schedulerWakeupCondition.signal();
                 schedulerStateLock.unlock();
             }
-            waitingThreadInfo.getPausingSemaphore().acquire();
+            pause(waitingThreadInfo);
             performLock(waitObject, preWaitLockCount);
             afterEvent(waitEventDesc);
         } else {
@@ -933,7 +1024,7 @@ public class Scheduler {
                 schedulerWakeupCondition.signal();
                 schedulerStateLock.unlock();
             }
-            waitingThreadInfo.getPausingSemaphore().acquire();
+            pause(waitingThreadInfo);
             
             
             
@@ -1116,7 +1207,7 @@ public class Scheduler {
             afterEvent(joinEventDesc);
             if (!joined) {
                 try {
-                    joiningThreadInfo.getPausingSemaphore().acquire();
+                    pause(joiningThreadInfo);
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                     System.exit(2);
@@ -1199,7 +1290,7 @@ public class Scheduler {
                 }
                 if (blocked) {
                     try {
-                        parkingThreadInfo.getPausingSemaphore().acquire();
+                        pause(parkingThreadInfo);
                     } catch (InterruptedException e) {
                         e.printStackTrace();
                         System.exit(2);
@@ -1320,7 +1411,7 @@ public class Scheduler {
             if (pause) {
                 if(currentThreadInfo!=null){
 //                    System.err.println("---sema accquired by: "+currentThreadInfo.toString());
-                    currentThreadInfo.getPausingSemaphore().acquire();
+                    pause(currentThreadInfo);
 //                    System.err.println("***sema accquired by: "+currentThreadInfo.toString());
                 }
             }
@@ -1346,7 +1437,7 @@ public class Scheduler {
         
         try {
                 if(currentThreadInfo!=null)
-                currentThreadInfo.getPausingSemaphore().acquire();
+                pause(currentThreadInfo);
             
         } catch (InterruptedException e) {
             e.printStackTrace();
@@ -1478,7 +1569,7 @@ public class Scheduler {
         }
         try {
             if (willBlock) {
-                currentThreadInfo.getPausingSemaphore().acquire();
+                pause(currentThreadInfo);
             }
         } catch (InterruptedException e) {
             e.printStackTrace();
@@ -1506,7 +1597,7 @@ public class Scheduler {
         }
         try {
             if (willBlock) {
-                currentThreadInfo.getPausingSemaphore().acquire();
+                pause(currentThreadInfo);
             }
         } catch (InterruptedException e) {
             e.printStackTrace();
@@ -0,0 +1,93 @@
+package scheduler.reex;
+
+import java.util.Collection;
+
+import constraints.config.Configuration;
+import scheduler.internaljuc.Reex_AbstractQueuedSynchronizer;
+import scheduler.internaljuc.Reex_LockSupport;
+
+/**
+ * Decides when the scheduler thread should make a fairness choice while
+ * some threads are paused and others are still running: the running ones
+ * may be blocked in an operation the scheduler does not track.
+ *
+ * The scheduler waits for a signal for a poll interval that starts small and
+ * doubles, and samples the state of the running threads each time it expires.
+ * They are taken as blocked when all of them are BLOCKED or WAITING in
+ * untracked_block_samples consecutive samples. A thread in a timed wait or a
+ * sleep gets going again by itself, like a RUNNABLE one it is only bounded by
+ * untracked_block_timeout, as are threads that stay RUNNABLE in native code.
+ */
+class UntrackedBlockDetector {
+
+    static final int NONE = 0;
+    static final int BLOCKED = 1;
+    static final int TIMEOUT = 2;
+
+    private static final long MIN_POLL_NANOS = 100000L;
+    private static final long MAX_POLL_NANOS = 20000000L;
+
+    private final long timeoutNanos = Configuration.untrackedBlockTimeout * 1000000L;
+
+    private long pollNanos = MIN_POLL_NANOS;
+    private long unsignalledNanos = 0;
+    private int blockedSamples = 0;
+
+    long pollNanos() {
+        return pollNanos;
+    }
+
+    /**
+     * a thread paused, blocked or ended, the running threads are making progress
+     */
+    void signalled() {
+        pollNanos = MIN_POLL_NANOS;
+        unsignalledNanos = 0;
+        blockedSamples = 0;
+    }
+
+    /**
+     * the poll interval expired without a signal
+     * @param waitedNanos time waited since the previous call
+     * @param running the live threads that are neither paused nor blocked
+     * @return NONE, or why the scheduler should make a fairness choice
+     */
+    int expired(long waitedNanos, Collection<Thread> running) {
+        unsignalledNanos += waitedNanos;
+        pollNanos = Math.min(2 * pollNanos, MAX_POLL_NANOS);
+
+        if (allBlocked(running)) {
+            if (++blockedSamples >= Configuration.untrackedBlockSamples) {
+                signalled();
+                return BLOCKED;
+            }
+        } else {
+            blockedSamples = 0;
+        }
+        if (unsignalledNanos >= timeoutNanos) {
+            signalled();
+            return TIMEOUT;
+        }
+        return NONE;
+    }
+
+    private static boolean allBlocked(Collection<Thread> running) {
+        for (Thread thread : running) {
+            switch (thread.getState()) {
+            case BLOCKED:
+            case WAITING:
+                //parked on a lock or semaphore of the scheduler, it signals once it gets it
+                if (Reex_LockSupport.getBlocker(thread) instanceof Reex_AbstractQueuedSynchronizer) {
+                    return false;
+                }
+                break;
+            case TERMINATED:
+                break;
+            default:
+                //RUNNABLE, or TIMED_WAITING: sleeping or waiting with a timeout, it wakes up by itself
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,34 +1,52 @@
 package scheduler.runtime;
 
-import constraints.graph.Queue;
+import constraints.config.Configuration;
 import constraints.trace.*;
 import instrumentor.instrumentation.Instrumentor;
+import instrumentor.instrumentation.RVGlobalStateForInstrumentation;
 import scheduler.reex.Scheduler;
 import scheduler.scheduling.strategy.MCRStrategy;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Vector;
 
-//import com.sun.java.util.jar.pack.Package.Class.Field;
-import java.lang.reflect.Field;
 
 public class  RVRunTime {
 
     private static final String mode = Instrumentor.memModel;
 
+    public static final String RECORD_STACK = "stack";
+    public static final String RECORD_BUFFERED = "buffered";
+
+    /**
+     * field accesses are labeled from the location id and kept in the
+     * per thread buffers of the trace, see MemAccessBuffer
+     */
+    private static final boolean bufferedRecording = RECORD_BUFFERED.equals(Configuration.recordMode);
+
+    //per thread failure trace entries, indexed by 2*location id (+1 for a write)
+    private static final ThreadLocal<String[]> failureTraceEntries = new ThreadLocal<String[]>() {
+        @Override
+        protected String[] initialValue() {
+            return new String[64];
+        }
+    };
+
 	/**
 	 * createing hashmap to use as a buffer 
 	 * @Alan
 	 */
-    public static HashMap<Long, Queue<Vector<String>>>
-            storeBuffer = new HashMap<Long, Queue<Vector<String>>>();
+    public static HashMap<Long, StoreBuffer>
+            storeBuffer = new HashMap<Long, StoreBuffer>();
     
     public static HashMap<Long, Long>
             tidNameMap = new HashMap<Long, Long>();
     
     //for PSO
-    public static HashMap<Long, HashMap<String, Queue<Vector<String>>>>
-            storeBufferPso = new HashMap<Long, HashMap<String, Queue<Vector<String>>>>();
+    //per thread, per SID
+    public static HashMap<Long, HashMap<Integer, StoreBuffer>>
+            storeBufferPso = new HashMap<Long, HashMap<Integer, StoreBuffer>>();
     //end 
     
     public static HashMap<Long, String> threadTidNameMap;
@@ -64,61 +82,40 @@ public class  RVRunTime {
 	/**
 	 * @Alan
 	 */
-	public static void flush(Queue<Vector<String>> q, int constTid) {
-	    
-        
+	public static void flush(StoreBuffer q, int constTid) {
+
 	    while(!q.isEmpty()){
-            Vector<String> vs = q.peek();
-            int SID = Integer.parseInt(vs.get(3));
-            
-            int currentIndex = RVRunTime.currentIndex;
-            String thd_Field = MCRStrategy.schedulePrefix.get(currentIndex);
-            String expectField = thd_Field.split("_")[1];
-            
-            int curTid = Integer.parseInt(thd_Field.split("_")[0]);
+            String[] thd_Field = MCRStrategy.schedulePrefix.get(RVRunTime.currentIndex).split("_");
+
+            int curTid = Integer.parseInt(thd_Field[0]);
             if(curTid != constTid){
                 break;
             }
-            
-            if (SID == Integer.parseInt(expectField)) {  //update
-              //String desc = vs.get(0);
-              String owner = vs.get(0);
-              String name = vs.get(1);
-              //int opcode = Integer.parseInt(vs.get(3));
-              int ID  = Integer.parseInt(vs.get(2));
-              int value = Integer.parseInt(vs.get(4));
-              
-              Object v = (Integer) value;
-              
-              try{
-                  Class<?> c = Class.forName(owner);
-                  Object instance = c.newInstance();
-                  //c o = new c();
-                  Field f = c.getDeclaredField(name);
-                  f.setAccessible(true);
-                  f.set(instance, v);
-                  
-                  logFieldAcc(ID, null, SID, v, true);
-                  
-              } catch (NoSuchFieldException x) {
-                  x.printStackTrace();
-              } catch (IllegalAccessException x) {
-                  x.printStackTrace();
-              } catch (ClassNotFoundException e) {
-                  // TODO Auto-generated catch block
-                  e.printStackTrace();
-              } catch (InstantiationException e) {
-                  // TODO Auto-generated catch block
-                  e.printStackTrace();
-              }
-              
-              q.dequeue();   //dequue the store buffer
+
+            StoreSite site = q.headSite();
+            if (site.SID == Integer.parseInt(thd_Field[1])) {  //update
+                site.write(q.headBits(), q.headRef());
+                logFieldAcc(site.ID, null, site.SID, site.box(q.headBits(), q.headRef()), true);
+
+                q.dequeue();   //dequue the store buffer
             }
             else{
                 break;
             }
         }
-       
+
+    }
+
+    //perform the store at the head of the buffer, logged for the thread that issued it
+    private static void commitHead(StoreBuffer q) {
+        StoreSite site = q.headSite();
+        long bits = q.headBits();
+        Object ref = q.headRef();
+        long threadId = q.headThreadId();
+        q.dequeue();
+
+        site.write(bits, ref);
+        updateFieldAcc(site.ID, null, site.SID, site.box(bits, ref), true, threadId);
     }
 	
 	public static void bufferEmpty(){
@@ -139,176 +136,49 @@ public class  RVRunTime {
 	}
 	
 	public static void memBarPSO(long tid){
-	    if(tidNameMap.get(tid) != null){
-            long tidName = tidNameMap.get(tid);
-            HashMap<String, Queue<Vector<String>>> mapAddrInsn = storeBufferPso.get(tidName);
+	    Long tidName = tidNameMap.get(tid);
+	    if(tidName != null){
+            HashMap<Integer, StoreBuffer> mapAddrInsn = storeBufferPso.get(tidName);
             if (mapAddrInsn != null) {
-                for(String addr : mapAddrInsn.keySet()){
-                    Queue<Vector<String>> q = mapAddrInsn.get(addr);
-                    if (q != null) {
-                        while(!q.isEmpty()){
-                            Vector<String> vs = q.dequeue();                
-                            String owner = vs.get(0);
-                            String name = vs.get(1);
-                          //int opcode = Integer.parseInt(vs.get(3));
-                            int SID = Integer.parseInt(vs.get(3));
-                          int ID  = Integer.parseInt(vs.get(2));
-                          int value = Integer.parseInt(vs.get(4));
-                          long threadId = Integer.parseInt(vs.get(5));
-                          
-                          Object v = (Integer) value;
-                          
-                          try{
-                              Class<?> c = Class.forName(owner);
-                              Object instance = c.newInstance();
-                              //c o = new c();
-                              Field f = c.getDeclaredField(name);
-                              f.setAccessible(true);
-                              f.set(instance, v);
-                              
-                              updateFieldAcc(ID, null, SID, v, true, threadId);
-                              
-                          } catch (NoSuchFieldException x) {
-                              x.printStackTrace();
-                          } catch (IllegalAccessException x) {
-                              x.printStackTrace();
-                          } catch (ClassNotFoundException e) {
-                              // TODO Auto-generated catch block
-                              e.printStackTrace();
-                          } catch (InstantiationException e) {
-                              // TODO Auto-generated catch block
-                              e.printStackTrace();
-                          }
-
-                        }    //end while
+                for(StoreBuffer q : mapAddrInsn.values()){
+                    while(!q.isEmpty()){
+                        commitHead(q);
                     }
                 }
             }
-            
 	    }
 	}
 	
 	//when a sync happens, empty the buffer
     public static void memBar(long tid){  
-        if(tidNameMap.get(tid) != null){
-            long tidName = tidNameMap.get(tid);
-            Queue<Vector<String>> q = storeBuffer.get(tidName);
+        Long tidName = tidNameMap.get(tid);
+        if(tidName != null){
+            StoreBuffer q = storeBuffer.get(tidName);
             if (q != null) {
                 while(!q.isEmpty()){
-                    Vector<String> vs = q.dequeue();                
-                    String owner = vs.get(0);
-                    String name = vs.get(1);
-                  //int opcode = Integer.parseInt(vs.get(3));
-                    int SID = Integer.parseInt(vs.get(3));
-                  int ID  = Integer.parseInt(vs.get(2));
-                  int value = Integer.parseInt(vs.get(4));
-                  long threadId = Integer.parseInt(vs.get(5));
-                  
-                  Object v = (Integer) value;
-                  
-                  try{
-                      Class<?> c = Class.forName(owner);
-                      Object instance = c.newInstance();
-                      //c o = new c();
-                      Field f = c.getDeclaredField(name);
-                      f.setAccessible(true);
-                      f.set(instance, v);
-                      
-                      updateFieldAcc(ID, null, SID, v, true, threadId);
-                      
-                  } catch (NoSuchFieldException x) {
-                      x.printStackTrace();
-                  } catch (IllegalAccessException x) {
-                      x.printStackTrace();
-                  } catch (ClassNotFoundException e) {
-                      // TODO Auto-generated catch block
-                      e.printStackTrace();
-                  } catch (InstantiationException e) {
-                      // TODO Auto-generated catch block
-                      e.printStackTrace();
-                  }
-
-                }    //end while
+                    commitHead(q);
+                }
             }
         }
-        //long tid = Thread.currentThread().getId();
-       
     }
     
     public static void updateStorePSO(){
         while(MCRStrategy.schedulePrefix.size()>RVRunTime.currentIndex){
-            //long tid = Thread.currentThread().getId();
-            String s = MCRStrategy.schedulePrefix.get(RVRunTime.currentIndex);
-            //might be some problem
-            String thdName = s.split("_")[0]; 
-            String addr = s.split("_")[1];
+            String[] s = MCRStrategy.schedulePrefix.get(RVRunTime.currentIndex).split("_");
             //this is so weird, when type of tid is int, map.get is null
-            long tid = Integer.parseInt(thdName);
-            
-            HashMap<String, Queue<Vector<String>>> mapAddrInsn = storeBufferPso.get(tid);
-            
-            //flush(q, constTid);
-            if(mapAddrInsn == null) break;
-            
-            if(mapAddrInsn.isEmpty())break;
-            
-            //String addr = 
-            
-            Queue<Vector<String>> q = mapAddrInsn.get(addr);
-            if (q == null) break;
-            if (q.isEmpty()) break;
-                
-            
-            Vector<String> vs = q.dequeue();
-            int SID = Integer.parseInt(vs.get(3)); //the SID in the buffer
-//            
-//            //the SID the schedule indicates:
-//            String thd_Field = MCRStrategy.schedulePrefix.get(currentIndex);
-//            String expectField = thd_Field.split("_")[1];
-//            
-//            int field = Integer.parseInt(expectField);
-//            
-//            if(SID==field){ //update
-            String owner = vs.get(0);
-            String name = vs.get(1);
-            //int opcode = Integer.parseInt(vs.get(3));
-            int ID  = Integer.parseInt(vs.get(2));
-            int value = Integer.parseInt(vs.get(4));
-            
-            long threadId = Integer.parseInt(vs.get(5));
-            
-            Object v = (Integer) value;
-            
-            try{
-                Class<?> c = Class.forName(owner);
-                Object instance = c.newInstance();
-                //c o = new c();
-                Field f = c.getDeclaredField(name);
-                f.setAccessible(true);
-                f.set(instance, v);
-                
-                updateFieldAcc(ID, null, SID, v, true, threadId);
-                
-            } catch (NoSuchFieldException x) {
-                x.printStackTrace();
-            } catch (IllegalAccessException x) {
-                x.printStackTrace();
-            } catch (ClassNotFoundException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            } catch (InstantiationException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
-                
-//                q.dequeue();   //dequue the store buffer
-//            }
-//            else
-//                break;
+            long tid = Integer.parseInt(s[0]);
             
-                
-            
-            }
+            HashMap<Integer, StoreBuffer> mapAddrInsn = storeBufferPso.get(tid);
+            if(mapAddrInsn == null || mapAddrInsn.isEmpty()) break;
+
+            //the addr might not be a field, e.g. LOCK
+            if(s.length < 2 || !isInteger(s[1])) break;
+
+            StoreBuffer q = mapAddrInsn.get(Integer.parseInt(s[1]));
+            if (q == null || q.isEmpty()) break;
+
+            commitHead(q);
+        }
     }
     
     public static boolean isInteger( String input ) {
@@ -326,359 +196,109 @@ public class  RVRunTime {
       //comparing the field with the SID of the variable in the head of the Queue
         
         while(MCRStrategy.schedulePrefix.size()>RVRunTime.currentIndex){
-            //long tid = Thread.currentThread().getId();
-            String s = MCRStrategy.schedulePrefix.get(RVRunTime.currentIndex);
-            s = s.split("_")[0]; 
-            
+            String[] s = MCRStrategy.schedulePrefix.get(RVRunTime.currentIndex).split("_");
             //this is so weird, when type of tid is int, map.get is null
-            long tid = Integer.parseInt(s);
-            
-            Queue<Vector<String>> q = storeBuffer.get(tid);
+            long tid = Integer.parseInt(s[0]);
             
-            //flush(q, constTid);
-            if(q == null) break;
-            
-            if(q.isEmpty())break;
-            Vector<String> vs = q.peek();
-            int SID = Integer.parseInt(vs.get(3)); //the SID in the buffer
-            
-            //the SID the schedule indicates:
-            String thd_Field = MCRStrategy.schedulePrefix.get(currentIndex);
-            String expectField = thd_Field.split("_")[1];
+            StoreBuffer q = storeBuffer.get(tid);
+            if(q == null || q.isEmpty()) break;
             
             //it might not be an integer, e.g. LOCK
             //judge first
-            int field = 0;
-            if (isInteger(expectField)) {
-                field = Integer.parseInt(expectField);
-            }
-            else
-                break;
-            
-            
-            if(SID==field){ //update
-                String owner = vs.get(0);
-                String name = vs.get(1);
-                //int opcode = Integer.parseInt(vs.get(3));
-                int ID  = Integer.parseInt(vs.get(2));
-                int value = Integer.parseInt(vs.get(4));
-                
-                long threadId = Integer.parseInt(vs.get(5));
-                
-                Object v = (Integer) value;
-                
-                try{
-                    Class<?> c = Class.forName(owner);
-                    Object instance = c.newInstance();
-                    //c o = new c();
-                    Field f = c.getDeclaredField(name);
-                    f.setAccessible(true);
-                    f.set(instance, v);
-                    
-                    //log operation
-                    updateFieldAcc(ID, null, SID, v, true, threadId);
-                    
-                } catch (NoSuchFieldException x) {
-                    x.printStackTrace();
-                } catch (IllegalAccessException x) {
-                    x.printStackTrace();
-                } catch (ClassNotFoundException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                } catch (InstantiationException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
-                
-                q.dequeue();   //dequue the store buffer
-            }
-            else
-                break;
-            
-                
-            
-            }
+            if(s.length < 2 || !isInteger(s[1])) break;
+
+            //the SID the schedule indicates against the SID in the buffer
+            if(q.headSite().SID != Integer.parseInt(s[1])) break;
+
+            commitHead(q);
+        }
     }
-        
-    
-    //update the buffer
-//    public static void updateStore(){
-//        //comparing the field with the SID of the variable in the head of the Queue
-//        
-//        if(MCRStrategy.schedulePrefix.size()>RVRunTime.currentIndex){
-//            long tid = Thread.currentThread().getId();
-//
-//            String s = MCRStrategy.schedulePrefix.get(RVRunTime.currentIndex-1);
-//            s = s.split("_")[0];
-//            int constTid = Integer.parseInt(s);
-//            
-//            Queue<Vector<String>> q = storeBuffer.get(tid);
-//            
-//            if(q!=null)
-//                flush(q, constTid);
-//        }
-//        
-//        
-//    }
-    
+
+    //buffer the store, primitive values are passed as raw bits, see StoreSite
+    public static void bufferStore(long bits, int site){
+        bufferStore(site, bits, null, false);
+    }
+
+    public static void bufferStore(Object ref, int site){
+        bufferStore(site, 0, ref, false);
+    }
+
     //pso buffer store
-    public static void bufferStorePSO(final Object v, String info){
-        String[] split = info.split(":");
-        
-        String owner = split[0].replace("/", ".");
-        String name = split[1];
-        String ID = split[2];
-        String SID = split[3];
-        
-        String value = Integer.toString((Integer) v);
+    public static void bufferStorePSO(long bits, int site){
+        bufferStore(site, bits, null, true);
+    }
+
+    public static void bufferStorePSO(Object ref, int site){
+        bufferStore(site, 0, ref, true);
+    }
+
+    private static void bufferStore(int siteId, long bits, Object ref, boolean pso) {
+        StoreSite site = StoreSite.get(siteId);
 
-        int id = Integer.parseInt(ID);
-        int sid = Integer.parseInt(SID);
-        
         if(MCRStrategy.schedulePrefix.size() <= RVRunTime.currentIndex){
             //before executing, need to empty the buffer, 
             //otherwise a reordering of w-w might happen
-              
-              memBar(Thread.currentThread().getId());
-              
-            //the initial run just the same as the running under SC    
-              try{
-                  Class<?> c = Class.forName(owner);
-                  Object instance = c.newInstance();
-                  //c o = new c();
-                  Field f = c.getDeclaredField(name);
-                  f.setAccessible(true);
-                  f.set(instance, v);
-                  
-                  logFieldAcc(id, null, sid, v, true);
-                  
-              } catch (NoSuchFieldException x) {
-                  x.printStackTrace();
-              } catch (IllegalAccessException x) {
-                  x.printStackTrace();
-              } catch (ClassNotFoundException e) {
-                  // TODO Auto-generated catch block
-                  e.printStackTrace();
-              } catch (InstantiationException e) {
-                  // TODO Auto-generated catch block
-                  e.printStackTrace();
-              }
-                          
-               
-          }
-          else {
-              /**
-               * compare the field to decide buffer the store or not
-               */         
-              int currentIndex = RVRunTime.currentIndex;
-              String thd_Field = MCRStrategy.schedulePrefix.get(currentIndex);
-              String expectField = thd_Field.split("_")[1];
-              
-              //System.out.println(expectField);
-              int field = 0;
-              try {
-                  field = Integer.parseInt(expectField);
-              } catch (Exception e) {
-              }
-              //int field = Integer.parseInt(expectField);
-              
-              //execute directly
-              
-              if(field == sid){  
-                  try{
-                      Class<?> c = Class.forName(owner);
-                      Object instance = c.newInstance();
-                      //c o = new c();
-                      Field f = c.getDeclaredField(name);
-                      f.setAccessible(true);
-                      f.set(instance, v);  //put value to field
-                      
-                      logFieldAcc(id, null, sid, v, true);
-                      
-                      updateStorePSO();  //after a write, we should check updating
-                      
-                  } catch (NoSuchFieldException x) {
-                      x.printStackTrace();
-                  } catch (IllegalAccessException x) {
-                      x.printStackTrace();
-                  } catch (ClassNotFoundException e) {
-                      // TODO Auto-generated catch block
-                      e.printStackTrace();
-                  } catch (InstantiationException e) {
-                      // TODO Auto-generated catch block
-                      e.printStackTrace();
-                  }
-              }
-              else{  //buffer the store
-                  
-                  Vector<String> insnInfo = new Vector<String>();
-                  insnInfo.add(owner);
-                  insnInfo.add(name);
-                  insnInfo.add(ID);
-                  insnInfo.add(SID);
-                  insnInfo.add(value);
-                  
-                  long threadId = Thread.currentThread().getId();
-                  insnInfo.add(Integer.toString((int) threadId));
-                  
-                  //long tid = Thread.currentThread().getId();
-                  long tid = Integer.parseInt(thd_Field.split("_")[0]);
-               
-                  if(storeBufferPso.get(tid)==null){
-                      HashMap<String, Queue<Vector<String>>> mapAddrInfo = new HashMap<String, Queue<Vector<String>>>();
-                      //if()    
-                      Queue<Vector<String>> q = new Queue<Vector<String>>();
-                      q.enqueue(insnInfo);
-                      mapAddrInfo.put(SID, q);
-                      storeBufferPso.put(tid, mapAddrInfo);
-                  }
-                  else{
-                      HashMap<String, Queue<Vector<String>>> mapAddrInfo = storeBufferPso.get(tid);
-                      if(mapAddrInfo.get(SID) == null){
-                          Queue<Vector<String>> q = new Queue<Vector<String>>();
-                          q.enqueue(insnInfo);
-                          mapAddrInfo.put(SID, q);
-                          //storeBufferPso.put(tid, mapAddrInfo);
-                      }
-                      else {
-                          mapAddrInfo.get(SID).enqueue(insnInfo);
-                      }
-                      //storeBuffer.get(tid).enqueue(insnInfo);
-                  }
-                  
-                  //store the tia-name map
-                  if(tidNameMap.get(threadId)==null){
-                      tidNameMap.put(threadId, tid);
-                  }
-              }
-          }
-        
-        
-    }
-    
-    //buffer the store
-    public static void bufferStore(final Object v, String info) throws IllegalArgumentException, IllegalAccessException {
-        
-        //boolean shouldBuffer = true;
-        
-        String[] split = info.split(":");
-        
-        String owner = split[0].replace("/", ".");
-        String name = split[1];
-        String ID = split[2];
-        String SID = split[3];
-        
-        String value = Integer.toString((Integer) v);
-        
-        int id = Integer.parseInt(ID);
-        int sid = Integer.parseInt(SID);
-        
-        if(MCRStrategy.schedulePrefix.size() <= RVRunTime.currentIndex){
-          //before executing, need to empty the buffer, 
-          //otherwise a reordering of w-w might happen
-            
             memBar(Thread.currentThread().getId());
-            
-          //the initial run just the same as the running under SC    
-            try{
-                Class<?> c = Class.forName(owner);
-                Object instance = c.newInstance();
-                //c o = new c();
-                Field f = c.getDeclaredField(name);
-                f.setAccessible(true);
-                f.set(instance, v);
-                
-                logFieldAcc(id, null, sid, v, true);
-                
-            } catch (NoSuchFieldException x) {
-                x.printStackTrace();
-            } catch (IllegalAccessException x) {
-                x.printStackTrace();
-            } catch (ClassNotFoundException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            } catch (InstantiationException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+
+            //the initial run just the same as the running under SC
+            site.write(bits, ref);
+            logFieldAcc(site.ID, null, site.SID, site.box(bits, ref), true);
+            return;
+        }
+
+        /**
+         * compare the field to decide buffer the store or not
+         */
+        String[] thd_Field = MCRStrategy.schedulePrefix.get(RVRunTime.currentIndex).split("_");
+        int field = 0;
+        try {
+            field = Integer.parseInt(thd_Field[1]);
+        } catch (Exception e) {
+        }
+
+        //execute directly
+        if(field == site.SID){
+            site.write(bits, ref);
+            logFieldAcc(site.ID, null, site.SID, site.box(bits, ref), true);
+
+            //after a write, we should check updating
+            if (pso) {
+                updateStorePSO();
+            } else {
+                updateStore();
             }
-                        
-             
+            return;
         }
-        else {
-            /**
-             * compare the field to decide buffer the store or not
-             */
-                  
-            int currentIndex = RVRunTime.currentIndex;
-            String thd_Field = MCRStrategy.schedulePrefix.get(currentIndex);
-            String expectField = thd_Field.split("_")[1];
-            
-            //System.out.println(expectField);
-            int field = 0;
-            try {
-                field = Integer.parseInt(expectField);
-            } catch (Exception e) {
+
+        //buffer the store
+        long threadId = Thread.currentThread().getId();
+        long tid = Integer.parseInt(thd_Field[0]);
+
+        StoreBuffer q;
+        if (pso) {
+            HashMap<Integer, StoreBuffer> mapAddrInfo = storeBufferPso.get(tid);
+            if (mapAddrInfo == null) {
+                mapAddrInfo = new HashMap<Integer, StoreBuffer>();
+                storeBufferPso.put(tid, mapAddrInfo);
             }
-            
-            
-            //execute directly
-            
-            if(field == sid){  
-                try{
-                    Class<?> c = Class.forName(owner);
-                    Object instance = c.newInstance();
-                    //c o = new c();
-                    Field f = c.getDeclaredField(name);
-                    f.setAccessible(true);
-                    f.set(instance, v);
-                    
-                    logFieldAcc(id, null, sid, v, true);
-                    
-                    updateStore();
-                    
-                } catch (NoSuchFieldException x) {
-                    x.printStackTrace();
-                } catch (IllegalAccessException x) {
-                    x.printStackTrace();
-                } catch (ClassNotFoundException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                } catch (InstantiationException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
+            q = mapAddrInfo.get(site.SID);
+            if (q == null) {
+                q = new StoreBuffer();
+                mapAddrInfo.put(site.SID, q);
             }
-            else{  //buffer the store
-                
-                Vector<String> insnInfo = new Vector<String>();
-                insnInfo.add(owner);
-                insnInfo.add(name);
-                insnInfo.add(ID);
-                insnInfo.add(SID);
-                insnInfo.add(value);
-                
-                long threadId = Thread.currentThread().getId();
-                insnInfo.add(Integer.toString((int) threadId));
-                
-                //long tid = Thread.currentThread().getId();
-                long tid = Integer.parseInt(thd_Field.split("_")[0]);
-                if(storeBuffer.get(tid)==null){
-                    Queue<Vector<String>> q = new Queue<Vector<String>>();
-                    q.enqueue(insnInfo);
-                    storeBuffer.put(tid, q);
-                }
-                else{
-                    storeBuffer.get(tid).enqueue(insnInfo);
-                }
-                
-                //store the tia-name map
-                if(tidNameMap.get(threadId)==null){
-                    tidNameMap.put(threadId, tid);
-                }
+        } else {
+            q = storeBuffer.get(tid);
+            if (q == null) {
+                q = new StoreBuffer();
+                storeBuffer.put(tid, q);
             }
         }
+        q.enqueue(siteId, bits, ref, threadId);
 
-        //System.out.println(InsnInfo);     
+        //store the tia-name map
+        if(tidNameMap.get(threadId)==null){
+            tidNameMap.put(threadId, tid);
+        }
     }
 	
 	/**
@@ -694,6 +314,15 @@ public class  RVRunTime {
         //Scheduler.beforeFieldAccess(!write, "owner", "name", "desc");
 
         Trace trace = MCRStrategy.getTrace();
+        if (bufferedRecording) {
+            if (MCRStrategy.schedulePrefix.size() <= currentIndex++ || MCRStrategy.fullTrace) {
+                globalEventID++;
+                trace.getMemAccessBuffer().add(globalEventID, tid, ID, o, SID, v, write);
+            } else if (write) {
+                updateInitWrite(trace, o, SID, v);
+            }
+            return;
+        }
         // Use <= instead of < because currentIndex is increased after this
         // function call
         if ( MCRStrategy.schedulePrefix.size() <= currentIndex++|| MCRStrategy.fullTrace) {
@@ -781,6 +410,17 @@ public class  RVRunTime {
 	public static void logFieldAcc(int ID, final Object o, int SID, final Object v, final boolean write) {
 
 		Trace trace = MCRStrategy.getTrace();
+
+		if (bufferedRecording) {
+			RVRunTime.failure_trace.add(failureTraceEntry(ID, write));
+			if (MCRStrategy.schedulePrefix.size() <= currentIndex++ || MCRStrategy.fullTrace) {
+				globalEventID++;
+				trace.getMemAccessBuffer().add(globalEventID, Thread.currentThread().getId(), ID, o, SID, v, write);
+			} else if (write) {
+				updateInitWrite(trace, o, SID, v);
+			}
+			return;
+		}
 		
 		StackTraceElement frame = Thread.currentThread().getStackTrace()[2];
         String fileName = frame.getFileName();
@@ -875,6 +515,36 @@ public class  RVRunTime {
 		}
 	}
 
+	/**
+	 * the failure trace entry of a field access, built once per thread and location
+	 */
+	private static String failureTraceEntry(int ID, boolean write) {
+		String[] entries = failureTraceEntries.get();
+		int index = 2 * ID + (write ? 1 : 0);
+		if (index >= entries.length) {
+			entries = Arrays.copyOf(entries, Math.max(2 * entries.length, index + 1));
+			failureTraceEntries.set(entries);
+		}
+		String entry = entries[index];
+		if (entry == null) {
+			String label = RVGlobalStateForInstrumentation.instance.getLocationLabel(ID);
+			entry = Thread.currentThread().getName() + "_" + label + ":" + (write ? "write" : "read");
+			entries[index] = entry;
+		}
+		return entry;
+	}
+
+	private static void updateInitWrite(Trace trace, final Object o, int SID, final Object v) {
+		if (isPrim(v)) {
+			trace.updateInitWriteValueToAddress(o == null ? "." + SID
+					: System.identityHashCode(o) + "." + SID, v + "");
+		} else {
+			trace.updateInitWriteValueToAddress(o == null ? "_." + SID
+					: System.identityHashCode(o) + "_." + SID,
+					System.identityHashCode(v) + "_");
+		}
+	}
+
 	public static void logInitialWrite(int ID, final Object o, int SID, final Object v) 
 	{
 
@@ -0,0 +1,127 @@
+package scheduler.runtime;
+
+import constraints.trace.Trace;
+import instrumentor.instrumentation.RVGlobalStateForInstrumentation;
+import scheduler.scheduling.strategy.MCRStrategy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Events/sec of RVRunTime.logFieldAcc with record_mode=stack (label from
+ * the stack trace, a node per event) and record_mode=buffered (static
+ * labels, per thread buffers, nodes created when the trace is loaded).
+ *
+ * Each mode runs in its own JVM, since the mode is fixed when RVRunTime is loaded.
+ *   java -cp ... scheduler.runtime.RecordingBenchmark [#events]
+ */
+public class RecordingBenchmark {
+
+    private static final String[] MODES = {RVRunTime.RECORD_STACK, RVRunTime.RECORD_BUFFERED};
+
+    private static final String RESULT = "RECORD_BENCH";
+
+    private static final int LOCATIONS = 64;
+    private static final int OBJECTS = 16;
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length == 3 && "run".equals(args[0])) {
+            runOne(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        System.out.println(String.format("%-10s %10s %14s %14s %16s",
+                "mode", "#events", "record(ms)", "load(ms)", "record(ev/s)"));
+        for (String mode : MODES) {
+            String result = fork(mode, events);
+            if (result == null) {
+                System.out.println(String.format("%-10s %10d %14s %14s %16s", mode, events, "-", "-", "-"));
+                continue;
+            }
+            String[] fields = result.split(" ");
+            long record = Long.parseLong(fields[0]);
+            long load = Long.parseLong(fields[1]);
+            System.out.println(String.format("%-10s %10d %14d %14d %16d",
+                    mode, events, record / 1000000, load / 1000000, events * 1000000000L / Math.max(1, record)));
+        }
+    }
+
+    private static String fork(String mode, int events) throws Exception {
+
+        List<String> cmd = new ArrayList<>();
+        cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        cmd.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        cmd.add("-Drecord_mode=" + mode);
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(RecordingBenchmark.class.getName());
+        cmd.add("run");
+        cmd.add(Integer.toString(events));
+        cmd.add(Integer.toString(Math.max(10000, events / 10)));
+
+        ProcessBuilder processBuilder = new ProcessBuilder(cmd);
+        processBuilder.redirectErrorStream(true);
+        Process process = processBuilder.start();
+
+        String result = null;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        String line = reader.readLine();
+        while (line != null) {
+            if (line.startsWith(RESULT)) {
+                result = line.substring(RESULT.length()).trim();
+            }
+            line = reader.readLine();
+        }
+        process.waitFor();
+        return result;
+    }
+
+    private static void runOne(int events, int warmup) {
+
+        int[] ids = new int[LOCATIONS];
+        for (int i = 0; i < LOCATIONS; i++) {
+            ids[i] = RVGlobalStateForInstrumentation.instance.getLocationId(
+                    "RecordingBenchmark|loc" + i, "RecordingBenchmark.java:" + (1000 + i));
+        }
+        Object[] objects = new Object[OBJECTS];
+        for (int i = 0; i < OBJECTS; i++) {
+            objects[i] = new Object();
+        }
+
+        MCRStrategy strategy = new MCRStrategy();
+        strategy.startingExploration();
+
+        strategy.startingScheduleExecution();
+        record(warmup, ids, objects);
+        MCRStrategy.getTrace().finishedLoading(true);
+
+        //a fresh execution, as the scheduler does before each schedule
+        strategy.startingScheduleExecution();
+        Trace trace = MCRStrategy.getTrace();
+
+        long start = System.nanoTime();
+        record(events, ids, objects);
+        long record = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        trace.finishedLoading(true);
+        long load = System.nanoTime() - start;
+
+        System.out.println(RESULT + " " + record + " " + load);
+    }
+
+    private static void record(int events, int[] ids, Object[] objects) {
+        for (int i = 0; i < events; i++) {
+            int loc = i % LOCATIONS;
+            //static and instance fields, reads and writes, small boxed ints
+            Object o = (loc & 1) == 0 ? null : objects[i % OBJECTS];
+            RVRunTime.logFieldAcc(ids[loc], o, loc, i & 127, (i & 3) == 0);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package scheduler.runtime;
+
+import java.util.Arrays;
+
+/**
+ * FIFO of buffered stores, kept in parallel arrays: store site id,
+ * raw bits of a primitive value, reference value, id of the storing thread.
+ */
+public class StoreBuffer {
+
+    private int[] sites = new int[16];
+    private long[] bits = new long[16];
+    private Object[] refs = new Object[16];
+    private long[] threadIds = new long[16];
+
+    //entries are in [head, tail)
+    private int head = 0;
+    private int tail = 0;
+
+    public boolean isEmpty() {
+        return head == tail;
+    }
+
+    public void enqueue(int site, long value, Object ref, long threadId) {
+        if (tail == sites.length) {
+            if (head > 0) {
+                compact();
+            } else {
+                int capacity = 2 * sites.length;
+                sites = Arrays.copyOf(sites, capacity);
+                bits = Arrays.copyOf(bits, capacity);
+                refs = Arrays.copyOf(refs, capacity);
+                threadIds = Arrays.copyOf(threadIds, capacity);
+            }
+        }
+        sites[tail] = site;
+        bits[tail] = value;
+        refs[tail] = ref;
+        threadIds[tail] = threadId;
+        tail++;
+    }
+
+    private void compact() {
+        int size = tail - head;
+        System.arraycopy(sites, head, sites, 0, size);
+        System.arraycopy(bits, head, bits, 0, size);
+        System.arraycopy(refs, head, refs, 0, size);
+        System.arraycopy(threadIds, head, threadIds, 0, size);
+        Arrays.fill(refs, size, tail, null);
+        head = 0;
+        tail = size;
+    }
+
+    public StoreSite headSite() {
+        return StoreSite.get(sites[head]);
+    }
+
+    public long headBits() {
+        return bits[head];
+    }
+
+    public Object headRef() {
+        return refs[head];
+    }
+
+    public long headThreadId() {
+        return threadIds[head];
+    }
+
+    public void dequeue() {
+        refs[head] = null;
+        head++;
+        if (head == tail) {
+            head = 0;
+            tail = 0;
+        }
+    }
+}
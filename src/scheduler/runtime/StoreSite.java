@@ -0,0 +1,158 @@
+package scheduler.runtime;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A PUTSTATIC instruction whose store is buffered under TSO/PSO.
+ * The instrumentation registers the site and passes its id to
+ * RVRunTime.bufferStore, so that nothing is parsed at run time; the
+ * setter MethodHandle that performs the delayed store is looked up once,
+ * on the first store of the site.
+ *
+ * Primitive values travel as raw long bits (see MethodAdapter), references as is.
+ */
+public class StoreSite {
+
+    private static StoreSite[] sites = new StoreSite[64];
+    private static int numSites = 0;
+    private static final HashMap<Integer, Integer> locationSiteMap = new HashMap<Integer, Integer>();
+
+    public final int ID;
+    public final int SID;
+    private final String owner;
+    private final String name;
+    //first char of the field descriptor, 'L' for arrays too
+    private final char kind;
+
+    private MethodHandle handle;
+
+    private StoreSite(String owner, String name, String desc, int ID, int SID) {
+        this.owner = owner.replace("/", ".");
+        this.name = name;
+        this.kind = desc.charAt(0) == '[' ? 'L' : desc.charAt(0);
+        this.ID = ID;
+        this.SID = SID;
+    }
+
+    /**
+     * @return the id of the store site at location ID, registered on the first call
+     */
+    public static synchronized int register(String owner, String name, String desc, int ID, int SID) {
+        Integer site = locationSiteMap.get(ID);
+        if (site == null) {
+            if (numSites == sites.length) {
+                sites = Arrays.copyOf(sites, 2 * numSites);
+            }
+            site = numSites++;
+            sites[site] = new StoreSite(owner, name, desc, ID, SID);
+            locationSiteMap.put(ID, site);
+        }
+        return site;
+    }
+
+    public static synchronized StoreSite get(int site) {
+        return sites[site];
+    }
+
+    public boolean isReference() {
+        return kind == 'L';
+    }
+
+    /**
+     * perform the store
+     */
+    public void write(long bits, Object ref) {
+        MethodHandle h = handle();
+        if (h == null) {
+            return;
+        }
+        try {
+            switch (kind) {
+            case 'I':
+                h.invoke((int) bits);
+                break;
+            case 'J':
+                h.invoke(bits);
+                break;
+            case 'Z':
+                h.invoke(bits != 0);
+                break;
+            case 'B':
+                h.invoke((byte) bits);
+                break;
+            case 'S':
+                h.invoke((short) bits);
+                break;
+            case 'C':
+                h.invoke((char) bits);
+                break;
+            case 'F':
+                h.invoke(Float.intBitsToFloat((int) bits));
+                break;
+            case 'D':
+                h.invoke(Double.longBitsToDouble(bits));
+                break;
+            default:
+                h.invoke(ref);
+            }
+        } catch (Throwable e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * the value as the instrumentation passes it to logFieldAcc
+     */
+    public Object box(long bits, Object ref) {
+        switch (kind) {
+        case 'I':
+            return (int) bits;
+        case 'J':
+            return bits;
+        case 'Z':
+            return bits != 0;
+        case 'B':
+            return (byte) bits;
+        case 'S':
+            return (short) bits;
+        case 'C':
+            return (char) bits;
+        case 'F':
+            return Float.intBitsToFloat((int) bits);
+        case 'D':
+            return Double.longBitsToDouble(bits);
+        default:
+            return ref;
+        }
+    }
+
+    private MethodHandle handle() {
+        if (handle == null) {
+            try {
+                Class<?> c = loadOwner();
+                Field f = c.getDeclaredField(name);
+                f.setAccessible(true);
+                handle = MethodHandles.lookup().unreflectSetter(f);
+            } catch (ReflectiveOperationException e) {
+                e.printStackTrace();
+            }
+        }
+        return handle;
+    }
+
+    private Class<?> loadOwner() throws ClassNotFoundException {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader != null) {
+            try {
+                return Class.forName(owner, true, loader);
+            } catch (ClassNotFoundException e) {
+                //fall back to the loader of the runtime
+            }
+        }
+        return Class.forName(owner);
+    }
+}
@@ -6,11 +6,15 @@ import constraints.config.Configuration;
 import constraints.pattern.PSchedule;
 import constraints.pattern.Pattern;
 import constraints.trace.Trace;
+import constraints.trace.TraceFile;
 import constraints.trace.TraceInfo;
 import instrumentor.instrumentation.RVGlobalStateForInstrumentation;
+import scheduler.coordinator.WorkerConnection;
 import scheduler.runtime.RVRunTime;
 import scheduler.scheduling.events.EventType;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -33,6 +37,10 @@ public class MCRStrategy extends SchedulingStrategy {
 	private final static int NUM_THREADS = 10;
 	private volatile static ExecutorService executor;
     private ThreadInfo previousThreadInfo;
+    private static int numCapturedTraces = 0;
+    //connection to ExplorationCoordinator when this JVM is one of its workers
+    private WorkerConnection worker;
+    private Vector<String> nextWorkerPrefix;
     public static final Boolean fullTrace = true;  //default
 
 	private int count;
@@ -61,6 +69,7 @@ public class MCRStrategy extends SchedulingStrategy {
 		RVRunTime.currentIndex = 0;
 		executor = Executors.newFixedThreadPool(NUM_THREADS);	
 
+		worker = WorkerConnection.get();
 	}
 
 	/**
@@ -69,6 +78,19 @@ public class MCRStrategy extends SchedulingStrategy {
 	@Override
 	public void startingScheduleExecution() {
 
+		if (worker != null) {
+			//the prefix was received by canExecuteMoreSchedules
+			curSchedule = null;
+			System.out.println("current schedule:" + nextWorkerPrefix);
+			MCRStrategy.choicesMade.clear();
+			MCRStrategy.schedulePrefix = new ArrayList<String>(nextWorkerPrefix);
+			RVRunTime.currentIndex = 0;
+			RVRunTime.failure_trace.clear();
+			initTrace();
+			previousThreadInfo = null;
+			return;
+		}
+
 		curSchedule = this.toExplore.poll();
 
 		List<String> prefix = null;
@@ -114,6 +136,7 @@ public class MCRStrategy extends SchedulingStrategy {
                 RVRunTime.threadTidNameMap);
        traceInfo.setVolatileAddresses(RVGlobalStateForInstrumentation.instance.volatilevariables);
        currentTrace = new Trace(traceInfo);
+       currentTrace.setLocationLabelMap(RVGlobalStateForInstrumentation.stmtIdLabelMap);
 	}
 
 	/**
@@ -145,6 +168,27 @@ public class MCRStrategy extends SchedulingStrategy {
 		executeSingleThread(prefix);
 	}
 	
+	/**
+	 * save the loaded trace to trace_capture_dir, for replaying the exploration offline
+	 */
+	private void captureTrace(Vector<String> prefix) {
+		if (Configuration.traceCaptureDir.isEmpty()) {
+			return;
+		}
+		File dir = new File(Configuration.traceCaptureDir);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			System.err.println("cannot create trace capture dir " + dir);
+			return;
+		}
+		String name = (Configuration.class_name == null ? "trace" : Configuration.class_name)
+				+ "_" + numCapturedTraces++ + TraceFile.SUFFIX;
+		try {
+			TraceFile.write(currentTrace, prefix, new File(dir, name));
+		} catch (IOException e) {
+			System.err.println("cannot capture trace " + name + ": " + e.getMessage());
+		}
+	}
+
 	/**
 	 * here creates a runnable object and it can then run the method 
 	 * @param prefix
@@ -157,15 +201,30 @@ public class MCRStrategy extends SchedulingStrategy {
 		 * update covered pattern info
 		 */
 		currentTrace.finishedLoading(true);
+		captureTrace(prefix);
+
+		if (worker != null) {
+			//the coordinator explores it
+			worker.sendTrace(currentTrace, prefix);
+			return;
+		}
 
 //		for (AbstractNode abstractNode : currentTrace.getFullTrace()) {
 //			System.out.println(abstractNode);
 //		}
-		List<Pattern> patterns = mapcalc.getAllCoveredPatterns(currentTrace);
+		exploreTrace(currentTrace, prefix, this.toExplore);
+	}
+
+	/**
+	 * update the covered patterns with a loaded trace and add the schedules
+	 * it leads to to toExplore, also used by ExplorationCoordinator
+	 */
+	public static void exploreTrace(Trace trace, Vector<String> prefix, Queue<PSchedule> toExplore) {
+		List<Pattern> patterns = mapcalc.getAllCoveredPatterns(trace);
 		List<Pattern> unCoveredPatterns = mapcalc.getUnCoveredPatterns(patterns);
-		mapcalc.allCoveredPatterns.addAll(unCoveredPatterns);
+		mapcalc.addCoveredPatterns(unCoveredPatterns);
 		//for pattern
-		StartExploring causalTrace = new StartExploring(currentTrace, prefix, this.toExplore);
+		StartExploring causalTrace = new StartExploring(trace, prefix, toExplore);
 		Thread causalTraceThread = new Thread(causalTrace);
 		causalTraceThread.start();
 		try {
@@ -186,6 +245,10 @@ public class MCRStrategy extends SchedulingStrategy {
 
 	@Override
 	public boolean canExecuteMoreSchedules() {
+		if (worker != null) {
+			nextWorkerPrefix = worker.nextPrefix();
+			return nextWorkerPrefix != null;
+		}
 		boolean result = (!this.toExplore.isEmpty())
 				|| this.notYetExecutedFirstSchedule;
 		if (!result) {
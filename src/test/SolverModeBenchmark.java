@@ -0,0 +1,105 @@
+package test;
+
+import constraints.config.Configuration;
+import constraints.constraints.Z3Session;
+import org.junit.runner.JUnitCore;
+import scheduler.listeners.ExplorationStatsListener;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compare the file based solver mode against the interactive z3 session
+ * on the testers under src/test/examples.
+ *
+ * Every (tester, mode) pair runs in its own JVM with the same vm options as
+ * this one (so start it with the usual -javaagent), e.g.
+ *   java -javaagent:... -cp ... test.SolverModeBenchmark [tester ...]
+ */
+public class SolverModeBenchmark {
+
+    private static final String[] TESTERS = {
+            "AppenderAttachableImplTester", "BufferedInputStreamTester", "ConcurrentHashMapTester",
+            "FileAppenderTester", "HashTableTester", "InputBufferTester", "LoggerTester",
+            "NullAppenderTester", "NumberAxisTester", "PerUserPoolDataSourceTester", "PeriodAxisTester",
+            "RequestTester", "SharedPoolDataSourceTester", "StringBufferTester", "TimeSeriesTester",
+            "Vector117Tester", "Vector142Tester", "XStreamTester", "XYPlotTester", "XYSeriesTester"};
+
+    private static final String[] MODES = {Z3Session.MODE_FILE, Z3Session.MODE_INTERACTIVE};
+
+    private static final String RESULT = "SOLVER_BENCH";
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length == 2 && "run".equals(args[0])) {
+            runOne(args[1]);
+            return;
+        }
+
+        List<String> testers = args.length > 0 ? Arrays.asList(args) : Arrays.asList(TESTERS);
+        System.out.println(String.format("%-30s %-12s %10s %12s %12s %12s",
+                "tester", "mode", "wall(ms)", "#queries", "solve(ms)", "#reused"));
+        for (String tester : testers) {
+            for (String mode : MODES) {
+                long start = System.currentTimeMillis();
+                String result = fork("test.examples." + tester, mode);
+                long wall = System.currentTimeMillis() - start;
+                String[] fields = result == null ? new String[]{"-", "-", "-"} : result.split(" ");
+                System.out.println(String.format("%-30s %-12s %10d %12s %12s %12s",
+                        tester, mode, wall, fields[0], fields[1], fields[2]));
+            }
+        }
+    }
+
+    /**
+     * run the tester in a child jvm with the given solver_mode and return its result line
+     */
+    private static String fork(String className, String mode) throws Exception {
+
+        List<String> cmd = new ArrayList<>();
+        cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        cmd.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        cmd.add("-Dsolver_mode=" + mode);
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(SolverModeBenchmark.class.getName());
+        cmd.add("run");
+        cmd.add(className);
+
+        ProcessBuilder processBuilder = new ProcessBuilder(cmd);
+        processBuilder.redirectErrorStream(true);
+        Process process = processBuilder.start();
+
+        String result = null;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        String line = reader.readLine();
+        while (line != null) {
+            if (line.startsWith(RESULT)) {
+                result = line.substring(RESULT.length()).trim();
+            }
+            line = reader.readLine();
+        }
+        process.waitFor();
+        return result;
+    }
+
+    private static void runOne(final String className) throws Exception {
+
+        //the scheduler may leave through System.exit, report from a hook
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                System.out.println(RESULT + " " + ExplorationStatsListener.numConstraints
+                        + " " + Configuration.solveTime.get()
+                        + " " + Z3Session.numPreludeReuse.get());
+                System.out.flush();
+            }
+        }));
+        new JUnitCore().run(Class.forName(className));
+    }
+}